@@ -2,17 +2,28 @@ package org.ibex.classgen;
 
 import java.util.*;
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /** Class generation object representing the whole classfile */
 public class ClassFile extends Type.Class.Body {
     private final Type.Class thisType;
     final Type.Class superType;
     final Type.Class[] interfaces;
-    private final short minor;
-    private final short major;
+    private short minor;
+    private short major;
     
     private final Vector<FieldGen> fields = new Vector<FieldGen>();
     private final Vector<MethodGen> methods = new Vector<MethodGen>();
+    private Executor dumpExecutor;
+    private Context context;
+    
+    // The bytes the class was read from. Until something is changed they're written out as is.
+    byte[] original;
+    private boolean modified;
 
     public Type.Class.Method.Body[] methods() {
         Type.Class.Method.Body[] ret = new Type.Class.Method.Body[methods.size()];
@@ -98,6 +109,7 @@ public class ClassFile extends Type.Class.Body {
     public final MethodGen addMethod(Type.Class.Method method,int flags) {
         MethodGen mg = new MethodGen(method, flags);
         methods.addElement(mg);
+        modified = true;
         return mg;
     }
     
@@ -117,6 +129,7 @@ public class ClassFile extends Type.Class.Body {
     public final FieldGen addField(Type.Class.Field field, int flags) {
         FieldGen fg = new FieldGen(field , flags);
         fields.addElement(fg);
+        modified = true;
         return fg;
     }
     
@@ -125,6 +138,67 @@ public class ClassFile extends Type.Class.Body {
     */
     public void setSourceFile(String sourceFile) { attrs.put("SourceFile", new ConstantPool.Utf8Key(sourceFile)); }
     
+    /** Sets the classfile version. Classes of version 50 (Java 6) and above are written with StackMapTable
+        attributes, which let the JVM check them with the linear-time type-checking verifier
+        @param major The major version (45 is the default)
+        @param minor The minor version (3 is the default)
+    */
+    public void setVersion(int major, int minor) {
+        if (major < 45 || major > 0xffff || minor < 0 || minor > 0xffff) throw new IllegalArgumentException("invalid version");
+        this.major = (short) major;
+        this.minor = (short) minor;
+        modified = true;
+    }
+    
+    /** Sets the context used to find the common superclass of two classes when computing StackMapTable frames.
+        Context.add() and Context.resolve() set it to the context the class belongs to. If it is null or the classes
+        can't be resolved, writing a method that merges them fails with an IllegalStateException. */
+    public void setContext(Context cx) { this.context = cx; }
+    
+    /** Splits every method whose bytecode could be larger than MethodGen.HUGE_METHOD_LIMIT bytes
+        @see ClassFile#splitLargeMethods(int, Context)
+    */
+    public int splitLargeMethods() { return splitLargeMethods(MethodGen.HUGE_METHOD_LIMIT, context); }
+    
+    /** Splits every method whose bytecode could be larger than <i>budget</i> bytes into a chain of private static
+        helper methods, each of which is within the budget (where the code allows it).
+        @param budget The maximum size, in bytes, of each piece's bytecode
+        @param cx The context used to find the common superclass of merged reference types (may be null, in which
+                  case code where such merges are live can't be split)
+        @return The number of helper methods that were added
+    */
+    public int splitLargeMethods(int budget, Context cx) {
+        int n = 0;
+        for(int i=0, count=methods.size();i<count;i++) {
+            MethodGen mg = (MethodGen)methods.elementAt(i);
+            if (mg.isConcrete()) n += mg.split(this, budget, cx);
+        }
+        return n;
+    }
+    
+    String uniqueMethodName(String base) {
+        OUTER: for(int n=0;;n++) {
+            String name = base + "$" + n;
+            for(int i=0;i<methods.size();i++)
+                if (((MethodGen)methods.elementAt(i)).method.name.equals(name)) continue OUTER;
+            return name;
+        }
+    }
+    
+    /** Sets the executor used to encode method bodies concurrently when this class is written. Once the constant
+        pool is sealed each method is laid out and written into its own region of the output buffer, so the
+        result is byte-for-byte identical to a serial dump. The calling thread takes part in the work, so an
+        executor that is saturated (or is the pool the caller is itself running in) can't deadlock a dump.
+        @param executor The executor to use, or null to encode methods serially (the default)
+        @see ClassFile#setParallelDump(boolean)
+    */
+    public void setDumpExecutor(Executor executor) { this.dumpExecutor = executor; }
+    
+    /** Encodes method bodies on the common fork/join pool (or serially) when this class is written
+        @see ClassFile#setDumpExecutor(Executor)
+    */
+    public void setParallelDump(boolean parallel) { setDumpExecutor(parallel ? ForkJoinPool.commonPool() : null); }
+    
     /** Writes the classfile data to the file specifed
         @see ClassFile#dump(OutputStream)
     */
@@ -144,9 +218,12 @@ public class ClassFile extends Type.Class.Body {
             }
             f = new File(f, a[i] + ".class");
         }
-        OutputStream os = new FileOutputStream(f);
-        dump(os);
-        os.close();
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            writeTo(os.getChannel());
+        } finally {
+            os.close();
+        }
     }
    
     /** Writes the classfile data to the outputstream specified
@@ -156,45 +233,166 @@ public class ClassFile extends Type.Class.Body {
         @exception Exn if the classfile could not be written for any other reason (constant pool full, etc)
     */
     public void dump(OutputStream os) throws IOException {
-        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
-        _dump(dos);
-        dos.flush();
+        if (unchanged()) {
+            os.write(original);
+            os.flush();
+            return;
+        }
+        ByteBuffer b = toByteBuffer();
+        os.write(b.array(), b.arrayOffset(), b.remaining());
+        os.flush();
     }
     
-    private void _dump(DataOutput o) throws IOException {
+    /** Writes the classfile data to the channel specified, using a direct buffer
+        @see ClassFile#toByteBuffer(boolean)
+    */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+        ByteBuffer b = unchanged() ? ByteBuffer.wrap(original) : toByteBuffer(true);
+        while(b.hasRemaining()) ch.write(b);
+    }
+    
+    /** Returns the classfile data in a heap buffer whose position is 0 and whose limit is the size of the class
+        @see ClassFile#toByteBuffer(boolean)
+    */
+    public ByteBuffer toByteBuffer() { return toByteBuffer(false); }
+    
+    /** Returns the classfile data. The size of the class is computed before anything is written, so the data is
+        encoded directly into a single buffer of exactly that size with no intermediate copies.
+        @param direct Whether to allocate a direct buffer (suitable for writing to a channel) instead of a heap buffer
+        @exception IllegalStateException if the data for a method is in an inconsistent state (required arguments missing, etc)
+        @exception Exn if the classfile could not be written for any other reason (constant pool full, etc)
+    */
+    public ByteBuffer toByteBuffer(boolean direct) {
+        if (unchanged()) {
+            ByteBuffer o = direct ? ByteBuffer.allocateDirect(original.length) : ByteBuffer.allocate(original.length);
+            o.put(original);
+            ((Buffer)o).flip();
+            return o;
+        }
+        
         ConstantPool cp = new ConstantPool();
         cp.add(thisType);
         cp.add(superType);
         if(interfaces != null) for(int i=0;i<interfaces.length;i++) cp.add(interfaces[i]);
-        for(int i=0;i<methods.size();i++) ((MethodGen)methods.elementAt(i)).finish(cp);
+        boolean stackMaps = (major & 0xffff) >= 50;
+        for(int i=0;i<methods.size();i++) ((MethodGen)methods.elementAt(i)).finish(cp, stackMaps, context);
         for(int i=0;i<fields.size();i++) ((FieldGen)fields.elementAt(i)).finish(cp);
         attrs.finish(cp);
         
         cp.optimize();
         cp.seal();
         
-        o.writeInt(0xcafebabe); // magic
-        o.writeShort(minor); // minor_version
-        o.writeShort(major); // major_version
+        final Executor executor = methods.size() > 1 ? dumpExecutor : null;
+        final int[] methodLength = new int[methods.size()];
+        final ConstantPool fcp = cp;
+        if (executor != null) forEachMethod(executor, new MethodTask() {
+            public void run(int i) { methodLength[i] = ((MethodGen)methods.elementAt(i)).length(fcp); }
+        });
+        else for(int i=0;i<methods.size();i++) methodLength[i] = ((MethodGen)methods.elementAt(i)).length(cp);
+        
+        int length = 4 + 2 + 2 + cp.length() + 2 + 2 + 2;
+        length += 2 + (interfaces == null ? 0 : interfaces.length*2);
+        length += 2;
+        for(int i=0;i<fields.size();i++) length += ((FieldGen)fields.elementAt(i)).length(cp);
+        length += 2;
+        for(int i=0;i<methods.size();i++) length += methodLength[i];
+        length += attrs.length(cp);
+        
+        ByteBuffer o = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        _dump(o, cp, executor, methodLength);
+        if (o.position() != length) throw new Error("should never happen");
+        ((Buffer)o).flip();   // ByteBuffer's own flip() is new in Java 9, this runs on 8
+        return o;
+    }
+    
+    /** Whether this class was read from a byte array and nothing in it has been changed since. Methods that haven't
+        been changed are copied (see MethodGen) even if the rest of the class has. */
+    boolean unchanged() {
+        if (original == null || modified || attrs.modified) return false;
+        for(int i=0;i<fields.size();i++) if (((FieldGen)fields.elementAt(i)).attrs.modified) return false;
+        for(int i=0;i<methods.size();i++) if (!((MethodGen)methods.elementAt(i)).unchanged()) return false;
+        return true;
+    }
+    
+    private void _dump(ByteBuffer o, ConstantPool cp, Executor executor, int[] methodLength) {
+        o.putInt(0xcafebabe); // magic
+        o.putShort(minor); // minor_version
+        o.putShort(major); // major_version
         
         cp.dump(o); // constant_pool
         
-        o.writeShort(flags);
-        o.writeShort(cp.getIndex(thisType)); // this_class
-        o.writeShort(cp.getIndex(superType)); // super_class
+        o.putShort((short)flags);
+        o.putShort((short)cp.getIndex(thisType)); // this_class
+        o.putShort((short)cp.getIndex(superType)); // super_class
         
-        o.writeShort(interfaces==null ? 0 : interfaces.length); // interfaces_count
-        if(interfaces != null) for(int i=0;i<interfaces.length;i++) o.writeShort(cp.getIndex(interfaces[i])); // interfaces
+        o.putShort((short)(interfaces==null ? 0 : interfaces.length)); // interfaces_count
+        if(interfaces != null) for(int i=0;i<interfaces.length;i++) o.putShort((short)cp.getIndex(interfaces[i])); // interfaces
         
-        o.writeShort(fields.size()); // fields_count
+        o.putShort((short)fields.size()); // fields_count
         for(int i=0;i<fields.size();i++) ((FieldGen)fields.elementAt(i)).dump(o,cp); // fields
 
-        o.writeShort(methods.size()); // methods_count
-        for(int i=0;i<methods.size();i++) ((MethodGen)methods.elementAt(i)).dump(o,cp); // methods
+        o.putShort((short)methods.size()); // methods_count
+        if (executor == null) {
+            for(int i=0;i<methods.size();i++) ((MethodGen)methods.elementAt(i)).dump(o,cp); // methods
+        } else {
+            // each method gets its own view of the buffer starting at the offset the serial path would write it at
+            final ByteBuffer fo = o;
+            final ConstantPool fcp = cp;
+            final int[] offset = new int[methods.size()];
+            final int[] len = methodLength;
+            for(int i=0, p=o.position();i<offset.length;p += len[i++]) offset[i] = p;
+            forEachMethod(executor, new MethodTask() {
+                public void run(int i) {
+                    ByteBuffer mo = fo.duplicate();
+                    ((Buffer)mo).position(offset[i]);
+                    ((MethodGen)methods.elementAt(i)).dump(mo,fcp);
+                    if (mo.position() != offset[i] + len[i]) throw new Error("should never happen");
+                }
+            });
+            ((Buffer)o).position(offset.length == 0 ? o.position() : offset[offset.length-1] + len[len.length-1]);
+        }
         
         attrs.dump(o,cp); // attributes        
     }
     
+    private interface MethodTask { void run(int i); }
+    
+    /** Runs <i>task</i> once for every method, on the executor's threads and the calling thread. Methods are
+        claimed from a shared counter, so any work the executor never gets around to is done by the caller. */
+    private void forEachMethod(Executor executor, final MethodTask task) {
+        final int n = methods.size();
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(n);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Runnable worker = new Runnable() { public void run() {
+            for(int i; (i = next.getAndIncrement()) < n; ) {
+                try {
+                    if (failure.get() == null) task.run(i);
+                } catch(Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        } };
+        int helpers = Math.min(n, Runtime.getRuntime().availableProcessors()) - 1;
+        try {
+            for(int i=0;i<helpers;i++) executor.execute(worker);
+        } catch(RejectedExecutionException e) {
+            // the caller picks up whatever the executor wouldn't take
+        }
+        worker.run();
+        boolean interrupted = false;
+        for(;;) {
+            try { done.await(); break; } catch(InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        if (t != null) throw new Error("should never happen");
+    }
+    
     public static ClassFile read(String s) throws IOException { return read(new File(s)); }
     public static ClassFile read(File f) throws ClassReadExn, IOException {
         InputStream is = new FileInputStream(f);
@@ -204,8 +402,15 @@ public class ClassFile extends Type.Class.Body {
     }
     
     public static ClassFile read(InputStream is) throws ClassReadExn, IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+        byte[] buf = new byte[4096];
+        for(int n; (n = is.read(buf)) != -1; ) baos.write(buf, 0, n);
+        return read(baos.toByteArray());
+    }
+    
+    public static ClassFile read(byte[] b) throws ClassReadExn, IOException {
         try {
-            return new ClassFile(new DataInputStream(new BufferedInputStream(is)));
+            return new ClassFile(b);
         } catch(RuntimeException e) {
             e.printStackTrace();
             throw new ClassReadExn("invalid constant pool entry");
@@ -216,6 +421,24 @@ public class ClassFile extends Type.Class.Body {
     public ClassFile(DataInput i, boolean ssa) throws IOException {
         this(i.readInt(), i.readShort(), i.readShort(), new ConstantPool(i), i.readShort(), i, ssa);
     }
+    
+    /** Reads a class from the classfile bytes <i>b</i>. The constant pool and the code are decoded directly out of
+        <i>b</i> (on demand), and as long as the class isn't changed <i>b</i> is what gets written, so <i>b</i> must
+        not be modified afterwards */
+    public ClassFile(byte[] b) throws IOException { this(b, false); }
+    public ClassFile(byte[] b, boolean ssa) throws IOException { this(b, header(b), ssa); }
+    private ClassFile(byte[] b, ConstantPool cp, boolean ssa) throws IOException {
+        this(b, cp, new DataInputStream(new ByteArrayInputStream(b, cp.end, b.length - cp.end)), ssa);
+    }
+    private ClassFile(byte[] b, ConstantPool cp, DataInput i, boolean ssa) throws IOException {
+        this(ConstantPool.readInt(b, 0), (short)ConstantPool.readU2(b, 4), (short)ConstantPool.readU2(b, 6), cp,
+             i.readShort(), i, ssa);
+        original = b;
+    }
+    private static ConstantPool header(byte[] b) throws ClassReadExn {
+        if (b.length < 10) throw new ClassReadExn("truncated classfile");
+        return new ConstantPool(b, 8);
+    }
     private ClassFile(int magic, short minor, short major, ConstantPool cp,
                       short flags, DataInput i, boolean ssa) throws IOException {
         this(magic, minor, major, cp, flags, (Type.Class)cp.getKeyByIndex(i.readShort()), i, ssa);
@@ -242,6 +465,8 @@ public class ClassFile extends Type.Class.Body {
         // NOTE: Until we can support them properly we HAVE to delete them,
         //       they'll be incorrect after we rewrite the constant pool, etc
         attrs.remove("InnerClasses");
+        // a copy of the original bytes keeps them
+        attrs.modified = false;
     }
     
     /** Thrown when class generation fails for a reason not under the control of the user
@@ -257,6 +482,8 @@ public class ClassFile extends Type.Class.Body {
     
     static class AttrGen {
         private final Hashtable<String,Object> ht = new Hashtable<String,Object>();
+        // set by put() and remove(), so a class that was read can tell whether its attributes are still the originals
+        boolean modified;
         
         AttrGen() { }
         AttrGen(DataInput in, ConstantPool cp) throws IOException {
@@ -275,9 +502,9 @@ public class ClassFile extends Type.Class.Body {
         }
 
         public Object get(String s) { return ht.get(s); }
-        public void put(String s, Object data) { ht.put(s, data); }
+        public void put(String s, Object data) { ht.put(s, data); modified = true; }
         public boolean contains(String s) { return ht.get(s) != null; }
-        public void remove(String s) { ht.remove(s); }
+        public void remove(String s) { if (ht.remove(s) != null) modified = true; }
         public int size() { return ht.size(); }
         
         void finish(ConstantPool cp) {
@@ -285,28 +512,52 @@ public class ClassFile extends Type.Class.Body {
                 String name = (String) e.nextElement();
                 Object val = ht.get(name);
                 cp.addUtf8(name);
-                if(!(val instanceof byte[])) cp.add(val);
+                if(!(val instanceof byte[]) && !(val instanceof Attr)) cp.add(val);
             }
         }
         
-        void dump(DataOutput o, ConstantPool cp) throws IOException {
-            o.writeShort(size());
+        /** the number of bytes dump() will write */
+        int length(ConstantPool cp) {
+            int n = 2;
+            for(Enumeration e = ht.elements(); e.hasMoreElements();) {
+                Object val = e.nextElement();
+                n += 6 + (val instanceof byte[] ? ((byte[])val).length : val instanceof Attr ? ((Attr)val).length(cp) : 2);
+            }
+            return n;
+        }
+        
+        void dump(ByteBuffer o, ConstantPool cp) {
+            o.putShort((short)size());
             for(Enumeration e = ht.keys(); e.hasMoreElements();) {
                 String name = (String) e.nextElement();
                 Object val = ht.get(name);
-                o.writeShort(cp.getUtf8Index(name));
+                o.putShort((short)cp.getUtf8Index(name));
                 if(val instanceof byte[]) {
                     byte[] buf = (byte[]) val;
-                    o.writeInt(buf.length);
-                    o.write(buf);
+                    o.putInt(buf.length);
+                    o.put(buf);
+                } else if(val instanceof Attr) {
+                    Attr attr = (Attr) val;
+                    int length = attr.length(cp);
+                    o.putInt(length);
+                    int start = o.position();
+                    attr.dump(o, cp);
+                    if (o.position() - start != length) throw new Error("attribute length disagreement: " + name);
                 } else {
-                    o.writeInt(2);
-                    o.writeShort(cp.getIndex(val));
+                    o.putInt(2);
+                    o.putShort((short)cp.getIndex(val));
                 }
             }
         }
     }
     
+    /** An attribute whose contents are encoded straight into the output buffer when the class is written */
+    interface Attr {
+        /** the length of the attribute (not counting the name and length fields) */
+        int length(ConstantPool cp);
+        void dump(ByteBuffer o, ConstantPool cp);
+    }
+    
     public static void main(String[] args) throws Exception {
         if(args.length >= 2 && args[0].equals("copyto")) {
             File dest = new File(args[1]);
@@ -2,11 +2,17 @@ package org.ibex.classgen;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import org.ibex.classgen.util.*;
 
 class ConstantPool implements CGConst {
-    private final Hashtable<Object,Ent> entries = new Hashtable<Object,Ent>();
+    // open-addressed (linear probing) intern table; lookups never box and never lock
+    private Ent[] table = new Ent[64];
+    private int count;
+    // entries in insertion order (holes are left by unref); keeps the output independent of the hash function
+    private Ent[] ordered = new Ent[32];
+    private int numOrdered;
     private Ent[] entriesByIndex; // only valid when stable
     
     private int usedSlots = 1; // 0 is reserved
@@ -20,10 +26,15 @@ class ConstantPool implements CGConst {
     public abstract class Ent {
         int n; // this is the refcount if state == OPEN, index if >= STABLE
         int tag;
+        int hash; // see the hash* functions below, set when the ent enters the table
+        int order; // position in ordered[]
+        boolean narrow; // an LDC that's copied as is refers to this, so optimize() has to give it an index below 256
         Object key;
         Ent(int tag) { this.tag = tag; }
-        void dump(DataOutput o) throws IOException { o.writeByte(tag); }
+        void dump(ByteBuffer o) { o.put((byte)tag); }
+        int length() { return 3; } // bytes this ent takes up in the classfile
         abstract Object _key();
+        abstract int _hash();
         final Object key() { return key == null ? (key = _key()) : key; }
         int slots() { return 1; } // number of slots this ent takes up
         void ref() {
@@ -32,7 +43,7 @@ class ConstantPool implements CGConst {
         }
         void unref() {
             if(state != OPEN) throw new IllegalStateException("cp is not open");
-            if(--n == 0) entries.remove(key());
+            if(--n == 0) remove(this);
         }
     }
     
@@ -41,53 +52,65 @@ class ConstantPool implements CGConst {
         Utf8Ent() { super(CONSTANT_UTF8); }
         Utf8Ent(String s) { this();  this.s = s; }
         public String toString() { return s; }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeUTF(s); }
+        void dump(ByteBuffer o) { super.dump(o); writeUTF(o, s); }
+        int length() { return 3 + utfLength(s); }
         Object _key() { return new Utf8Key(s); }
+        int _hash() { return hashUtf8(s.hashCode()); }
     }
     
     class IntLitEnt extends Ent {
         final int i;
         IntLitEnt(int i) { super(CONSTANT_INTEGER); this.i = i; }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeInt(i);  }
+        void dump(ByteBuffer o) { super.dump(o); o.putInt(i);  }
+        int length() { return 5; }
         Object _key() { return new Integer(i); }
+        int _hash() { return hashInt(CONSTANT_INTEGER, i); }
     }
     class FloatLitEnt extends Ent {
         final float f;
         FloatLitEnt(float f) { super(CONSTANT_FLOAT); this.f = f; }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeFloat(f);  }
+        void dump(ByteBuffer o) { super.dump(o); o.putFloat(f);  }
+        int length() { return 5; }
         Object _key() { return new Float(f); }
+        int _hash() { return hashInt(CONSTANT_FLOAT, Float.floatToIntBits(f)); }
     }
     class LongLitEnt extends Ent {
         final long l;
         LongLitEnt(long l) { super(CONSTANT_LONG); this.l = l; }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeLong(l); }
+        void dump(ByteBuffer o) { super.dump(o); o.putLong(l); }
+        int length() { return 9; }
         Object _key() { return new Long(l); }
+        int _hash() { return hashLong(CONSTANT_LONG, l); }
         int slots() { return 2; }
     }
     class DoubleLitEnt extends Ent {
         final double d;
         DoubleLitEnt(double d) { super(CONSTANT_DOUBLE); this.d = d; }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeDouble(d); }
+        void dump(ByteBuffer o) { super.dump(o); o.putDouble(d); }
+        int length() { return 9; }
         Object _key() { return new Double(d); }
+        int _hash() { return hashLong(CONSTANT_DOUBLE, Double.doubleToLongBits(d)); }
         int slots() { return 2; }
     }
     class StringLitEnt extends Ent {
         Utf8Ent utf8;
         StringLitEnt() { super(CONSTANT_STRING); }
         StringLitEnt(String s) { this(); this.utf8 = (Utf8Ent)addUtf8(s); }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeShort(utf8.n); }
+        void dump(ByteBuffer o) { super.dump(o); o.putShort((short)utf8.n); }
         Object _key() { return utf8.s; }
+        int _hash() { return hashString(utf8.s.hashCode()); }
         void unref() { utf8.unref(); super.unref(); }
     }
     class ClassEnt extends Ent {
         Utf8Ent utf8;
         ClassEnt() { super(CONSTANT_CLASS); }
         ClassEnt(String s) { this(); this.utf8 = (Utf8Ent) addUtf8(s); }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeShort(utf8.n); }
+        void dump(ByteBuffer o) { super.dump(o); o.putShort((short)utf8.n); }
         Type.Class getTypeClass() { return  (Type.Class) key(); }
         Object _key() {
             return Type.fromDescriptor(utf8.s.startsWith("[") ? utf8.s : "L" + utf8.s + ";"); 
         }
+        int _hash() { return hashClass(utf8.s.hashCode()); }
         void unref() { utf8.unref(); super.unref(); }
         public String toString() { return "[Class: " + utf8.s + "]"; }
     }
@@ -102,8 +125,10 @@ class ConstantPool implements CGConst {
             this.name = (Utf8Ent) addUtf8(name);
             this.type = (Utf8Ent) addUtf8(type);
         }
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeShort(name.n); o.writeShort(type.n); }
+        void dump(ByteBuffer o) { super.dump(o); o.putShort((short)name.n); o.putShort((short)type.n); }
+        int length() { return 5; }
         Object _key() { return new NameAndTypeKey(name.s, type.s); }
+        int _hash() { return hashNameAndType(name.s.hashCode(), type.s.hashCode()); }
         void unref() { name.unref(); type.unref(); super.unref(); }
     }
     
@@ -114,11 +139,13 @@ class ConstantPool implements CGConst {
         MemberEnt(int tag) { super(tag); }
         MemberEnt(int tag, Type.Class klass, String name, String type) {
             this(tag);
-            this.klass = (ClassEnt) add(klass); 
+            this.klass = addClass(klass); 
             this.member = addNameAndType(name,type);
         }
+        int _hash() { return hashMember(tag, klass.utf8.s.hashCode(), member.name.s.hashCode(), member.type.s.hashCode()); }
         
-        void dump(DataOutput o) throws IOException { super.dump(o); o.writeShort(klass.n); o.writeShort(member.n); }
+        void dump(ByteBuffer o) { super.dump(o); o.putShort((short)klass.n); o.putShort((short)member.n); }
+        int length() { return 5; }
         
         Object _key() {
             if(member.name == null) throw new Error("should never happen");
@@ -165,12 +192,276 @@ class ConstantPool implements CGConst {
         public boolean equals(Object o) { return o instanceof InterfaceMethodKey && ((InterfaceMethodKey)o).method.equals(method); }
     }
     
+    /*
+     * Hashing
+     *
+     * Every probe path hashes the raw contents of its key (int/long bits, the chars of a string, or the pair of
+     * strings making up a NameAndType/member) exactly the way the corresponding Ent hashes itself in _hash(), so
+     * a lookup never has to build a key object. Strings hash like String.hashCode(), which lets us hash a
+     * descriptor that only exists as a sequence of Types without concatenating it.
+     */
+    
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+    private static int hashInt(int tag, int i) { return mix(i * 31 + tag); }
+    private static int hashLong(int tag, long l) { return mix((int)(l ^ (l >>> 32)) * 31 + tag); }
+    private static int hashUtf8(int s) { return mix(s); }
+    private static int hashString(int s) { return mix(s * 31 + CONSTANT_STRING); }
+    private static int hashClass(int name) { return mix(name * 31 + CONSTANT_CLASS); }
+    private static int hashNameAndType(int name, int type) { return mix((name * 31 + type) * 31 + CONSTANT_NAMEANDTYPE); }
+    private static int hashMember(int tag, int klass, int name, int type) {
+        return mix(((klass * 31 + name) * 31 + type) * 31 + tag);
+    }
+    
+    private static int hashChars(int h, String s) {
+        for(int i=0; i<s.length(); i++) h = 31*h + s.charAt(i);
+        return h;
+    }
+    
+    /** String.hashCode() of the internal form of <i>t</i> (what ends up in the utf8 of a CONSTANT_CLASS) */
+    private static int internalFormHash(Type.Ref t) {
+        String d = t.getDescriptor();
+        if (!t.isClass()) return d.hashCode();
+        int h = 0;
+        for(int i=1; i<d.length()-1; i++) h = 31*h + d.charAt(i);
+        return h;
+    }
+    private static boolean internalFormMatches(String s, Type.Ref t) {
+        String d = t.getDescriptor();
+        if (!t.isClass()) return s.equals(d);
+        return s.length() == d.length()-2 && d.regionMatches(1, s, 0, s.length());
+    }
+    
+    /** String.hashCode() of the type descriptor of <i>m</i> */
+    private static int descriptorHash(Type.Class.Member m) {
+        if (m instanceof Type.Class.Field) return ((Type.Class.Field)m).getType().getDescriptor().hashCode();
+        Type.Class.Method method = (Type.Class.Method) m;
+        int h = '(';
+        for(int i=0; i<method.argTypes.length; i++) h = hashChars(h, method.argTypes[i].getDescriptor());
+        h = 31*h + ')';
+        return hashChars(h, method.returnType.getDescriptor());
+    }
+    private static boolean descriptorMatches(String s, Type.Class.Member m) {
+        if (m instanceof Type.Class.Field) return s.equals(((Type.Class.Field)m).getType().getDescriptor());
+        Type.Class.Method method = (Type.Class.Method) m;
+        if (s.length() == 0 || s.charAt(0) != '(') return false;
+        int p = 1;
+        for(int i=0; i<method.argTypes.length; i++) {
+            String d = method.argTypes[i].getDescriptor();
+            if (!s.regionMatches(p, d, 0, d.length())) return false;
+            p += d.length();
+        }
+        if (p >= s.length() || s.charAt(p++) != ')') return false;
+        String d = method.returnType.getDescriptor();
+        return s.length() - p == d.length() && s.regionMatches(p, d, 0, d.length());
+    }
+    
+    /*
+     * Probing
+     */
+    
+    private IntLitEnt findInt(int h, int i) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_INTEGER && ((IntLitEnt)e).i == i) return (IntLitEnt) e;
+        }
+    }
+    private FloatLitEnt findFloat(int h, int bits) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_FLOAT && Float.floatToIntBits(((FloatLitEnt)e).f) == bits) return (FloatLitEnt) e;
+        }
+    }
+    private LongLitEnt findLong(int h, long l) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_LONG && ((LongLitEnt)e).l == l) return (LongLitEnt) e;
+        }
+    }
+    private DoubleLitEnt findDouble(int h, long bits) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_DOUBLE && Double.doubleToLongBits(((DoubleLitEnt)e).d) == bits)
+                return (DoubleLitEnt) e;
+        }
+    }
+    private Utf8Ent findUtf8(int h, String s) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_UTF8 && ((Utf8Ent)e).s.equals(s)) return (Utf8Ent) e;
+        }
+    }
+    private StringLitEnt findString(int h, String s) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_STRING && ((StringLitEnt)e).utf8.s.equals(s)) return (StringLitEnt) e;
+        }
+    }
+    private ClassEnt findClass(int h, Type.Ref t) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_CLASS && internalFormMatches(((ClassEnt)e).utf8.s, t)) return (ClassEnt) e;
+        }
+    }
+    private NameAndTypeEnt findNameAndType(int h, String name, String type) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == CONSTANT_NAMEANDTYPE) {
+                NameAndTypeEnt nte = (NameAndTypeEnt) e;
+                if (nte.name.s.equals(name) && nte.type.s.equals(type)) return nte;
+            }
+        }
+    }
+    private MemberEnt findMember(int h, int tag, Type.Class.Member m) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        for(int p = h & mask; ; p = (p+1) & mask) {
+            Ent e = table[p];
+            if (e == null) return null;
+            if (e.hash == h && e.tag == tag) {
+                MemberEnt me = (MemberEnt) e;
+                if (me.member.name.s.equals(m.name)
+                    && internalFormMatches(me.klass.utf8.s, m.getDeclaringClass())
+                    && descriptorMatches(me.member.type.s, m))
+                    return me;
+            }
+        }
+    }
+    
+    private static int memberTag(Type.Class.Member m) {
+        return m instanceof Type.Class.Field  ? CONSTANT_FIELDREF
+             : m instanceof Type.Class.Method ? CONSTANT_METHODREF
+             : 0;
+    }
+    private static int hashMember(int tag, Type.Class.Member m) {
+        return hashMember(tag, internalFormHash(m.getDeclaringClass()), m.name.hashCode(), descriptorHash(m));
+    }
+    
+    /*
+     * Table maintenance
+     */
+    
+    private void insert(Ent ent) {
+        if ((count+1)*2 > table.length) rehash(table.length*2);
+        ent.hash = ent._hash();
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        int p = ent.hash & mask;
+        while(table[p] != null) p = (p+1) & mask;
+        table[p] = ent;
+        count++;
+        if (numOrdered == ordered.length) {
+            Ent[] ordered2 = new Ent[ordered.length*2];
+            System.arraycopy(ordered, 0, ordered2, 0, numOrdered);
+            ordered = ordered2;
+        }
+        ent.order = numOrdered;
+        ordered[numOrdered++] = ent;
+    }
+    
+    private void rehash(int newCap) {
+        Ent[] old = table;
+        Ent[] table = new Ent[newCap];
+        int mask = newCap - 1;
+        for(int i=0; i<old.length; i++) {
+            Ent ent = old[i];
+            if (ent == null) continue;
+            int p = ent.hash & mask;
+            while(table[p] != null) p = (p+1) & mask;
+            table[p] = ent;
+        }
+        this.table = table;
+    }
+    
+    // backward shift deletion, linear probing doesn't need tombstones
+    private void remove(Ent ent) {
+        Ent[] table = this.table;
+        int mask = table.length - 1;
+        int p = ent.hash & mask;
+        while(table[p] != ent) {
+            if (table[p] == null) throw new Error("should never happen");
+            p = (p+1) & mask;
+        }
+        table[p] = null;
+        for(int q = (p+1) & mask; table[q] != null; q = (q+1) & mask) {
+            int home = table[q].hash & mask;
+            if (((q - home) & mask) >= ((q - p) & mask)) {
+                table[p] = table[q];
+                table[q] = null;
+                p = q;
+            }
+        }
+        count--;
+        ordered[ent.order] = null;
+    }
+    
     /*
      * Methods
      */
     
-    Ent get(Object o) { return (Ent) entries.get(o); }
-    Utf8Ent getUtf8(String s) { return (Utf8Ent) get(new Utf8Key(s)); }
+    Ent get(Object o) {
+        if (raw != null) index();
+        if (o instanceof Type.Ref) { Type.Ref t = (Type.Ref) o; return findClass(hashClass(internalFormHash(t)), t); }
+        if (o instanceof String) { String s = (String) o; return findString(hashString(s.hashCode()), s); }
+        if (o instanceof Integer) { int i = ((Integer)o).intValue(); return findInt(hashInt(CONSTANT_INTEGER, i), i); }
+        if (o instanceof Float) {
+            int bits = Float.floatToIntBits(((Float)o).floatValue());
+            return findFloat(hashInt(CONSTANT_FLOAT, bits), bits);
+        }
+        if (o instanceof Long) { long l = ((Long)o).longValue(); return findLong(hashLong(CONSTANT_LONG, l), l); }
+        if (o instanceof Double) {
+            long bits = Double.doubleToLongBits(((Double)o).doubleValue());
+            return findDouble(hashLong(CONSTANT_DOUBLE, bits), bits);
+        }
+        if (o instanceof Utf8Key) return getUtf8(((Utf8Key)o).s);
+        if (o instanceof NameAndTypeKey) {
+            NameAndTypeKey key = (NameAndTypeKey) o;
+            return findNameAndType(hashNameAndType(key.name.hashCode(), key.type.hashCode()), key.name, key.type);
+        }
+        if (o instanceof InterfaceMethodKey) return getMember(CONSTANT_INTERFACEMETHODREF, ((InterfaceMethodKey)o).method);
+        if (o instanceof Type.Class.Member) {
+            Type.Class.Member m = (Type.Class.Member) o;
+            return getMember(memberTag(m), m);
+        }
+        return null;
+    }
+    Utf8Ent getUtf8(String s) {
+        if (raw != null) index();
+        return findUtf8(hashUtf8(s.hashCode()), s);
+    }
+    MemberEnt getMember(int tag, Type.Class.Member m) {
+        if (raw != null) index();
+        return findMember(hashMember(tag, m), tag, m);
+    }
     
     int getIndex(Object o) {
         Ent e = get(o);
@@ -190,7 +481,8 @@ class ConstantPool implements CGConst {
     Ent getByIndex(int index) {
         if (state < STABLE) throw new IllegalStateException("constant pool is not stable");
         Ent e;
-        if (index >= 65536 || index >= entriesByIndex.length || (e = entriesByIndex[index]) == null) 
+        if (index >= 65536 || index >= entriesByIndex.length
+            || ((e = entriesByIndex[index]) == null && (raw == null || (e = decode(index)) == null)))
             throw new IllegalArgumentException("invalid cp index: " + index + "/" + entriesByIndex.length);
         return e;
     }
@@ -206,43 +498,96 @@ class ConstantPool implements CGConst {
         return e == null ? null : e.key();
     }
     
-    NameAndTypeEnt addNameAndType(String name, String descriptor) { return (NameAndTypeEnt) add(new NameAndTypeKey(name, descriptor)); }
-    Utf8Ent addUtf8(String s) { return (Utf8Ent) add(new Utf8Key(s)); }
-    
     Ent add(Object o) {
-        boolean isInterfaceMethod;
-        if (state == SEALED) throw new IllegalStateException("constant pool is sealed");
-        
-        Ent ent = get(o);
-        if (ent != null) {
-            if (state == OPEN) ent.n++;
-            return ent;
-        }
-        
-        if (o instanceof Type.Ref) { ent = new ClassEnt(((Type.Ref)o).internalForm()); }
-        else if (o instanceof String) { ent = new StringLitEnt((String)o); }
-        else if (o instanceof Integer) { ent = new IntLitEnt(((Integer)o).intValue()); }
-        else if (o instanceof Float) { ent = new FloatLitEnt(((Float)o).floatValue()); }
-        else if (o instanceof Long) { ent = new LongLitEnt(((Long)o).longValue()); }
-        else if (o instanceof Double) { ent = new DoubleLitEnt(((Double)o).doubleValue()); }
-        else if (o instanceof Utf8Key) { ent = new Utf8Ent(((Utf8Key)o).s); }
-        else if (o instanceof NameAndTypeKey) {
+        if (o instanceof Type.Ref) return addClass((Type.Ref)o);
+        if (o instanceof String) return addString((String)o);
+        if (o instanceof Integer) return addInt(((Integer)o).intValue());
+        if (o instanceof Float) return addFloat(((Float)o).floatValue());
+        if (o instanceof Long) return addLong(((Long)o).longValue());
+        if (o instanceof Double) return addDouble(((Double)o).doubleValue());
+        if (o instanceof Utf8Key) return addUtf8(((Utf8Key)o).s);
+        if (o instanceof NameAndTypeKey) {
             NameAndTypeKey key = (NameAndTypeKey) o;
-            ent = new NameAndTypeEnt(key.name,key.type);
-        }
-        else if ((isInterfaceMethod = o instanceof InterfaceMethodKey) || o instanceof Type.Class.Member) {
-            Type.Class.Member m = isInterfaceMethod ? ((InterfaceMethodKey)o).method : (Type.Class.Member) o;
-            int tag = isInterfaceMethod              ? CONSTANT_INTERFACEMETHODREF
-                    : m instanceof Type.Class.Field  ? CONSTANT_FIELDREF 
-                    : m instanceof Type.Class.Method ? CONSTANT_METHODREF
-                    : 0;
+            return addNameAndType(key.name, key.type);
+        }
+        if (o instanceof InterfaceMethodKey) return addMember(CONSTANT_INTERFACEMETHODREF, ((InterfaceMethodKey)o).method);
+        if (o instanceof Type.Class.Member) {
+            Type.Class.Member m = (Type.Class.Member) o;
+            int tag = memberTag(m);
             if (tag == 0) throw new Error("should never happen");
-            ent = new MemberEnt(tag, m.getDeclaringClass(), m.name, m.getTypeDescriptor());
-        } 
-        else {
-            throw new IllegalArgumentException("Unknown type " + o + " passed to add");
+            return addMember(tag, m);
         }
-        
+        throw new IllegalArgumentException("Unknown type " + o + " passed to add");
+    }
+    
+    /** Adds <i>o</i> as the operand of an LDC whose one byte index can't be widened. optimize() puts these entries
+        first, so they all get indices below 256 as long as there are fewer than 256 of them (which is always the case
+        when they come from the LDCs of a single classfile). */
+    Ent addNarrow(Object o) {
+        Ent ent = add(o);
+        ent.narrow = true;
+        return ent;
+    }
+    
+    IntLitEnt addInt(int i) {
+        checkAdd();
+        IntLitEnt ent = findInt(hashInt(CONSTANT_INTEGER, i), i);
+        return ent != null ? found(ent) : added(new IntLitEnt(i));
+    }
+    FloatLitEnt addFloat(float f) {
+        checkAdd();
+        int bits = Float.floatToIntBits(f);
+        FloatLitEnt ent = findFloat(hashInt(CONSTANT_FLOAT, bits), bits);
+        return ent != null ? found(ent) : added(new FloatLitEnt(f));
+    }
+    LongLitEnt addLong(long l) {
+        checkAdd();
+        LongLitEnt ent = findLong(hashLong(CONSTANT_LONG, l), l);
+        return ent != null ? found(ent) : added(new LongLitEnt(l));
+    }
+    DoubleLitEnt addDouble(double d) {
+        checkAdd();
+        long bits = Double.doubleToLongBits(d);
+        DoubleLitEnt ent = findDouble(hashLong(CONSTANT_DOUBLE, bits), bits);
+        return ent != null ? found(ent) : added(new DoubleLitEnt(d));
+    }
+    Utf8Ent addUtf8(String s) {
+        checkAdd();
+        Utf8Ent ent = getUtf8(s);
+        return ent != null ? found(ent) : added(new Utf8Ent(s));
+    }
+    StringLitEnt addString(String s) {
+        checkAdd();
+        StringLitEnt ent = findString(hashString(s.hashCode()), s);
+        return ent != null ? found(ent) : added(new StringLitEnt(s));
+    }
+    ClassEnt addClass(Type.Ref t) {
+        checkAdd();
+        ClassEnt ent = findClass(hashClass(internalFormHash(t)), t);
+        return ent != null ? found(ent) : added(new ClassEnt(t.internalForm()));
+    }
+    NameAndTypeEnt addNameAndType(String name, String descriptor) {
+        checkAdd();
+        NameAndTypeEnt ent = findNameAndType(hashNameAndType(name.hashCode(), descriptor.hashCode()), name, descriptor);
+        return ent != null ? found(ent) : added(new NameAndTypeEnt(name, descriptor));
+    }
+    MemberEnt addMember(int tag, Type.Class.Member m) {
+        checkAdd();
+        MemberEnt ent = getMember(tag, m);
+        return ent != null ? found(ent) : added(new MemberEnt(tag, m.getDeclaringClass(), m.name, m.getTypeDescriptor()));
+    }
+    
+    private void checkAdd() {
+        if (state == SEALED) throw new IllegalStateException("constant pool is sealed");
+        if (raw != null) index();
+    }
+    
+    private <E extends Ent> E found(E ent) {
+        if (state == OPEN) ent.n++;
+        return ent;
+    }
+    
+    private <E extends Ent> E added(E ent) {
         int spaces = ent.slots();        
         if (usedSlots + spaces > 65536) throw new ClassFile.Exn("constant pool full");
         
@@ -250,7 +595,7 @@ class ConstantPool implements CGConst {
 
         usedSlots += spaces;        
 
-        entries.put(o, ent);
+        insert(ent);
         return ent;
     }
     
@@ -259,11 +604,10 @@ class ConstantPool implements CGConst {
     void seal() { state = SEALED; }
     
     private Ent[] asArray() {
-        int count = entries.size();
+        if (raw != null) index();
         Ent[] ents = new Ent[count];
         int i=0;
-        Enumeration e = entries.keys();
-        while(e.hasMoreElements()) ents[i++] = (Ent) entries.get(e.nextElement());
+        for(int j=0; j<numOrdered; j++) if (ordered[j] != null) ents[i++] = ordered[j];
         if (i != count) throw new Error("should never happen");
         return ents;
     }
@@ -293,7 +637,9 @@ class ConstantPool implements CGConst {
     
     private static final Sort.CompareFunc reverseCompareFunc = new Sort.CompareFunc() {
         public int compare(Object a_, Object b_) {
-            return ((Ent)b_).n - ((Ent)a_).n;
+            Ent a = (Ent) a_, b = (Ent) b_;
+            if (a.narrow != b.narrow) return a.narrow ? -1 : 1;
+            return b.n - a.n;
         }
     };
     
@@ -305,110 +651,287 @@ class ConstantPool implements CGConst {
         assignIndex(ents);
     }
     
-    void dump(DataOutput o) throws IOException {
+    /** the number of bytes dump() will write */
+    int length() {
+        Ent[] ents = asArray();
+        int n = 2;
+        for(int i=0;i<ents.length;i++) n += ents[i].length();
+        return n;
+    }
+    
+    void dump(ByteBuffer o) {
         Ent[] ents = asArray();
         Sort.sort(ents, compareFunc);
-        o.writeShort(usedSlots);
+        o.putShort((short)usedSlots);
         for(int i=0;i<ents.length;i++) {
             //System.err.println("" + ents[i].n + ": " + ents[i].toString());
             ents[i].dump(o);
         }
     }
     
+    /*
+     * Reading
+     *
+     * A pool that was read from a classfile is decoded lazily: the constructors only record, for every slot, the
+     * offset of its entry in the raw bytes and its tag, packed as (offset << 4) | tag. Ents (and their strings and
+     * Type keys) are materialized the first time getByIndex() reaches them; the intern table is only filled in
+     * if somebody looks an entry up by content.
+     */
+    
+    private byte[] raw;
+    private int[] rawIndex;
+    
+    /** offset of the first byte following the constant pool when it was read with ConstantPool(byte[], int) */
+    int end;
+    
+    /** Reads a constant pool from <i>in</i>; the raw entries are buffered and decoded on demand */
     ConstantPool(DataInput in) throws ClassFile.ClassReadExn, IOException {
         usedSlots = in.readUnsignedShort();
         if (usedSlots==0) throw new ClassFile.ClassReadExn("invalid used slots");
-        
-        // these are to remember the descriptor ents we have to fix up
-        int[] e1s = new int[usedSlots];
-        int[] e2s = new int[usedSlots];
-        
-        entriesByIndex = new Ent[usedSlots];
-        
+        startReading();
+        byte[] raw = new byte[usedSlots * 8];
+        int p = 0;
         for(int i=1;i<usedSlots;) {
-            byte tag = in.readByte();
-            Ent e;
-            switch(tag) {
-                case CONSTANT_CLASS: // Object Type
-                    e = new ClassEnt();
-                    e1s[i] = in.readUnsignedShort();
-                    break;
-                case CONSTANT_STRING: // String
-                    e = new StringLitEnt();
-                    e1s[i] = in.readUnsignedShort();
+            int tag = in.readUnsignedByte();
+            int len = entLength(tag, i);
+            if (tag == CONSTANT_UTF8) len += in.readUnsignedShort();
+            if (p >= 1<<27) throw new ClassFile.ClassReadExn("constant pool too large");
+            if (p + len > raw.length) {
+                byte[] raw2 = new byte[Math.max(raw.length*2, p+len)];
+                System.arraycopy(raw, 0, raw2, 0, p);
+                raw = raw2;
+            }
+            raw[p] = (byte) tag;
+            if (tag == CONSTANT_UTF8) {
+                raw[p+1] = (byte) ((len-3) >>> 8);
+                raw[p+2] = (byte) (len-3);
+                in.readFully(raw, p+3, len-3);
+            } else {
+                in.readFully(raw, p+1, len-1);
+            }
+            rawIndex[i] = (p << 4) | tag;
+            p += len;
+            i += tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE ? 2 : 1;
+        }
+        this.raw = raw;
+        checkRefs();
+    }
+    
+    /** Reads a constant pool starting at <i>off</i> in the classfile bytes <i>b</i> without copying them */
+    ConstantPool(byte[] b, int off) throws ClassFile.ClassReadExn {
+        if (off + 2 > b.length) throw new ClassFile.ClassReadExn("truncated constant pool");
+        usedSlots = readU2(b, off);
+        if (usedSlots==0) throw new ClassFile.ClassReadExn("invalid used slots");
+        startReading();
+        int p = off + 2;
+        for(int i=1;i<usedSlots;) {
+            if (p >= b.length) throw new ClassFile.ClassReadExn("truncated constant pool");
+            int tag = b[p] & 0xff;
+            int len = entLength(tag, i);
+            if (tag == CONSTANT_UTF8 && p + 3 <= b.length) len += readU2(b, p+1);
+            if (p + len > b.length) throw new ClassFile.ClassReadExn("truncated constant pool");
+            if (p >= 1<<27) throw new ClassFile.ClassReadExn("constant pool too large");
+            rawIndex[i] = (p << 4) | tag;
+            p += len;
+            i += tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE ? 2 : 1;
+        }
+        this.raw = b;
+        this.end = p;
+        checkRefs();
+    }
+    
+    private void startReading() {
+        entriesByIndex = new Ent[usedSlots];
+        rawIndex = new int[usedSlots];
+        state = STABLE;
+    }
+    
+    /** Checks that every entry refers to entries of the kind it should, so a bad pool is rejected when it is read
+        and decoding an entry can't come back around to itself */
+    private void checkRefs() throws ClassFile.ClassReadExn {
+        for(int i=1;i<usedSlots;i++) {
+            int info = rawIndex[i];
+            int p = (info >>> 4) + 1;
+            switch(info & 0xf) {
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                    checkRef(i, readU2(raw, p), CONSTANT_UTF8);
                     break;
-                case CONSTANT_FIELDREF: // Type.Class.Field
-                case CONSTANT_METHODREF: // Type.Class.Method
-                case CONSTANT_INTERFACEMETHODREF: // Instance Method Ref
                 case CONSTANT_NAMEANDTYPE:
-                    e = tag == CONSTANT_NAMEANDTYPE ? (Ent) new NameAndTypeEnt() : (Ent) new MemberEnt(tag);
-                    e1s[i] = in.readUnsignedShort();
-                    e2s[i] = in.readUnsignedShort();
+                    checkRef(i, readU2(raw, p), CONSTANT_UTF8);
+                    checkRef(i, readU2(raw, p+2), CONSTANT_UTF8);
                     break;
-                case CONSTANT_INTEGER: // Integer
-                    e = new IntLitEnt(in.readInt());
-                    break;
-                case CONSTANT_FLOAT: // Float
-                    e = new FloatLitEnt(in.readFloat());
-                    break;
-                case CONSTANT_LONG: // Long
-                    e = new LongLitEnt(in.readLong());
-                    break;
-                case CONSTANT_DOUBLE: // Double
-                    e = new DoubleLitEnt(in.readDouble());
-                    break;
-                case CONSTANT_UTF8: // Utf8
-                    e = new Utf8Ent(in.readUTF());
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACEMETHODREF:
+                    checkRef(i, readU2(raw, p), CONSTANT_CLASS);
+                    checkRef(i, readU2(raw, p+2), CONSTANT_NAMEANDTYPE);
                     break;
-                default:
-                    throw new ClassFile.ClassReadExn("invalid cp ent tag: " + tag + " (slot " + i + ")");
             }
-            entriesByIndex[i] = e;
-            i += e.slots();
         }
-        
-        for(int i=1;i<usedSlots;) {
-            Ent e = entriesByIndex[i];
-            if (e == null) throw new Error("should never happen: " + i + "/"+usedSlots);
-            boolean isMem = e instanceof MemberEnt;
-            boolean isString = e instanceof StringLitEnt;
-            boolean isClass =  e instanceof ClassEnt;
-            boolean isNameAndType = e instanceof NameAndTypeEnt;
-            if (isMem || isClass || isString || isNameAndType) {
-                if (e1s[i] == 0 || e1s[i] >= usedSlots) throw new ClassFile.ClassReadExn("invalid cp index");
-                Ent e1 = entriesByIndex[e1s[i]];
-                if(e1 == null) throw new ClassFile.ClassReadExn("invalid cp index");
-                if(isClass) {
-                    if(!(e1 instanceof Utf8Ent)) throw new ClassFile.ClassReadExn("expected a uft8ent");
-                    ((ClassEnt)e).utf8 = (Utf8Ent) e1;
-                } else if(isString) {
-                    if(!(e1 instanceof Utf8Ent)) throw new ClassFile.ClassReadExn("expected a uft8ent");
-                    ((StringLitEnt)e).utf8 = (Utf8Ent) e1;
-                } else if(isMem || isNameAndType) {
-                    if (e2s[i] == 0 || e2s[i] >= usedSlots) throw new ClassFile.ClassReadExn("invalid cp index");
-                    Ent e2 = entriesByIndex[e2s[i]];
-                    if(isMem) {
-                        if(!(e1 instanceof ClassEnt)) throw new ClassFile.ClassReadExn("expected a classent");
-                        if(!(e2 instanceof NameAndTypeEnt)) throw new ClassFile.ClassReadExn("expected a nameandtypeent, not " + e2);
-                        MemberEnt me = (MemberEnt) e;
-                        me.klass = (ClassEnt) e1;
-                        me.member = (NameAndTypeEnt) e2;
-                    } else if(isNameAndType) {
-                        if(!(e1 instanceof Utf8Ent)) throw new ClassFile.ClassReadExn("expected a uft8ent");
-                        if(!(e2 instanceof Utf8Ent)) throw new ClassFile.ClassReadExn("expected a uft8ent");
-                        NameAndTypeEnt nte = (NameAndTypeEnt) e;
-                        nte.name = (Utf8Ent) e1;
-                        nte.type = (Utf8Ent) e2;
-                    }
-                }
+    }
+    
+    private void checkRef(int slot, int index, int tag) throws ClassFile.ClassReadExn {
+        if (index == 0 || index >= usedSlots || (rawIndex[index] & 0xf) != tag)
+            throw new ClassFile.ClassReadExn("cp ent at slot " + slot + " refers to slot " + index + ", expected tag " + tag);
+    }
+    
+    /** number of bytes taken up by an entry with tag <i>tag</i>, not counting the contents of a utf8 */
+    private static int entLength(int tag, int slot) throws ClassFile.ClassReadExn {
+        switch(tag) {
+            case CONSTANT_CLASS:
+            case CONSTANT_STRING:
+                return 3;
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACEMETHODREF:
+            case CONSTANT_NAMEANDTYPE:
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+                return 5;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                return 9;
+            case CONSTANT_UTF8:
+                return 3;
+            default:
+                throw new ClassFile.ClassReadExn("invalid cp ent tag: " + tag + " (slot " + slot + ")");
+        }
+    }
+    
+    /** materializes the Ent at <i>index</i>, returns null if no entry starts at that slot */
+    private Ent decode(int index) {
+        int info = rawIndex[index];
+        if (info == 0) return null;
+        byte[] b = raw;
+        int p = (info >>> 4) + 1;
+        Ent e;
+        switch(info & 0xf) {
+            case CONSTANT_UTF8:
+                e = new Utf8Ent(readUTF(b, p));
+                break;
+            case CONSTANT_INTEGER:
+                e = new IntLitEnt(readInt(b, p));
+                break;
+            case CONSTANT_FLOAT:
+                e = new FloatLitEnt(Float.intBitsToFloat(readInt(b, p)));
+                break;
+            case CONSTANT_LONG:
+                e = new LongLitEnt(readLong(b, p));
+                break;
+            case CONSTANT_DOUBLE:
+                e = new DoubleLitEnt(Double.longBitsToDouble(readLong(b, p)));
+                break;
+            case CONSTANT_CLASS: {
+                ClassEnt ce = new ClassEnt();
+                ce.utf8 = (Utf8Ent) refByIndex(readU2(b, p), CONSTANT_UTF8);
+                e = ce;
+                break;
+            }
+            case CONSTANT_STRING: {
+                StringLitEnt se = new StringLitEnt();
+                se.utf8 = (Utf8Ent) refByIndex(readU2(b, p), CONSTANT_UTF8);
+                e = se;
+                break;
+            }
+            case CONSTANT_NAMEANDTYPE: {
+                NameAndTypeEnt nte = new NameAndTypeEnt();
+                nte.name = (Utf8Ent) refByIndex(readU2(b, p), CONSTANT_UTF8);
+                nte.type = (Utf8Ent) refByIndex(readU2(b, p+2), CONSTANT_UTF8);
+                e = nte;
+                break;
             }
-            i += e.slots();
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACEMETHODREF: {
+                MemberEnt me = new MemberEnt(info & 0xf);
+                me.klass = (ClassEnt) refByIndex(readU2(b, p), CONSTANT_CLASS);
+                me.member = (NameAndTypeEnt) refByIndex(readU2(b, p+2), CONSTANT_NAMEANDTYPE);
+                e = me;
+                break;
+            }
+            default:
+                throw new Error("should never happen");
         }
-        for(int i=1; i<usedSlots;) {
-            Ent e = entriesByIndex[i];
-            entries.put(e.key(), e);
-            i += e.slots();
+        e.n = index;
+        entriesByIndex[index] = e;
+        return e;
+    }
+    
+    private Ent refByIndex(int index, int tag) {
+        // the tag is checked before the entry is decoded, so a bad reference can't send decoding in circles
+        if (index == 0 || index >= usedSlots) throw new IllegalArgumentException("invalid cp index");
+        if ((rawIndex[index] & 0xf) != tag) throw new IllegalArgumentException("expected a cp ent with tag " + tag);
+        return getByIndex(index);
+    }
+    
+    /** decodes whatever hasn't been decoded yet and puts every entry into the intern table */
+    private void index() {
+        if (raw == null) return;
+        for(int i=1; i<usedSlots; i++) if (rawIndex[i] != 0 && entriesByIndex[i] == null) decode(i);
+        for(int i=1; i<usedSlots; i++) if (entriesByIndex[i] != null) insert(entriesByIndex[i]);
+        raw = null;
+        rawIndex = null;
+    }
+    
+    static int readU2(byte[] b, int p) { return ((b[p] & 0xff) << 8) | (b[p+1] & 0xff); }
+    static int readInt(byte[] b, int p) {
+        return (b[p] << 24) | ((b[p+1] & 0xff) << 16) | ((b[p+2] & 0xff) << 8) | (b[p+3] & 0xff);
+    }
+    static long readLong(byte[] b, int p) { return ((long)readInt(b, p) << 32) | (readInt(b, p+4) & 0xffffffffL); }
+    
+    /** the number of bytes <i>s</i> takes up in modified UTF-8, not counting the length prefix */
+    static int utfLength(String s) {
+        int n = s.length();
+        for(int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == 0 || c >= 0x80) n += c >= 0x800 ? 2 : 1;
         }
-        state = STABLE;
+        if (n > 65535) throw new ClassFile.Exn("utf8 constant too long");
+        return n;
+    }
+    
+    /** encodes <i>s</i> exactly the way DataOutput.writeUTF() does */
+    static void writeUTF(ByteBuffer o, String s) {
+        o.putShort((short)utfLength(s));
+        for(int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                o.put((byte)c);
+            } else if (c < 0x800) {
+                o.put((byte)(0xc0 | (c >> 6)));
+                o.put((byte)(0x80 | (c & 0x3f)));
+            } else {
+                o.put((byte)(0xe0 | (c >> 12)));
+                o.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+                o.put((byte)(0x80 | (c & 0x3f)));
+            }
+        }
+    }
+    
+    /** decodes a length-prefixed modified UTF-8 string, the same format DataInput.readUTF() reads */
+    static String readUTF(byte[] b, int p) {
+        int end = p + 2 + readU2(b, p);
+        p += 2;
+        char[] chars = new char[end - p];
+        int n = 0;
+        while(p < end && b[p] >= 0) chars[n++] = (char) b[p++];
+        while(p < end) {
+            int c = b[p++] & 0xff;
+            if (c < 0x80) {
+                chars[n++] = (char) c;
+            } else if ((c & 0xe0) == 0xc0) {
+                if (p >= end || (b[p] & 0xc0) != 0x80) throw new IllegalArgumentException("malformed utf8");
+                chars[n++] = (char) (((c & 0x1f) << 6) | (b[p++] & 0x3f));
+            } else if ((c & 0xf0) == 0xe0) {
+                if (p+1 >= end || (b[p] & 0xc0) != 0x80 || (b[p+1] & 0xc0) != 0x80)
+                    throw new IllegalArgumentException("malformed utf8");
+                chars[n++] = (char) (((c & 0x0f) << 12) | ((b[p] & 0x3f) << 6) | (b[p+1] & 0x3f));
+                p += 2;
+            } else {
+                throw new IllegalArgumentException("malformed utf8");
+            }
+        }
+        return new String(chars, 0, n);
     }
 }
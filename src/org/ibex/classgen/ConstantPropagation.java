@@ -0,0 +1,410 @@
+package org.ibex.classgen;
+
+import java.util.*;
+
+/** Sparse conditional constant propagation over a JSSA (see JSSA.propagateConstants()), after Wegman and Zadeck's
+    "Constant Propagation with Conditional Branches".
+
+    Every value starts out unknown and every block but the first unreached. The reached blocks are gone through in
+    reverse postorder until nothing changes: a Phi gets what its inputs along the edges taken so far agree on, an
+    expression what its operands fold to, and an If or Switch whose condition is known takes just the one edge. A
+    block that throws to a handler is taken to reach it. Then the values found to be constant replace their nodes,
+    the Ifs and Switches that only go one way become Gotos (or nothing, when that is where they fall through) and
+    the blocks never reached are marked dead. Ops computed for their side effects that turn out to have none and
+    aren't used are dropped, and so are the Phis nothing uses.
+
+    Only what the JVM computes the same every time is folded: arithmetic, comparisons and conversions of primitive
+    constants, and null through casts and instanceof. An integer division by zero is left to throw. Methods using
+    subroutines are left alone. */
+final class ConstantPropagation {
+
+    private final JSSA ssa;
+    private final ControlFlowGraph cfg;
+    private final int numBlocks;
+    private final int numNodes;
+
+    // a value that isn't a constant; one not known yet is null
+    private static final Object BOTTOM = new Object();
+    // the constant null
+    private static final Object NULL = new Object();
+    private static final Integer ZERO = Integer.valueOf(0), ONE = Integer.valueOf(1);
+
+    /** what each value is known to be: null until anything is, a constant (ints as Integers) or BOTTOM */
+    private final Object[] value;
+    /** whether a node is an op, or evaluated for its side effects in its block */
+    private final boolean[] isOp;
+    /** the pass the value of each expression computed where it is used was last worked out in */
+    private final int[] stamp;
+    private int pass;
+    private boolean changed;
+
+    private final boolean[] reached;
+    /** for each block, whether it has been reached from each of its predecessors */
+    private final boolean[][] taken;
+    /** the Phis of each block */
+    private final int[][] phis;
+
+    ConstantPropagation(JSSA ssa) {
+        this.ssa = ssa;
+        this.cfg = ssa.cfg;
+        this.numBlocks = cfg.numBlocks();
+        this.numNodes = ssa.numNodes();
+        value = new Object[numNodes];
+        isOp = new boolean[numNodes];
+        stamp = new int[numNodes];
+        reached = new boolean[numBlocks];
+        taken = new boolean[numBlocks][];
+        phis = new int[numBlocks][];
+        for(int b=0; b<numBlocks; b++) taken[b] = new boolean[cfg.numPredecessors(b)];
+        int[] count = new int[numBlocks];
+        for(int n=0; n<ssa.numPhis; n++) count[ssa.phiBlock[n]]++;
+        for(int b=0; b<numBlocks; b++) phis[b] = new int[count[b]];
+        Arrays.fill(count, 0);
+        for(int n=0; n<ssa.numPhis; n++) phis[ssa.phiBlock[n]][count[ssa.phiBlock[n]]++] = ssa.phiNode[n];
+        for(int i=0; i<ssa.numOps; i++) isOp[ssa.ops[i]] = true;
+    }
+
+    void run() {
+        for(int i=0; i<ssa.numOps; i++) {
+            byte k = kind(ssa.ops[i]);
+            // where a subroutine returns to isn't known
+            if (k == JSSA.NODE_JSR || k == JSSA.NODE_RET) return;
+        }
+        int[] rpo = cfg.reversePostorder();
+        reached[0] = true;
+        do {
+            changed = false;
+            pass++;
+            for(int j=0; j<rpo.length; j++) if (reached[rpo[j]]) visit(rpo[j]);
+        } while(changed);
+        rewrite();
+    }
+
+    private byte kind(int id) { return ssa.kindOf(id); }
+
+    // Propagation //////////////////////////////////////////////////////////////////////////////
+
+    private void visit(int b) {
+        for(int i=0; i<phis[b].length; i++) set(phis[b][i], phiValue(phis[b][i], b));
+        for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) {
+            int o = ssa.ops[i];
+            if (!JSSA.isOp(kind(o))) set(o, fold(o));
+        }
+        int only = -1;
+        int last = ssa.endOp[b] > ssa.firstOp[b] ? ssa.ops[ssa.endOp[b]-1] : -1;
+        if (last != -1 && (kind(last) == JSSA.NODE_IF || kind(last) == JSSA.NODE_SWITCH)) only = destination(b, last);
+        for(int k=0; k<cfg.numSuccessors(b); k++) {
+            int s = cfg.successor(b, k);
+            if (only == -1 || s == only) take(b, s, false);
+        }
+        for(int k=0; k<cfg.numExnSuccessors(b); k++) take(b, cfg.exnSuccessor(b, k), true);
+    }
+
+    private void set(int id, Object v) {
+        Object m = meet(value[id], v);
+        if (m == value[id]) return;
+        value[id] = m;
+        changed = true;
+    }
+
+    private void take(int p, int s, boolean exn) {
+        for(int k=0; k<cfg.numPredecessors(s); k++) {
+            if (cfg.predecessor(s, k) != p || ssa.exceptional(s, k) != exn || taken[s][k]) continue;
+            taken[s][k] = true;
+            reached[s] = true;
+            changed = true;
+        }
+    }
+
+    /** The block If or Switch <i>o</i> at the end of <i>b</i> always goes to, or -1. A condition not known yet is
+        taken to go either way, so a branch on a value that is never defined keeps both. */
+    private int destination(int b, int o) {
+        Object c = eval(ssa.operand(o, 0));
+        if (!(c instanceof Integer)) return -1;
+        return cfg.blockOf(target(b, o, ((Integer)c).intValue()));
+    }
+
+    /** The pc If or Switch <i>o</i> at the end of <i>b</i> goes to when its condition is <i>c</i> */
+    private int target(int b, int o, int c) {
+        if (kind(o) == JSSA.NODE_IF) return c != 0 ? ssa.aux[ssa.operand(o, 1)] : cfg.blockStart(b+1);
+        MethodGen.Switch si = (MethodGen.Switch) ssa.data[o];
+        if (si instanceof MethodGen.Switch.Table) {
+            MethodGen.Switch.Table t = (MethodGen.Switch.Table) si;
+            return c >= t.lo && c <= t.hi ? si.getTarget(c - t.lo) : si.getDefaultTarget();
+        }
+        MethodGen.Switch.Lookup l = (MethodGen.Switch.Lookup) si;
+        for(int j=0; j<l.size(); j++) if (l.vals[j] == c) return si.getTarget(j);
+        return si.getDefaultTarget();
+    }
+
+    private Object phiValue(int w, int b) {
+        int v = ssa.phiVar[ssa.aux[w]];
+        Object ret = null;
+        int at = 0;
+        if (b == 0) ret = eval(ssa.operand(w, at++));
+        for(int k=0; k<cfg.numPredecessors(b); k++) {
+            int p = cfg.predecessor(b, k);
+            if (!cfg.isReachable(p)) continue;
+            // from a block that throws to b: every value the variable has in it
+            int n = ssa.exceptional(b, k) ? 1 + ssa.numDefs(p, v) : 1;
+            if (taken[b][k]) for(int i=0; i<n; i++) ret = meet(ret, eval(ssa.operand(w, at+i)));
+            at += n;
+        }
+        return ret;
+    }
+
+    private static Object meet(Object a, Object b) {
+        if (a == null) return b;
+        if (b == null || a == b) return a;
+        return a.equals(b) ? a : BOTTOM;
+    }
+
+    /** What node <i>id</i> is known to be. An expression computed where it is used is worked out again in every
+        pass, from the values its operands have then. */
+    private Object eval(int id) {
+        switch(kind(id)) {
+            case JSSA.NODE_CONSTANT: return constant(ssa.data[id]);
+            case JSSA.NODE_UNDEFINED: return null;
+            case JSSA.NODE_PHI: return value[id];
+            case JSSA.NODE_ARGUMENT: case JSSA.NODE_CATCH: case JSSA.NODE_LABEL: case JSSA.NODE_VOID: return BOTTOM;
+        }
+        if (isOp[id]) return value[id];
+        if (stamp[id] != pass) {
+            value[id] = fold(id);
+            stamp[id] = pass;
+        }
+        return value[id];
+    }
+
+    private static Object constant(Object o) {
+        if (o == null) return NULL;
+        if (o instanceof Boolean) return ((Boolean)o).booleanValue() ? ONE : ZERO;
+        if (o instanceof Character) return Integer.valueOf(((Character)o).charValue());
+        if (o instanceof Byte || o instanceof Short) return Integer.valueOf(((Number)o).intValue());
+        return o;
+    }
+
+    private static Object bool(boolean b) { return b ? ONE : ZERO; }
+
+    // Folding //////////////////////////////////////////////////////////////////////////////
+
+    /** What the expression <i>id</i> comes to, from the values of its operands */
+    private Object fold(int id) {
+        byte k = kind(id);
+        switch(k) {
+            case JSSA.NODE_NOT: {
+                Object a = eval(ssa.operand(id, 0));
+                return a instanceof Integer ? bool(((Integer)a).intValue() == 0) : a;
+            }
+            case JSSA.NODE_NEG: {
+                Object a = eval(ssa.operand(id, 0));
+                if (a instanceof Integer) return Integer.valueOf(-((Integer)a).intValue());
+                if (a instanceof Long) return Long.valueOf(-((Long)a).longValue());
+                if (a instanceof Float) return Float.valueOf(-((Float)a).floatValue());
+                if (a instanceof Double) return Double.valueOf(-((Double)a).doubleValue());
+                return a == null ? null : BOTTOM;
+            }
+            case JSSA.NODE_CAST: return cast(id, eval(ssa.operand(id, 0)));
+            case JSSA.NODE_INSTANCEOF: {
+                Object a = eval(ssa.operand(id, 0));
+                return a == NULL ? ZERO : a == null ? null : BOTTOM;
+            }
+            case JSSA.NODE_EQ: {
+                // a value is itself, unless it's NaN
+                Type t = ssa.typeOf(ssa.operand(id, 0));
+                if (ssa.operand(id, 0) == ssa.operand(id, 1) && t != Type.FLOAT && t != Type.DOUBLE) return ONE;
+                break;
+            }
+        }
+        if (k < JSSA.NODE_EQ || k > JSSA.NODE_USHR) return BOTTOM;
+        Object a = eval(ssa.operand(id, 0)), b = eval(ssa.operand(id, 1));
+        if (a == BOTTOM || b == BOTTOM) return BOTTOM;
+        if (a == null || b == null) return null;
+        if (k == JSSA.NODE_EQ) {
+            if (a == NULL || b == NULL) return bool(a == b);
+            if (a instanceof Float || a instanceof Double) return bool(((Number)a).doubleValue() == ((Number)b).doubleValue());
+            return bool(a.equals(b));
+        }
+        if (!(a instanceof Number) || !(b instanceof Number)) return BOTTOM;
+        if (k >= JSSA.NODE_SHL) return shift(k, (Number)a, (Number)b);
+        if (a.getClass() != b.getClass()) return BOTTOM;
+        if (k <= JSSA.NODE_CMP) return compare(k, ssa.aux[id], (Number)a, (Number)b);
+        return math(k, (Number)a, (Number)b);
+    }
+
+    private static Object compare(byte k, int nan, Number a, Number b) {
+        int c;
+        if (a instanceof Integer || a instanceof Long) {
+            long x = a.longValue(), y = b.longValue();
+            c = x < y ? -1 : x == y ? 0 : 1;
+        } else {
+            double x = a.doubleValue(), y = b.doubleValue();
+            // every comparison with NaN is false
+            if (x != x || y != y) return k == JSSA.NODE_CMP ? Integer.valueOf(nan) : ZERO;
+            c = x < y ? -1 : x == y ? 0 : 1;
+        }
+        switch(k) {
+            case JSSA.NODE_GT: return bool(c > 0);
+            case JSSA.NODE_LT: return bool(c < 0);
+            case JSSA.NODE_GE: return bool(c >= 0);
+            case JSSA.NODE_LE: return bool(c <= 0);
+            case JSSA.NODE_CMP: return Integer.valueOf(c);
+            default: throw new Error("should never happen");
+        }
+    }
+
+    private static Object math(byte k, Number a, Number b) {
+        if (a instanceof Integer) {
+            int x = a.intValue(), y = b.intValue();
+            switch(k) {
+                case JSSA.NODE_ADD: return Integer.valueOf(x + y);
+                case JSSA.NODE_SUB: return Integer.valueOf(x - y);
+                case JSSA.NODE_MUL: return Integer.valueOf(x * y);
+                case JSSA.NODE_DIV: return y == 0 ? BOTTOM : Integer.valueOf(x / y);
+                case JSSA.NODE_REM: return y == 0 ? BOTTOM : Integer.valueOf(x % y);
+                case JSSA.NODE_AND: return Integer.valueOf(x & y);
+                case JSSA.NODE_OR:  return Integer.valueOf(x | y);
+                case JSSA.NODE_XOR: return Integer.valueOf(x ^ y);
+            }
+        } else if (a instanceof Long) {
+            long x = a.longValue(), y = b.longValue();
+            switch(k) {
+                case JSSA.NODE_ADD: return Long.valueOf(x + y);
+                case JSSA.NODE_SUB: return Long.valueOf(x - y);
+                case JSSA.NODE_MUL: return Long.valueOf(x * y);
+                case JSSA.NODE_DIV: return y == 0 ? BOTTOM : Long.valueOf(x / y);
+                case JSSA.NODE_REM: return y == 0 ? BOTTOM : Long.valueOf(x % y);
+                case JSSA.NODE_AND: return Long.valueOf(x & y);
+                case JSSA.NODE_OR:  return Long.valueOf(x | y);
+                case JSSA.NODE_XOR: return Long.valueOf(x ^ y);
+            }
+        } else if (a instanceof Float) {
+            float x = a.floatValue(), y = b.floatValue();
+            switch(k) {
+                case JSSA.NODE_ADD: return Float.valueOf(x + y);
+                case JSSA.NODE_SUB: return Float.valueOf(x - y);
+                case JSSA.NODE_MUL: return Float.valueOf(x * y);
+                case JSSA.NODE_DIV: return Float.valueOf(x / y);
+                case JSSA.NODE_REM: return Float.valueOf(x % y);
+            }
+        } else if (a instanceof Double) {
+            double x = a.doubleValue(), y = b.doubleValue();
+            switch(k) {
+                case JSSA.NODE_ADD: return Double.valueOf(x + y);
+                case JSSA.NODE_SUB: return Double.valueOf(x - y);
+                case JSSA.NODE_MUL: return Double.valueOf(x * y);
+                case JSSA.NODE_DIV: return Double.valueOf(x / y);
+                case JSSA.NODE_REM: return Double.valueOf(x % y);
+            }
+        }
+        return BOTTOM;
+    }
+
+    private static Object shift(byte k, Number a, Number b) {
+        if (!(b instanceof Integer)) return BOTTOM;
+        int s = b.intValue();
+        if (a instanceof Integer) {
+            int x = a.intValue();
+            return Integer.valueOf(k == JSSA.NODE_SHL ? x << s : k == JSSA.NODE_SHR ? x >> s : x >>> s);
+        }
+        if (a instanceof Long) {
+            long x = a.longValue();
+            return Long.valueOf(k == JSSA.NODE_SHL ? x << s : k == JSSA.NODE_SHR ? x >> s : x >>> s);
+        }
+        return BOTTOM;
+    }
+
+    private Object cast(int id, Object a) {
+        if (a == null || a == BOTTOM) return a;
+        Type t = ssa.types[id];
+        // a checkcast lets null through
+        if (!t.isPrimitive()) return a == NULL ? NULL : BOTTOM;
+        if (!(a instanceof Number)) return BOTTOM;
+        Number n = (Number) a;
+        if (t == Type.INT) return Integer.valueOf(n.intValue());
+        if (t == Type.LONG) return Long.valueOf(n.longValue());
+        if (t == Type.FLOAT) return Float.valueOf(n.floatValue());
+        if (t == Type.DOUBLE) return Double.valueOf(n.doubleValue());
+        if (t == Type.BYTE) return Integer.valueOf((byte) n.intValue());
+        if (t == Type.CHAR) return Integer.valueOf((char) n.intValue());
+        if (t == Type.SHORT) return Integer.valueOf((short) n.intValue());
+        return BOTTOM;
+    }
+
+    // Rewriting //////////////////////////////////////////////////////////////////////////////
+
+    private void rewrite() {
+        // the values of the expressions computed where they are used, from the final values of the rest
+        pass++;
+        for(int id=0; id<numNodes; id++) {
+            if (!foldable(kind(id))) continue;
+            if (kind(id) == JSSA.NODE_PHI && !reached[ssa.phiBlock[ssa.aux[id]]]) continue;
+            Object v = eval(id);
+            if (v != null && v != BOTTOM) ssa.toConstant(id, v == NULL ? null : v);
+        }
+
+        boolean[] gone = new boolean[ssa.numOps];
+        for(int b=0; b<numBlocks; b++) {
+            if (!cfg.isReachable(b) || !reached[b]) continue;
+            for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) {
+                int o = ssa.ops[i];
+                byte k = kind(o);
+                if (k == JSSA.NODE_CONSTANT) { gone[i] = true; continue; }
+                if (k != JSSA.NODE_IF && k != JSSA.NODE_SWITCH) continue;
+                Object c = eval(ssa.operand(o, 0));
+                if (!(c instanceof Integer)) continue;
+                // an If that is never taken just falls through
+                if (k == JSSA.NODE_IF && ((Integer)c).intValue() == 0) gone[i] = true;
+                else ssa.toGoto(o, target(b, o, ((Integer)c).intValue()));
+            }
+        }
+
+        // what is still used: everything the ops with side effects use
+        boolean[] used = new boolean[ssa.numNodes()];
+        int[] work = new int[ssa.numNodes()];
+        int n = 0;
+        for(int b=0; b<numBlocks; b++) {
+            if (!cfg.isReachable(b)) continue;
+            for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) {
+                int o = ssa.ops[i];
+                if (gone[i] || used[o] || (reached[b] && removable(o))) continue;
+                used[o] = true;
+                work[n++] = o;
+            }
+        }
+        while(n > 0) {
+            int id = work[--n];
+            for(int j=0; j<ssa.numOperands(id); j++) {
+                int e = ssa.operand(id, j);
+                if (used[e]) continue;
+                used[e] = true;
+                work[n++] = e;
+            }
+        }
+        for(int i=0; i<ssa.numOps; i++) if (!used[ssa.ops[i]]) gone[i] = true;
+        ssa.removeOps(gone);
+        boolean[] unused = new boolean[ssa.numPhis];
+        for(int p=0; p<ssa.numPhis; p++) unused[p] = !used[ssa.phiNode[p]] || kind(ssa.phiNode[p]) != JSSA.NODE_PHI;
+        ssa.removePhis(unused);
+
+        ssa.dead = new boolean[numBlocks];
+        for(int b=0; b<numBlocks; b++) ssa.dead[b] = cfg.isReachable(b) && !reached[b];
+    }
+
+    private static boolean foldable(byte k) {
+        return k == JSSA.NODE_PHI || (k >= JSSA.NODE_NOT && k <= JSSA.NODE_INSTANCEOF);
+    }
+
+    /** Whether op <i>o</i> is computed for side effects it turns out not to have: an integer division by a
+        constant other than 0, or a cast of null */
+    private boolean removable(int o) {
+        switch(kind(o)) {
+            case JSSA.NODE_DIV: case JSSA.NODE_REM: {
+                Object d = eval(ssa.operand(o, 1));
+                return d instanceof Number && ((Number)d).longValue() != 0;
+            }
+            case JSSA.NODE_CAST: return eval(ssa.operand(o, 0)) == NULL;
+        }
+        return false;
+    }
+}
@@ -1,21 +1,480 @@
 package org.ibex.classgen;
 import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 
 /**
  *  a Context is like a ClassLoader in that it maps from class names
  *  to bytecode-implementations of classes, except that it doesn't
  *  actually load the resolved class -- it simply creates a (cached)
  *  ClassFile for it.
+ *
+ *  Classes are either add()ed or found on the context's classpath (directories, jars, and optionally the classes of
+ *  the running VM), which is searched in order the first time a class is asked for.  All of the resolve methods may
+ *  be called from any number of threads; the classpath should be set up before that starts.  How many classes are
+ *  kept parsed can be bounded with setCacheLimit().
  */
 public class Context {
 
-private Hashtable<String,ClassFile> cache = new Hashtable<String,ClassFile>();
+    private final Hashtable<String,Header> headers = new Hashtable<String,Header>();
+    private final Vector<Source> path = new Vector<Source>();
+    private volatile Hierarchy hierarchy;
+
+    // the cache; everything below is guarded by this
+    private final HashMap<String,Entry> entries = new HashMap<String,Entry>();
+    private final LinkedHashMap<String,Entry> lru = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    private long limit = Long.MAX_VALUE;
+    private long resident;
+    private long hits, misses, evictions;
 
     public Context() { }
 
-    public void add(ClassFile cf) { cache.put(cf.getType().getName(), cf); }
-    public Collection enumerateClassFiles() { return cache.values(); }
-    public ClassFile resolve(String classname) { return (ClassFile)cache.get(classname); }
-    public ClassFile resolve(Type.Class c) { return (ClassFile)cache.get(c.getName()); }
+    /** Creates a context that resolves classes from <i>classpath</i>, a list of directories and jars separated by
+        File.pathSeparator */
+    public Context(String classpath) throws IOException {
+        StringTokenizer st = new StringTokenizer(classpath, File.pathSeparator);
+        while(st.hasMoreTokens()) {
+            // like the VM's, entries that don't exist are skipped
+            File f = new File(st.nextToken());
+            if (f.exists()) addClassPath(f);
+        }
+    }
+
+    public void add(ClassFile cf) {
+        String name = cf.getType().getName();
+        cf.setContext(this);
+        synchronized(this) {
+            Entry e = entries.get(name);
+            if (e != null && lru.remove(name) != null) resident -= e.weight;
+            entries.put(name, e = new Entry(true, cf.original));
+            // a class that wasn't read from bytes can't be read again
+            e.pinned = cf.original == null;
+            makeResident(name, e, cf);
+        }
+        headers.remove(name);
+        Hierarchy h = hierarchy;
+        if (h != null) h.added(cf.getType());
+    }
+
+    /** Returns the index of the class hierarchy of this context, which is built up as it is queried */
+    public synchronized Hierarchy getHierarchy() {
+        if (hierarchy == null) {
+            hierarchy = new Hierarchy(this);
+            for(Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String,Entry> me = it.next();
+                if (me.getValue().added) hierarchy.added(Type.Class.instance(me.getKey()));
+            }
+        }
+        return hierarchy;
+    }
+
+    /** Returns every add()ed class; ones that have been evicted are read again as the iteration gets to them */
+    public Collection enumerateClassFiles() {
+        final Vector<String> names = new Vector<String>();
+        synchronized(this) {
+            for(Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String,Entry> me = it.next();
+                if (me.getValue().added) names.addElement(me.getKey());
+            }
+        }
+        return new AbstractCollection<ClassFile>() {
+            public int size() { return names.size(); }
+            public Iterator<ClassFile> iterator() {
+                final Iterator<String> it = names.iterator();
+                return new Iterator<ClassFile>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public ClassFile next() { return resolve(it.next()); }
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    public ClassFile resolve(Type.Class c) { return resolve(c.getName()); }
+
+    /** Returns the class named <i>classname</i>, reading it from the classpath if it hasn't been added, or null if it
+        can't be found
+        @exception ClassFile.Exn if the class was found on the classpath but couldn't be read */
+    public ClassFile resolve(String classname) {
+        byte[] b = null;
+        synchronized(this) {
+            Entry e = entries.get(classname);
+            if (e != null) {
+                ClassFile cf = e.get();
+                if (cf != null) {
+                    hits++;
+                    makeResident(classname, e, cf);
+                    return cf;
+                }
+                b = e.bytes;
+            }
+        }
+        if (b == null) b = find(classname);
+        if (b == null) return null;
+        ClassFile cf;
+        try {
+            cf = new ClassFile(b);
+            cf.setContext(this);
+        } catch(IOException e) {
+            throw new ClassFile.Exn("could not read " + classname + ": " + e.getMessage());
+        } catch(RuntimeException e) {
+            throw new ClassFile.Exn("could not read " + classname + ": " + e);
+        }
+        synchronized(this) {
+            // another thread may have read it in the meantime, everyone gets the same one
+            Entry e = entries.get(classname);
+            ClassFile prev = e == null ? null : e.get();
+            if (prev != null) cf = prev;
+            else if (e == null) entries.put(classname, e = new Entry(false, null));
+            if (prev != null) hits++; else misses++;
+            makeResident(classname, e, cf);
+            return cf;
+        }
+    }
+
+    /** Returns the header of <i>c</i>, or null if it can't be found. Classes that haven't been read yet have only
+        their header parsed, so this is much cheaper than resolve() when walking the class hierarchy.
+        @exception ClassFile.Exn if the class was found on the classpath but couldn't be read */
+    public Header resolveHeader(Type.Class c) {
+        String name = c.getName();
+        byte[] b = null;
+        synchronized(this) {
+            Entry e = entries.get(name);
+            ClassFile cf = e == null ? null : e.get();
+            if (cf != null) return new Header(cf.getType(), cf.getFlags(), cf.superType, cf.interfaces);
+            if (e != null) b = e.bytes;
+        }
+        Header h = headers.get(name);
+        if (h != null) return h == MISSING ? null : h;
+        if (b == null) b = find(name);
+        if (b == null) return null;
+        try {
+            h = readHeader(b);
+        } catch(IOException e) {
+            throw new ClassFile.Exn("could not read " + name + ": " + e.getMessage());
+        }
+        Header prev = headers.putIfAbsent(name, h);
+        return prev == null ? h : prev;
+    }
+
+    // Cache //////////////////////////////////////////////////////////////////////////////
+
+    /** Sets how many bytes worth of classfiles (counted as read, parsed classes take several times that) may be held
+        before the least recently used classes are evicted. Evicted classes are read again from their bytes or the
+        classpath when they're next asked for. Classes that have been changed, pinned, or weren't read from bytes at
+        all are never evicted and don't count towards the limit. There is no limit by default. */
+    public synchronized void setCacheLimit(long bytes) {
+        limit = bytes;
+        trim();
+    }
+
+    /** Keeps <i>classname</i> in memory for good and returns it, or null if it can't be found. With a cache limit
+        set, a class should be pinned before it is changed: a change made to a class after it was evicted is lost
+        once nothing holds the class anymore. */
+    public ClassFile pin(String classname) {
+        for(;;) {
+            ClassFile cf = resolve(classname);
+            if (cf == null) return null;
+            synchronized(this) {
+                Entry e = entries.get(classname);
+                // holding cf keeps it from going away, but it may have been replaced by add()
+                if (e.get() != cf) continue;
+                if (lru.remove(classname) != null) resident -= e.weight;
+                e.cf = cf;
+                e.evicted = null;
+                e.pinned = true;
+                return cf;
+            }
+        }
+    }
+
+    /** The number of resolves that found the class in memory */
+    public synchronized long getCacheHits() { return hits; }
+    /** The number of resolves that had to read the class, for the first time or after it was evicted */
+    public synchronized long getCacheMisses() { return misses; }
+    public synchronized long getCacheEvictions() { return evictions; }
+    /** The number of classfile bytes currently counted towards the limit */
+    public synchronized long getCacheSize() { return resident; }
+
+    /** A class the context knows about */
+    private static final class Entry {
+        final boolean added;
+        final byte[] bytes;                 // what an add()ed class is read again from; null for classpath classes
+        ClassFile cf;                       // null while evicted
+        WeakReference<ClassFile> evicted;   // so that as long as anything holds an evicted class it stays the one
+        boolean pinned;
+        int weight;
+        Entry(boolean added, byte[] bytes) { this.added = added; this.bytes = bytes; }
+        ClassFile get() { return cf != null ? cf : evicted == null ? null : evicted.get(); }
+    }
+
+    /** Makes <i>cf</i> the resident class of <i>e</i>, or marks it most recently used if it already is */
+    private void makeResident(String name, Entry e, ClassFile cf) {
+        if (e.cf != null) {
+            if (!e.pinned) lru.get(name);
+            return;
+        }
+        e.cf = cf;
+        e.evicted = null;
+        if (e.pinned) return;
+        e.weight = cf.original == null ? 0 : cf.original.length;
+        lru.put(name, e);
+        resident += e.weight;
+        trim();
+    }
+
+    private void trim() {
+        for(Iterator<Entry> it = lru.values().iterator(); resident > limit && it.hasNext(); ) {
+            Entry e = it.next();
+            it.remove();
+            resident -= e.weight;
+            if (!e.cf.unchanged()) {
+                e.pinned = true;
+                continue;
+            }
+            e.evicted = new WeakReference<ClassFile>(e.cf);
+            e.cf = null;
+            evictions++;
+        }
+    }
+
+    /** The parts of a class needed to walk the class hierarchy */
+    public static final class Header {
+        public final Type.Class type;
+        public final int flags;
+        /** null for java.lang.Object */
+        public final Type.Class superType;
+        public final Type.Class[] interfaces;
+        Header(Type.Class type, int flags, Type.Class superType, Type.Class[] interfaces) {
+            this.type = type;
+            this.flags = flags;
+            this.superType = superType;
+            this.interfaces = interfaces == null ? new Type.Class[0] : interfaces;
+        }
+        public boolean isInterface() { return (flags & CGConst.INTERFACE) != 0; }
+    }
+
+    private static final Header MISSING = new Header(null, 0, null, null);
+
+    /** Reads just the header. The constant pool is only skipped over, which also works for tags ConstantPool can't
+        represent (the ones that come with invokedynamic and modules), and only the class names are decoded. */
+    static Header readHeader(byte[] b) throws ClassFile.ClassReadExn {
+        try {
+            if (ConstantPool.readInt(b, 0) != 0xcafebabe)
+                throw new ClassFile.ClassReadExn("invalid magic: " + Long.toString(0xffffffffL & ConstantPool.readInt(b, 0), 16));
+            int[] offsets = new int[ConstantPool.readU2(b, 8)];
+            int p = 10;
+            for(int i=1;i<offsets.length;i++) {
+                offsets[i] = p;
+                switch(b[p]) {
+                    case CGConst.CONSTANT_UTF8: p += 3 + ConstantPool.readU2(b, p+1); break;
+                    case CGConst.CONSTANT_CLASS: case CGConst.CONSTANT_STRING: case 16: case 19: case 20: p += 3; break;
+                    case 15: p += 4; break;
+                    case CGConst.CONSTANT_LONG: case CGConst.CONSTANT_DOUBLE: p += 9; i++; break;
+                    case CGConst.CONSTANT_FIELDREF: case CGConst.CONSTANT_METHODREF: case CGConst.CONSTANT_INTERFACEMETHODREF:
+                    case CGConst.CONSTANT_NAMEANDTYPE: case CGConst.CONSTANT_INTEGER: case CGConst.CONSTANT_FLOAT:
+                    case 17: case 18: p += 5; break;
+                    default: throw new ClassFile.ClassReadExn("invalid cp ent tag: " + b[p] + " (slot " + i + ")");
+                }
+            }
+            Type.Class[] interfaces = new Type.Class[ConstantPool.readU2(b, p+6)];
+            for(int i=0;i<interfaces.length;i++) interfaces[i] = headerClass(b, offsets, ConstantPool.readU2(b, p+8+2*i));
+            return new Header(headerClass(b, offsets, ConstantPool.readU2(b, p+2)), ConstantPool.readU2(b, p),
+                              headerClass(b, offsets, ConstantPool.readU2(b, p+4)), interfaces);
+        } catch(ArrayIndexOutOfBoundsException e) {
+            throw new ClassFile.ClassReadExn("truncated classfile");
+        } catch(RuntimeException e) {
+            throw new ClassFile.ClassReadExn("invalid constant pool entry");
+        }
+    }
+    private static Type.Class headerClass(byte[] b, int[] offsets, int index) throws ClassFile.ClassReadExn {
+        if (index == 0) return null;
+        int p = offsets[index];
+        if (p == 0 || b[p] != CGConst.CONSTANT_CLASS) throw new ClassFile.ClassReadExn("invalid constant pool entry");
+        p = offsets[ConstantPool.readU2(b, p+1)];
+        if (p == 0 || b[p] != CGConst.CONSTANT_UTF8) throw new ClassFile.ClassReadExn("invalid constant pool entry");
+        return Type.Class.instance(ConstantPool.readUTF(b, p+1));
+    }
+
+    // Classpath //////////////////////////////////////////////////////////////////////////////
+
+    /** Adds a directory or a jar to the end of the classpath. Jars are memory mapped and indexed right away. */
+    public void addClassPath(File f) throws IOException {
+        if (f.isDirectory()) path.addElement(new Dir(f));
+        else if (f.isFile()) path.addElement(new Jar(f));
+        else throw new FileNotFoundException(f.toString());
+    }
+
+    /** Adds the classes visible to the system class loader of the running VM (which includes the JDK's own classes)
+        to the end of the classpath */
+    public void addSystemClassPath() { path.addElement(new Loader(ClassLoader.getSystemClassLoader())); }
+
+    /** Returns the classfile bytes of <i>classname</i> from the first classpath entry that has it */
+    private byte[] find(String classname) {
+        if (headers.get(classname) == MISSING) return null;
+        String entry = classname.replace('.', '/') + ".class";
+        try {
+            for(int i=0;i<path.size();i++) {
+                byte[] b = ((Source)path.elementAt(i)).read(entry);
+                if (b != null) return b;
+            }
+        } catch(IOException e) {
+            throw new ClassFile.Exn("could not read " + classname + ": " + e.getMessage());
+        }
+        if (path.size() > 0) headers.put(classname, MISSING);
+        return null;
+    }
+
+    private static abstract class Source {
+        /** Returns the contents of <i>entry</i> or null if there is no such entry; must be safe to call concurrently */
+        abstract byte[] read(String entry) throws IOException;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+            byte[] buf = new byte[4096];
+            for(int n; (n = is.read(buf)) != -1; ) baos.write(buf, 0, n);
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static final class Dir extends Source {
+        private final File dir;
+        Dir(File dir) { this.dir = dir; }
+        byte[] read(String entry) throws IOException {
+            File f = new File(dir, entry.replace('/', File.separatorChar));
+            return f.isFile() ? readFully(new FileInputStream(f)) : null;
+        }
+    }
+
+    private static final class Loader extends Source {
+        private final ClassLoader loader;
+        Loader(ClassLoader loader) { this.loader = loader; }
+        byte[] read(String entry) throws IOException {
+            InputStream is = loader.getResourceAsStream(entry);
+            return is == null ? null : readFully(is);
+        }
+    }
+
+    /** A jar, memory mapped. The central directory is indexed once by an open addressed hash table of the offsets of
+        its records, keyed on the raw name bytes, so a lookup doesn't create any strings and touches only the records
+        it probes. Only absolute reads are done on the mapping, which makes lookups safe from any thread. */
+    private static final class Jar extends Source {
+        private static final int LOC_SIG = 0x04034b50;
+        private static final int CEN_SIG = 0x02014b50;
+        private static final int END_SIG = 0x06054b50;
+        private static final int LOC_LEN = 30;
+        private static final int CEN_LEN = 46;
+        private static final int END_LEN = 22;
+
+        private final File file;
+        private final ByteBuffer buf;
+        private final int[] table;  // central directory offset + 1 of each entry, 0 for an empty slot
+
+        Jar(File file) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel ch = raf.getChannel();
+                if (ch.size() > Integer.MAX_VALUE) throw new IOException(file + ": too large");
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+            } finally {
+                raf.close();  // the mapping stays valid
+            }
+            int size = buf.capacity();
+
+            // the end record is followed by a comment of at most 64k
+            int end = -1;
+            for(int p = size - END_LEN; p >= 0 && p >= size - END_LEN - 0xffff; p--)
+                if (buf.getInt(p) == END_SIG) { end = p; break; }
+            if (end == -1) throw new IOException(file + ": not a jar");
+            int count = u2(end + 10);
+            int p = buf.getInt(end + 16);
+            if (count == 0xffff || p == -1) throw new IOException(file + ": zip64 jars aren't supported");
+
+            int n = 16;
+            while(n < count*2) n <<= 1;
+            table = new int[n];
+            for(int i=0;i<count;i++) {
+                if (p < 0 || p + CEN_LEN > size || buf.getInt(p) != CEN_SIG) throw corrupt();
+                int nameLen = u2(p + 28);
+                if (p + CEN_LEN + nameLen > size) throw corrupt();
+                // keep the first of any duplicates, it's the one a lookup reaches first
+                for(int j = hash(p + CEN_LEN, nameLen) & (n-1); ; j = (j+1) & (n-1))
+                    if (table[j] == 0) { table[j] = p + 1; break; }
+                p += CEN_LEN + nameLen + u2(p + 30) + u2(p + 32);
+            }
+        }
+
+        private int u2(int p) { return buf.getShort(p) & 0xffff; }
+        private IOException corrupt() { return new ZipException(file + ": corrupt jar"); }
+
+        private int hash(int p, int len) {
+            int h = 0;
+            for(int i=0;i<len;i++) h = 31*h + buf.get(p+i);
+            return h ^ (h >>> 16);
+        }
+        private static int hash(byte[] b) {
+            int h = 0;
+            for(int i=0;i<b.length;i++) h = 31*h + b[i];
+            return h ^ (h >>> 16);
+        }
+
+        /** Returns the offset of the central directory record of <i>name</i>, or -1 */
+        private int lookup(byte[] name) {
+            for(int j = hash(name) & (table.length-1); table[j] != 0; j = (j+1) & (table.length-1)) {
+                int p = table[j] - 1;
+                if (u2(p + 28) != name.length) continue;
+                int i = 0;
+                while(i < name.length && buf.get(p + CEN_LEN + i) == name[i]) i++;
+                if (i == name.length) return p;
+            }
+            return -1;
+        }
+
+        byte[] read(String entry) throws IOException {
+            int p = lookup(entry.getBytes("UTF-8"));
+            if (p == -1) return null;
+            int method = u2(p + 10);
+            int csize = buf.getInt(p + 20), size = buf.getInt(p + 24);
+            int loc = buf.getInt(p + 42);
+            if (loc < 0 || loc + LOC_LEN > buf.capacity() || buf.getInt(loc) != LOC_SIG) throw corrupt();
+            int data = loc + LOC_LEN + u2(loc + 26) + u2(loc + 28);
+            if (csize < 0 || size < 0 || data + csize > buf.capacity() || data + csize < 0) throw corrupt();
 
+            // the extra byte is the dummy input a nowrap Inflater may want at the end
+            byte[] in = new byte[method == ZipEntry.STORED ? csize : csize + 1];
+            ByteBuffer b = buf.duplicate();
+            ((Buffer)b).position(data);
+            b.get(in, 0, csize);
+            if (method == ZipEntry.STORED) {
+                if (csize != size) throw corrupt();
+                return in;
+            }
+            if (method != ZipEntry.DEFLATED) throw new ZipException(file + ": unsupported compression method for " + entry);
+            Inflater inf = new Inflater(true);
+            try {
+                inf.setInput(in);
+                byte[] out = new byte[size];
+                int n = 0;
+                while(n < size) {
+                    int r = inf.inflate(out, n, size - n);
+                    if (r == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) break;
+                    n += r;
+                }
+                if (n != size) throw corrupt();
+                return out;
+            } catch(DataFormatException e) {
+                throw corrupt();
+            } finally {
+                inf.end();
+            }
+        }
+    }
 }
@@ -0,0 +1,309 @@
+package org.ibex.classgen;
+
+/** The basic blocks of a MethodGen and the edges between them, its dominator tree and its loop nests. Everything
+    is kept in int arrays indexed by block number. Block 0 is the entry. Edges to exception handlers are kept apart
+    from ordinary successors, but both kinds count as predecessors. A JSR is treated as jumping to its subroutine
+    and falling through to the next instruction. A RET has no successors.
+
+    A ControlFlowGraph describes the code when it was built; use MethodGen.getControlFlowGraph(), which builds a
+    new one whenever the code has changed since the last call. Changing a Switch or PhantomTarget behind the
+    MethodGen's back isn't noticed.
+    @see MethodGen#getControlFlowGraph() */
+public final class ControlFlowGraph implements CGConst {
+    private final MethodGen mg;
+    private final int numBlocks;
+    private final int[] blockStart;   // first instruction of each block, blockStart[numBlocks] == mg.size()
+    private final int[] blockOf;      // instruction -> block
+    private final int[] succOff, succ;
+    private final int[] exnOff, exnSucc;
+    private final int[] predOff, pred;
+    private final int[] rpo;          // reachable blocks in reverse postorder
+    private final int[] rpoIndex;     // block -> index in rpo, -1 if unreachable
+    private final int[] idom;         // -1 for the entry and unreachable blocks
+    private final int[] domPre, domPost;
+    private final int[] loopHeader;   // innermost loop containing each block, -1 if none
+    private final int[] loopParent;   // for loop headers, the header of the enclosing loop
+    private final int[] loopDepth;
+
+    ControlFlowGraph(MethodGen mg) {
+        this.mg = mg;
+        int size = mg.size();
+        if (size <= 0) throw new IllegalStateException("method has no code");
+
+        // Blocks start at branch targets, handlers, exception range boundaries and after anything that branches
+        boolean[] leader = new boolean[size+1];
+        leader[0] = true;
+        for(int i=0;i<size;i++) {
+            byte op = mg.get(i);
+            if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+                MethodGen.Switch si = (MethodGen.Switch) mg.peekArg(i);
+                for(int j=0;j<si.size();j++) leader[mg.target(si.targets[j])] = true;
+                leader[mg.target(si.defaultTarget)] = true;
+                leader[i+1] = true;
+            } else if (MethodGen.OP_BRANCH(op)) {
+                leader[mg.target(i)] = true;
+                leader[i+1] = true;
+            } else if (!Frames.fallsThrough(op)) {
+                leader[i+1] = true;
+            }
+        }
+        for(int i=0;i<mg.exnTable.size();i++) {
+            MethodGen.ExnTableEnt e = (MethodGen.ExnTableEnt) mg.exnTable.elementAt(i);
+            leader[e.start] = leader[e.end] = leader[e.handler] = true;
+        }
+        int n = 0;
+        for(int i=0;i<size;i++) if (leader[i]) n++;
+        numBlocks = n;
+        blockStart = new int[n+1];
+        blockOf = new int[size];
+        for(int i=0, b=-1;i<size;i++) {
+            if (leader[i]) blockStart[++b] = i;
+            blockOf[i] = b;
+        }
+        blockStart[n] = size;
+
+        // Successors, without duplicates
+        int max = 0;
+        for(int b=0;b<n;b++) {
+            byte op = mg.get(blockStart[b+1] - 1);
+            max += op == TABLESWITCH || op == LOOKUPSWITCH ? ((MethodGen.Switch) mg.peekArg(blockStart[b+1] - 1)).size() + 1 : 2;
+        }
+        int[] buf = new int[max];
+        int[] stamp = new int[n];
+        for(int b=0;b<n;b++) stamp[b] = -1;
+        int count = 0;
+        succOff = new int[n+1];
+        for(int b=0;b<n;b++) {
+            succOff[b] = count;
+            int last = blockStart[b+1] - 1;
+            byte op = mg.get(last);
+            if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+                MethodGen.Switch si = (MethodGen.Switch) mg.peekArg(last);
+                for(int j=0;j<si.size();j++) count = addEdge(buf, count, stamp, b, blockOf[mg.target(si.targets[j])]);
+                count = addEdge(buf, count, stamp, b, blockOf[mg.target(si.defaultTarget)]);
+            } else if (MethodGen.OP_BRANCH(op)) {
+                count = addEdge(buf, count, stamp, b, blockOf[mg.target(last)]);
+                if (op != GOTO && op != GOTO_W && last+1 < size) count = addEdge(buf, count, stamp, b, blockOf[last+1]);
+            } else if (Frames.fallsThrough(op) && last+1 < size) {
+                count = addEdge(buf, count, stamp, b, blockOf[last+1]);
+            }
+        }
+        succOff[n] = count;
+        succ = new int[count];
+        System.arraycopy(buf, 0, succ, 0, count);
+
+        // Exception edges go from every block in a range to its handler
+        int[][] handlers = new int[n][];
+        int[] numHandlers = new int[n];
+        count = 0;
+        for(int i=0;i<mg.exnTable.size();i++) {
+            MethodGen.ExnTableEnt e = (MethodGen.ExnTableEnt) mg.exnTable.elementAt(i);
+            int h = blockOf[e.handler];
+            for(int b=blockOf[e.start];b<n && blockStart[b]<e.end;b++) {
+                int[] hs = handlers[b];
+                int k = numHandlers[b];
+                boolean dup = false;
+                for(int j=0;j<k;j++) if (hs[j] == h) dup = true;
+                if (dup) continue;
+                if (hs == null) hs = handlers[b] = new int[4];
+                else if (k == hs.length) { int[] hs2 = new int[k*2]; System.arraycopy(hs, 0, hs2, 0, k); hs = handlers[b] = hs2; }
+                hs[numHandlers[b]++] = h;
+                count++;
+            }
+        }
+        exnOff = new int[n+1];
+        exnSucc = new int[count];
+        count = 0;
+        for(int b=0;b<n;b++) {
+            exnOff[b] = count;
+            for(int j=0;j<numHandlers[b];j++) exnSucc[count++] = handlers[b][j];
+        }
+        exnOff[n] = count;
+
+        // Predecessors (of both kinds)
+        predOff = new int[n+1];
+        for(int j=0;j<succ.length;j++) predOff[succ[j]+1]++;
+        for(int j=0;j<exnSucc.length;j++) predOff[exnSucc[j]+1]++;
+        for(int b=0;b<n;b++) predOff[b+1] += predOff[b];
+        pred = new int[succ.length + exnSucc.length];
+        int[] fill = new int[n];
+        for(int b=0;b<n;b++) {
+            for(int j=succOff[b];j<succOff[b+1];j++) { int s = succ[j]; pred[predOff[s] + fill[s]++] = b; }
+            for(int j=exnOff[b];j<exnOff[b+1];j++) { int s = exnSucc[j]; pred[predOff[s] + fill[s]++] = b; }
+        }
+
+        // Reverse postorder, with an explicit stack
+        rpoIndex = new int[n];
+        for(int b=0;b<n;b++) rpoIndex[b] = -1;
+        int[] post = new int[n];
+        int numPost = 0;
+        int[] stack = new int[n], next = new int[n];
+        boolean[] seen = new boolean[n];
+        int sp = 0;
+        stack[sp++] = 0;
+        seen[0] = true;
+        while(sp > 0) {
+            int b = stack[sp-1];
+            int deg = (succOff[b+1] - succOff[b]) + (exnOff[b+1] - exnOff[b]);
+            if (next[b] < deg) {
+                int k = next[b]++;
+                int s = k < succOff[b+1] - succOff[b] ? succ[succOff[b] + k] : exnSucc[exnOff[b] + k - (succOff[b+1] - succOff[b])];
+                if (!seen[s]) { seen[s] = true; stack[sp++] = s; }
+            } else {
+                post[numPost++] = b;
+                sp--;
+            }
+        }
+        rpo = new int[numPost];
+        for(int j=0;j<numPost;j++) { rpo[j] = post[numPost-1-j]; rpoIndex[rpo[j]] = j; }
+
+        // Dominators (Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm")
+        idom = new int[n];
+        for(int b=0;b<n;b++) idom[b] = -1;
+        idom[0] = 0;
+        for(boolean changed = true; changed; ) {
+            changed = false;
+            for(int j=1;j<rpo.length;j++) {
+                int b = rpo[j];
+                int newIdom = -1;
+                for(int k=predOff[b];k<predOff[b+1];k++) {
+                    int p = pred[k];
+                    if (idom[p] == -1) continue;
+                    newIdom = newIdom == -1 ? p : intersect(p, newIdom);
+                }
+                if (newIdom != idom[b]) { idom[b] = newIdom; changed = true; }
+            }
+        }
+        idom[0] = -1;
+
+        // Pre/post numbering of the dominator tree so dominates() is O(1)
+        int[] childOff = new int[n+1];
+        for(int b=0;b<n;b++) if (idom[b] != -1) childOff[idom[b]+1]++;
+        for(int b=0;b<n;b++) childOff[b+1] += childOff[b];
+        int[] children = new int[childOff[n]];
+        for(int b=0;b<n;b++) fill[b] = 0;
+        for(int b=0;b<n;b++) if (idom[b] != -1) children[childOff[idom[b]] + fill[idom[b]]++] = b;
+        domPre = new int[n];
+        domPost = new int[n];
+        for(int b=0;b<n;b++) { domPre[b] = -1; domPost[b] = -1; next[b] = 0; }
+        int clock = 0;
+        sp = 0;
+        stack[sp++] = 0;
+        domPre[0] = clock++;
+        while(sp > 0) {
+            int b = stack[sp-1];
+            if (next[b] < childOff[b+1] - childOff[b]) {
+                int c = children[childOff[b] + next[b]++];
+                domPre[c] = clock++;
+                stack[sp++] = c;
+            } else {
+                domPost[b] = clock++;
+                sp--;
+            }
+        }
+
+        // Loops. Headers are visited innermost first (a nested header comes later in reverse postorder); walking
+        // back from the latches, a block already in a loop stands for that loop's outermost known ancestor.
+        loopHeader = new int[n];
+        loopParent = new int[n];
+        loopDepth = new int[n];
+        for(int b=0;b<n;b++) loopHeader[b] = loopParent[b] = -1;
+        int[] work = new int[n + pred.length];   // a block can be queued once per edge out of it
+        for(int j=rpo.length-1;j>=0;j--) {
+            int h = rpo[j];
+            int numWork = 0;
+            for(int k=predOff[h];k<predOff[h+1];k++) {
+                int p = pred[k];
+                if (dominates(h, p)) work[numWork++] = p;
+            }
+            if (numWork == 0) continue;
+            loopHeader[h] = h;
+            while(numWork > 0) {
+                int b = work[--numWork];
+                if (rpoIndex[b] == -1) continue;
+                if (loopHeader[b] == -1) {
+                    loopHeader[b] = h;
+                    if (b == h) continue;
+                } else {
+                    // b is in some loop already, find the outermost loop we know of that contains it
+                    int l = loopHeader[b];
+                    while(loopParent[l] != -1) l = loopParent[l];
+                    if (l == h) continue;
+                    loopParent[l] = h;
+                    b = l;
+                }
+                for(int k=predOff[b];k<predOff[b+1];k++) {
+                    int p = pred[k];
+                    if (p != h && (loopHeader[p] == -1 || outermost(loopHeader[p]) != h)) work[numWork++] = p;
+                }
+            }
+        }
+        for(int j=0;j<rpo.length;j++) {
+            int b = rpo[j];
+            int d = 0;
+            for(int l=loopHeader[b];l!=-1;l=loopParent[l]) d++;
+            loopDepth[b] = d;
+        }
+    }
+
+    private int outermost(int l) {
+        while(loopParent[l] != -1) l = loopParent[l];
+        return l;
+    }
+
+    private int intersect(int a, int b) {
+        while(a != b) {
+            while(rpoIndex[a] > rpoIndex[b]) a = idom[a];
+            while(rpoIndex[b] > rpoIndex[a]) b = idom[b];
+        }
+        return a;
+    }
+
+    private static int addEdge(int[] buf, int count, int[] stamp, int from, int to) {
+        if (stamp[to] == from) return count;
+        stamp[to] = from;
+        buf[count] = to;
+        return count + 1;
+    }
+
+    // Accessors //////////////////////////////////////////////////////////////////////////////
+
+    public MethodGen getMethodGen() { return mg; }
+    public int numBlocks() { return numBlocks; }
+    /** The first instruction of block <i>b</i> */
+    public int blockStart(int b) { return blockStart[b]; }
+    /** The instruction after the last one in block <i>b</i> */
+    public int blockEnd(int b) { return blockStart[b+1]; }
+    /** The block instruction <i>i</i> is in */
+    public int blockOf(int i) { return blockOf[i]; }
+
+    public int numSuccessors(int b) { return succOff[b+1] - succOff[b]; }
+    public int successor(int b, int i) { return succ[succOff[b] + i]; }
+    /** The number of exception handlers that can be reached from block <i>b</i> */
+    public int numExnSuccessors(int b) { return exnOff[b+1] - exnOff[b]; }
+    public int exnSuccessor(int b, int i) { return exnSucc[exnOff[b] + i]; }
+    /** The number of blocks that can branch, fall through or throw to block <i>b</i> */
+    public int numPredecessors(int b) { return predOff[b+1] - predOff[b]; }
+    public int predecessor(int b, int i) { return pred[predOff[b] + i]; }
+
+    public boolean isReachable(int b) { return rpoIndex[b] != -1; }
+    /** The reachable blocks in reverse postorder (a block comes before its successors, back edges aside) */
+    public int[] reversePostorder() { int[] ret = new int[rpo.length]; System.arraycopy(rpo, 0, ret, 0, rpo.length); return ret; }
+
+    /** The immediate dominator of block <i>b</i>, or -1 for the entry block and unreachable blocks */
+    public int idom(int b) { return idom[b]; }
+    /** Whether every path from the entry to <i>b</i> goes through <i>a</i> (a block dominates itself) */
+    public boolean dominates(int a, int b) {
+        if (domPre[a] == -1 || domPre[b] == -1) return false;
+        return domPre[a] <= domPre[b] && domPost[b] <= domPost[a];
+    }
+
+    /** The header of the innermost natural loop containing block <i>b</i>, or -1. Loops that have more than one
+        entry (irreducible ones) aren't natural and aren't found. */
+    public int loopHeader(int b) { return loopHeader[b]; }
+    public boolean isLoopHeader(int b) { return loopHeader[b] == b; }
+    /** The header of the loop enclosing the one headed by <i>h</i>, or -1 if it is outermost */
+    public int loopParent(int h) { return loopParent[h]; }
+    /** The number of loops block <i>b</i> is nested in */
+    public int loopDepth(int b) { return loopDepth[b]; }
+}
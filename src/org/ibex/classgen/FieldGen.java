@@ -1,6 +1,7 @@
 package org.ibex.classgen;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /** Class representing a field in a generated classfile
     @see ClassFile#addField */
@@ -41,10 +42,12 @@ public class FieldGen extends Type.Class.Field.Body {
         attrs.finish(cp);
     }
     
-    void dump(DataOutput o, ConstantPool cp) throws IOException {
-        o.writeShort(getFlags());
-        o.writeShort(cp.getUtf8Index(getField().getName()));
-        o.writeShort(cp.getUtf8Index(getField().getType().getDescriptor()));
+    int length(ConstantPool cp) { return 6 + attrs.length(cp); }
+    
+    void dump(ByteBuffer o, ConstantPool cp) {
+        o.putShort((short)getFlags());
+        o.putShort((short)cp.getUtf8Index(getField().getName()));
+        o.putShort((short)cp.getUtf8Index(getField().getType().getDescriptor()));
         attrs.dump(o,cp);
     }
 }
@@ -0,0 +1,769 @@
+package org.ibex.classgen;
+
+import java.util.*;
+
+/** The verification types of the locals and operand stack at the start of every instruction of a method, computed
+    by a type-flow analysis over its bytecode (see JVM Spec section 4.10). JSR and RET are not supported. */
+final class Frames implements CGConst {
+    // A verification type is packed into an int as (data << 4) | tag, with the tags numbered the same way they
+    // are in the StackMapTable attribute. data is an index into refs for OBJECT and the index of the NEW
+    // instruction for UNINITIALIZED. Longs and doubles take up two slots, the second of which is TOP.
+    static final int TOP = 0;
+    static final int INTEGER = 1;
+    static final int FLOAT = 2;
+    static final int DOUBLE = 3;
+    static final int LONG = 4;
+    static final int NULL = 5;
+    static final int UNINITIALIZED_THIS = 6;
+    static final int OBJECT = 7;
+    static final int UNINITIALIZED = 8;
+
+    /** The result of merging two classes whose common superclass couldn't be found. It is treated as Object by the
+        analysis, but can't be written to a StackMapTable */
+    static final int INEXACT = OBJECT;
+
+    final MethodGen mg;
+    private final Context cx;
+    private final int size;
+
+    /** The locals at the start of each instruction, null if the instruction is unreachable */
+    final int[][] locals;
+    /** The operand stack at the start of each instruction, null if the instruction is unreachable */
+    final int[][] stack;
+    /** The number of local variable slots used by the method (including its arguments) */
+    final int maxLocals;
+    /** The maximum depth of the operand stack anywhere in the method */
+    int maxStack;
+    /** The locals on entry to the method (locals[0] can differ if instruction 0 is a branch target) */
+    final int[] initialLocals;
+
+    private Type.Ref[] refs = new Type.Ref[16];
+    private int numRefs = 1;
+    private final Hashtable<Type.Ref,Integer> refIds = new Hashtable<Type.Ref,Integer>();
+
+    /** @param cx The context used to find the common superclass of two classes, may be null */
+    Frames(MethodGen mg, Context cx) {
+        this.mg = mg;
+        this.cx = cx;
+        this.size = mg.size();
+        refs[0] = Type.OBJECT;
+        locals = new int[size][];
+        stack = new int[size][];
+
+        Type.Class.Method m = mg.method;
+        maxLocals = maxLocals(mg);
+
+        int[] l = new int[maxLocals];
+        int n = 0;
+        if ((mg.getFlags() & STATIC) == 0)
+            l[n++] = m.isConstructor() && m.getDeclaringClass() != Type.OBJECT ? UNINITIALIZED_THIS : ref(m.getDeclaringClass());
+        for(int i=0;i<m.getNumArgs();i++) n = store(l, n, vt(m.getArgType(i)));
+        initialLocals = (int[]) l.clone();
+        if (size == 0) return;
+        locals[0] = l;
+        stack[0] = new int[0];
+        run();
+    }
+
+    // Verification Types ////////////////////////////////////////////////////////////////////////////
+
+    static int tag(int v) { return v & 0xf; }
+    static boolean isWide(int v) { return v == LONG || v == DOUBLE; }
+    static int width(Type t) { return t == Type.LONG || t == Type.DOUBLE ? 2 : t == Type.VOID ? 0 : 1; }
+
+    int vt(Type t) {
+        if (t == Type.INT || t == Type.BOOLEAN || t == Type.BYTE || t == Type.CHAR || t == Type.SHORT) return INTEGER;
+        if (t == Type.FLOAT) return FLOAT;
+        if (t == Type.LONG) return LONG;
+        if (t == Type.DOUBLE) return DOUBLE;
+        if (t == Type.NULL) return NULL;
+        if (t instanceof Type.Ref) return ref((Type.Ref)t);
+        throw new IllegalArgumentException("no verification type for " + t);
+    }
+
+    private int ref(Type.Ref t) {
+        if (t == null) return INEXACT;
+        Integer id = (Integer) refIds.get(t);
+        if (id != null) return (id.intValue() << 4) | OBJECT;
+        if (numRefs == refs.length) {
+            Type.Ref[] refs2 = new Type.Ref[refs.length*2];
+            System.arraycopy(refs, 0, refs2, 0, numRefs);
+            refs = refs2;
+        }
+        refs[numRefs] = t;
+        refIds.put(t, Integer.valueOf(numRefs));
+        return (numRefs++ << 4) | OBJECT;
+    }
+
+    /** Returns the type represented by <i>v</i>, or null if it is TOP or an uninitialized object */
+    Type type(int v) {
+        switch(tag(v)) {
+            case INTEGER: return Type.INT;
+            case FLOAT: return Type.FLOAT;
+            case LONG: return Type.LONG;
+            case DOUBLE: return Type.DOUBLE;
+            case NULL: return Type.NULL;
+            case OBJECT: return refs[v >>> 4];
+            default: return null;
+        }
+    }
+
+    /** Returns true if <i>v</i> is a usable value whose type is known precisely (ie it is not TOP, uninitialized,
+        or the result of merging two classes without enough information to find their common superclass) */
+    boolean isExact(int v) {
+        int tag = tag(v);
+        return tag != TOP && tag != UNINITIALIZED && tag != UNINITIALIZED_THIS && v != INEXACT;
+    }
+
+    // Merging ///////////////////////////////////////////////////////////////////////////////////////
+
+    private int merge(int a, int b) {
+        if (a == b) return a;
+        int ta = tag(a), tb = tag(b);
+        if (ta == NULL && tb == OBJECT) return b;
+        if (tb == NULL && ta == OBJECT) return a;
+        if (ta == OBJECT && tb == OBJECT)
+            return a == INEXACT || b == INEXACT ? INEXACT : ref(commonSuperclass(refs[a >>> 4], refs[b >>> 4]));
+        return TOP;
+    }
+
+    /** Returns the most specific class both <i>a</i> and <i>b</i> are assignable to, as the verifier sees it
+        (interfaces are treated as Object), or null if it can't be determined */
+    private Type.Ref commonSuperclass(Type.Ref a, Type.Ref b) {
+        if (a == b) return a;
+        if (a == Type.OBJECT || b == Type.OBJECT) return Type.OBJECT;
+        if (a.isArray() && b.isArray()) {
+            Type ea = a.asArray().getElementType(), eb = b.asArray().getElementType();
+            if (!ea.isRef() || !eb.isRef()) return Type.OBJECT;
+            Type.Ref e = commonSuperclass(ea.asRef(), eb.asRef());
+            return e == null ? null : e.makeArray();
+        }
+        if (a.isArray() || b.isArray()) return Type.OBJECT;
+        if (cx == null) return null;
+
+        return cx.getHierarchy().commonSuperclass(a.asClass(), b.asClass());
+    }
+
+    /** Merges a frame into the one at the start of instruction <i>i</i>, returns true if it changed */
+    private boolean mergeInto(int i, int[] l, int[] s, int sp) {
+        if (locals[i] == null) {
+            locals[i] = (int[]) l.clone();
+            int[] s2 = new int[sp];
+            System.arraycopy(s, 0, s2, 0, sp);
+            stack[i] = s2;
+            return true;
+        }
+        int[] l2 = locals[i], s2 = stack[i];
+        if (s2.length != sp) throw new IllegalStateException("inconsistent stack height at instruction " + i);
+        boolean changed = false;
+        for(int j=0;j<l2.length;j++) {
+            int v = merge(l2[j], l[j]);
+            if (v != l2[j]) { l2[j] = v; changed = true; }
+        }
+        // a long/double whose second half was lost in a merge isn't usable anymore
+        for(int j=0;j<l2.length;j++) if (isWide(l2[j]) && (j+1 == l2.length || l2[j+1] != TOP)) { l2[j] = TOP; changed = true; }
+        for(int j=0;j<sp;j++) {
+            int v = merge(s2[j], s[j]);
+            if (v != s2[j]) {
+                if (v == TOP && s2[j] != TOP) throw new IllegalStateException("incompatible stack types at instruction " + i);
+                s2[j] = v;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Analysis //////////////////////////////////////////////////////////////////////////////////////
+
+    private int[] s = new int[16];
+    private int sp;
+
+    private void push(int v) {
+        slot(v);
+        if (isWide(v)) slot(TOP);
+    }
+    // pushes a single stack slot, the DUP and SWAP family of instructions work on these
+    private void slot(int v) {
+        if (sp == s.length) {
+            int[] s2 = new int[s.length*2];
+            System.arraycopy(s, 0, s2, 0, sp);
+            s = s2;
+        }
+        s[sp++] = v;
+        if (sp > maxStack) maxStack = sp;
+    }
+    private int pop() {
+        if (sp == 0) throw new IllegalStateException("stack underflow");
+        return s[--sp];
+    }
+    private int pop(Type t) {
+        int w = width(t);
+        if (sp < w) throw new IllegalStateException("stack underflow");
+        sp -= w;
+        return s[sp];
+    }
+    private void pop(int n) {
+        if (sp < n) throw new IllegalStateException("stack underflow");
+        sp -= n;
+    }
+
+    private static int store(int[] l, int n, int v) {
+        if (n > 0 && isWide(l[n-1])) l[n-1] = TOP;
+        l[n] = v;
+        if (isWide(v)) l[n+1] = TOP;
+        return n + (isWide(v) ? 2 : 1);
+    }
+
+    private void run() {
+        int[] work = new int[size];
+        boolean[] queued = new boolean[size];
+        int numWork = 0;
+        work[numWork++] = 0;
+        queued[0] = true;
+        int[] l = new int[maxLocals];
+        Vector exnTable = mg.exnTable;
+
+        while(numWork > 0) {
+            int i = work[--numWork];
+            queued[i] = false;
+            System.arraycopy(locals[i], 0, l, 0, maxLocals);
+            sp = 0;
+            for(int j=0;j<stack[i].length;j++) slot(stack[i][j]);
+
+            // the handlers see the locals both as they are before and after the instruction
+            int[] before = exnTable.size() == 0 ? null : (int[]) l.clone();
+            boolean fallsThrough = execute(i, l);
+
+            for(int j=0;j<exnTable.size();j++) {
+                MethodGen.ExnTableEnt e = (MethodGen.ExnTableEnt) exnTable.elementAt(j);
+                if (i < e.start || i >= e.end) continue;
+                int[] exn = new int[]{ ref(e.type == null ? THROWABLE : e.type) };
+                boolean changed = mergeInto(e.handler, before, exn, 1);
+                changed |= mergeInto(e.handler, l, exn, 1);
+                if (changed && !queued[e.handler]) { queued[e.handler] = true; work[numWork++] = e.handler; }
+            }
+
+            int[] targets = targets(i);
+            for(int j=0; j<targets.length + (fallsThrough ? 1 : 0); j++) {
+                int t = j < targets.length ? targets[j] : i + 1;
+                if (t >= size) throw new IllegalStateException("control falls off the end of the method");
+                if (mergeInto(t, l, s, sp) && !queued[t]) { queued[t] = true; work[numWork++] = t; }
+            }
+        }
+        s = null;
+    }
+
+    private static final Type.Class THROWABLE = Type.Class.instance("java.lang.Throwable");
+    private static final Type.Class CLASS = Type.Class.instance("java.lang.Class");
+    private static final int[] NO_TARGETS = new int[0];
+
+    /** Returns the branch targets of instruction <i>i</i> (not including the next instruction) */
+    int[] targets(int i) {
+        byte op = mg.get(i);
+        Object arg = mg.peekArg(i);
+        switch(op) {
+            case TABLESWITCH:
+            case LOOKUPSWITCH: {
+                MethodGen.Switch si = (MethodGen.Switch) arg;
+                int[] ret = new int[si.size() + 1];
+                for(int j=0;j<si.size();j++) ret[j] = mg.target(si.targets[j]);
+                ret[si.size()] = mg.target(si.defaultTarget);
+                return ret;
+            }
+            case JSR: case JSR_W: case RET:
+                throw new IllegalStateException("jsr/ret are not supported");
+            default:
+                if (MethodGen.OP_BRANCH(op)) return new int[]{ mg.target(i) };
+                return NO_TARGETS;
+        }
+    }
+
+    /** Simulates instruction <i>i</i>, returns false if control never falls through to the next instruction */
+    private boolean execute(int i, int[] l) {
+        byte op = mg.get(i);
+        Object arg = mg.peekArg(i);
+        switch(op) {
+            case NOP: break;
+            case ACONST_NULL: push(NULL); break;
+            case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3: case ICONST_4: case ICONST_5:
+            case BIPUSH: case SIPUSH:
+                push(INTEGER); break;
+            case LCONST_0: case LCONST_1: push(LONG); break;
+            case FCONST_0: case FCONST_1: case FCONST_2: push(FLOAT); break;
+            case DCONST_0: case DCONST_1: push(DOUBLE); break;
+            case LDC: case LDC_W: case LDC2_W:
+                if (arg instanceof Integer || arg instanceof Boolean) push(INTEGER);
+                else if (arg instanceof Float) push(FLOAT);
+                else if (arg instanceof Long) push(LONG);
+                else if (arg instanceof Double) push(DOUBLE);
+                else if (arg instanceof String) push(ref(Type.STRING));
+                else if (arg instanceof Type.Ref) push(ref(CLASS));
+                else throw new IllegalStateException("unknown ldc argument " + arg);
+                break;
+
+            case IALOAD: case BALOAD: case CALOAD: case SALOAD: pop(2); push(INTEGER); break;
+            case LALOAD: pop(2); push(LONG); break;
+            case FALOAD: pop(2); push(FLOAT); break;
+            case DALOAD: pop(2); push(DOUBLE); break;
+            case AALOAD: {
+                pop();
+                int a = pop();
+                Type t = type(a);
+                if (a == NULL) push(NULL);
+                else if (t != null && t.isArray() && t.asArray().getElementType().isRef()) push(vt(t.asArray().getElementType()));
+                else push(INEXACT);
+                break;
+            }
+            case IASTORE: case BASTORE: case CASTORE: case SASTORE: case FASTORE: case AASTORE: pop(3); break;
+            case LASTORE: case DASTORE: pop(4); break;
+
+            case POP: pop(1); break;
+            case POP2: pop(2); break;
+            case DUP: { int a = pop(); slot(a); slot(a); break; }
+            case DUP_X1: { int a = pop(), b = pop(); slot(a); slot(b); slot(a); break; }
+            case DUP_X2: { int a = pop(), b = pop(), c = pop(); slot(a); slot(c); slot(b); slot(a); break; }
+            case DUP2: { int a = pop(), b = pop(); slot(b); slot(a); slot(b); slot(a); break; }
+            case DUP2_X1: { int a = pop(), b = pop(), c = pop(); slot(b); slot(a); slot(c); slot(b); slot(a); break; }
+            case DUP2_X2: {
+                int a = pop(), b = pop(), c = pop(), d = pop();
+                slot(b); slot(a); slot(d); slot(c); slot(b); slot(a);
+                break;
+            }
+            case SWAP: { int a = pop(), b = pop(); slot(a); slot(b); break; }
+
+            case IADD: case ISUB: case IMUL: case IDIV: case IREM: case ISHL: case ISHR: case IUSHR:
+            case IAND: case IOR: case IXOR:
+                pop(2); push(INTEGER); break;
+            case LADD: case LSUB: case LMUL: case LDIV: case LREM: case LAND: case LOR: case LXOR:
+                pop(4); push(LONG); break;
+            case LSHL: case LSHR: case LUSHR: pop(3); push(LONG); break;
+            case FADD: case FSUB: case FMUL: case FDIV: case FREM: pop(2); push(FLOAT); break;
+            case DADD: case DSUB: case DMUL: case DDIV: case DREM: pop(4); push(DOUBLE); break;
+            case INEG: case FNEG: case LNEG: case DNEG: case I2B: case I2C: case I2S: break;
+            case I2L: pop(1); push(LONG); break;
+            case I2F: pop(1); push(FLOAT); break;
+            case I2D: pop(1); push(DOUBLE); break;
+            case L2I: pop(2); push(INTEGER); break;
+            case L2F: pop(2); push(FLOAT); break;
+            case L2D: pop(2); push(DOUBLE); break;
+            case F2I: pop(1); push(INTEGER); break;
+            case F2L: pop(1); push(LONG); break;
+            case F2D: pop(1); push(DOUBLE); break;
+            case D2I: pop(2); push(INTEGER); break;
+            case D2L: pop(2); push(LONG); break;
+            case D2F: pop(2); push(FLOAT); break;
+            case LCMP: case DCMPL: case DCMPG: pop(4); push(INTEGER); break;
+            case FCMPL: case FCMPG: pop(2); push(INTEGER); break;
+
+            case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE: case IFNULL: case IFNONNULL:
+                pop(1); break;
+            case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE:
+            case IF_ACMPEQ: case IF_ACMPNE:
+                pop(2); break;
+            case GOTO: case GOTO_W: return false;
+            case TABLESWITCH: case LOOKUPSWITCH: pop(1); return false;
+            case IRETURN: case LRETURN: case FRETURN: case DRETURN: case ARETURN: case RETURN: case ATHROW:
+                return false;
+            case JSR: case JSR_W: case RET:
+                throw new IllegalStateException("jsr/ret are not supported");
+
+            case GETSTATIC: push(vt(((Type.Class.Field)arg).getType())); break;
+            case PUTSTATIC: pop(((Type.Class.Field)arg).getType()); break;
+            case GETFIELD: pop(1); push(vt(((Type.Class.Field)arg).getType())); break;
+            case PUTFIELD: pop(((Type.Class.Field)arg).getType()); pop(1); break;
+            case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKESTATIC: case INVOKEINTERFACE: {
+                Type.Class.Method m = (Type.Class.Method) arg;
+                for(int j=m.getNumArgs()-1;j>=0;j--) pop(m.getArgType(j));
+                if (op != INVOKESTATIC) {
+                    int r = pop();
+                    if (op == INVOKESPECIAL && m.isConstructor() && (tag(r) == UNINITIALIZED || r == UNINITIALIZED_THIS)) {
+                        int init = r == UNINITIALIZED_THIS
+                            ? ref(mg.method.getDeclaringClass())
+                            : ref((Type.Class) mg.peekArg(r >>> 4));
+                        for(int j=0;j<l.length;j++) if (l[j] == r) l[j] = init;
+                        for(int j=0;j<sp;j++) if (s[j] == r) s[j] = init;
+                    }
+                }
+                if (m.getReturnType() != Type.VOID) push(vt(m.getReturnType()));
+                break;
+            }
+            case NEW: push((i << 4) | UNINITIALIZED); break;
+            case NEWARRAY: pop(1); push(ref(Type.fromArraySpec(((Integer)arg).intValue()).makeArray())); break;
+            case ANEWARRAY: pop(1); push(ref(((Type.Ref)arg).makeArray())); break;
+            case ARRAYLENGTH: pop(1); push(INTEGER); break;
+            case CHECKCAST: pop(1); push(ref((Type.Ref)arg)); break;
+            case INSTANCEOF: pop(1); push(INTEGER); break;
+            case MONITORENTER: case MONITOREXIT: pop(1); break;
+            case MULTIANEWARRAY: {
+                MethodGen.MultiANewArray mana = (MethodGen.MultiANewArray) arg;
+                pop(mana.dims);
+                push(ref(mana.type));
+                break;
+            }
+
+            case IINC: break;
+            default: {
+                int slot = localSlot(op, arg);
+                if (slot < 0) throw new IllegalStateException("unknown bytecode " + Integer.toString(op&0xff,16));
+                if (op == WIDE) op = ((MethodGen.Wide)arg).op;
+                if (op == IINC) break;
+                int v = localType(op, arg);
+                if (isLoad(op)) push(v == OBJECT ? l[slot] : v);
+                else store(l, slot, v == OBJECT ? pop() : pop(type(v)));
+                break;
+            }
+        }
+        return true;
+    }
+
+    // Local Variables ///////////////////////////////////////////////////////////////////////////////
+
+    private static boolean isLoad(byte op) {
+        return (op >= ILOAD && op <= ALOAD) || (op >= ILOAD_0 && op <= ALOAD_3);
+    }
+
+    private static final int[] KINDS = { INTEGER, LONG, FLOAT, DOUBLE, OBJECT };
+
+    /** Returns the local variable slot accessed by <i>op</i>, or -1 if it doesn't access one */
+    static int localSlot(byte op, Object arg) {
+        if (op >= ILOAD && op <= ALOAD) return ((Integer)arg).intValue();
+        if (op >= ISTORE && op <= ASTORE) return ((Integer)arg).intValue();
+        if (op >= ILOAD_0 && op <= ALOAD_3) return (op - ILOAD_0) & 3;
+        if (op >= ISTORE_0 && op <= ASTORE_3) return (op - ISTORE_0) & 3;
+        if (op == IINC) return ((MethodGen.Pair)arg).i1;
+        if (op == RET) return ((Integer)arg).intValue();
+        if (op == WIDE) return ((MethodGen.Wide)arg).varNum;
+        return -1;
+    }
+
+    /** Returns the verification type of the local accessed by <i>op</i> (OBJECT for any reference) */
+    static int localType(byte op, Object arg) {
+        if (op == WIDE) op = ((MethodGen.Wide)arg).op;
+        if (op >= ILOAD && op <= ALOAD) return KINDS[op - ILOAD];
+        if (op >= ISTORE && op <= ASTORE) return KINDS[op - ISTORE];
+        if (op >= ILOAD_0 && op <= ALOAD_3) return KINDS[(op - ILOAD_0) >> 2];
+        if (op >= ISTORE_0 && op <= ASTORE_3) return KINDS[(op - ISTORE_0) >> 2];
+        if (op == IINC) return INTEGER;
+        return OBJECT; // RET
+    }
+
+    /** Returns the number of local variable slots used by <i>mg</i>, including its arguments */
+    static int maxLocals(MethodGen mg) {
+        Type.Class.Method m = mg.method;
+        int n = (mg.getFlags() & STATIC) == 0 ? 1 : 0;
+        for(int i=0;i<m.getNumArgs();i++) n += width(m.getArgType(i));
+        for(int i=0;i<mg.size();i++) {
+            int slot = localSlot(mg.get(i), mg.peekArg(i));
+            if (slot >= 0) n = Math.max(n, slot + (isWide(localType(mg.get(i), mg.peekArg(i))) ? 2 : 1));
+        }
+        return n;
+    }
+
+    /** Returns the maximum depth (in slots) of the operand stack anywhere in <i>mg</i>. This only tracks the
+        depth of the stack, so unlike the full analysis it is cheap and copes with JSR/RET.
+        @exception IllegalStateException if the stack underflows or has different depths on two paths */
+    static int maxStack(MethodGen mg) {
+        int size = mg.size();
+        if (size == 0) return 0;
+        int[] depth = new int[size];
+        for(int i=0;i<size;i++) depth[i] = -1;
+        int[] work = new int[size];
+        int numWork = 0;
+        Vector exnTable = mg.exnTable;
+        int max = 0;
+
+        depth[0] = 0;
+        work[numWork++] = 0;
+        while(numWork > 0) {
+            int i = work[--numWork];
+            byte op = mg.get(i);
+            Object arg = mg.peekArg(i);
+            int after = depth[i] + stackEffect(op, arg);
+            if (after < 0) throw new IllegalStateException("stack underflow at instruction " + i);
+            max = Math.max(max, Math.max(depth[i], after));
+
+            for(int j=0;j<exnTable.size();j++) {
+                MethodGen.ExnTableEnt e = (MethodGen.ExnTableEnt) exnTable.elementAt(j);
+                if (i >= e.start && i < e.end) numWork = flow(depth, work, numWork, e.handler, 1);
+            }
+            switch(op) {
+                case JSR: case JSR_W:
+                    // the subroutine sees the return address, the instruction after sees what it leaves behind
+                    numWork = flow(depth, work, numWork, mg.target(i), after);
+                    numWork = flow(depth, work, numWork, i + 1, after - 1);
+                    continue;
+                case TABLESWITCH: case LOOKUPSWITCH: {
+                    MethodGen.Switch si = (MethodGen.Switch) arg;
+                    for(int j=0;j<si.size();j++) numWork = flow(depth, work, numWork, mg.target(si.targets[j]), after);
+                    numWork = flow(depth, work, numWork, mg.target(si.defaultTarget), after);
+                    continue;
+                }
+                default:
+                    if (MethodGen.OP_BRANCH(op)) numWork = flow(depth, work, numWork, mg.target(i), after);
+                    if (fallsThrough(op)) numWork = flow(depth, work, numWork, i + 1, after);
+            }
+        }
+        return max;
+    }
+
+    private static int flow(int[] depth, int[] work, int numWork, int i, int d) {
+        if (i >= depth.length) throw new IllegalStateException("control falls off the end of the method");
+        if (depth[i] == d) return numWork;
+        if (depth[i] != -1) throw new IllegalStateException("inconsistent stack height at instruction " + i);
+        depth[i] = d;
+        work[numWork++] = i;
+        return numWork;
+    }
+
+    /** Returns the change in the depth of the operand stack (in slots) when <i>op</i> is executed */
+    static int stackEffect(byte op, Object arg) {
+        switch(op) {
+            case NOP: case IINC: case SWAP: case GOTO: case GOTO_W: case RET: case RETURN:
+            case INEG: case FNEG: case LNEG: case DNEG: case I2B: case I2C: case I2S: case I2F: case F2I: case L2D: case D2L:
+            case LALOAD: case DALOAD: case NEWARRAY: case ANEWARRAY: case ARRAYLENGTH: case CHECKCAST: case INSTANCEOF:
+                return 0;
+            case ACONST_NULL: case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3: case ICONST_4:
+            case ICONST_5: case FCONST_0: case FCONST_1: case FCONST_2: case BIPUSH: case SIPUSH:
+            case DUP: case DUP_X1: case DUP_X2: case I2L: case I2D: case F2L: case F2D: case NEW: case JSR: case JSR_W:
+                return 1;
+            case LDC: case LDC_W: case LDC2_W:
+                return arg instanceof Long || arg instanceof Double ? 2 : 1;
+            case LCONST_0: case LCONST_1: case DCONST_0: case DCONST_1: case DUP2: case DUP2_X1: case DUP2_X2:
+                return 2;
+            case IALOAD: case FALOAD: case AALOAD: case BALOAD: case CALOAD: case SALOAD: case POP:
+            case IADD: case ISUB: case IMUL: case IDIV: case IREM: case ISHL: case ISHR: case IUSHR: case IAND: case IOR:
+            case IXOR: case FADD: case FSUB: case FMUL: case FDIV: case FREM: case LSHL: case LSHR: case LUSHR:
+            case L2I: case L2F: case D2I: case D2F: case FCMPL: case FCMPG:
+            case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE: case IFNULL: case IFNONNULL:
+            case TABLESWITCH: case LOOKUPSWITCH: case IRETURN: case FRETURN: case ARETURN: case ATHROW:
+            case MONITORENTER: case MONITOREXIT:
+                return -1;
+            case POP2: case LADD: case LSUB: case LMUL: case LDIV: case LREM: case LAND: case LOR: case LXOR:
+            case DADD: case DSUB: case DMUL: case DDIV: case DREM: case LRETURN: case DRETURN:
+            case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE:
+            case IF_ACMPEQ: case IF_ACMPNE:
+                return -2;
+            case IASTORE: case FASTORE: case AASTORE: case BASTORE: case CASTORE: case SASTORE:
+            case LCMP: case DCMPL: case DCMPG:
+                return -3;
+            case LASTORE: case DASTORE:
+                return -4;
+            case GETSTATIC: return width(((Type.Class.Field)arg).getType());
+            case PUTSTATIC: return -width(((Type.Class.Field)arg).getType());
+            case GETFIELD: return width(((Type.Class.Field)arg).getType()) - 1;
+            case PUTFIELD: return -width(((Type.Class.Field)arg).getType()) - 1;
+            case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKESTATIC: case INVOKEINTERFACE: {
+                Type.Class.Method m = (Type.Class.Method) arg;
+                int n = width(m.getReturnType()) - (op == INVOKESTATIC ? 0 : 1);
+                for(int i=0;i<m.getNumArgs();i++) n -= width(m.getArgType(i));
+                return n;
+            }
+            case MULTIANEWARRAY: return 1 - ((MethodGen.MultiANewArray)arg).dims;
+            default: {
+                if (localSlot(op, arg) < 0) throw new IllegalStateException("unknown bytecode " + Integer.toString(op&0xff,16));
+                byte lop = op == WIDE ? ((MethodGen.Wide)arg).op : op;
+                if (lop == IINC || lop == RET) return 0;
+                int w = isWide(localType(op, arg)) ? 2 : 1;
+                return isLoad(lop) ? w : -w;
+            }
+        }
+    }
+
+    /** Returns whether each local slot is live (may be read before it is next written) at the start of each
+        instruction, as one bitset per instruction */
+    long[][] liveness() {
+        int words = (maxLocals + 63) >>> 6;
+        long[][] live = new long[size][];
+        for(int i=0;i<size;i++) live[i] = new long[words];
+        Vector exnTable = mg.exnTable;
+        long[] out = new long[words];
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int i=size-1;i>=0;i--) {
+                if (locals[i] == null) continue;
+                for(int w=0;w<words;w++) out[w] = 0;
+                byte op = mg.get(i);
+                if (fallsThrough(op) && i + 1 < size) or(out, live[i+1]);
+                int[] targets = targets(i);
+                for(int j=0;j<targets.length;j++) or(out, live[targets[j]]);
+                for(int j=0;j<exnTable.size();j++) {
+                    MethodGen.ExnTableEnt e = (MethodGen.ExnTableEnt) exnTable.elementAt(j);
+                    if (i >= e.start && i < e.end) or(out, live[e.handler]);
+                }
+                int slot = localSlot(op, mg.peekArg(i));
+                if (slot >= 0) {
+                    byte lop = op == WIDE ? ((MethodGen.Wide)mg.peekArg(i)).op : op;
+                    int w = isWide(localType(op, mg.peekArg(i))) ? 2 : 1;
+                    if (lop == IINC) {
+                        out[slot >>> 6] |= 1L << slot;
+                    } else if (isLoad(lop)) {
+                        for(int k=slot;k<slot+w;k++) out[k >>> 6] |= 1L << k;
+                    } else {
+                        // a store only kills the slot if no handler can see the old value
+                        boolean covered = false;
+                        for(int j=0;j<exnTable.size();j++) {
+                            MethodGen.ExnTableEnt e = (MethodGen.ExnTableEnt) exnTable.elementAt(j);
+                            if (i >= e.start && i < e.end) covered = true;
+                        }
+                        if (!covered) for(int k=slot;k<slot+w;k++) out[k >>> 6] &= ~(1L << k);
+                    }
+                }
+                long[] in = live[i];
+                for(int w=0;w<words;w++) if (in[w] != out[w]) { in[w] = out[w]; changed = true; }
+            }
+        }
+        return live;
+    }
+
+    private static void or(long[] a, long[] b) { for(int i=0;i<a.length;i++) a[i] |= b[i]; }
+
+    static boolean fallsThrough(byte op) {
+        switch(op) {
+            case GOTO: case GOTO_W: case TABLESWITCH: case LOOKUPSWITCH: case ATHROW: case RET:
+            case IRETURN: case LRETURN: case FRETURN: case DRETURN: case ARETURN: case RETURN:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    // StackMapTable /////////////////////////////////////////////////////////////////////////////////
+
+    /** Gives unreachable instruction <i>i</i> the frame the verifier will check it with once it has been replaced
+        with a NOP or ATHROW (see MethodGen.removeDeadCode) */
+    void markDead(int i) {
+        locals[i] = new int[maxLocals];
+        stack[i] = new int[]{ ref(THROWABLE) };
+    }
+
+    /** Returns the StackMapTable attribute describing the frames at the start of the (increasing) instructions
+        <i>insns</i>, adding the classes it refers to to <i>cp</i>. The frames marked <i>optional</i> are only
+        written if they follow a conditional branch that MethodGen.layoutCode() made far.
+        @exception IllegalStateException if a frame holds the merge of two classes whose common superclass
+                   couldn't be found */
+    StackMapTable stackMapTable(int[] insns, boolean[] optional, ConstantPool cp) {
+        int[][] l = new int[insns.length][];
+        int[][] st = new int[insns.length][];
+        for(int i=0;i<insns.length;i++) {
+            l[i] = entries(locals[insns[i]], true, cp);
+            st[i] = entries(stack[insns[i]], false, cp);
+        }
+        int[] initial = entries(initialLocals, true, cp);
+        return new StackMapTable(mg, refs, insns, optional, initial, l, st);
+    }
+
+    /** Converts slots to StackMapTable entries, longs and doubles take one entry and references become their
+        Type.Ref. Trailing TOPs are dropped from locals. */
+    private int[] entries(int[] slots, boolean trim, ConstantPool cp) {
+        int n = slots.length;
+        if (trim) while(n > 0 && slots[n-1] == TOP && !(n > 1 && isWide(slots[n-2]))) n--;
+        int[] ret = new int[n];
+        int count = 0;
+        for(int j=0;j<n;j++) {
+            int v = slots[j];
+            if (v == INEXACT)
+                throw new IllegalStateException(cx == null
+                    ? "no Context to find the common superclass of two merged classes in " + mg.method
+                    : "couldn't find the common superclass of two merged classes in " + mg.method);
+            if (tag(v) == OBJECT) cp.add(refs[v >>> 4]);
+            ret[count++] = v;
+            if (isWide(v)) j++;
+        }
+        int[] ret2 = new int[count];
+        System.arraycopy(ret, 0, ret2, 0, count);
+        return ret2;
+    }
+
+    /** A StackMapTable attribute, encoded once the method's code has been laid out (see JVM Spec section 4.7.4) */
+    static final class StackMapTable implements ClassFile.Attr {
+        private final MethodGen mg;
+        private final Type.Ref[] refs;
+        private final int[] insns;
+        private final boolean[] optional;
+        private final int[] initial;
+        private final int[][] locals;
+        private final int[][] stack;
+        private byte[] bytes;
+
+        StackMapTable(MethodGen mg, Type.Ref[] refs, int[] insns, boolean[] optional, int[] initial, int[][] locals,
+                      int[][] stack) {
+            this.mg = mg;
+            this.refs = refs;
+            this.insns = insns;
+            this.optional = optional;
+            this.initial = initial;
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        public int length(ConstantPool cp) {
+            if (bytes == null) bytes = encode(cp);
+            return bytes.length;
+        }
+        public void dump(java.nio.ByteBuffer o, ConstantPool cp) { o.put(bytes); }
+
+        private byte[] encode(ConstantPool cp) {
+            int[] pc = mg.pc;
+            java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream(insns.length * 4 + 2);
+            java.io.DataOutputStream o = new java.io.DataOutputStream(baos);
+            try {
+                boolean[] written = new boolean[insns.length];
+                int count = 0;
+                for(int i=0;i<insns.length;i++) if (written[i] = !optional[i] || afterFarBranch(insns[i])) count++;
+                o.writeShort(count);
+                int[] prev = initial;
+                int prevPC = -1;
+                for(int i=0;i<insns.length;i++) {
+                    if (!written[i]) continue;
+                    int delta = pc[insns[i]] - prevPC - 1;
+                    int[] l = locals[i], s = stack[i];
+                    int common = 0;
+                    while(common < l.length && common < prev.length && l[common] == prev[common]) common++;
+                    if (s.length == 0 && common == l.length && common == prev.length) {
+                        if (delta < 64) o.writeByte(delta);
+                        else { o.writeByte(251); o.writeShort(delta); }
+                    } else if (s.length == 1 && common == l.length && common == prev.length) {
+                        if (delta < 64) o.writeByte(64 + delta);
+                        else { o.writeByte(247); o.writeShort(delta); }
+                        writeType(o, s[0], cp, pc);
+                    } else if (s.length == 0 && common == prev.length && l.length - common <= 3) {
+                        o.writeByte(251 + l.length - common);
+                        o.writeShort(delta);
+                        for(int j=common;j<l.length;j++) writeType(o, l[j], cp, pc);
+                    } else if (s.length == 0 && common == l.length && prev.length - common <= 3) {
+                        o.writeByte(251 - (prev.length - common));
+                        o.writeShort(delta);
+                    } else {
+                        o.writeByte(255);
+                        o.writeShort(delta);
+                        o.writeShort(l.length);
+                        for(int j=0;j<l.length;j++) writeType(o, l[j], cp, pc);
+                        o.writeShort(s.length);
+                        for(int j=0;j<s.length;j++) writeType(o, s[j], cp, pc);
+                    }
+                    prev = l;
+                    prevPC = pc[insns[i]];
+                }
+                o.close();
+            } catch(java.io.IOException e) {
+                throw new Error("should never happen");
+            }
+            return baos.toByteArray();
+        }
+
+        /** Whether the instruction before <i>insn</i> (skipping NOPs, which take up no space) is a far branch */
+        private boolean afterFarBranch(int insn) {
+            if (mg.far == null) return false;
+            int j = insn - 1;
+            while(j >= 0 && mg.get(j) == NOP) j--;
+            return j >= 0 && mg.far[j];
+        }
+
+        private void writeType(java.io.DataOutputStream o, int v, ConstantPool cp, int[] pc) throws java.io.IOException {
+            o.writeByte(tag(v));
+            if (tag(v) == OBJECT) o.writeShort(cp.getIndex(refs[v >>> 4]));
+            else if (tag(v) == UNINITIALIZED) o.writeShort(pc[v >>> 4]);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.ibex.classgen;
+
+import java.util.*;
+
+/** The class hierarchy as far as a Context can resolve it. Every class gets a dense id the first time it comes up,
+    and the first query about it records the set of its ancestors (itself included) as a bitset of ids and its chain
+    of superclasses from Object down. After that a subtype test is a single bit test and a common superclass a binary
+    search over the two chains. Each class also keeps the set of its known descendants.
+
+    Only the headers of classes are read (see Context.resolveHeader()). Adding a class to the context that the
+    index already knows about drops what was recorded for it and everything below it. Classes that can't be
+    resolved are treated as having no ancestors but themselves. All methods may be called from any thread.
+    @see Context#getHierarchy() */
+public final class Hierarchy {
+    private final Context cx;
+    private final Hashtable<Type.Class,Node> nodes = new Hashtable<Type.Class,Node>();
+    private final Vector<Node> byId = new Vector<Node>();
+    private final Vector<Node> pending = new Vector<Node>();  // added to the context but not indexed yet
+    private volatile int generation;                           // bumped by added(), headers read before it are stale
+
+    private static final class Node {
+        final Type.Class type;
+        final int id;
+        BitSet ancestors;                       // null until indexed
+        Node[] chain;                           // Object first, this last; null if a superclass couldn't be resolved
+        boolean isInterface;
+        final BitSet descendants = new BitSet();
+        Node(Type.Class type, int id) { this.type = type; this.id = id; }
+    }
+
+    // Headers are read without holding the lock, so one query can't hold up the others while it does I/O. A query
+    // takes the lock, finds the headers index() would need that it hasn't read yet, and if there are any, lets go
+    // of the lock, reads them, and tries again.
+    private static final Object UNRESOLVED = new Object();
+    private static final class Headers {
+        final Hashtable<Type.Class,Object> map = new Hashtable<Type.Class,Object>();   // a Context.Header or UNRESOLVED
+        int generation;
+    }
+
+    Hierarchy(Context cx) { this.cx = cx; }
+
+    /** Whether <i>a</i> is <i>b</i> or extends or implements it, directly or not */
+    public boolean isSubtype(Type.Class a, Type.Class b) {
+        if (a == b) return true;
+        for(Headers hs = null;;) {
+            Vector<Type.Class> need;
+            synchronized(this) {
+                need = missing(hs, a, null);
+                if (need == null) {
+                    Node na = index(a, hs);
+                    Node nb = (Node) nodes.get(b);
+                    return nb != null && na.ancestors.get(nb.id);
+                }
+            }
+            hs = read(hs, need);
+        }
+    }
+
+    /** Returns the most specific class both <i>a</i> and <i>b</i> extend, as the verifier sees it (interfaces are
+        treated as Object), or null if it can't be determined because a superclass couldn't be resolved */
+    public Type.Class commonSuperclass(Type.Class a, Type.Class b) {
+        if (a == b) return a;
+        for(Headers hs = null;;) {
+            Vector<Type.Class> need;
+            synchronized(this) {
+                need = missing(hs, b, missing(hs, a, null));
+                if (need == null) return commonSuperclass(index(a, hs), index(b, hs));
+            }
+            hs = read(hs, need);
+        }
+    }
+
+    private static Type.Class commonSuperclass(Node na, Node nb) {
+        if (na.isInterface || nb.isInterface) return Type.OBJECT;
+        Node[] ca = na.chain, cb = nb.chain;
+        if (ca == null || cb == null) return null;
+        // the chains agree up to the common superclass and differ below it
+        int lo = 0, hi = Math.min(ca.length, cb.length) - 1;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (ca[mid] == cb[mid]) lo = mid; else hi = mid - 1;
+        }
+        return ca[lo].type;
+    }
+
+    /** Returns every class known to extend or implement <i>c</i>, directly or not, not counting <i>c</i> itself.
+        Known means added to the context or come across while indexing. */
+    public Type.Class[] subclasses(Type.Class c) {
+        for(Headers hs = null;;) {
+            Vector<Type.Class> need;
+            synchronized(this) {
+                need = missing(hs, c, null);
+                for(int i=0; i<pending.size(); i++) need = missing(hs, ((Node)pending.elementAt(i)).type, need);
+                if (need == null) {
+                    while(pending.size() > 0) {
+                        Node n = (Node) pending.lastElement();
+                        pending.removeElementAt(pending.size()-1);
+                        index(n.type, hs);
+                    }
+                    Node nc = index(c, hs);
+                    Vector<Type.Class> ret = new Vector<Type.Class>();
+                    for(int i = nc.descendants.nextSetBit(0); i >= 0; i = nc.descendants.nextSetBit(i+1))
+                        if (i != nc.id) ret.addElement(((Node)byId.elementAt(i)).type);
+                    Type.Class[] a = new Type.Class[ret.size()];
+                    ret.copyInto(a);
+                    return a;
+                }
+            }
+            hs = read(hs, need);
+        }
+    }
+
+    /** Called by the context when <i>c</i> is added */
+    synchronized void added(Type.Class c) {
+        generation++;
+        Node n = (Node) nodes.get(c);
+        if (n == null) {
+            pending.addElement(node(c));
+            return;
+        }
+        if (n.ancestors == null) return;
+        // whatever was recorded for it, and for everything below it, may have changed
+        BitSet below = (BitSet) n.descendants.clone();
+        for(int i = below.nextSetBit(0); i >= 0; i = below.nextSetBit(i+1)) {
+            Node d = (Node) byId.elementAt(i);
+            for(int j = d.ancestors.nextSetBit(0); j >= 0; j = d.ancestors.nextSetBit(j+1))
+                ((Node)byId.elementAt(j)).descendants.clear(i);
+            d.ancestors = null;
+            d.chain = null;
+            pending.addElement(d);
+        }
+    }
+
+    private Node node(Type.Class c) {
+        Node n = (Node) nodes.get(c);
+        if (n == null) {
+            n = new Node(c, byId.size());
+            byId.addElement(n);
+            nodes.put(c, n);
+        }
+        return n;
+    }
+
+    /** Adds to <i>need</i> (allocating it if it is null) the classes whose headers index(c, hs) would need and
+        <i>hs</i> doesn't have, and returns it. Called with the lock held. */
+    private Vector<Type.Class> missing(Headers hs, Type.Class c, Vector<Type.Class> need) {
+        Node n = (Node) nodes.get(c);
+        if (c == Type.OBJECT || (n != null && n.ancestors != null)) return need;
+        if (hs != null && hs.generation != generation) { hs.map.clear(); hs.generation = generation; }
+        return missing(hs, c, need, new Hashtable<Type.Class,Type.Class>());
+    }
+
+    private Vector<Type.Class> missing(Headers hs, Type.Class c, Vector<Type.Class> need, Hashtable<Type.Class,Type.Class> seen) {
+        Node n = (Node) nodes.get(c);
+        if (c == Type.OBJECT || (n != null && n.ancestors != null) || seen.put(c, c) != null) return need;
+        Object h = hs == null ? null : hs.map.get(c);
+        if (h == null) {
+            if (need == null) need = new Vector<Type.Class>();
+            need.addElement(c);
+        } else if (h != UNRESOLVED) {
+            Context.Header ch = (Context.Header) h;
+            need = missing(hs, ch.superType == null ? Type.OBJECT : ch.superType, need, seen);
+            for(int i=0; i<ch.interfaces.length; i++) need = missing(hs, ch.interfaces[i], need, seen);
+        }
+        return need;
+    }
+
+    /** Reads the headers of <i>need</i> into <i>hs</i> (allocating it if it is null). Called without the lock. */
+    private Headers read(Headers hs, Vector<Type.Class> need) {
+        int g = generation;
+        if (hs == null) hs = new Headers();
+        if (hs.generation != g) { hs.map.clear(); hs.generation = g; }
+        for(int i=0; i<need.size(); i++) {
+            Type.Class c = (Type.Class) need.elementAt(i);
+            Context.Header h = cx.resolveHeader(c);
+            hs.map.put(c, h == null ? UNRESOLVED : h);
+        }
+        return hs;
+    }
+
+    /** Returns the node of <i>c</i> with its ancestors and superclasses recorded. missing() must have found every
+        header it needs in <i>hs</i>. */
+    private Node index(Type.Class c, Headers hs) {
+        Node n = node(c);
+        if (n.ancestors != null) return n;
+        BitSet ancestors = new BitSet();
+        ancestors.set(n.id);
+        // set before going up so a (bogus) cycle in the hierarchy ends here
+        n.ancestors = ancestors;
+        n.chain = null;
+        Object h = c == Type.OBJECT ? null : hs.map.get(c);
+        if (c == Type.OBJECT) {
+            n.chain = new Node[] { n };
+        } else if (h == UNRESOLVED) {
+            System.err.println("warning: could not resolve class " + c.getName());
+        } else {
+            Context.Header ch = (Context.Header) h;
+            n.isInterface = ch.isInterface();
+            Node s = index(ch.superType == null ? Type.OBJECT : ch.superType, hs);
+            ancestors.or(s.ancestors);
+            if (s.chain != null && s != n) {
+                n.chain = new Node[s.chain.length + 1];
+                System.arraycopy(s.chain, 0, n.chain, 0, s.chain.length);
+                n.chain[s.chain.length] = n;
+            }
+            for(int i=0; i<ch.interfaces.length; i++) ancestors.or(index(ch.interfaces[i], hs).ancestors);
+        }
+        for(int i = ancestors.nextSetBit(0); i >= 0; i = ancestors.nextSetBit(i+1))
+            ((Node)byId.elementAt(i)).descendants.set(n.id);
+        return n;
+    }
+}
@@ -6,104 +6,888 @@ import java.util.*;
  *  a highly streamlined SSA-form intermediate representation of a
  *  sequence of JVM instructions; all stack manipulation is factored
  *  out.
+ *
+ *  The SSA form is built over the method's ControlFlowGraph, a block at a time in reverse postorder, the way
+ *  Braun et al. do it in "Simple and Efficient Construction of Static Single Assignment Form". Every local and
+ *  every stack slot is a variable. A Phi is only created when a variable is read in a block where more than one
+ *  definition of it can reach, and one that turns out to merge a single value is replaced by that value. A handler
+ *  merges every value a local has anywhere in the blocks it covers. Subroutines (JSR/RET) are only followed as far
+ *  as the ControlFlowGraph follows them, so what a subroutine does to the locals isn't seen after the JSR.
+ *
+ *  The nodes are kept in parallel arrays indexed by a dense node id: a kind, a list of operand ids in a pool shared
+ *  by all the nodes, a type for the nodes whose type doesn't follow from their operands, and whatever else the
+ *  instruction had (a field, a method, a constant). The Op and Expr objects are only views of a node, made when
+ *  asked for (see node()); creating one with its public constructor adds a node. Once the SSA form is built the
+ *  Phis that were replaced, and everything nothing refers to, are dropped and the rest renumbered.
  */
 public class JSSA extends MethodGen implements CGConst {
 
     // Constructor //////////////////////////////////////////////////////////////////////////////
-    
+
     public JSSA(Type.Class c, DataInput in, ConstantPool cp) throws IOException {
         super(c, in, cp);
-        sp = 0;
-        stacks = new Phi[size()][];
-        locals = new Phi[size()][];
-        for(int i=0; i<size(); i++) {
-            int n = 0;
-            locals[i] = new Phi[maxLocals];
-            for(int j=0; j<locals[i].length; j++) locals[i][j] = new Phi();
-            if (i==0) {
-                if (!isStatic()) locals[i][n++].merge(new Argument("this",method.getDeclaringClass()));
-                for(int j=0;j<this.method.getNumArgs(); j++) locals[i][n++].merge(new Argument("arg"+j,this.method.getArgType(j)));
-            }
+        newNodes(Math.max(size(), 0));
+        if (size() <= 0) { cfg = null; return; }
+        cfg = getControlFlowGraph();
+        int numBlocks = cfg.numBlocks();
+        numVars = maxLocals + maxStack;
+        out = new Values();
+        entry = new Values();
+        cur = new int[numVars];
+        Arrays.fill(cur, -1);
+        touched = new int[numVars];
+        sealed = new boolean[numBlocks];
+        filled = new boolean[numBlocks];
+        exitDepth = new int[numBlocks];
+        incomplete = new int[numBlocks];
+        Arrays.fill(incomplete, -1);
+        chain = new int[numBlocks];
+        firstOp = new int[numBlocks];
+        endOp = new int[numBlocks];
+        ops = new int[size()];
+        ofs = new int[size()];
+        newPhis(16);
+
+        initial = new int[maxLocals];
+        Arrays.fill(initial, UNDEFINED_NODE);
+        int n = 0;
+        if (!isStatic()) initial[n++] = newNode(NODE_ARGUMENT, method.getDeclaringClass(), "this", 0);
+        for(int i=0; i<method.getNumArgs(); i++) {
+            Type t = method.getArgType(i);
+            initial[n] = newNode(NODE_ARGUMENT, t, "arg"+i, n);
+            n += Frames.width(t);
         }
 
-        stack = new Phi[maxStack];
-        branchTo(0);
-        for(pc=0; pc<size(); pc++) {
-            int    op  = get(pc);
-            Object arg = getArg(pc);
+        int[] rpo = cfg.reversePostorder();
+        for(int j=0; j<rpo.length; j++) {
+            int b = rpo[j];
+            if (!sealed[b] && predsFilled(b)) seal(b);
             try {
-                Object o = addOp(op, arg);
-                if (o != null) {
-                    ops[numOps] = o;
-                    ofs[numOps++] = pc;
-                }
-                if (o!=null && o instanceof Branch) ((Branch)o).branchTo();
-                if (o==null || (!(o instanceof Branch))) branchTo(pc+1);
+                fill(b);
             } catch(RuntimeException e) {
                 System.err.println("Had a problem at PC: " + pc + " of " + method);
                 e.printStackTrace();
                 throw new IOException("invalid class file");
             }
+            for(int k=0; k<cfg.numSuccessors(b); k++) {
+                int s = cfg.successor(b, k);
+                if (!sealed[s] && predsFilled(s)) seal(s);
+            }
+            for(int k=0; k<cfg.numExnSuccessors(b); k++) {
+                int s = cfg.exnSuccessor(b, k);
+                if (!sealed[s] && predsFilled(s)) seal(s);
+            }
         }
+        settleTypes();
+        release();
+    }
+
+    /** the ops of the method, in the order the blocks were filled, and the pc of the instruction each came from.
+        An op is a node id; an expression there is evaluated at that point for its side effects (see Seq) */
+    int[] ops;
+    private int[] ofs;
+    int numOps = 0;
+
+    /** the ControlFlowGraph the SSA form was built over, null if the method has no code */
+    final ControlFlowGraph cfg;
+    /** the ops of each block are ops[firstOp[b]] to ops[endOp[b]-1], in order */
+    int[] firstOp, endOp;
+    /** whether the code has been replaced with code generated from the SSA form, which then no longer describes it */
+    private boolean lowered;
+    /** the blocks propagateConstants() found can never be reached (null until it has run) */
+    boolean[] dead;
+    private static final int TYPES_GUESSED = 0, TYPES_SETTLING = 1, TYPES_SETTLED = 2;
+    private int typePhase = TYPES_GUESSED;
+
+    // Nodes //////////////////////////////////////////////////////////////////////////////
+
+    // the kinds of node; the ones from NODE_DEF on are Ops, the rest Exprs
+    static final byte NODE_UNDEFINED = 0;
+    static final byte NODE_VOID = 1;
+    static final byte NODE_PHI = 2;
+    static final byte NODE_ARGUMENT = 3;
+    static final byte NODE_CATCH = 4;
+    static final byte NODE_CONSTANT = 5;
+    static final byte NODE_LABEL = 6;
+    static final byte NODE_NOT = 7;
+    static final byte NODE_NEG = 8;
+    static final byte NODE_EQ = 9;
+    static final byte NODE_GT = 10;
+    static final byte NODE_LT = 11;
+    static final byte NODE_GE = 12;
+    static final byte NODE_LE = 13;
+    static final byte NODE_CMP = 14;
+    static final byte NODE_ADD = 15;
+    static final byte NODE_SUB = 16;
+    static final byte NODE_MUL = 17;
+    static final byte NODE_REM = 18;
+    static final byte NODE_DIV = 19;
+    static final byte NODE_AND = 20;
+    static final byte NODE_OR = 21;
+    static final byte NODE_XOR = 22;
+    static final byte NODE_SHL = 23;
+    static final byte NODE_SHR = 24;
+    static final byte NODE_USHR = 25;
+    static final byte NODE_CAST = 26;
+    static final byte NODE_INSTANCEOF = 27;
+    static final byte NODE_NEW = 28;
+    static final byte NODE_NEWARRAY = 29;
+    static final byte NODE_GET = 30;
+    static final byte NODE_ARRAYGET = 31;
+    static final byte NODE_ARRAYLENGTH = 32;
+    static final byte NODE_INVOKESTATIC = 33;
+    static final byte NODE_INVOKEVIRTUAL = 34;
+    static final byte NODE_INVOKESPECIAL = 35;
+    static final byte NODE_INVOKEINTERFACE = 36;
+    static final byte NODE_DEF = 37;
+    static final byte NODE_PUT = 38;
+    static final byte NODE_ARRAYPUT = 39;
+    static final byte NODE_MONITORENTER = 40;
+    static final byte NODE_MONITOREXIT = 41;
+    static final byte NODE_THROW = 42;
+    static final byte NODE_RETURN = 43;
+    static final byte NODE_GOTO = 44;
+    static final byte NODE_JSR = 45;
+    static final byte NODE_RET = 46;
+    static final byte NODE_IF = 47;
+    static final byte NODE_SWITCH = 48;
+
+    // how the binary operations are shown, by kind
+    private static final String[] SHOW = new String[NODE_USHR + 1];
+    static {
+        SHOW[NODE_EQ] = "=="; SHOW[NODE_GT] = ">"; SHOW[NODE_LT] = "<"; SHOW[NODE_GE] = ">="; SHOW[NODE_LE] = "<=";
+        SHOW[NODE_ADD] = "+"; SHOW[NODE_SUB] = "-"; SHOW[NODE_MUL] = "*"; SHOW[NODE_REM] = "%"; SHOW[NODE_DIV] = "/";
+        SHOW[NODE_AND] = "&"; SHOW[NODE_OR] = "|"; SHOW[NODE_XOR] = "^";
+        SHOW[NODE_SHL] = "<<"; SHOW[NODE_SHR] = ">>"; SHOW[NODE_USHR] = ">>>";
+    }
+
+    /** the nodes UNDEFINED and VOID_EXPR are views of */
+    static final int UNDEFINED_NODE = 0, VOID_NODE = 1;
+
+    /** the kind of each node */
+    private byte[] kinds;
+    /** where the operands of each node are: pool[first[id]] is how many there are and they follow it */
+    private int[] first;
+    /** the type of each node whose type doesn't follow from its operands (null for the rest) */
+    Type[] types;
+    /** the field, method, constant, argument name or switch of a node */
+    Object[] data;
+    /** the variable of a Def, the pc of a Label, the NaN result of a Cmp, the number of a Phi, the local an Argument
+        arrives in and the block of a Catch (-1 for the ones made with their public constructors) */
+    int[] aux;
+    private int numNodes;
+    /** the operand lists; pool[0] is the empty one */
+    private int[] pool;
+    private int poolSize;
+
+    /** the node, block and variable of each Phi, by number */
+    int[] phiNode, phiBlock, phiVar;
+    int numPhis;
+
+    private void newNodes(int capacity) {
+        capacity = Math.max(capacity, 8);
+        kinds = new byte[capacity];
+        first = new int[capacity];
+        types = new Type[capacity];
+        data = new Object[capacity];
+        aux = new int[capacity];
+        pool = new int[capacity * 2];
+        poolSize = 1;
+        newNode(NODE_UNDEFINED, null, null, 0);
+        newNode(NODE_VOID, Type.VOID, null, 0);
     }
 
-    public void branchTo(int newPC) {
-        System.out.println("!!!branchTo("+newPC+")!!!");
-        if (stacks[newPC] == null) {
-            stacks[newPC] = new Phi[sp];
-            for(int i=0; i<sp; i++) stacks[newPC][i] = new Phi();
+    /** Adds a node with room for <i>numOperands</i> operands, which the caller fills in, and returns its id */
+    private int allocNode(byte kind, Type t, Object d, int a, int numOperands) {
+        if (numNodes == kinds.length) {
+            int n = kinds.length * 2;
+            byte[] newkinds = new byte[n];   System.arraycopy(kinds, 0, newkinds, 0, numNodes);   kinds = newkinds;
+            int[] newfirst = new int[n];     System.arraycopy(first, 0, newfirst, 0, numNodes);   first = newfirst;
+            Type[] newtypes = new Type[n];   System.arraycopy(types, 0, newtypes, 0, numNodes);   types = newtypes;
+            Object[] newdata = new Object[n]; System.arraycopy(data, 0, newdata, 0, numNodes);    data = newdata;
+            int[] newaux = new int[n];       System.arraycopy(aux, 0, newaux, 0, numNodes);       aux = newaux;
         }
-        if (stacks[newPC].length != sp)
-            throw new IllegalArgumentException("stack depth disagreement: " + sp + " " + stacks[newPC].length);
-        for(int i=0; i<stacks[newPC].length; i++) stacks[newPC][i].merge(stack[i]);
-        for(int i=0; i<maxLocals; i++) locals[newPC][i].merge(locals[pc][i]);
+        int id = numNodes++;
+        kinds[id] = kind;
+        types[id] = t;
+        data[id] = d;
+        aux[id] = a;
+        first[id] = numOperands == 0 ? 0 : reserve(numOperands);
+        pool[first[id]] = numOperands;
+        return id;
+    }
+    private int newNode(byte kind, Type t, Object d, int a) { return allocNode(kind, t, d, a, 0); }
+    private int newNode(byte kind, Type t, Object d, int a, int e) {
+        int id = allocNode(kind, t, d, a, 1);
+        pool[first[id]+1] = e;
+        return id;
+    }
+    private int newNode(byte kind, Type t, Object d, int a, int e1, int e2) {
+        int id = allocNode(kind, t, d, a, 2);
+        pool[first[id]+1] = e1;
+        pool[first[id]+2] = e2;
+        return id;
+    }
+    private int newNode(byte kind, Type t, Object d, int a, int e1, int e2, int e3) {
+        int id = allocNode(kind, t, d, a, 3);
+        pool[first[id]+1] = e1;
+        pool[first[id]+2] = e2;
+        pool[first[id]+3] = e3;
+        return id;
+    }
+    private int newNode(byte kind, Type t, Object d, int a, int[] operands) {
+        int id = allocNode(kind, t, d, a, operands.length);
+        System.arraycopy(operands, 0, pool, first[id]+1, operands.length);
+        return id;
     }
-    
-    private Object[] ops = new Object[65535];
-    private int[] ofs = new int[65535];
-    private int numOps = 0;
 
-    // Instance Data; used ONLY during constructor; then thrown away /////////////////////////////////////////////////
+    /** Makes room in the pool for a list of <i>n</i> operands, none of them there yet, and returns where it is */
+    private int reserve(int n) {
+        if (poolSize + n + 1 > pool.length) {
+            int[] newpool = new int[Math.max(pool.length * 2, poolSize + n + 1)];
+            System.arraycopy(pool, 0, newpool, 0, poolSize);
+            pool = newpool;
+        }
+        int at = poolSize;
+        pool[at] = 0;
+        poolSize += n + 1;
+        return at;
+    }
 
-    /** this models the JVM locals; it is only used for unwinding stack-ops into an SSA-tree, then thrown away */
-    private final Phi[][] locals;
-    
-    /** this models the JVM stack; it is only used for unwinding stack-ops into an SSA-tree, then thrown away */
-    private final Phi[][] stacks;
-    private final Phi[] stack;
+    /** Returns the kind of node <i>id</i> */
+    byte kindOf(int id) { return kinds[id]; }
+    /** Returns the number of operands of node <i>id</i> */
+    int numOperands(int id) { return pool[first[id]]; }
+    /** Returns the <i>i</i>th operand of node <i>id</i> */
+    int operand(int id, int i) { return pool[first[id] + 1 + i]; }
+    static boolean isOp(byte kind) { return kind >= NODE_DEF; }
+
+    /** Returns the number of nodes */
+    public int numNodes() { return numNodes; }
+
+    /** Returns a view of node <i>id</i> */
+    public Op node(int id) {
+        switch(kinds[id]) {
+            case NODE_UNDEFINED:       return UNDEFINED;
+            case NODE_VOID:            return VOID_EXPR;
+            case NODE_PHI:             return new Phi(VIEW, id);
+            case NODE_ARGUMENT:        return new Argument(VIEW, id);
+            case NODE_CATCH:           return new Catch(VIEW, id);
+            case NODE_CONSTANT:        return new Constant(VIEW, id);
+            case NODE_LABEL:           return new Label(VIEW, id);
+            case NODE_NOT:             return new Not(VIEW, id);
+            case NODE_NEG:             return new Neg(VIEW, id);
+            case NODE_EQ:              return new Eq(VIEW, id);
+            case NODE_GT:              return new Gt(VIEW, id);
+            case NODE_LT:              return new Lt(VIEW, id);
+            case NODE_GE:              return new Ge(VIEW, id);
+            case NODE_LE:              return new Le(VIEW, id);
+            case NODE_CMP:             return new Cmp(VIEW, id);
+            case NODE_ADD:             return new Add(VIEW, id);
+            case NODE_SUB:             return new Sub(VIEW, id);
+            case NODE_MUL:             return new Mul(VIEW, id);
+            case NODE_REM:             return new Rem(VIEW, id);
+            case NODE_DIV:             return new Div(VIEW, id);
+            case NODE_AND:             return new And(VIEW, id);
+            case NODE_OR:              return new Or(VIEW, id);
+            case NODE_XOR:             return new Xor(VIEW, id);
+            case NODE_SHL:             return new Shl(VIEW, id);
+            case NODE_SHR:             return new Shr(VIEW, id);
+            case NODE_USHR:            return new Ushr(VIEW, id);
+            case NODE_CAST:            return new Cast(VIEW, id);
+            case NODE_INSTANCEOF:      return new InstanceOf(VIEW, id);
+            case NODE_NEW:             return new New(VIEW, id);
+            case NODE_NEWARRAY:        return new NewArray(VIEW, id);
+            case NODE_GET:             return new Get(VIEW, id);
+            case NODE_ARRAYGET:        return new ArrayGet(VIEW, id);
+            case NODE_ARRAYLENGTH:     return new ArrayLength(VIEW, id);
+            case NODE_INVOKESTATIC:    return new InvokeStatic(VIEW, id);
+            case NODE_INVOKEVIRTUAL:   return new InvokeVirtual(VIEW, id);
+            case NODE_INVOKESPECIAL:   return new InvokeSpecial(VIEW, id);
+            case NODE_INVOKEINTERFACE: return new InvokeInterface(VIEW, id);
+            case NODE_DEF:             return new Def(VIEW, id);
+            case NODE_PUT:             return new Put(VIEW, id);
+            case NODE_ARRAYPUT:        return new ArrayPut(VIEW, id);
+            case NODE_MONITORENTER:    return new MonitorEnter(VIEW, id);
+            case NODE_MONITOREXIT:     return new MonitorExit(VIEW, id);
+            case NODE_THROW:           return new Throw(VIEW, id);
+            case NODE_RETURN:          return new Return(VIEW, id);
+            case NODE_GOTO:            return new Goto(VIEW, id);
+            case NODE_JSR:             return new JSR(VIEW, id);
+            case NODE_RET:             return new RET(VIEW, id);
+            case NODE_IF:              return new If(VIEW, id);
+            case NODE_SWITCH:          return new Switch(VIEW, id);
+            default: throw new Error("should never happen");
+        }
+    }
+    Expr expr(int id) { return (Expr) node(id); }
 
-    /** JVM stack pointer */
+    /** Returns a view of the <i>i</i>th op of the method */
+    Op op(int i) {
+        int id = ops[i];
+        return isOp(kinds[id]) ? node(id) : new Seq(expr(id));
+    }
+
+    /** Returns the type of node <i>id</i>, null if it isn't known */
+    Type typeOf(int id) {
+        switch(kinds[id]) {
+            case NODE_PHI:
+                return phiType(id);
+            case NODE_NEG: case NODE_SHL: case NODE_SHR: case NODE_USHR:
+                return kind(typeOf(operand(id, 0)));
+            case NODE_ADD: case NODE_SUB: case NODE_MUL: case NODE_REM: case NODE_DIV:
+            case NODE_AND: case NODE_OR: case NODE_XOR: {
+                Type t = kind(typeOf(operand(id, 0)));
+                return t != null ? t : kind(typeOf(operand(id, 1)));
+            }
+            case NODE_ARRAYGET: {
+                // the array's own type is more specific, when it is known
+                Type t = types[id];
+                Type a = t == Type.OBJECT || t == Type.BYTE ? typeOf(operand(id, 0)) : null;
+                if (a == null || !a.isArray()) return t;
+                Type et = a.asArray().getElementType();
+                return (t == Type.OBJECT ? et.isRef() : et == Type.BOOLEAN) ? et : t;
+            }
+            default:
+                return types[id];
+        }
+    }
+
+    // Instance Data; used ONLY during constructor; then thrown away /////////////////////////////////////////////////
+
+    /** the number of variables: the locals, then one per stack slot */
+    private int numVars;
+
+    /** the value of each variable at the end of each filled block it was defined or read in */
+    private Values out;
+    /** the value of each variable at the start of each block it was read in */
+    private Values entry;
+
+    /** the value of each variable in the block being filled (-1 if it hasn't been defined or read there yet) */
+    private int[] cur;
+    /** the variables set in cur */
+    private int[] touched;
+    private int numTouched;
+
+    private boolean[] sealed;
+    private boolean[] filled;
+    /** the depth of the stack (in slots) at the end of each filled block */
+    private int[] exitDepth;
+    /** the first Phi created in each block before it was sealed; the rest are linked through phiNext */
+    private int[] incomplete;
+    /** the values of the locals on entry to the method */
+    private int[] initial;
+    /** scratch space for readEntry() */
+    private int[] chain;
+    private int chainTop;
+
+    /** for each Phi: the type guessed for it, what it was replaced with (-1 if it hasn't been), the next incomplete
+        Phi in its block and the first of the Phis it is an input of */
+    private Type[] phiHint;
+    private int[] phiForward, phiNext, phiUsers;
+    /** the lists of Phis the Phis are inputs of */
+    private int[] userPhi, userNext;
+    private int numUsers;
+    /** the Phis whose type is being worked out */
+    private BitSet typing;
+
+    /** the block being filled and the instruction in it */
+    private int block;
     private int pc = 0;
+    /** JVM stack pointer */
     private int sp = 0;
 
-    private void push(Expr e) {
-        if (e.getType() == Type.VOID) throw new IllegalArgumentException("can't push a void");
-        if (stack[sp] == null) stack[sp] = new Phi();
-        stack[sp++].merge(e);
+    /** An open-addressed map from a (block, variable) pair to a node */
+    private static final class Values {
+        private long[] keys = new long[64];   // key+1, 0 for an empty slot
+        private int[] vals = new int[64];
+        private int count;
+
+        private int slot(long k) {
+            int mask = keys.length - 1;
+            int i = (int)((k ^ (k >>> 29)) * 0x9E3779B97F4A7C15L >>> 40) & mask;
+            while(keys[i] != 0 && keys[i] != k+1) i = (i + 1) & mask;
+            return i;
+        }
+        /** Returns the node for <i>k</i>, or -1 */
+        int get(long k) {
+            int i = slot(k);
+            return keys[i] == 0 ? -1 : vals[i];
+        }
+        void put(long k, int e) {
+            int i = slot(k);
+            if (keys[i] == 0) {
+                if (++count * 2 > keys.length) { grow(); i = slot(k); }
+                keys[i] = k+1;
+            }
+            vals[i] = e;
+        }
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldVals = vals;
+            keys = new long[oldKeys.length * 2];
+            vals = new int[oldKeys.length * 2];
+            for(int i=0; i<oldKeys.length; i++) {
+                if (oldKeys[i] == 0) continue;
+                int j = slot(oldKeys[i] - 1);
+                keys[j] = oldKeys[i];
+                vals[j] = oldVals[i];
+            }
+        }
+    }
+
+    private long key(int b, int v) { return (long)b * numVars + v; }
+
+    /** Follows a replaced Phi to the node it was replaced with */
+    private int resolve(int e) {
+        while(kinds[e] == NODE_PHI && phiForward[aux[e]] != -1) e = phiForward[aux[e]];
+        return e;
+    }
+
+    // Blocks and variables ////////////////////////////////////////////////////////////////////////////////
+
+    private boolean predsFilled(int b) {
+        for(int k=0; k<cfg.numPredecessors(b); k++) {
+            int p = cfg.predecessor(b, k);
+            if (cfg.isReachable(p) && !filled[p]) return false;
+        }
+        return true;
+    }
+
+    /** Whether the <i>k</i>th predecessor of <i>b</i> reaches it by an exception */
+    boolean exceptional(int b, int k) {
+        int p = cfg.predecessor(b, k);
+        // a block that both branches and throws to b is listed twice, the branch first
+        if (k > 0 && cfg.predecessor(b, k-1) == p) return true;
+        for(int j=0; j<cfg.numSuccessors(p); j++) if (cfg.successor(p, j) == b) return false;
+        return true;
+    }
+
+    boolean isHandler(int b) {
+        for(int k=0; k<cfg.numPredecessors(b); k++) if (exceptional(b, k)) return true;
+        return false;
     }
-    private Expr pop() {
-        Expr ret = stack[sp-1];
-        stack[sp-1] = null;
-        sp--;
+
+    /** Returns the only predecessor of <i>b</i> if it has just one and reaches it without an exception, or -1 */
+    private int onlyPred(int b) {
+        int ret = -1;
+        if (b == 0) return -1;
+        for(int k=0; k<cfg.numPredecessors(b); k++) {
+            int p = cfg.predecessor(b, k);
+            if (!cfg.isReachable(p)) continue;
+            if (ret != -1 || exceptional(b, k)) return -1;
+            ret = p;
+        }
         return ret;
     }
-    
-    private Op seqPush(Expr e) {
-        push(e);
-        return new Seq(e);
+
+    private void seal(int b) {
+        sealed[b] = true;
+        for(int n = incomplete[b]; n != -1; n = phiNext[n]) addOperands(phiNode[n]);
+        incomplete[b] = -1;
+    }
+
+    private void write(int v, int e) {
+        if (cur[v] == -1) touched[numTouched++] = v;
+        cur[v] = e;
+    }
+
+    /** Returns the value of variable <i>v</i> at this point in the block being filled */
+    private int read(int v, Type hint) {
+        int e = cur[v];
+        if (e == -1) write(v, e = readEntry(block, v, hint));
+        return cur[v] = resolve(e);
     }
 
+    /** Returns the value of variable <i>v</i> at the end of the filled block <i>b</i> */
+    private int readExit(int b, int v, Type hint) {
+        int e = out.get(key(b, v));
+        return e != -1 ? resolve(e) : readEntry(b, v, hint);
+    }
+
+    /** Returns the value of variable <i>v</i> at the start of block <i>b</i> */
+    private int readEntry(int b, int v, Type hint) {
+        // blocks with a single predecessor just pass the value on; walk up through them without recursing
+        int base = chainTop;
+        int e;
+        for(;;) {
+            e = entry.get(key(b, v));
+            if (e != -1) break;
+            int p = sealed[b] ? onlyPred(b) : -1;
+            if (p == -1) { e = join(b, v, hint); break; }
+            chain[chainTop++] = b;
+            e = out.get(key(p, v));
+            if (e != -1) break;
+            b = p;
+        }
+        e = resolve(e);
+        while(chainTop > base) entry.put(key(chain[--chainTop], v), e);
+        return e;
+    }
+
+    private int join(int b, int v, Type hint) {
+        if (b == 0 && cfg.numPredecessors(0) == 0) return v < maxLocals ? initial[v] : UNDEFINED_NODE;
+        int phi = newPhi(b, v, hint);
+        entry.put(key(b, v), phi);
+        if (!sealed[b]) {
+            phiNext[aux[phi]] = incomplete[b];
+            incomplete[b] = aux[phi];
+            return phi;
+        }
+        return addOperands(phi);
+    }
+
+    private void newPhis(int capacity) {
+        phiNode = new int[capacity];
+        phiBlock = new int[capacity];
+        phiVar = new int[capacity];
+        phiHint = new Type[capacity];
+        phiForward = new int[capacity];
+        phiNext = new int[capacity];
+        phiUsers = new int[capacity];
+        userPhi = new int[capacity];
+        userNext = new int[capacity];
+        typing = new BitSet();
+    }
+
+    private int newPhi(int b, int v, Type hint) {
+        if (numPhis == phiNode.length) {
+            int n = numPhis * 2;
+            int[] a;
+            a = new int[n]; System.arraycopy(phiNode, 0, a, 0, numPhis);    phiNode = a;
+            a = new int[n]; System.arraycopy(phiBlock, 0, a, 0, numPhis);   phiBlock = a;
+            a = new int[n]; System.arraycopy(phiVar, 0, a, 0, numPhis);     phiVar = a;
+            a = new int[n]; System.arraycopy(phiForward, 0, a, 0, numPhis); phiForward = a;
+            a = new int[n]; System.arraycopy(phiNext, 0, a, 0, numPhis);    phiNext = a;
+            a = new int[n]; System.arraycopy(phiUsers, 0, a, 0, numPhis);   phiUsers = a;
+            Type[] h = new Type[n]; System.arraycopy(phiHint, 0, h, 0, numPhis); phiHint = h;
+        }
+        int n = numPhis++;
+        int id = newNode(NODE_PHI, null, null, n);
+        phiNode[n] = id;
+        phiBlock[n] = b;
+        phiVar[n] = v;
+        phiHint[n] = hint;
+        phiForward[n] = -1;
+        phiNext[n] = -1;
+        phiUsers[n] = -1;
+        return id;
+    }
+
+    /** Records that <i>phi</i> is an input of <i>user</i> */
+    private void addUser(int phi, int user) {
+        if (numUsers == userPhi.length) {
+            int[] a;
+            a = new int[numUsers * 2]; System.arraycopy(userPhi, 0, a, 0, numUsers);  userPhi = a;
+            a = new int[numUsers * 2]; System.arraycopy(userNext, 0, a, 0, numUsers); userNext = a;
+        }
+        userPhi[numUsers] = user;
+        userNext[numUsers] = phiUsers[aux[phi]];
+        phiUsers[aux[phi]] = numUsers++;
+    }
+
+    private int addOperands(int phi) {
+        int n = aux[phi], b = phiBlock[n], v = phiVar[n];
+        // the number of inputs is known up front, so they all go in one list in the pool
+        int count = b == 0 ? 1 : 0;
+        for(int k=0; k<cfg.numPredecessors(b); k++) {
+            int p = cfg.predecessor(b, k);
+            if (!cfg.isReachable(p)) continue;
+            count++;
+            if (exceptional(b, k)) count += numDefs(p, v);
+        }
+        first[phi] = reserve(count);
+        if (b == 0) addInput(phi, v < maxLocals ? initial[v] : UNDEFINED_NODE);
+        for(int k=0; k<cfg.numPredecessors(b); k++) {
+            int p = cfg.predecessor(b, k);
+            if (!cfg.isReachable(p)) continue;
+            if (!exceptional(b, k)) {
+                addInput(phi, readExit(p, v, phiHint[n]));
+                continue;
+            }
+            // the exception could have been thrown anywhere in p
+            addInput(phi, readEntry(p, v, phiHint[n]));
+            for(int i=firstOp[p]; i<endOp[p]; i++)
+                if (kinds[ops[i]] == NODE_DEF && aux[ops[i]] == v) addInput(phi, operand(ops[i], 0));
+        }
+        // only now that the Phi has all its inputs may it be looked at again when one of them is replaced
+        for(int i=0; i<count; i++) {
+            int e = resolve(operand(phi, i));
+            if (e != phi && kinds[e] == NODE_PHI) addUser(e, phi);
+        }
+        int ret = removeTrivial(phi);
+        if (ret == phi && phiHint[n] == null) phiHint[n] = typeOf(phi);
+        return ret;
+    }
+
+    int numDefs(int b, int v) {
+        int ret = 0;
+        for(int i=firstOp[b]; i<endOp[b]; i++) if (kinds[ops[i]] == NODE_DEF && aux[ops[i]] == v) ret++;
+        return ret;
+    }
+
+    private void addInput(int phi, int e) {
+        int at = first[phi];
+        pool[at + 1 + pool[at]++] = resolve(e);
+    }
+
+    /** Replaces <i>phi</i> with the one value it merges, if that's all it does */
+    private int removeTrivial(int phi) {
+        int same = -1;
+        for(int i=0; i<numOperands(phi); i++) {
+            int e = resolve(operand(phi, i));
+            if (e == same || e == phi || e == UNDEFINED_NODE) continue;
+            if (same != -1) return phi;
+            same = e;
+        }
+        int n = aux[phi];
+        phiForward[n] = same == -1 ? UNDEFINED_NODE : same;
+        for(int u = phiUsers[n]; u != -1; u = userNext[u]) {
+            int user = userPhi[u];
+            if (user != phi && phiForward[aux[user]] == -1) removeTrivial(user);
+        }
+        phiUsers[n] = -1;
+        return resolve(phi);
+    }
+
+    private void fill(int b) {
+        block = b;
+        firstOp[b] = numOps;
+        numTouched = 0;
+        if (b == 0) {
+            sp = 0;
+        } else if (isHandler(b)) {
+            sp = 0;
+            push(newNode(NODE_CATCH, catchType(b), null, b));
+        } else {
+            sp = -1;
+            for(int k=0; k<cfg.numPredecessors(b) && sp == -1; k++) {
+                int p = cfg.predecessor(b, k);
+                if (!filled[p]) continue;
+                sp = exitDepth[p];
+                // the instruction after a JSR doesn't see the return address
+                int last = cfg.blockEnd(p) - 1;
+                if ((get(last) == JSR || get(last) == JSR_W) && getIntArg(last) != cfg.blockStart(b)) sp--;
+            }
+            if (sp == -1) throw new IllegalStateException("block " + b + " is reached before any of its predecessors");
+        }
+        for(pc=cfg.blockStart(b); pc<cfg.blockEnd(b); pc++) {
+            int o = addOp(get(pc), peekArg(pc));
+            if (o != -1) record(o);
+        }
+        endOp[b] = numOps;
+        for(int i=0; i<numTouched; i++) {
+            int v = touched[i];
+            if (v < maxLocals + sp) out.put(key(b, v), cur[v]);
+            cur[v] = -1;
+        }
+        exitDepth[b] = sp;
+        filled[b] = true;
+    }
+
+    private Type.Class catchType(int b) {
+        Type.Class t = null;
+        for(int i=0; i<exnTable.size(); i++) {
+            ExnTableEnt e = (ExnTableEnt) exnTable.elementAt(i);
+            if (cfg.blockOf(e.handler) != b) continue;
+            Type.Class et = e.type == null ? THROWABLE : e.type;
+            t = t == null || t == et ? et : THROWABLE;
+        }
+        return t == null ? THROWABLE : t;
+    }
+
+    private void record(int o) {
+        if (numOps == ops.length) {
+            int[] newops = new int[ops.length * 2];
+            int[] newofs = new int[ops.length * 2];
+            System.arraycopy(ops, 0, newops, 0, numOps);
+            System.arraycopy(ofs, 0, newofs, 0, numOps);
+            ops = newops;
+            ofs = newofs;
+        }
+        ops[numOps] = o;
+        ofs[numOps++] = pc;
+    }
+
+    /** Drops everything that was only needed to build the SSA form, along with the Phis that were replaced and the
+        nodes nothing refers to, and renumbers the rest */
+    private void release() {
+        // from here on nothing refers to a replaced Phi
+        for(int id=0; id<numNodes; id++)
+            for(int i=0; i<numOperands(id); i++) pool[first[id]+1+i] = resolve(operand(id, i));
+        for(int i=0; i<numOps; i++) ops[i] = resolve(ops[i]);
+
+        // keep what the ops and the remaining Phis use
+        BitSet live = new BitSet(numNodes);
+        int[] stack = new int[numNodes];
+        int top = 0;
+        live.set(UNDEFINED_NODE);
+        live.set(VOID_NODE);
+        for(int i=0; i<numOps; i++) if (!live.get(ops[i])) { live.set(ops[i]); stack[top++] = ops[i]; }
+        for(int n=0; n<numPhis; n++)
+            if (phiForward[n] == -1 && !live.get(phiNode[n])) { live.set(phiNode[n]); stack[top++] = phiNode[n]; }
+        int liveOperands = 0;
+        while(top > 0) {
+            int id = stack[--top];
+            if (numOperands(id) > 0) liveOperands += numOperands(id) + 1;
+            for(int i=0; i<numOperands(id); i++) {
+                int e = operand(id, i);
+                if (!live.get(e)) { live.set(e); stack[top++] = e; }
+            }
+        }
+
+        int[] map = new int[numNodes];
+        int count = live.cardinality();
+        byte[] newkinds = new byte[count];
+        int[] newfirst = new int[count];
+        Type[] newtypes = new Type[count];
+        Object[] newdata = new Object[count];
+        int[] newaux = new int[count];
+        int[] newpool = new int[liveOperands + 1];
+        int newPoolSize = 1;
+        int c = 0;
+        for(int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id+1)) {
+            map[id] = c;
+            newkinds[c] = kinds[id];
+            newtypes[c] = types[id];
+            newdata[c] = data[id];
+            newaux[c] = aux[id];
+            int n = numOperands(id);
+            if (n > 0) {
+                newfirst[c] = newPoolSize;
+                System.arraycopy(pool, first[id], newpool, newPoolSize, n + 1);
+                newPoolSize += n + 1;
+            }
+            c++;
+        }
+        for(int i=1; i<newPoolSize; ) {
+            int n = newpool[i];
+            for(int j=i+1; j<=i+n; j++) newpool[j] = map[newpool[j]];
+            i += n + 1;
+        }
+        int p = 0;
+        for(int n=0; n<numPhis; n++) {
+            if (phiForward[n] != -1) continue;
+            int id = map[phiNode[n]];
+            newaux[id] = p;
+            phiNode[p] = id;
+            phiBlock[p] = phiBlock[n];
+            phiVar[p] = phiVar[n];
+            p++;
+        }
+        numPhis = p;
+        phiNode = trim(phiNode, p);
+        phiBlock = trim(phiBlock, p);
+        phiVar = trim(phiVar, p);
+        kinds = newkinds;
+        first = newfirst;
+        types = newtypes;
+        data = newdata;
+        aux = newaux;
+        numNodes = count;
+        pool = newpool;
+        poolSize = newPoolSize;
+        ops = trim(ops, numOps);
+        ofs = trim(ofs, numOps);
+        for(int i=0; i<numOps; i++) ops[i] = map[ops[i]];
+
+        out = entry = null;
+        cur = initial = null;
+        touched = exitDepth = incomplete = chain = null;
+        sealed = filled = null;
+        phiHint = null;
+        phiForward = phiNext = phiUsers = userPhi = userNext = null;
+        typing = null;
+    }
+
+    private static int[] trim(int[] a, int n) {
+        if (a.length == n) return a;
+        int[] ret = new int[n];
+        System.arraycopy(a, 0, ret, 0, n);
+        return ret;
+    }
+
+    // Stack //////////////////////////////////////////////////////////////////////////////
+
+    /** Pushes <i>e</i>, which takes up two slots if it is a long or a double */
+    private void push(int e) {
+        Type t = typeOf(e);
+        if (t == Type.VOID) throw new IllegalArgumentException("can't push a void");
+        push(e, t == Type.LONG || t == Type.DOUBLE);
+    }
+    private void push(int e, boolean wide) {
+        write(maxLocals + sp++, e);
+        if (wide) write(maxLocals + sp++, UNDEFINED_NODE);
+    }
+    /** Pops a single slot */
+    private int pop() {
+        if (sp == 0) throw new IllegalStateException("stack underflow");
+        return read(maxLocals + --sp, null);
+    }
+    /** Pops a value of type <i>t</i> */
+    private int pop(Type t) {
+        if (t == Type.LONG || t == Type.DOUBLE) pop();
+        return pop();
+    }
+    /** Duplicates the top <i>n</i> slots below the <i>depth</i> slots under them */
+    private void dup(int n, int depth) {
+        int[] top = new int[n + depth];
+        for(int i=top.length-1; i>=0; i--) top[i] = pop();
+        for(int i=depth; i<top.length; i++) push(top[i], false);
+        for(int i=0; i<top.length; i++) push(top[i], false);
+    }
+
+    private int load(int v, Type t) {
+        int e = read(v, t);
+        push(e, t == Type.LONG || t == Type.DOUBLE);
+        return e;
+    }
+    private void store(int v, Type t) {
+        int e = pop(t);
+        write(v, e);
+        if (t == Type.LONG || t == Type.DOUBLE) write(v+1, UNDEFINED_NODE);
+        // a handler merges every value a local has in the blocks it covers
+        if (cfg.numExnSuccessors(block) > 0) record(newNode(NODE_DEF, null, null, v, e));
+    }
+
+    private int seqPush(int e) {
+        push(e);
+        return e;
+    }
 
     // SSA-node classes /////////////////////////////////////////////////////////////////////////////////////////
 
-    public final Expr VOID_EXPR = new Expr() {
-        public Type getType() { return Type.VOID; }
+    private static final Type.Class THROWABLE = Type.Class.instance("java.lang.Throwable");
+    private static final Type.Class CLASS = Type.Class.instance("java.lang.Class");
+
+    /** The type <i>t</i> has on the stack (int for boolean, byte, char and short) */
+    static Type kind(Type t) {
+        return t == Type.BOOLEAN || t == Type.BYTE || t == Type.CHAR || t == Type.SHORT ? Type.INT : t;
+    }
+
+    /** passed to the constructors that make a view of an existing node rather than add one */
+    private static final class View { }
+    private static final View VIEW = new View();
+
+    public final Expr VOID_EXPR = new Expr(VOID_NODE) { };
+
+    /** the value of a local before it is set, and of the second slot of a long or double */
+    public final Expr UNDEFINED = new Expr(UNDEFINED_NODE) {
+        public String _toString() { return "undefined"; }
     };
-    
+
     /** an purely imperative operation which does not generate data */
     public abstract class Op {
         //public abstract Op[] predecessors();  // not implemented yet
         //public abstract Op[] successors();    // not implemented yet
+
+        /** the node this is a view of */
+        public final int id;
+        Op(int id) { this.id = id; }
+
+        public int getNumOperands() { return numOperands(id); }
+        public Expr getOperand(int i) { return expr(operand(id, i)); }
+
         public String toString() { return name(); }
         String name() {
             String name = this.getClass().getName();
@@ -111,39 +895,44 @@ public class JSSA extends MethodGen implements CGConst {
             if (name.indexOf('.') != -1) name = name.substring(name.lastIndexOf('.')+1);
             return name;
         }
+        private JSSA jssa() { return JSSA.this; }
+        public boolean equals(Object o) {
+            return o != null && o.getClass() == getClass() && ((Op)o).id == id && ((Op)o).jssa() == JSSA.this;
+        }
+        public int hashCode() { return id; }
     }
-    
-    /** A sequence point. expr is evaluated for side effects at this point, this does not generate data 
+
+    /** A sequence point. expr is evaluated for side effects at this point, this does not generate data
         Expressions that haven't been evaluated with Seq are evaluated when they are first encountered
       */
     public class Seq extends Op {
         private final Expr expr;
         public String toString() { return expr.toString(); }
-        public Seq(Expr expr) { this.expr = expr; }
+        public Seq(Expr expr) { super(expr.id); this.expr = expr; }
+        public int getNumOperands() { return 1; }
+        public Expr getOperand(int i) { if (i != 0) throw new IndexOutOfBoundsException(); return expr; }
+    }
+
+    /** Local <i>var</i> is set to <i>e</i> in a block covered by an exception handler. Only recorded there,
+        since the handler merges every value the local has in the block */
+    public class Def extends Op {
+        public final int var;
+        public Def(int var, Expr e) { this(VIEW, newNode(NODE_DEF, null, null, var, e.id)); }
+        Def(View v, int id) { super(id); var = aux[id]; }
+        public String toString() { return "local" + var + " = " + getOperand(0); }
     }
-    
+
     /** an operation which generates data */
     public abstract class Expr extends Op {
         //public abstract Expr[] contributors();  // not implemented yet
         //public abstract Expr[] dependents();    // not implemented yet
+        Expr(int id) { super(id); }
 
         /** every JSSA.Expr either remembers its type _OR_ knows how to figure it out (the latter is preferred to eliminate
          *  redundant information that could possibly "disagree" with itself -- this happened a LOT in Soot) */
-        public abstract Type getType();
+        public Type getType() { return typeOf(id); }
         public String _toString() { return super.toString(); }
-        public String toString() { return _toString(); } /*
-            String s = (String)bindingMap.get(this);
-            if (s != null) return s;
-            String prefix;
-            if (getType() == Type.VOID) return _toString();
-            else if (getType() == Type.DOUBLE || getType() == Type.FLOAT) prefix = "f";
-            else if (getType().isPrimitive()) prefix = "i";
-            else if (getType().isArray()) prefix = "a";
-            else prefix = "o";
-            s = prefix + (nextVar++);
-            bindingMap.put(this,s);
-            return "(" + s + " = " + _toString() + ")";
-            }*/
+        public String toString() { return _toString(); }
     }
 
     /**
@@ -153,357 +942,417 @@ public class JSSA extends MethodGen implements CGConst {
      *  previous iteration of the loop or by some instruction before
      *  the loop (on the first iteration).
      *
-     *  Note that Phi's are *mutable*.  This means that when one Phi
-     *  holds a reference to another, updates to the referenced Phi
-     *  are "seen" by the other Phi.  This prevents us from having to
-     *  repeat loops to propagate the Phis.
+     *  Phis only exist at the start of a block. There is one input
+     *  per predecessor (and one for the method's arguments at the
+     *  entry block), except that a predecessor which reaches the
+     *  block by an exception contributes every value the variable
+     *  has in it. A Phi that turns out to merge a single value is
+     *  replaced by it.
      */
     public class Phi extends Expr {
-        Expr[] inputs;
-        public Phi(Expr[] inputs) { this.inputs = inputs; }
-        public Phi() { this.inputs = new Expr[0]; }
-        public Phi(Expr e1) {
-            this.inputs = new Expr[1];
-            inputs[0] = e1;
-        }
-        public Phi(Expr e1, Expr e2) {
-            this.inputs = new Expr[2];
-            inputs[0] = e1;
-            inputs[1] = e2;
-        }
-        public void merge(Expr e) {
-            if (e==this) return;
-            for(int i=0; i<inputs.length; i++) if (inputs[i]==e) return;
-            Expr[] newinputs = new Expr[inputs.length + 1];
-            System.arraycopy(inputs, 0, newinputs, 0, inputs.length);
-            newinputs[newinputs.length-1] = e;
-            inputs = newinputs;
+        /** the block this Phi is at the start of */
+        public final int block;
+        /** the variable it merges: a local, or stack slot var-maxLocals */
+        public final int var;
+        Phi(View v, int id) { super(id); block = phiBlock[aux[id]]; var = phiVar[aux[id]]; }
+        public int getNumInputs() { return getNumOperands(); }
+        public Expr getInput(int i) { return getOperand(i); }
+        public String toString() { return "phi" + aux[id]; }
+        String definition() {
+            StringBuffer ret = new StringBuffer("phi" + aux[id] + " = {{ ");
+            for(int i=0; i<getNumInputs(); i++) ret.append(getInput(i)).append(" ");
+            return ret.append("}}").toString();
         }
-        public String toString() {
-            if (inputs.length == 1) return inputs[0].toString();
-            StringBuffer ret = new StringBuffer();
-            int count = 0;
-            for(int i=0; i<inputs.length; i++) {
-                String s = inputs[i].toString().trim();
-                if (s.length() == 0) continue;
-                count++;
-                ret.append(s);
-                ret.append(" ");
-            }
-            if (count == 0) return "";
-            if (count == 1) return ret.toString().trim();
-            return "{{ " + ret.toString() + "}}";
-            //return "{"+ret+"}";
-        }
-        public Type getType() {
-            if (inputs.length == 0) return null;
-            // sanity check
-            Type t = inputs[0].getType();
-
-            // FIXME: actually this should check type-unifiability... fe, the "type of null" unifies with any Type.Ref
-            for(int i=1; i<inputs.length; i++) {
-                if (t==null) { t = inputs[i].getType(); continue; }
-                if (inputs[i].getType() == null) continue;
-                if (inputs[i].getType() != t)
-                    throw new Error("Phi node with disagreeing types: " + t + " " + inputs[i].getType() +"\n  Crisis!");
-            }
-            return t;
+    }
+
+    private Type phiType(int phi) {
+        int n = aux[phi];
+        if (typePhase == TYPES_SETTLED) return types[phi];
+        if (phiForward[n] != -1) return typeOf(resolve(phi));
+        if (typePhase == TYPES_SETTLING) return types[phi];
+        if (phiHint[n] != null) return phiHint[n];
+        // a stack slot, while the SSA form is being built: go by the inputs there are so far. A loop can
+        // make a Phi (indirectly) an input of itself
+        if (typing.get(n)) return null;
+        typing.set(n);
+        Type t = null;
+        try {
+            for(int i=0; i<numOperands(phi); i++) t = merge(t, typeOf(operand(phi, i)));
+        } finally {
+            typing.clear(n);
         }
+        return t;
+    }
+
+    /** Returns the type a value of type <i>t1</i> or <i>t2</i> has (either may be null if it isn't known) */
+    private static Type merge(Type t1, Type t2) {
+        if (t1 == null || t1 == Type.NULL) return t2 == null ? t1 : t2;
+        if (t2 == null || t2 == Type.NULL || t2 == t1) return t1;
+        if (t1.isRef() && t2.isRef()) return Type.OBJECT;
+        // if they disagree the bytecode never uses the value
+        return kind(t1) == kind(t2) ? kind(t1) : t1;
     }
 
-    public Phi phi(Expr e) { return e instanceof Phi ? ((Phi)e) : new Phi(e); }
+    /** Gives every Phi the type of the values it merges, by iterating until nothing changes. Until this is done
+        a Phi's type is only a guess made from the instruction that first read it, which it keeps if the values it
+        merges don't tell */
+    private void settleTypes() {
+        typePhase = TYPES_SETTLING;
+        for(boolean changed = true; changed; ) {
+            changed = false;
+            for(int n=0; n<numPhis; n++) {
+                if (phiForward[n] != -1) continue;
+                int phi = phiNode[n];
+                Type t = types[phi];
+                for(int j=0; j<numOperands(phi); j++) t = merge(t, typeOf(operand(phi, j)));
+                if (t != types[phi]) { types[phi] = t; changed = true; }
+            }
+        }
+        for(int n=0; n<numPhis; n++) if (types[phiNode[n]] == null) types[phiNode[n]] = phiHint[n];
+        typePhase = TYPES_SETTLED;
+    }
 
     public class Argument extends Expr {
         public final String name;
         public final Type t;
-        public Argument(String name, Type t) { this.name = name; this.t = t; }
+        public Argument(String name, Type t) { this(VIEW, newNode(NODE_ARGUMENT, t, name, -1)); }
+        Argument(View v, int id) { super(id); name = (String) data[id]; t = types[id]; }
         public String _toString() { return name; }
-        public Type getType() { return t; }
     }
-    
+
+    /** the exception caught by a handler */
+    public class Catch extends Expr {
+        public final Type.Class t;
+        public Catch(Type.Class t) { this(VIEW, newNode(NODE_CATCH, t, null, -1)); }
+        Catch(View v, int id) { super(id); t = (Type.Class) types[id]; }
+        public String _toString() { return "catch(" + t + ")"; }
+    }
+
 
     // Unary Operations //////////////////////////////////////////////////////////////////////////////
-    
+
     public class Not extends Expr {
-        public final Expr e;
-        public Not(Expr e) {
-            if (e.getType() != Type.BOOLEAN) throw new IllegalArgumentException("not needs a boolean expression");
-            this.e = e;
-        }
-        public Type getType() { return Type.BOOLEAN; }
-        public String _toString() { return "!(" + e + ")"; }
+        public Not(Expr e) { this(VIEW, not(e.id)); }
+        Not(View v, int id) { super(id); }
+        public String _toString() { return "!(" + getOperand(0) + ")"; }
+    }
+    private int not(int e) {
+        if (typeOf(e) != Type.BOOLEAN) throw new IllegalArgumentException("not needs a boolean expression");
+        return newNode(NODE_NOT, Type.BOOLEAN, null, 0, e);
     }
-    
+
     public class Neg extends Expr {
-        public final Expr e;
-        public Neg(Expr e) {
-            if (!e.getType().isPrimitive()) throw new IllegalArgumentException("can only negate a primitive");
-            this.e = e;
-        }
-        public Type getType() { return e.getType(); }
-        public String _toString() { return "- (" + e + ")"; }
+        public Neg(Expr e) { this(VIEW, neg(e.id)); }
+        Neg(View v, int id) { super(id); }
+        public String _toString() { return "- (" + getOperand(0) + ")"; }
+    }
+    private int neg(int e) {
+        if (typeOf(e) != null && !typeOf(e).isPrimitive()) throw new IllegalArgumentException("can only negate a primitive");
+        return newNode(NODE_NEG, null, null, 0, e);
     }
 
-    
+
     // Binary Operations //////////////////////////////////////////////////////////////////////////////
 
     public abstract class BinExpr extends Expr {
-        public final Expr e1;
-        public final Expr e2;
-        private final String show;
-        public BinExpr(Expr e1, Expr e2, String show) { this.e1 = e1; this.e2 = e2; this.show = show; }
+        BinExpr(int id) { super(id); }
         public String _toString() {
             // FEATURE: should we be doing some precedence stuff here? probably not worth it for debugging output
-            return "(" + e1 + show + e2 + ")";
+            return "(" + getOperand(0) + SHOW[kinds[id]] + getOperand(1) + ")";
         }
     }
 
-    public class Comparison extends BinExpr {
-        public Comparison(Expr e1, Expr e2, String show) { super(e1, e2, show); }
-        public Type getType() { return Type.BOOLEAN; }
+    public abstract class Comparison extends BinExpr {
+        Comparison(int id) { super(id); }
     }
 
     public class Eq extends Comparison {
-        public Eq(Expr e1, Expr e2) {
-            super(e1, e2, "=="); 
-            if (e1.getType().isPrimitive() != e2.getType().isPrimitive())
-                throw new IllegalArgumentException("type mismatch: " + e1.getType() + " and " + e2.getType());
-            if (e1.getType().isPrimitive() && e1.getType() != e2.getType())
-                throw new IllegalArgumentException("type mismatch: " + e1.getType() + " and " + e2.getType());
-            // FEATURE: Check if we can compare these classes
-        }
+        public Eq(Expr e1, Expr e2) { this(VIEW, eq(e1.id, e2.id)); }
+        Eq(View v, int id) { super(id); }
+    }
+    private int eq(int e1, int e2) {
+        Type t1 = typeOf(e1), t2 = typeOf(e2);
+        if (t1 != null && t2 != null && (t1.isPrimitive() != t2.isPrimitive() || (t1.isPrimitive() && kind(t1) != kind(t2))))
+            throw new IllegalArgumentException("type mismatch: " + t1 + " and " + t2);
+        // FEATURE: Check if we can compare these classes
+        return newNode(NODE_EQ, Type.BOOLEAN, null, 0, e1, e2);
+    }
+
+    public abstract class PrimitiveComparison extends Comparison {
+        PrimitiveComparison(int id) { super(id); }
+    }
+    private int compare(byte kind, int e1, int e2) {
+        Type t1 = typeOf(e1), t2 = typeOf(e2);
+        if ((t1 != null && !t1.isPrimitive()) || (t1 != null && t2 != null && kind(t1) != kind(t2)))
+            throw new IllegalArgumentException("type mismatch");
+        return newNode(kind, Type.BOOLEAN, null, 0, e1, e2);
     }
-    
 
-    public class PrimitiveComparison extends Comparison {
-        public PrimitiveComparison(Expr e1, Expr e2, String show) {
-            super(e1, e2, show);
-            if (!e1.getType().isPrimitive() || e1.getType() != e2.getType()) throw new IllegalArgumentException("type mismatch");
+    public class Gt extends PrimitiveComparison {
+        public Gt(Expr e1, Expr e2) { this(VIEW, compare(NODE_GT, e1.id, e2.id)); }
+        Gt(View v, int id) { super(id); }
+    }
+    public class Lt extends PrimitiveComparison {
+        public Lt(Expr e1, Expr e2) { this(VIEW, compare(NODE_LT, e1.id, e2.id)); }
+        Lt(View v, int id) { super(id); }
+    }
+    public class Ge extends PrimitiveComparison {
+        public Ge(Expr e1, Expr e2) { this(VIEW, compare(NODE_GE, e1.id, e2.id)); }
+        Ge(View v, int id) { super(id); }
+    }
+    public class Le extends PrimitiveComparison {
+        public Le(Expr e1, Expr e2) { this(VIEW, compare(NODE_LE, e1.id, e2.id)); }
+        Le(View v, int id) { super(id); }
+    }
+
+    /** LCMP, FCMPL, FCMPG, DCMPL and DCMPG: -1, 0 or 1 as e1 is less than, equal to or greater than e2, and
+        <i>nan</i> if either is NaN */
+    public class Cmp extends BinExpr {
+        public final int nan;
+        public Cmp(Expr e1, Expr e2, int nan) { this(VIEW, newNode(NODE_CMP, Type.INT, null, nan, e1.id, e2.id)); }
+        Cmp(View v, int id) { super(id); nan = aux[id]; }
+        public String _toString() {
+            return "(" + getOperand(0) + (nan < 0 ? " cmpl " : nan > 0 ? " cmpg " : " cmp ") + getOperand(1) + ")";
         }
     }
-    
-    public class Gt extends PrimitiveComparison { public Gt(Expr e1, Expr e2) { super(e1, e2, ">"); } }
-    public class Lt extends PrimitiveComparison { public Lt(Expr e1, Expr e2) { super(e1, e2, "<"); } }
-    public class Ge extends PrimitiveComparison { public Ge(Expr e1, Expr e2) { super(e1, e2, ">="); } }
-    public class Le extends PrimitiveComparison { public Le(Expr e1, Expr e2) { super(e1, e2, "<="); } }
 
-    
+
 
     // Math Operations //////////////////////////////////////////////////////////////////////////////
 
-    public class BinMath extends BinExpr {
-        public BinMath(Expr e1, Expr e2, String show) {
-            super(e2, e1, show); 
-            if (e1.getType() != null && e2.getType() != null && e1.getType() != e2.getType())
-                throw new IllegalArgumentException("types disagree");
-        }
-        public Type getType() { return e1.getType(); }
-    }
-    
-    public class Add  extends BinMath { public  Add(Expr e, Expr e2) { super(e, e2, "+"); } }
-    public class Sub  extends BinMath { public  Sub(Expr e, Expr e2) { super(e, e2, "-"); } }
-    public class Mul  extends BinMath { public  Mul(Expr e, Expr e2) { super(e, e2, "*"); } }
-    public class Rem  extends BinMath { public  Rem(Expr e, Expr e2) { super(e, e2, "%"); } }
-    public class Div  extends BinMath { public  Div(Expr e, Expr e2) { super(e, e2, "/"); } }
-    public class And  extends BinMath { public  And(Expr e, Expr e2) { super(e, e2, "&"); } }
-    public class Or   extends BinMath { public   Or(Expr e, Expr e2) { super(e, e2, "|"); } }
-    public class Xor  extends BinMath { public  Xor(Expr e, Expr e2) { super(e, e2, "^"); } }
-    
-    public class BitShiftExpr extends BinExpr {
-        public BitShiftExpr(Expr e1, Expr e2, String show) {
-            super(e1,e2,show);
-            Type t = e1.getType();
-            if (t != Type.INT && t != Type.LONG) throw new IllegalArgumentException("type mismatch");
-            if (e2.getType() != Type.INT) throw new IllegalArgumentException("type mismatch");
-        }
-        public Type getType() { return e1.getType(); }
-    }
-    public class Shl  extends BitShiftExpr { public  Shl(Expr e, Expr e2) { super(e, e2, "<<"); } }
-    public class Shr  extends BitShiftExpr { public  Shr(Expr e, Expr e2) { super(e, e2, ">>"); } }
-    public class Ushr extends BitShiftExpr { public Ushr(Expr e, Expr e2) { super(e, e2, ">>>"); } }
+    public abstract class BinMath extends BinExpr {
+        BinMath(int id) { super(id); }
+    }
+    private int math(byte kind, int e1, int e2) {
+        if (typeOf(e1) != null && typeOf(e2) != null && kind(typeOf(e1)) != kind(typeOf(e2)))
+            throw new IllegalArgumentException("types disagree");
+        return newNode(kind, null, null, 0, e1, e2);
+    }
+
+    public class Add extends BinMath { public Add(Expr e, Expr e2) { this(VIEW, math(NODE_ADD, e.id, e2.id)); } Add(View v, int id) { super(id); } }
+    public class Sub extends BinMath { public Sub(Expr e, Expr e2) { this(VIEW, math(NODE_SUB, e.id, e2.id)); } Sub(View v, int id) { super(id); } }
+    public class Mul extends BinMath { public Mul(Expr e, Expr e2) { this(VIEW, math(NODE_MUL, e.id, e2.id)); } Mul(View v, int id) { super(id); } }
+    public class Rem extends BinMath { public Rem(Expr e, Expr e2) { this(VIEW, math(NODE_REM, e.id, e2.id)); } Rem(View v, int id) { super(id); } }
+    public class Div extends BinMath { public Div(Expr e, Expr e2) { this(VIEW, math(NODE_DIV, e.id, e2.id)); } Div(View v, int id) { super(id); } }
+    public class And extends BinMath { public And(Expr e, Expr e2) { this(VIEW, math(NODE_AND, e.id, e2.id)); } And(View v, int id) { super(id); } }
+    public class Or  extends BinMath { public  Or(Expr e, Expr e2) { this(VIEW, math(NODE_OR,  e.id, e2.id)); }  Or(View v, int id) { super(id); } }
+    public class Xor extends BinMath { public Xor(Expr e, Expr e2) { this(VIEW, math(NODE_XOR, e.id, e2.id)); } Xor(View v, int id) { super(id); } }
+
+    /** e1 shifted by e2 */
+    public abstract class BitShiftExpr extends BinExpr {
+        BitShiftExpr(int id) { super(id); }
+    }
+    private int shift(byte kind, int e1, int e2) {
+        Type t = kind(typeOf(e1));
+        if (t != null && t != Type.INT && t != Type.LONG) throw new IllegalArgumentException("type mismatch");
+        if (typeOf(e2) != null && kind(typeOf(e2)) != Type.INT) throw new IllegalArgumentException("type mismatch");
+        return newNode(kind, null, null, 0, e1, e2);
+    }
+    public class Shl  extends BitShiftExpr { public  Shl(Expr e, Expr e2) { this(VIEW, shift(NODE_SHL,  e.id, e2.id)); }  Shl(View v, int id) { super(id); } }
+    public class Shr  extends BitShiftExpr { public  Shr(Expr e, Expr e2) { this(VIEW, shift(NODE_SHR,  e.id, e2.id)); }  Shr(View v, int id) { super(id); } }
+    public class Ushr extends BitShiftExpr { public Ushr(Expr e, Expr e2) { this(VIEW, shift(NODE_USHR, e.id, e2.id)); } Ushr(View v, int id) { super(id); } }
 
 
     // Other operations //////////////////////////////////////////////////////////////////////////////
 
     public class Cast extends Expr {
-        final Expr e;
-        final Type t;
-        public Cast(Expr e, Type t) {
-            if (e.getType().isRef() != t.isRef()) throw new IllegalArgumentException("invalid cast");
-            // FEATURE: Check that one is a subclass of the other if it is a ref
-            this.e = e;
-            this.t = t; 
-        }
-        public Type getType() { return t; }
+        public Cast(Expr e, Type t) { this(VIEW, cast(e.id, t)); }
+        Cast(View v, int id) { super(id); }
+        public String _toString() { return "((" + getType() + ")" + getOperand(0) + ")"; }
+    }
+    private int cast(int e, Type t) {
+        Type et = typeOf(e);
+        if (et != null && et != Type.NULL && et.isRef() != t.isRef()) throw new IllegalArgumentException("invalid cast");
+        // FEATURE: Check that one is a subclass of the other if it is a ref
+        return newNode(NODE_CAST, t, null, 0, e);
     }
 
     public class InstanceOf extends Expr {
-        final Expr e;
-        final Type.Ref t;
-        public InstanceOf(Expr e, Type.Ref t) {
-            if (!e.getType().isRef()) throw new IllegalArgumentException("can't do an instanceof check on a non-ref");
-            this.e = e; 
-            this.t = t; 
-        }
-        public Type getType() { return Type.BOOLEAN; }
-    }
-
-    public class Branch extends Op {
-        Expr destination = null;
-        public Branch(Expr destination) { this.destination = destination; }
-        public Branch(MethodGen.Switch s) { /* FIXME */ }
-        public Branch() { }
-        public void branchTo() { if (destination != null) branchTo(destination); }
-        private void branchTo(Expr e) {
-            if (e instanceof Phi) {
-                Phi phi = (Phi)e;
-                for(int i=0; i<phi.inputs.length; i++) branchTo(phi.inputs[i]);
-            } else if (e instanceof Label) {
-                JSSA.this.branchTo(((Label)e).pc);
-            } else {
-                throw new IllegalArgumentException("can't branch to a " + e.getClass());
-            }
-        }
+        public final Type.Ref t;
+        public InstanceOf(Expr e, Type.Ref t) { this(VIEW, instanceOf(e.id, t)); }
+        InstanceOf(View v, int id) { super(id); t = (Type.Ref) data[id]; }
+        public String _toString() { return getOperand(0) + " instanceof " + t; }
+    }
+    private int instanceOf(int e, Type.Ref t) {
+        Type et = typeOf(e);
+        if (et != null && et != Type.NULL && !et.isRef())
+            throw new IllegalArgumentException("can't do an instanceof check on a non-ref");
+        return newNode(NODE_INSTANCEOF, Type.BOOLEAN, t, 0, e);
+    }
+
+    /** an Op that ends a block; where it goes is up to the ControlFlowGraph */
+    public abstract class Branch extends Op {
+        Branch(int id) { super(id); }
     }
     public class Throw extends Branch {
-        public final Expr e;
-        public Throw(Expr e) {
-            if (!e.getType().isRef()) throw new IllegalArgumentException("can't throw a non ref");
-            // FEATURE: CHeck that it is a subclass of Throwable
-            this.e = e; 
-        }
+        public Throw(Expr e) { this(VIEW, athrow(e.id)); }
+        Throw(View v, int id) { super(id); }
+        public String toString() { return "throw " + getOperand(0); }
+    }
+    private int athrow(int e) {
+        if (typeOf(e) != null && !typeOf(e).isRef()) throw new IllegalArgumentException("can't throw a non ref");
+        // FEATURE: CHeck that it is a subclass of Throwable
+        return newNode(NODE_THROW, null, null, 0, e);
     }
     public class Return extends Branch {
-        final Expr e;
-        public Return() { this(VOID_EXPR); }
-        public Return(Expr e) {
-            this.e = e; 
-            if (Type.unify(method.getReturnType(),e.getType()) != method.getReturnType())
-               throw new IllegalArgumentException("type mismatch");
-        }
-        public String toString() { return e.getType() == Type.VOID ? "return" : ("return "+e.toString()); }
+        public Return() { this(VIEW, newNode(NODE_RETURN, null, null, 0)); }
+        public Return(Expr e) { this(VIEW, areturn(e.id)); }
+        Return(View v, int id) { super(id); }
+        public String toString() { return getNumOperands() == 0 ? "return" : "return " + getOperand(0); }
+    }
+    private int areturn(int e) {
+        Type rt = method.getReturnType(), t = typeOf(e);
+        if (t != null && t != Type.NULL && (rt.isPrimitive() ? kind(rt) != kind(t) : !t.isRef()))
+           throw new IllegalArgumentException("type mismatch");
+        return newNode(NODE_RETURN, null, null, 0, e);
     }
     public class Goto extends Branch {
-        public Goto(Expr destination) { super(destination); }
-        public String toString() { return "goto " + destination; }
+        public Goto(Label destination) { this(VIEW, newNode(NODE_GOTO, null, null, 0, destination.id)); }
+        Goto(View v, int id) { super(id); }
+        public String toString() { return "goto " + getOperand(0); }
     }
     public class RET extends Branch {
-        public RET(Expr destination) { super(destination); }
-        public String toString() { return "retsub [" + destination + "]"; }
+        public RET(Expr destination) { this(VIEW, newNode(NODE_RET, null, null, 0, destination.id)); }
+        RET(View v, int id) { super(id); }
+        public String toString() { return "retsub [" + getOperand(0) + "]"; }
     }
     public class JSR extends Branch {
-        public JSR(Expr destination) { super(destination); }
-        public String toString() { return "callsub " + destination; }
+        public JSR(Label destination) { this(VIEW, newNode(NODE_JSR, null, null, 0, destination.id)); }
+        JSR(View v, int id) { super(id); }
+        public String toString() { return "callsub " + getOperand(0); }
     }
     public class If extends Branch {
-        Expr condition = null;
-        public If(Expr condition, Expr destination) { super(destination); this.condition = condition; }
-        public String toString() { return "if (" + condition + ") goto " + destination; }
-        public void branchTo() {
-            if (condition != null) JSSA.this.branchTo(pc+1);
-            super.branchTo();
-        }
+        public If(Expr condition, Label destination) { this(VIEW, newNode(NODE_IF, null, null, 0, condition.id, destination.id)); }
+        If(View v, int id) { super(id); }
+        public String toString() { return "if (" + getOperand(0) + ") goto " + getOperand(1); }
+    }
+    /** TABLESWITCH and LOOKUPSWITCH */
+    public class Switch extends Branch {
+        public final MethodGen.Switch s;
+        public Switch(Expr e, MethodGen.Switch s) { this(VIEW, newNode(NODE_SWITCH, null, s, 0, e.id)); }
+        Switch(View v, int id) { super(id); s = (MethodGen.Switch) data[id]; }
+        public String toString() { return "switch (" + getOperand(0) + ")"; }
     }
 
     /** represents a "returnaddr" pushed onto the stack */
     public class Label extends Expr {
-        public int pc;
-        public Label(int i) { this.pc = i; }
-        public Type getType() { throw new Error("attempted to call getType() on a Label"); }
+        public final int pc;
+        // return addresses have no type the rest of the code could use
+        public Label(int i) { this(VIEW, newNode(NODE_LABEL, null, null, i)); }
+        Label(View v, int id) { super(id); pc = aux[id]; }
         public String toString() { return "<<label " + pc + ">>"; }
     }
 
     public class New extends Expr {
         public final Type.Class t;
-        public Type getType() { return t; }
-        public New(Type.Class t) { this.t = t; }
+        public New(Type.Class t) { this(VIEW, newNode(NODE_NEW, t, null, 0)); }
+        New(View v, int id) { super(id); t = (Type.Class) types[id]; }
         public String _toString() { return "new " + t + "()"; }
     }
-    
+
     public class NewArray extends Expr {
         public final Type.Array t;
-        public final Expr[] dims;
-        public NewArray(Type.Array t, Expr[] dims) { this.t = t; this.dims = dims; }
+        public NewArray(Type.Array t, Expr[] dims) { this(VIEW, newNode(NODE_NEWARRAY, t, null, 0, ids(dims))); }
         public NewArray(Type.Array t, Expr dim) { this(t,new Expr[]{dim}); }
-        public Type getType() { return t; }
+        NewArray(View v, int id) { super(id); t = (Type.Array) types[id]; }
         public String _toString() {
             Type base = t;
             int totalDims = 0;
             while(base.isArray()) {
                 totalDims++;
-                base = base.asArray().getElementType(); 
+                base = base.asArray().getElementType();
             }
             StringBuffer sb = new StringBuffer("new " + base);
             for(int i=0;i<totalDims;i++)
-                sb.append("[" + (i < dims.length ? dims[i].toString() : "") + "]");
+                sb.append("[" + (i < getNumOperands() ? getOperand(i).toString() : "") + "]");
             return sb.toString();
         }
     }
-    
-    /** GETFIELD and GETSTATIC */
+
+    private static int[] ids(Expr[] a) {
+        int[] ret = new int[a.length];
+        for(int i=0; i<a.length; i++) ret[i] = a[i].id;
+        return ret;
+    }
+
+    /** GETFIELD and GETSTATIC; the operand is the instance, if there is one */
     public class Get extends Expr {
-        final Type.Class.Field f;
-        final Expr e;
-        public Type getType() { return f.getType(); }
+        public final Type.Class.Field f;
         public Get(Type.Class.Field f) { this(f, null); }
-        public Get(Type.Class.Field f, Expr e) { this.f = f; this.e = e; }
+        public Get(Type.Class.Field f, Expr e) {
+            this(VIEW, e == null ? newNode(NODE_GET, f.getType(), f, 0) : newNode(NODE_GET, f.getType(), f, 0, e.id));
+        }
+        Get(View v, int id) { super(id); f = (Type.Class.Field) data[id]; }
         public String _toString() {
             return
-                (e!=null
-                 ? e+"."+f.name
+                (getNumOperands() > 0
+                 ? getOperand(0)+"."+f.name
                  : f.getDeclaringClass() == JSSA.this.method.getDeclaringClass()
                  ? f.name
                  : f.toString());
         }
     }
 
-    /** PUTFIELD and PUTSTATIC */
+    /** PUTFIELD and PUTSTATIC; the operands are the instance, if there is one, and the value */
     public class Put extends Op {
-        final Type.Class.Field f;
-        final Expr v;
-        final Expr e;
+        public final Type.Class.Field f;
         public Put(Type.Class.Field f, Expr v) { this(f, v, null); }
-        public Put(Type.Class.Field f, Expr v, Expr e) { this.f = f; this.v = v; this.e = e; }
+        public Put(Type.Class.Field f, Expr v, Expr e) {
+            this(VIEW, e == null ? newNode(NODE_PUT, null, f, 0, v.id) : newNode(NODE_PUT, null, f, 0, e.id, v.id));
+        }
+        Put(View v, int id) { super(id); f = (Type.Class.Field) data[id]; }
         public String toString() {
             return
-                (e!=null
-                 ? e+"."+f.name
+                (getNumOperands() > 1
+                 ? getOperand(0)+"."+f.name
                  : f.getDeclaringClass() == JSSA.this.method.getDeclaringClass()
                  ? f.name
-                 : f.toString()) + " = " + v;
+                 : f.toString()) + " = " + getOperand(getNumOperands()-1);
         }
     }
 
     public class ArrayPut extends Op {
-        final Expr e, i, v;
-        public ArrayPut(Expr v, Expr i, Expr e) { this.e = e; this.i = i; this.v = v; }
-        public String toString() { return e + "[" + i + "] := " + v; }
+        public ArrayPut(Expr e, Expr i, Expr v) { this(VIEW, newNode(NODE_ARRAYPUT, null, null, 0, e.id, i.id, v.id)); }
+        ArrayPut(View v, int id) { super(id); }
+        public String toString() { return getOperand(0) + "[" + getOperand(1) + "] := " + getOperand(2); }
     }
 
     public class ArrayGet extends Expr {
-        final Expr e, i;
-        public ArrayGet(Expr i, Expr e) { this.e = e; this.i = i; }
-        public Type getType() { return e.getType().asArray().getElementType(); }
-        public String _toString() { return e + "[" + i + "]"; }
+        /** @param t the type of the element as far as the instruction tells (Object for AALOAD, byte for BALOAD) */
+        public ArrayGet(Expr e, Expr i, Type t) { this(VIEW, newNode(NODE_ARRAYGET, t, null, 0, e.id, i.id)); }
+        ArrayGet(View v, int id) { super(id); }
+        public String _toString() { return getOperand(0) + "[" + getOperand(1) + "]"; }
     }
 
     public class ArrayLength extends Expr {
-        final Expr e;
-        public ArrayLength(Expr e) { this.e = e; }
-        public Type getType() { return Type.INT; }
+        public ArrayLength(Expr e) { this(VIEW, newNode(NODE_ARRAYLENGTH, Type.INT, null, 0, e.id)); }
+        ArrayLength(View v, int id) { super(id); }
+        public String _toString() { return getOperand(0) + ".length"; }
+    }
+
+    public class MonitorEnter extends Op {
+        public MonitorEnter(Expr e) { this(VIEW, newNode(NODE_MONITORENTER, null, null, 0, e.id)); }
+        MonitorEnter(View v, int id) { super(id); }
+        public String toString() { return "monitorenter " + getOperand(0); }
+    }
+    public class MonitorExit extends Op {
+        public MonitorExit(Expr e) { this(VIEW, newNode(NODE_MONITOREXIT, null, null, 0, e.id)); }
+        MonitorExit(View v, int id) { super(id); }
+        public String toString() { return "monitorexit " + getOperand(0); }
     }
 
+    /** the operands are the instance, if there is one, then the arguments */
     public abstract class Invoke extends Expr {
-        public final Expr[] arguments;
         public final Type.Class.Method method;
-        protected Invoke(Type.Class.Method m, Expr[] a) { this.arguments = a; this.method = m; } 
+        Invoke(int id) { super(id); method = (Type.Class.Method) data[id]; }
 
-        public Type getType() { return method.getReturnType(); }
+        public int getNumArgs() { return method.getNumArgs(); }
+        public Expr getArg(int i) { return getOperand(getNumOperands() - method.getNumArgs() + i); }
         protected void args(StringBuffer sb) {
             sb.append("(");
-            for(int i=0; i<arguments.length; i++) {
+            for(int i=0; i<getNumArgs(); i++) {
                 if (i>0) sb.append(", ");
-                sb.append(arguments[i]+"");
+                sb.append(getArg(i)+"");
             }
             sb.append(")");
         }
@@ -517,22 +1366,36 @@ public class JSSA extends MethodGen implements CGConst {
             return sb.toString();
         }
     }
-    public class InvokeStatic    extends Invoke  { public InvokeStatic(Type.Class.Method m, Expr[] a) { super(m,a); } }
-    public class InvokeSpecial   extends InvokeVirtual {
-        public InvokeSpecial(Type.Class.Method m, Expr[] a, Expr e) { super(m,a,e); }
+    private int invoke(byte kind, Type.Class.Method m, Expr[] a, Expr e) {
+        int[] operands = new int[a.length + (e == null ? 0 : 1)];
+        if (e != null) operands[0] = e.id;
+        for(int i=0; i<a.length; i++) operands[operands.length - a.length + i] = a[i].id;
+        return newNode(kind, m.getReturnType(), m, 0, operands);
+    }
+    public class InvokeStatic extends Invoke {
+        public InvokeStatic(Type.Class.Method m, Expr[] a) { this(VIEW, invoke(NODE_INVOKESTATIC, m, a, null)); }
+        InvokeStatic(View v, int id) { super(id); }
+    }
+    public class InvokeSpecial extends InvokeVirtual {
+        public InvokeSpecial(Type.Class.Method m, Expr[] a, Expr e) { this(VIEW, invoke(NODE_INVOKESPECIAL, m, a, e)); }
+        InvokeSpecial(View v, int id) { super(id); }
         public String _toString() { return _toString(method.name.equals("<init>")
                                                      ? method.getDeclaringClass().getName()
                                                      : method.name); }
     }
-    public class InvokeInterface extends InvokeVirtual{
-        public InvokeInterface(Type.Class.Method m, Expr[] a, Expr e) { super(m,a,e); } }
-    public class InvokeVirtual   extends Invoke  {
-        public final Expr instance;
-        public InvokeVirtual(Type.Class.Method m, Expr[] a, Expr e) { super(m, a); instance = e; }
+    public class InvokeInterface extends InvokeVirtual {
+        public InvokeInterface(Type.Class.Method m, Expr[] a, Expr e) { this(VIEW, invoke(NODE_INVOKEINTERFACE, m, a, e)); }
+        InvokeInterface(View v, int id) { super(id); }
+    }
+    public class InvokeVirtual extends Invoke {
+        public InvokeVirtual(Type.Class.Method m, Expr[] a, Expr e) { this(VIEW, invoke(NODE_INVOKEVIRTUAL, m, a, e)); }
+        InvokeVirtual(View v, int id) { super(id); }
+        InvokeVirtual(int id) { super(id); }
+        public Expr getInstance() { return getOperand(0); }
         public String _toString() { return _toString(method.name); }
         protected String _toString(String name) {
             StringBuffer sb = new StringBuffer();
-            sb.append(instance+".");
+            sb.append(getInstance()+".");
             sb.append(name);
             args(sb);
             return sb.toString();
@@ -540,29 +1403,43 @@ public class JSSA extends MethodGen implements CGConst {
     }
 
     public class Constant extends Expr {
-        private final Object o;
-        public Constant(int i) { this(new Integer(i)); }
-        public Constant(Object o) { this.o = o; }
-        public String toString() { return o == null ? "null" : o instanceof String ? "\"" + o + "\"" : o.toString(); }
-        public Type getType() {
-            if (o == null) return Type.NULL;
-            if (o instanceof Byte) return Type.BYTE;
-            if (o instanceof Short) return Type.SHORT;
-            if (o instanceof Character) return Type.CHAR;
-            if (o instanceof Boolean) return Type.BOOLEAN;
-            if (o instanceof Long) return Type.LONG;
-            if (o instanceof Double) return Type.DOUBLE;
-            if (o instanceof Float) return Type.FLOAT;
-            if (o instanceof Integer) return Type.INT;
-            if (o instanceof String) return Type.STRING;
-            throw new IllegalStateException("unknown constant type");
+        public Constant(int i) { this(Integer.valueOf(i)); }
+        public Constant(Object o) { this(VIEW, constant(o)); }
+        Constant(View v, int id) { super(id); }
+        public Object getValue() { return data[id]; }
+        public String toString() {
+            Object o = data[id];
+            return o == null ? "null" : o instanceof String ? "\"" + o + "\"" : o instanceof Type ? o + ".class" : o.toString();
         }
     }
+    private int constant(Object o) { return newNode(NODE_CONSTANT, constantType(o), o, 0); }
+    private static Type constantType(Object o) {
+        if (o == null) return Type.NULL;
+        else if (o instanceof Byte) return Type.BYTE;
+        else if (o instanceof Short) return Type.SHORT;
+        else if (o instanceof Character) return Type.CHAR;
+        else if (o instanceof Boolean) return Type.BOOLEAN;
+        else if (o instanceof Long) return Type.LONG;
+        else if (o instanceof Double) return Type.DOUBLE;
+        else if (o instanceof Float) return Type.FLOAT;
+        else if (o instanceof Integer) return Type.INT;
+        else if (o instanceof String) return Type.STRING;
+        else if (o instanceof Type) return CLASS;
+        else throw new IllegalStateException("unknown constant type");
+    }
+    private int constant(int i) { return constant(Integer.valueOf(i)); }
 
 
     // Implementation //////////////////////////////////////////////////////////////////////////////
 
-    private Object addOp(int op, Object arg) {
+    // the operand types of the math instructions, which come in groups of int, long, float and double
+    private static final Type[] MATH = { Type.INT, Type.LONG, Type.FLOAT, Type.DOUBLE };
+
+    private int label(int pc) { return newNode(NODE_LABEL, null, null, pc); }
+    private int branch(int condition, int target) { return newNode(NODE_IF, null, null, 0, condition, label(target)); }
+
+    /** Returns the op the instruction at pc amounts to, or -1 if it only moves values around */
+    private int addOp(int op, Object arg) {
         int i1 = 0;
         int i2 = 0;
         if (op==WIDE) {
@@ -572,222 +1449,349 @@ public class JSSA extends MethodGen implements CGConst {
             i1 = w.varNum;
             i2 = w.n;
         }
-        if (op==IINC) {
+        if (op==IINC && arg != null) {
             MethodGen.Pair p = (MethodGen.Pair)arg;
             arg = null;
             i1 = p.i1;
             i2 = p.i2;
         }
-        if (arg instanceof Number) i1 = ((Integer)arg).intValue();
-        Label label = (arg instanceof Label) ? (Label)arg : null;
+        if (arg instanceof Integer) i1 = ((Integer)arg).intValue();
         switch(op) {
 
-            case NOP: return null;
+            case NOP: return -1;
 
                 // Stack manipulations //////////////////////////////////////////////////////////////////////////////
 
-            case ACONST_NULL:                                                          push(new Constant(null)); return null;
-            case ICONST_M1:                                                            push(new Constant(-1));   return null;
-            case ICONST_0: case LCONST_0: case FCONST_0: case DCONST_0:                push(new Constant(0));    return null;
-            case ICONST_1: case LCONST_1: case FCONST_1: case DCONST_1:                push(new Constant(1));    return null;
-            case ICONST_2: case FCONST_2:                                              push(new Constant(2));    return null;
-            case ICONST_3:                                                             push(new Constant(3));    return null;
-            case ICONST_4:                                                             push(new Constant(4));    return null;
-            case ICONST_5:                                                             push(new Constant(5));    return null;
-            case ILOAD:    case LLOAD:    case FLOAD:    case DLOAD:    case ALOAD:    push(locals[pc][i1]);     return null;
-            case ILOAD_0:  case LLOAD_0:  case FLOAD_0:  case DLOAD_0:  case ALOAD_0:  push(locals[pc][0]);      return null;
-            case ILOAD_1:  case LLOAD_1:  case FLOAD_1:  case DLOAD_1:  case ALOAD_1:  push(locals[pc][1]);      return null;
-            case ALOAD_2:  case DLOAD_2:  case FLOAD_2:  case LLOAD_2:  case ILOAD_2:  push(locals[pc][2]);      return null;
-            case ILOAD_3:  case LLOAD_3:  case FLOAD_3:  case DLOAD_3:  case ALOAD_3:  push(locals[pc][3]);      return null;
+            case ACONST_NULL:                                                          push(constant(null)); return -1;
+            case ICONST_M1:                                                            push(constant(-1));   return -1;
+            case ICONST_0:                                                             push(constant(0));    return -1;
+            case ICONST_1:                                                             push(constant(1));    return -1;
+            case ICONST_2:                                                             push(constant(2));    return -1;
+            case ICONST_3:                                                             push(constant(3));    return -1;
+            case ICONST_4:                                                             push(constant(4));    return -1;
+            case ICONST_5:                                                             push(constant(5));    return -1;
+            case LCONST_0: case LCONST_1:           push(constant(Long.valueOf(op - LCONST_0)));             return -1;
+            case FCONST_0: case FCONST_1: case FCONST_2: push(constant(Float.valueOf(op - FCONST_0)));       return -1;
+            case DCONST_0: case DCONST_1:           push(constant(Double.valueOf(op - DCONST_0)));           return -1;
+            case ILOAD:    case LLOAD:    case FLOAD:    case DLOAD:    case ALOAD:
+                load(i1, op == ALOAD ? Type.OBJECT : MATH[op - ILOAD]); return -1;
+            case ILOAD_0:  case ILOAD_1:  case ILOAD_2:  case ILOAD_3:  load(op - ILOAD_0, Type.INT);    return -1;
+            case LLOAD_0:  case LLOAD_1:  case LLOAD_2:  case LLOAD_3:  load(op - LLOAD_0, Type.LONG);   return -1;
+            case FLOAD_0:  case FLOAD_1:  case FLOAD_2:  case FLOAD_3:  load(op - FLOAD_0, Type.FLOAT);  return -1;
+            case DLOAD_0:  case DLOAD_1:  case DLOAD_2:  case DLOAD_3:  load(op - DLOAD_0, Type.DOUBLE); return -1;
+            case ALOAD_0:  case ALOAD_1:  case ALOAD_2:  case ALOAD_3:  load(op - ALOAD_0, Type.OBJECT); return -1;
             case ISTORE:   case LSTORE:   case FSTORE:   case DSTORE:   case ASTORE:
-                locals[pc+1][i1].merge(pop()); return null;
-            case ISTORE_0: case LSTORE_0: case FSTORE_0: case DSTORE_0: case ASTORE_0:
-                locals[pc+1][0].merge(pop()); return null;
-            case ISTORE_1: case LSTORE_1: case FSTORE_1: case DSTORE_1: case ASTORE_1:
-                locals[pc+1][1].merge(pop()); return null;
-            case ASTORE_2: case DSTORE_2: case FSTORE_2: case LSTORE_2: case ISTORE_2:
-                locals[pc+1][2].merge(pop()); return null;
-            case ISTORE_3: case LSTORE_3: case FSTORE_3: case DSTORE_3: case ASTORE_3:
-                locals[pc+1][3].merge(pop()); return null;
-            case POP:                                                                  pop();                    return null;
-            case POP2:                                                                 pop(); pop();             return null;
-            case DUP:   push(stack[sp-1]);                  return null;
-            case DUP2:  push(stack[sp-2]); push(stack[sp-1]); return null;
+                store(i1, op == ASTORE ? Type.OBJECT : MATH[op - ISTORE]); return -1;
+            case ISTORE_0: case ISTORE_1: case ISTORE_2: case ISTORE_3: store(op - ISTORE_0, Type.INT);    return -1;
+            case LSTORE_0: case LSTORE_1: case LSTORE_2: case LSTORE_3: store(op - LSTORE_0, Type.LONG);   return -1;
+            case FSTORE_0: case FSTORE_1: case FSTORE_2: case FSTORE_3: store(op - FSTORE_0, Type.FLOAT);  return -1;
+            case DSTORE_0: case DSTORE_1: case DSTORE_2: case DSTORE_3: store(op - DSTORE_0, Type.DOUBLE); return -1;
+            case ASTORE_0: case ASTORE_1: case ASTORE_2: case ASTORE_3: store(op - ASTORE_0, Type.OBJECT); return -1;
+            case POP:                                                                  pop();                    return -1;
+            case POP2:                                                                 pop(); pop();             return -1;
+            case DUP:     dup(1, 0); return -1;
+            case DUP_X1:  dup(1, 1); return -1;
+            case DUP_X2:  dup(1, 2); return -1;
+            case DUP2:    dup(2, 0); return -1;
+            case DUP2_X1: dup(2, 1); return -1;
+            case DUP2_X2: dup(2, 2); return -1;
+            case SWAP:    { int e1 = pop(), e2 = pop(); push(e1, false); push(e2, false); return -1; }
 
                 // Conversions //////////////////////////////////////////////////////////////////////////////
 
                 // coercions are added as-needed when converting from JSSA back to bytecode, so we can
                 // simply discard them here (assuming the bytecode we're reading in was valid in the first place)
 
-            case I2L: case F2L: case D2L:               push(new Cast(pop(), Type.LONG)); return null;
-            case I2F: case L2F: case D2F:               push(new Cast(pop(), Type.FLOAT)); return null;
-            case I2D: case L2D: case F2D:               push(new Cast(pop(), Type.DOUBLE)); return null;
-            case L2I: case F2I: case D2I:               push(new Cast(pop(), Type.INT)); return null;
-            case I2B:                                   push(new Cast(pop(), Type.BYTE)); return null;
-            case I2C:                                   push(new Cast(pop(), Type.CHAR)); return null;
-            case I2S:                                   push(new Cast(pop(), Type.SHORT)); return null;
-            case SWAP:                                  { Expr e1 = pop(), e2 = pop(); push(e2);  push(e1); return null; }
+            case I2L: case F2L: case D2L:               push(cast(pop(MATH[(op - I2L) / 3]), Type.LONG)); return -1;
+            case I2F: case L2F: case D2F:               push(cast(pop(MATH[(op - I2L) / 3]), Type.FLOAT)); return -1;
+            case I2D: case L2D: case F2D:               push(cast(pop(MATH[(op - I2L) / 3]), Type.DOUBLE)); return -1;
+            case L2I: case F2I: case D2I:               push(cast(pop(MATH[(op - I2L) / 3]), Type.INT)); return -1;
+            case I2B:                                   push(cast(pop(), Type.BYTE)); return -1;
+            case I2C:                                   push(cast(pop(), Type.CHAR)); return -1;
+            case I2S:                                   push(cast(pop(), Type.SHORT)); return -1;
 
                 // Math //////////////////////////////////////////////////////////////////////////////
-                   
-            case IADD: case LADD: case FADD: case DADD: push(new Add(pop(), pop()));  return null;
-            case ISUB: case LSUB: case FSUB: case DSUB: push(new Sub(pop(), pop()));  return null;
-            case IMUL: case LMUL: case FMUL: case DMUL: push(new Mul(pop(), pop()));  return null;
-            case IREM: case LREM: case FREM: case DREM: push(new Rem(pop(), pop()));  return null;
-            case INEG: case LNEG: case FNEG: case DNEG: push(new Neg(pop()));         return null;
-            case IDIV: case LDIV: case FDIV: case DDIV: push(new Div(pop(), pop()));  return null;
-            case ISHL: case LSHL:                       push(new Shl(pop(), pop()));  return null;
-            case ISHR: case LSHR:                       push(new Shr(pop(), pop()));  return null;
-            case IUSHR: case LUSHR:                     push(new Ushr(pop(), pop())); return null;
-            case IAND: case LAND:                       push(new And(pop(), pop()));  return null;
-            case IOR:  case LOR:                        push(new Or(pop(), pop()));   return null;
-            case IXOR: case LXOR:                       push(new Xor(pop(), pop()));  return null;
-            case IINC:                                  return locals[pc+1][i1] = phi(new Add(locals[pc][i1], new Constant(i2)));
+
+            case IADD: case LADD: case FADD: case DADD: { Type t = MATH[op & 3]; int e2 = pop(t); push(math(NODE_ADD, pop(t), e2)); return -1; }
+            case ISUB: case LSUB: case FSUB: case DSUB: { Type t = MATH[op & 3]; int e2 = pop(t); push(math(NODE_SUB, pop(t), e2)); return -1; }
+            case IMUL: case LMUL: case FMUL: case DMUL: { Type t = MATH[op & 3]; int e2 = pop(t); push(math(NODE_MUL, pop(t), e2)); return -1; }
+            case INEG: case LNEG: case FNEG: case DNEG: push(neg(pop(MATH[op & 3])));         return -1;
+            case IREM: case LREM: case FREM: case DREM: {
+                Type t = MATH[op & 3];
+                int e2 = pop(t), e = math(NODE_REM, pop(t), e2);
+                // an integer remainder throws if e2 is 0
+                if (t == Type.INT || t == Type.LONG) return seqPush(e);
+                push(e);
+                return -1;
+            }
+            case IDIV: case LDIV: case FDIV: case DDIV: {
+                Type t = MATH[op & 3];
+                int e2 = pop(t), e = math(NODE_DIV, pop(t), e2);
+                if (t == Type.INT || t == Type.LONG) return seqPush(e);
+                push(e);
+                return -1;
+            }
+            case ISHL: case LSHL:   { Type t = MATH[op & 1]; int e2 = pop(); push(shift(NODE_SHL, pop(t), e2));  return -1; }
+            case ISHR: case LSHR:   { Type t = MATH[op & 1]; int e2 = pop(); push(shift(NODE_SHR, pop(t), e2));  return -1; }
+            case IUSHR: case LUSHR: { Type t = MATH[op & 1]; int e2 = pop(); push(shift(NODE_USHR, pop(t), e2)); return -1; }
+            case IAND: case LAND:   { Type t = MATH[op & 1]; int e2 = pop(t); push(math(NODE_AND, pop(t), e2));  return -1; }
+            case IOR:  case LOR:    { Type t = MATH[op & 1]; int e2 = pop(t); push(math(NODE_OR, pop(t), e2));   return -1; }
+            case IXOR: case LXOR:   { Type t = MATH[op & 1]; int e2 = pop(t); push(math(NODE_XOR, pop(t), e2));  return -1; }
+            case IINC: {
+                int e = math(NODE_ADD, read(i1, Type.INT), constant(i2));
+                write(i1, e);
+                if (cfg.numExnSuccessors(block) > 0) record(newNode(NODE_DEF, null, null, i1, e));
+                return -1;
+            }
+            case LCMP:  { int e2 = pop(Type.LONG); push(newNode(NODE_CMP, Type.INT, null, 0, pop(Type.LONG), e2)); return -1; }
+            case FCMPL: { int e2 = pop(); push(newNode(NODE_CMP, Type.INT, null, -1, pop(), e2)); return -1; }
+            case FCMPG: { int e2 = pop(); push(newNode(NODE_CMP, Type.INT, null, 1, pop(), e2)); return -1; }
+            case DCMPL: { int e2 = pop(Type.DOUBLE); push(newNode(NODE_CMP, Type.INT, null, -1, pop(Type.DOUBLE), e2)); return -1; }
+            case DCMPG: { int e2 = pop(Type.DOUBLE); push(newNode(NODE_CMP, Type.INT, null, 1, pop(Type.DOUBLE), e2)); return -1; }
 
                 // Control and branching //////////////////////////////////////////////////////////////////////////////
 
-            case IFNULL:                                return new If(new Eq(pop(), new Constant(null)), new Label(i1));
-            case IFNONNULL:                             return new If(new Not(new Eq(pop(),new Constant(null))),new Label(i1));
-            case IFEQ:                                  return new If(    new Eq(new Constant(0), pop()), new Label(i1));
-            case IFNE:                                  return new If(new Not(new Eq(new Constant(0), pop())), new Label(i1));
-            case IFLT:                                  return new If(    new Lt(new Constant(0), pop()), new Label(i1));
-            case IFGE:                                  return new If(new Not(new Lt(new Constant(0), pop())), new Label(i1));
-            case IFGT:                                  return new If(    new Gt(new Constant(0), pop()), new Label(i1));
-            case IFLE:                                  return new If(new Not(new Gt(new Constant(0), pop())), new Label(i1));
-            case IF_ICMPEQ:                             return new If(    new Eq(pop(), pop()), new Label(i1));
-            case IF_ICMPNE:                             return new If(new Not(new Eq(pop(), pop())), new Label(i1));
-            case IF_ICMPLT:                             return new If(    new Lt(pop(), pop()), new Label(i1));
-            case IF_ICMPGE:                             return new If(new Not(new Lt(pop(), pop())), new Label(i1));
-            case IF_ICMPGT:                             return new If(    new Gt(pop(), pop()), new Label(i1));
-            case IF_ICMPLE:                             return new If(new Not(new Gt(pop(), pop())), new Label(i1));
-            case IF_ACMPEQ:                             return new If(    new Eq(pop(), pop()), new Label(i1));
-            case IF_ACMPNE:                             return new If(new Not(new Eq(pop(), pop())), new Label(i1));
-            case ATHROW:                                                       return new Throw(pop());
-            case GOTO:                                                         return new Goto(locals[pc][i1]);
-            case JSR:                                   push(new Label(pc));   return new JSR(new Label(i1));
-            case RET:                                                          return new RET(pop());
-            case RETURN:                                                       return new Return();
+            case IFNULL:                                return branch(eq(pop(), constant(null)), i1);
+            case IFNONNULL:                             return branch(not(eq(pop(), constant(null))), i1);
+            case IFEQ:                                  return branch(eq(pop(), constant(0)), i1);
+            case IFNE:                                  return branch(not(eq(pop(), constant(0))), i1);
+            case IFLT:                                  return branch(compare(NODE_LT, pop(), constant(0)), i1);
+            case IFGE:                                  return branch(compare(NODE_GE, pop(), constant(0)), i1);
+            case IFGT:                                  return branch(compare(NODE_GT, pop(), constant(0)), i1);
+            case IFLE:                                  return branch(compare(NODE_LE, pop(), constant(0)), i1);
+            case IF_ICMPEQ: case IF_ACMPEQ:             { int e2 = pop(); return branch(eq(pop(), e2), i1); }
+            case IF_ICMPNE: case IF_ACMPNE:             { int e2 = pop(); return branch(not(eq(pop(), e2)), i1); }
+            case IF_ICMPLT:                             { int e2 = pop(); return branch(compare(NODE_LT, pop(), e2), i1); }
+            case IF_ICMPGE:                             { int e2 = pop(); return branch(compare(NODE_GE, pop(), e2), i1); }
+            case IF_ICMPGT:                             { int e2 = pop(); return branch(compare(NODE_GT, pop(), e2), i1); }
+            case IF_ICMPLE:                             { int e2 = pop(); return branch(compare(NODE_LE, pop(), e2), i1); }
+            case ATHROW:                                                       return athrow(pop());
+            case GOTO: case GOTO_W:                                            return newNode(NODE_GOTO, null, null, 0, label(i1));
+            case JSR: case JSR_W:                       push(label(pc+1), false); return newNode(NODE_JSR, null, null, 0, label(i1));
+            case RET:                                                          return newNode(NODE_RET, null, null, 0, read(i1, null));
+            case RETURN:                                                       return newNode(NODE_RETURN, null, null, 0);
             case IRETURN: case LRETURN: case FRETURN: case DRETURN: case ARETURN:
-                return new Return(pop());
+                return areturn(pop(method.getReturnType()));
+            case TABLESWITCH: case LOOKUPSWITCH:        return newNode(NODE_SWITCH, null, arg, 0, pop());
 
                 // Array manipulations //////////////////////////////////////////////////////////////////////////////
 
             case IALOAD:  case LALOAD:  case FALOAD:  case DALOAD:  case AALOAD:
-            case BALOAD:  case CALOAD:  case SALOAD:
-                return seqPush(new ArrayGet(pop(), pop()));
+            case BALOAD:  case CALOAD:  case SALOAD: {
+                int i = pop(), e = pop();
+                return seqPush(newNode(NODE_ARRAYGET, elementType(op), null, 0, e, i));
+            }
             case IASTORE: case LASTORE: case FASTORE: case DASTORE: case AASTORE:
-            case BASTORE: case CASTORE: case SASTORE:
-                return new ArrayPut(pop(), pop(), pop());
+            case BASTORE: case CASTORE: case SASTORE: {
+                int v = op == LASTORE || op == DASTORE ? pop(Type.LONG) : pop();
+                int i = pop();
+                return newNode(NODE_ARRAYPUT, elementType(op), null, 0, pop(), i, v);
+            }
 
                 // Invocation //////////////////////////////////////////////////////////////////////////////
 
             case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKESTATIC: case INVOKEINTERFACE: {
                 Type.Class.Method method = (Type.Class.Method)arg;
-                Expr args[] = new Expr[method.getNumArgs()];
-                for(int i=0; i<args.length; i++) args[args.length-i-1] = pop();
-                Expr ret;
+                int n = method.getNumArgs(), off = op == INVOKESTATIC ? 0 : 1;
+                int[] operands = new int[n + off];
+                for(int i=n-1; i>=0; i--) operands[off+i] = pop(method.getArgType(i));
+                byte kind;
                 switch(op) {
-                    case INVOKEVIRTUAL:   ret = new InvokeVirtual(method, args, pop()); break;
-                    case INVOKEINTERFACE: ret = new InvokeInterface(method, args, pop()); break;
-                    case INVOKESPECIAL:   ret = new InvokeSpecial(method, args, pop()); break;
-                    case INVOKESTATIC:    ret = new InvokeStatic(method, args); break;
+                    case INVOKEVIRTUAL:   kind = NODE_INVOKEVIRTUAL; break;
+                    case INVOKEINTERFACE: kind = NODE_INVOKEINTERFACE; break;
+                    case INVOKESPECIAL:   kind = NODE_INVOKESPECIAL; break;
+                    case INVOKESTATIC:    kind = NODE_INVOKESTATIC; break;
                     default: throw new Error("should never happen");
                 }
-                if (ret.getType() != Type.VOID) push(ret);
-                return new Seq(ret);
+                if (off == 1) operands[0] = pop();
+                int ret = newNode(kind, method.getReturnType(), method, 0, operands);
+                if (method.getReturnType() != Type.VOID) push(ret);
+                return ret;
             }
 
                 // Field Access //////////////////////////////////////////////////////////////////////////////
 
-            case GETSTATIC:         return seqPush(new Get((Type.Class.Field)arg, null));
-            case PUTSTATIC:         return new Put((Type.Class.Field)arg, pop(), null);
-            case GETFIELD:          return seqPush(new Get((Type.Class.Field)arg, pop()));
-            case PUTFIELD:          return new Put((Type.Class.Field)arg, pop(), pop());
+            case GETSTATIC: {
+                Type.Class.Field f = (Type.Class.Field)arg;
+                return seqPush(newNode(NODE_GET, f.getType(), f, 0));
+            }
+            case PUTSTATIC: {
+                Type.Class.Field f = (Type.Class.Field)arg;
+                return newNode(NODE_PUT, null, f, 0, pop(f.getType()));
+            }
+            case GETFIELD: {
+                Type.Class.Field f = (Type.Class.Field)arg;
+                return seqPush(newNode(NODE_GET, f.getType(), f, 0, pop()));
+            }
+            case PUTFIELD: {
+                Type.Class.Field f = (Type.Class.Field)arg;
+                int v = pop(f.getType());
+                return newNode(NODE_PUT, null, f, 0, pop(), v);
+            }
 
                 // Allocation //////////////////////////////////////////////////////////////////////////////
 
-            case NEW:               push(new New((Type.Class)arg)); return null;
-            case NEWARRAY:          return seqPush(new NewArray(Type.fromArraySpec(((Integer)arg).intValue()).makeArray(), pop()));
-            case ANEWARRAY:         push(new NewArray(((Type.Ref)arg).makeArray(), pop())); return null;
+            // allocating can throw and initializes the class, so it happens here and not where the object is used
+            case NEW:               return seqPush(newNode(NODE_NEW, (Type.Class)arg, null, 0));
+            case NEWARRAY:          return seqPush(newNode(NODE_NEWARRAY, Type.fromArraySpec(i1).makeArray(), null, 0, pop()));
+            case ANEWARRAY:         return seqPush(newNode(NODE_NEWARRAY, ((Type.Ref)arg).makeArray(), null, 0, pop()));
             case MULTIANEWARRAY: {
                 MethodGen.MultiANewArray mana = (MethodGen.MultiANewArray) arg;
-                Expr[] dims = new Expr[mana.dims];
-                for(int i=0;i<dims.length;i++) dims[i] = pop();
-                return seqPush(new NewArray(mana.type, dims));
+                int[] dims = new int[mana.dims];
+                for(int i=dims.length-1;i>=0;i--) dims[i] = pop();
+                return seqPush(newNode(NODE_NEWARRAY, mana.type, null, 0, dims));
             }
-            case ARRAYLENGTH:       return seqPush(new ArrayLength(pop()));
+            case ARRAYLENGTH:       return seqPush(newNode(NODE_ARRAYLENGTH, Type.INT, null, 0, pop()));
 
                 // Runtime Type information //////////////////////////////////////////////////////////////////////////////
 
-            case CHECKCAST:         return seqPush(new Cast(pop(), (Type.Ref)arg));
-            case INSTANCEOF:        push(new InstanceOf(pop(), (Type.Ref)arg)); return null;
-
-            case LDC: case LDC_W: case LDC2_W: push(new Constant(arg)); return null;
-
-            case BIPUSH:    push(new Constant((Integer)arg)); return null;
-            case SIPUSH:    push(new Constant((Integer)arg)); return null;
-
-            case TABLESWITCH:    return new Branch((MethodGen.Switch)arg);
-            case LOOKUPSWITCH:   return new Branch((MethodGen.Switch)arg);
-
-                /* FIXME
-            case MONITORENTER:   Op.monitorEnter(pop());
-            case MONITOREXIT:    Op.monitorExit(pop());
-                */
-
-            case DUP_X1:         throw new Error("unimplemented");
-            case DUP_X2:         throw new Error("unimplemented");
-            case DUP2_X1:         throw new Error("unimplemented");
-            case DUP2_X2:         throw new Error("unimplemented");
-            case LCMP:         throw new Error("unimplemented");
-            case FCMPL:         throw new Error("unimplemented");
-            case FCMPG:         throw new Error("unimplemented");
-            case DCMPL:         throw new Error("unimplemented");
-            case DCMPG:         throw new Error("unimplemented");
-            case GOTO_W:         throw new Error("unimplemented");
-            case JSR_W:         throw new Error("unimplemented");
+            case CHECKCAST:         return seqPush(cast(pop(), (Type.Ref)arg));
+            case INSTANCEOF:        push(instanceOf(pop(), (Type.Ref)arg)); return -1;
+
+            case LDC: case LDC_W: case LDC2_W: push(constant(arg)); return -1;
+
+            case BIPUSH:    push(constant(arg)); return -1;
+            case SIPUSH:    push(constant(arg)); return -1;
+
+            case MONITORENTER:      return newNode(NODE_MONITORENTER, null, null, 0, pop());
+            case MONITOREXIT:       return newNode(NODE_MONITOREXIT, null, null, 0, pop());
+
             default:          throw new Error("unhandled");
         }
     }
 
-    
+    private static Type elementType(int op) {
+        switch(op) {
+            case IALOAD: case IASTORE: return Type.INT;
+            case LALOAD: case LASTORE: return Type.LONG;
+            case FALOAD: case FASTORE: return Type.FLOAT;
+            case DALOAD: case DASTORE: return Type.DOUBLE;
+            case CALOAD: case CASTORE: return Type.CHAR;
+            case SALOAD: case SASTORE: return Type.SHORT;
+            case BALOAD: case BASTORE: return Type.BYTE;
+            case AALOAD: case AASTORE: return Type.OBJECT;
+            default: throw new Error("should never happen");
+        }
+    }
+
+    // Constant propagation //////////////////////////////////////////////////////////////////////////////
+
+    /** Folds the expressions whose values are constant, turns the Ifs and Switches that only ever go one way into
+        Gotos and marks the blocks that can't be reached (see ConstantPropagation). What is computed for its side
+        effects but turns out to have none and not be used is dropped, along with the Phis nothing uses. */
+    public void propagateConstants() {
+        if (lowered) throw new IllegalStateException("already lowered");
+        if (cfg != null) new ConstantPropagation(this).run();
+    }
+
+    /** Turns node <i>id</i> into a Constant with value <i>o</i> */
+    void toConstant(int id, Object o) {
+        kinds[id] = NODE_CONSTANT;
+        types[id] = constantType(o);
+        data[id] = o;
+        aux[id] = 0;
+        first[id] = 0;
+    }
+
+    /** Turns If or Switch <i>id</i> into a Goto to <i>pc</i> */
+    void toGoto(int id, int pc) {
+        int l = label(pc);
+        kinds[id] = NODE_GOTO;
+        data[id] = null;
+        // its first operand becomes the destination
+        pool[first[id]] = 1;
+        pool[first[id]+1] = l;
+    }
+
+    /** Drops the ops <i>gone</i> (by index in ops) */
+    void removeOps(boolean[] gone) {
+        int[] at = new int[numOps+1];
+        int n = 0;
+        for(int i=0; i<numOps; i++) {
+            at[i] = n;
+            if (gone[i]) continue;
+            ops[n] = ops[i];
+            ofs[n++] = ofs[i];
+        }
+        at[numOps] = n;
+        for(int b=0; b<firstOp.length; b++) { firstOp[b] = at[firstOp[b]]; endOp[b] = at[endOp[b]]; }
+        numOps = n;
+        ops = trim(ops, n);
+        ofs = trim(ofs, n);
+    }
+
+    /** Drops the Phis <i>gone</i> (by number) and renumbers the rest */
+    void removePhis(boolean[] gone) {
+        int p = 0;
+        for(int n=0; n<numPhis; n++) {
+            if (gone[n]) continue;
+            aux[phiNode[n]] = p;
+            phiNode[p] = phiNode[n];
+            phiBlock[p] = phiBlock[n];
+            phiVar[p++] = phiVar[n];
+        }
+        numPhis = p;
+        phiNode = trim(phiNode, p);
+        phiBlock = trim(phiBlock, p);
+        phiVar = trim(phiVar, p);
+    }
+
+    // Lowering //////////////////////////////////////////////////////////////////////////////
+
+    /** Replaces the code of the method with code generated from its SSA form (see Lowering). The SSA form is left
+        as it is but no longer matches the code, so this can only be done once.
+        @return false, leaving the code alone, if the method uses subroutines or something else the generator
+        doesn't handle */
+    public boolean lower() {
+        if (lowered) throw new IllegalStateException("already lowered");
+        if (cfg == null) return false;
+        try {
+            new Lowering(this).lower();
+        } catch(Lowering.Unsupported e) {
+            return false;
+        }
+        lowered = true;
+        return true;
+    }
+
     public void debugBodyToString(StringBuffer sb) {
         StringBuffer sb0 = new StringBuffer();
         super.debugBodyToString(sb0);
+        if (cfg == null || lowered) { sb.append(sb0); return; }
         StringTokenizer st = new StringTokenizer(sb0.toString(), "\n");
         String[] lines = new String[st.countTokens()];
         for(int i=0; i<lines.length; i++) lines[i] = st.nextToken();
-        for(int j=0; j<ofs[0]; j++) {
-            String s = "    /* " + lines[j].trim();
-             while(s.length() < 50) s += " ";
-             s += " */";
-             sb.append(s);
-             sb.append("\n");
-        }
-        
-        bindingMap = new IdentityHashMap();
-        nextVar = 0;
-        
-        for(int i=0; i<numOps; i++) {
-            String s = "    /* " + lines[ofs[i]].trim();
-             while(s.length() < 50) s += " ";
-             s += " */  ";
-             s += ops[i].toString();
-             sb.append(s);
-             sb.append(";\n");
-             for(int j=ofs[i]+1; j<(i==numOps-1?size():ofs[i+1]); j++) {
-                 s = "    /* " + lines[j].trim();
-                  while(s.length() < 50) s += " ";
-                  s += " */";
-                  sb.append(s);
-                  sb.append("\n");
-             }
-        }
-    }
-    
-    private Map bindingMap;
-    private int nextVar;
-    
+
+        // the Phis by block
+        int numBlocks = cfg.numBlocks();
+        int[] phiOff = new int[numBlocks+1];
+        for(int n=0; n<numPhis; n++) phiOff[phiBlock[n]+1]++;
+        for(int b=0; b<numBlocks; b++) phiOff[b+1] += phiOff[b];
+        int[] byBlock = new int[numPhis];
+        int[] fill = new int[numBlocks];
+        for(int n=0; n<numPhis; n++) byBlock[phiOff[phiBlock[n]] + fill[phiBlock[n]]++] = phiNode[n];
+
+        for(int b=0; b<numBlocks; b++) {
+            for(int i=phiOff[b]; i<phiOff[b+1]; i++)
+                sb.append("    ").append(((Phi)node(byBlock[i])).definition()).append(";\n");
+            int o = firstOp[b];
+            for(int j=cfg.blockStart(b); j<cfg.blockEnd(b); j++) {
+                String line = j < lines.length ? lines[j].trim() : "";
+                do {
+                    String s = "    /* " + line;
+                    while(s.length() < 50) s += " ";
+                    s += " */";
+                    if (o < endOp[b] && ofs[o] == j) {
+                        sb.append(s).append("  ").append(op(o++)).append(";\n");
+                    } else {
+                        sb.append(s).append("\n");
+                    }
+                    line = "";
+                } while(o < endOp[b] && ofs[o] == j);
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         InputStream is = Class.forName(args[0]).getClassLoader().getResourceAsStream(args[0].replace('.', '/')+".class");
         System.out.println(new ClassFile(new DataInputStream(is), true).toString());
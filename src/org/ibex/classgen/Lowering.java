@@ -0,0 +1,1635 @@
+package org.ibex.classgen;
+
+import java.util.*;
+
+/** Generates the bytecode of a JSSA from its SSA form (see JSSA.lower()).
+
+    The reachable blocks (less the ones JSSA.propagateConstants() found dead) are laid out in their original order
+    and each op becomes the code for its expression tree. An expression used once is computed where it is used, so
+    its value goes straight from the stack to its user. One used more than once is computed in the block with the shallowest loop nest between the earliest and
+    the latest one it could be computed in (after Click's "Global Code Motion/Global Value Numbering") and kept in a
+    local. A value computed for its side effects (see JSSA.Seq) that is used once, by a later op of its block, is
+    left on the stack for that op when nothing else the op pushes comes first. Constants are pushed again wherever
+    they are used.
+
+    Phis become parallel copies (every input is pushed before any is stored) at the end of their predecessors. An
+    edge from a block with more than one successor gets a block of its own at the end of the method for its copies.
+    A handler's Phis are stored before the blocks it covers and after every Def in them.
+
+    The code is generated for an unlimited number of virtual registers first. The live intervals of the registers
+    are then computed from the code and a linear scan gives them slots, reusing a slot once the value in it is
+    dead; the arguments keep the slots they arrive in. Only the conversions a value needs are generated: none to the
+    type it is known to have, to a narrower int type it is known to fit or between types of the same kind.
+
+    Methods using subroutines, or whose SSA form can't be expressed without them, aren't handled. */
+final class Lowering implements CGConst {
+
+    /** thrown when the method can't be lowered; the method is left as it was */
+    static final class Unsupported extends RuntimeException {
+        Unsupported(String s) { super(s); }
+    }
+
+    private final JSSA ssa;
+    private final ControlFlowGraph cfg;
+    private final int numBlocks;
+    private final int numNodes;
+
+    // how the value of a node is produced
+    private static final byte M_NONE = 0;       // it isn't used (a Seq'd expression's value is popped)
+    private static final byte M_CONST = 1;      // pushed wherever it is used
+    private static final byte M_INLINE = 2;     // computed where it is used, which is the only place
+    private static final byte M_COMPUTED = 3;   // computed in its block before its first use there, kept in a register
+    private static final byte M_LOCAL = 4;      // kept in a register: Phis, arguments, catches and Seq'd expressions
+    private static final byte M_STACK = 5;      // a Seq'd expression left on the stack for the op that uses it
+    private static final byte M_COND = 6;       // a comparison, only ever the condition of an If
+
+    private final byte[] mode;
+    private final boolean[] live;
+    private final int[] uses;
+    /** the node using a node used once, -1 if it is used by a copy or a store */
+    private final int[] user;
+    /** the block an op or Seq'd expression is in, -1 for the rest */
+    private final int[] opBlock;
+    /** for a New, the op calling its constructor (the object isn't counted as one of its uses) */
+    private final int[] initOf;
+    /** the block an expression is computed in (before it is placed, the latest it could be computed in) */
+    private final int[] place;
+    private final boolean[] done;
+    /** the expressions computed in each block, linked through nextComputed */
+    private final int[] firstComputed, nextComputed;
+    private final int[] vreg;
+    /** the live Phis of each block */
+    private final int[][] phis;
+    private final int[] catchOf;
+    /** the index of each op in the ops of its block */
+    private final int[] opIndex;
+    /** the op a value left on the stack is left for */
+    private final int[] keptFor;
+
+    // the generated code, with virtual registers for locals and label numbers for targets
+    private byte[] code = new byte[64];
+    private Object[] args = new Object[64];
+    private int[] iargs = new int[64];
+    private int size;
+
+    // labels 0..numBlocks-1 are the blocks; the rest are the blocks of copies for edges
+    private int[] labelPos;
+    private int numLabels;
+    private int[] edgeFrom = new int[8], edgeTo = new int[8];
+
+    private int numVregs;
+    private Type[] vregType = new Type[16];
+    private int[] fixedSlot = new int[16];
+
+    /** where the code of each block starts after the stores entering it, and where it ends */
+    private final int[] rangeStart, blockEnd;
+
+    /** the block being generated, -1 for the copies of the edges */
+    private int curBlock = -1;
+    /** the values the op being generated finds on the stack, in the order it uses them */
+    private int[] prefix;
+    private int prefixLen, cursor;
+
+    Lowering(JSSA ssa) {
+        this.ssa = ssa;
+        this.cfg = ssa.cfg;
+        this.numBlocks = cfg.numBlocks();
+        this.numNodes = ssa.numNodes();
+        mode = new byte[numNodes];
+        live = new boolean[numNodes];
+        uses = new int[numNodes];
+        user = new int[numNodes];
+        opBlock = new int[numNodes];
+        initOf = new int[numNodes];
+        place = new int[numNodes];
+        done = new boolean[numNodes];
+        firstComputed = new int[numBlocks];
+        nextComputed = new int[numNodes];
+        vreg = new int[numNodes];
+        phis = new int[numBlocks][];
+        catchOf = new int[numBlocks];
+        opIndex = new int[numNodes];
+        keptFor = new int[numNodes];
+        prefixIds = new int[numNodes][];
+        events = new int[numNodes][];
+        eventKinds = new byte[numNodes][];
+        rangeStart = new int[numBlocks];
+        blockEnd = new int[numBlocks];
+        labelPos = new int[numBlocks + 8];
+        numLabels = edgesDone = numBlocks;
+        Arrays.fill(user, -1);
+        Arrays.fill(opBlock, -1);
+        Arrays.fill(initOf, -1);
+        Arrays.fill(place, -1);
+        Arrays.fill(vreg, -1);
+        Arrays.fill(catchOf, -1);
+        Arrays.fill(keptFor, -1);
+        Arrays.fill(firstComputed, -1);
+    }
+
+    /** Replaces the code of the method with code generated from its SSA form */
+    void lower() {
+        check();
+        markLive();
+        countUses();
+        placeExpressions();
+        checkHandlerPhis();
+        keepOnStack();
+        generate();
+        exceptionRanges();
+        removeStoreLoads();
+        int numSlots = allocate();
+        removeCopies();
+        install(numSlots);
+    }
+
+    // Analysis //////////////////////////////////////////////////////////////////////////////
+
+    private byte kind(int id) { return ssa.kindOf(id); }
+    private boolean reachable(int b) { return cfg.isReachable(b) && (ssa.dead == null || !ssa.dead[b]); }
+    private static boolean isCondition(byte k) { return k == JSSA.NODE_NOT || (k >= JSSA.NODE_EQ && k <= JSSA.NODE_LE); }
+
+    private void check() {
+        for(int b=0; b<numBlocks; b++) {
+            if (!reachable(b)) continue;
+            for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) {
+                int id = ssa.ops[i];
+                byte k = kind(id);
+                if (k == JSSA.NODE_JSR || k == JSSA.NODE_RET) throw new Unsupported("subroutine");
+                if (opBlock[id] != -1) throw new Unsupported("op used twice");
+                opBlock[id] = b;
+                opIndex[id] = i - ssa.firstOp[b];
+                if (k == JSSA.NODE_INVOKESPECIAL && ssa.numOperands(id) > 0 && kind(ssa.operand(id, 0)) == JSSA.NODE_NEW &&
+                    ((Type.Class.Method)ssa.data[id]).isConstructor()) {
+                    int n = ssa.operand(id, 0);
+                    if (initOf[n] != -1 || opBlock[n] != b) throw new Unsupported("object constructed outside its block");
+                    initOf[n] = id;
+                }
+            }
+            if (!ssa.isHandler(b)) continue;
+            if (b == 0) throw new Unsupported("handler at the start of the method");
+            for(int k=0; k<cfg.numPredecessors(b); k++)
+                if (reachable(cfg.predecessor(b, k)) && !ssa.exceptional(b, k)) throw new Unsupported("handler entered normally");
+        }
+        for(int id=0; id<numNodes; id++) {
+            if (kind(id) == JSSA.NODE_CATCH) {
+                int b = ssa.aux[id];
+                if (b < 0 || catchOf[b] != -1) throw new Unsupported("catch");
+                catchOf[b] = id;
+            } else if (kind(id) == JSSA.NODE_NEW && opBlock[id] != -1 && initOf[id] == -1) {
+                throw new Unsupported("object never constructed");
+            }
+        }
+    }
+
+    /** The nodes whose values are needed: everything the ops use, except that a Def is only needed through the Phis
+        of its block's handlers */
+    private void markLive() {
+        int[] work = new int[numNodes];
+        int n = 0;
+        for(int b=0; b<numBlocks; b++) {
+            if (!reachable(b)) continue;
+            for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) {
+                int id = ssa.ops[i];
+                if (kind(id) == JSSA.NODE_DEF || live[id]) continue;
+                live[id] = true;
+                work[n++] = id;
+            }
+        }
+        while(n > 0) {
+            int id = work[--n];
+            for(int j=0; j<ssa.numOperands(id); j++) {
+                int o = ssa.operand(id, j);
+                if (live[o]) continue;
+                live[o] = true;
+                work[n++] = o;
+            }
+        }
+        for(int b=0; b<numBlocks; b++) {
+            int c = 0;
+            for(int p=0; p<ssa.numPhis; p++) if (ssa.phiBlock[p] == b && live[ssa.phiNode[p]]) c++;
+            phis[b] = new int[c];
+        }
+        int[] fill = new int[numBlocks];
+        for(int p=0; p<ssa.numPhis; p++) {
+            int b = ssa.phiBlock[p];
+            if (live[ssa.phiNode[p]]) phis[b][fill[b]++] = ssa.phiNode[p];
+        }
+    }
+
+    private void use(int id, int u, int b) {
+        switch(kind(id)) {
+            case JSSA.NODE_UNDEFINED: case JSSA.NODE_VOID: case JSSA.NODE_LABEL:
+                throw new Unsupported("no value");
+            case JSSA.NODE_CONSTANT:
+                return;
+        }
+        if (u != -1 && initOf[id] == u && ssa.operand(u, 0) == id) return;
+        user[id] = uses[id]++ == 0 ? u : -1;
+        if (b != -1) place[id] = place[id] == -1 ? b : lca(place[id], b);
+    }
+
+    private int lca(int a, int b) {
+        while(!cfg.dominates(a, b)) a = cfg.idom(a);
+        return a;
+    }
+
+    /** Counts the uses of every value. place[] gets the latest block a value could be computed in as far as the
+        ops, copies and stores go; the uses by other expressions are added when those are placed. */
+    private void countUses() {
+        for(int id=0; id<numNodes; id++) {
+            if (!live[id]) continue;
+            byte k = kind(id);
+            if (k == JSSA.NODE_PHI) continue;
+            if (isCondition(k) || (!JSSA.isOp(k) && opBlock[id] == -1)) {
+                // an expression computed where it is used, placed later
+                for(int j=0; j<ssa.numOperands(id); j++) use(ssa.operand(id, j), id, -1);
+                continue;
+            }
+            if (opBlock[id] == -1) continue;
+            int b = opBlock[id];
+            switch(k) {
+                case JSSA.NODE_DEF: continue;
+                case JSSA.NODE_GOTO: continue;
+                case JSSA.NODE_IF: use(ssa.operand(id, 0), id, b); continue;
+            }
+            for(int j=0; j<ssa.numOperands(id); j++) use(ssa.operand(id, j), id, b);
+        }
+        for(int s=0; s<numBlocks; s++) {
+            if (!reachable(s) || phis[s].length == 0) continue;
+            if (ssa.isHandler(s)) {
+                for(int k=0; k<cfg.numPredecessors(s); k++) {
+                    int p = cfg.predecessor(s, k);
+                    if (!reachable(p)) continue;
+                    boolean entry = needsEntryStores(p, s);
+                    for(int i=0; i<phis[s].length; i++) {
+                        int w = phis[s][i], at = handlerInput(w, s, p);
+                        if (entry) copyUse(w, ssa.operand(w, at), p);
+                        int v = ssa.phiVar[ssa.aux[w]];
+                        for(int o=ssa.firstOp[p]; o<ssa.endOp[p]; o++) {
+                            int d = ssa.ops[o];
+                            if (kind(d) == JSSA.NODE_DEF && ssa.aux[d] == v) copyUse(w, ssa.operand(d, 0), p);
+                        }
+                    }
+                }
+                continue;
+            }
+            if (s == 0) for(int i=0; i<phis[s].length; i++) copyUse(phis[s][i], ssa.operand(phis[s][i], 0), 0);
+            for(int k=0; k<cfg.numPredecessors(s); k++) {
+                int p = cfg.predecessor(s, k);
+                if (!reachable(p)) continue;
+                int at = input(s, p);
+                for(int i=0; i<phis[s].length; i++) copyUse(phis[s][i], ssa.operand(phis[s][i], at), p);
+            }
+        }
+        // comparisons only ever decide a branch
+        for(int id=0; id<numNodes; id++) {
+            if (!live[id] || kind(id) != JSSA.NODE_IF) continue;
+            for(int c = ssa.operand(id, 0); isCondition(kind(c)); c = ssa.operand(c, 0)) {
+                if (uses[c] != 1) throw new Unsupported("condition used as a value");
+                mode[c] = M_COND;
+                if (kind(c) != JSSA.NODE_NOT) break;
+            }
+        }
+    }
+
+    private void copyUse(int w, int input, int b) {
+        if (input == w || kind(input) == JSSA.NODE_UNDEFINED) return;
+        use(input, -1, b);
+    }
+
+    /** The operand of the Phis of <i>s</i> coming from <i>p</i> (s isn't a handler). There is one for every
+        predecessor the ControlFlowGraph can reach, dead or not. */
+    private int input(int s, int p) {
+        int at = s == 0 ? 1 : 0;
+        for(int k=0; k<cfg.numPredecessors(s); k++) {
+            int q = cfg.predecessor(s, k);
+            if (!cfg.isReachable(q)) continue;
+            if (q == p) return at;
+            at++;
+        }
+        throw new Error("should never happen");
+    }
+
+    /** The operand of handler Phi <i>w</i> of <i>h</i> holding the value its variable has when <i>p</i> is entered */
+    private int handlerInput(int w, int h, int p) {
+        int v = ssa.phiVar[ssa.aux[w]];
+        int at = 0;
+        for(int k=0; k<cfg.numPredecessors(h); k++) {
+            int q = cfg.predecessor(h, k);
+            if (!cfg.isReachable(q)) continue;
+            if (q == p) return at;
+            at += 1 + ssa.numDefs(q, v);
+        }
+        throw new Error("should never happen");
+    }
+
+    /** Whether the Phis of handler <i>h</i> have to be stored on entering <i>b</i>, which it covers. They don't when
+        every way into b is from a block h covers too, since they were kept up to date there. */
+    private boolean needsEntryStores(int b, int h) {
+        if (b == 0 || ssa.isHandler(b)) return true;
+        for(int k=0; k<cfg.numPredecessors(b); k++) {
+            int p = cfg.predecessor(b, k);
+            if (!reachable(p)) continue;
+            boolean covered = false;
+            for(int j=0; j<cfg.numExnSuccessors(p); j++) if (cfg.exnSuccessor(p, j) == h) covered = true;
+            if (!covered) return true;
+        }
+        return false;
+    }
+
+    private int earliest(int id) {
+        if (JSSA.isOp(kind(id)) || opBlock[id] != -1) return opBlock[id];
+        switch(kind(id)) {
+            case JSSA.NODE_CONSTANT: return -1;
+            case JSSA.NODE_PHI: return ssa.phiBlock[ssa.aux[id]];
+            case JSSA.NODE_ARGUMENT: return 0;
+            case JSSA.NODE_CATCH: return ssa.aux[id];
+        }
+        return place[id];
+    }
+
+    /** Decides where each expression that isn't an op is computed. They are done users first, so the latest block
+        an expression could go in is known by the time it is reached. */
+    private void placeExpressions() {
+        int[] early = new int[numNodes];
+        for(int id=0; id<numNodes; id++) {
+            early[id] = -1;
+            if (!live[id]) continue;
+            byte k = kind(id);
+            switch(k) {
+                case JSSA.NODE_CONSTANT: mode[id] = M_CONST; continue;
+                case JSSA.NODE_PHI: case JSSA.NODE_ARGUMENT: case JSSA.NODE_CATCH:
+                    mode[id] = uses[id] > 0 ? M_LOCAL : M_NONE;
+                    continue;
+            }
+            if (JSSA.isOp(k)) continue;
+            if (opBlock[id] != -1) { mode[id] = uses[id] > 0 ? M_LOCAL : M_NONE; continue; }
+            for(int j=0; j<ssa.numOperands(id); j++) {
+                int o = ssa.operand(id, j);
+                int e = opBlock[o] == -1 && !isLeaf(kind(o)) ? early[o] : earliest(o);
+                if (e != -1 && (early[id] == -1 || cfg.dominates(early[id], e))) early[id] = e;
+            }
+        }
+        for(int id=numNodes-1; id>=0; id--) {
+            if (!live[id] || JSSA.isOp(kind(id)) || opBlock[id] != -1 || isLeaf(kind(id))) continue;
+            if (mode[id] == M_COND) {
+                // computed with the If it decides
+                int b = place[id];
+                for(int j=0; j<ssa.numOperands(id); j++) placeUse(ssa.operand(id, j), b);
+                continue;
+            }
+            int late = place[id], best = late;
+            if (uses[id] == 0 || late == -1) continue;
+            if (early[id] == -1 || cfg.dominates(early[id], late)) {
+                for(int b = late; b != -1; b = cfg.idom(b)) {
+                    if (cfg.loopDepth(b) < cfg.loopDepth(best)) best = b;
+                    if (b == early[id] || cfg.idom(b) == b) break;
+                }
+            }
+            place[id] = best;
+            mode[id] = uses[id] == 1 && best == late ? M_INLINE : M_COMPUTED;
+            if (mode[id] == M_COMPUTED) { nextComputed[id] = firstComputed[best]; firstComputed[best] = id; }
+            for(int j=0; j<ssa.numOperands(id); j++) placeUse(ssa.operand(id, j), best);
+        }
+    }
+
+    private static boolean isLeaf(byte k) {
+        return k == JSSA.NODE_CONSTANT || k == JSSA.NODE_PHI || k == JSSA.NODE_ARGUMENT || k == JSSA.NODE_CATCH ||
+            k == JSSA.NODE_UNDEFINED || k == JSSA.NODE_VOID || k == JSSA.NODE_LABEL;
+    }
+
+    private void placeUse(int id, int b) {
+        if (kind(id) == JSSA.NODE_CONSTANT || b == -1) return;
+        place[id] = place[id] == -1 ? b : lca(place[id], b);
+    }
+
+    /** The op a value used once is used by, following expressions computed where they are used, or -1 */
+    private int userOp(int id) {
+        int u = user[id];
+        while(u != -1 && opBlock[u] == -1) {
+            if (mode[u] != M_INLINE && mode[u] != M_COND) return -1;
+            u = user[u];
+        }
+        return u;
+    }
+
+    /** A handler's Phi shares its register with the variable's current value in the blocks it covers, so none of
+        its uses may be reachable from a store to it without going through the handler again */
+    private void checkHandlerPhis() {
+        boolean[] reached = new boolean[numBlocks];
+        int[] work = new int[numBlocks];
+        for(int h=0; h<numBlocks; h++) {
+            if (!reachable(h) || !ssa.isHandler(h)) continue;
+            for(int i=0; i<phis[h].length; i++) {
+                int w = phis[h][i], v = ssa.phiVar[ssa.aux[w]], n = 0;
+                Arrays.fill(reached, false);
+                for(int k=0; k<cfg.numPredecessors(h); k++) {
+                    int p = cfg.predecessor(h, k);
+                    if (!reachable(p) || reached[p]) continue;
+                    boolean writes = needsEntryStores(p, h) && ssa.operand(w, handlerInput(w, h, p)) != w;
+                    for(int o=ssa.firstOp[p]; o<ssa.endOp[p] && !writes; o++) {
+                        int d = ssa.ops[o];
+                        if (kind(d) == JSSA.NODE_DEF && ssa.aux[d] == v && ssa.operand(d, 0) != w) writes = true;
+                    }
+                    if (writes) { reached[p] = true; work[n++] = p; }
+                }
+                while(n > 0) {
+                    int b = work[--n];
+                    for(int k=0; k<cfg.numSuccessors(b) + cfg.numExnSuccessors(b); k++) {
+                        int s = k < cfg.numSuccessors(b) ? cfg.successor(b, k) : cfg.exnSuccessor(b, k - cfg.numSuccessors(b));
+                        if (s == h || reached[s]) continue;
+                        reached[s] = true;
+                        work[n++] = s;
+                    }
+                }
+                for(int id=0; id<numNodes; id++) {
+                    if (!live[id]) continue;
+                    for(int j=0; j<ssa.numOperands(id); j++) {
+                        if (ssa.operand(id, j) != w || id == w) continue;
+                        if (usedIn(id, j, reached)) throw new Unsupported("handler Phi overwritten before a use");
+                    }
+                }
+            }
+        }
+    }
+
+    /** Whether node <i>id</i> uses its operand <i>j</i> in one of the blocks <i>in</i> */
+    private boolean usedIn(int id, int j, boolean[] in) {
+        if (kind(id) != JSSA.NODE_PHI) {
+            int b = opBlock[id] != -1 ? opBlock[id] : place[id];
+            return b != -1 && in[b];
+        }
+        // copied at the end of the predecessor it comes from, or stored entering or in one a handler covers
+        int s = ssa.phiBlock[ssa.aux[id]];
+        for(int k=0; k<cfg.numPredecessors(s); k++) {
+            int p = cfg.predecessor(s, k);
+            if (!reachable(p) || !in[p]) continue;
+            if (ssa.isHandler(s)) {
+                int at = handlerInput(id, s, p), end = at + 1 + ssa.numDefs(p, ssa.phiVar[ssa.aux[id]]);
+                if (j >= at && j < end) return true;
+            } else if (input(s, p) == j) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Decides which values computed for their side effects stay on the stack for the op using them. Every
+        candidate is kept to start with; simulating the stack through each block drops the ones something else
+        gets in the way of, and the block is simulated again. */
+    private void keepOnStack() {
+        for(int id=0; id<numNodes; id++) {
+            if (mode[id] != M_LOCAL || uses[id] != 1) continue;
+            int b = kind(id) == JSSA.NODE_CATCH ? ssa.aux[id] : opBlock[id];
+            if (b == -1) continue;
+            int u = userOp(id);
+            if (u == -1 || opBlock[u] != b) continue;
+            mode[id] = M_STACK;
+            keptFor[id] = u;
+        }
+        for(int b=0; b<numBlocks; b++) {
+            if (!reachable(b)) continue;
+            for(int attempt=0; ; attempt++) {
+                for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) events[ssa.ops[i]] = null;
+                if (attempt == 32) {
+                    // not worth working out; nothing is kept
+                    if (catchOf[b] != -1 && mode[catchOf[b]] == M_STACK) mode[catchOf[b]] = M_LOCAL;
+                    for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) if (mode[ssa.ops[i]] == M_STACK) mode[ssa.ops[i]] = M_LOCAL;
+                } else if (attempt > 32) {
+                    throw new Unsupported("object constructed out of order");
+                }
+                if (simulate(b)) break;
+            }
+        }
+    }
+
+    // the stack while simulating a block, as the values on it (~(the New) for an object to be constructed)
+    private int[] stack = new int[16];
+    private int sp;
+
+    private void push(int e) {
+        if (sp == stack.length) { int[] a = new int[sp * 2]; System.arraycopy(stack, 0, a, 0, sp); stack = a; }
+        stack[sp++] = e;
+    }
+
+    /** Simulates the stack through block <i>b</i>; if a kept value turns out to be in the way or out of reach,
+        it is dropped and false returned */
+    private boolean simulate(int b) {
+        sp = 0;
+        if (catchOf[b] != -1 && mode[catchOf[b]] == M_STACK) push(catchOf[b]);
+        for(int i=ssa.firstOp[b]; i<ssa.endOp[b]; i++) {
+            int o = ssa.ops[i];
+            int[] ev = eventsOf(o), p = prefixIds[o];
+            byte[] ek = eventKinds[o];
+            // the kept values this op uses further in are no good to it
+            for(int j=0; j<sp; j++) {
+                int e = stack[j];
+                if (e >= 0 && mode[e] == M_STACK && keptFor[e] == o && indexOf(ev, ek, e) == -1) return drop(e);
+            }
+            boolean match = sp >= p.length;
+            for(int j=0; match && j<p.length; j++) if (stack[sp-p.length+j] != p[j]) match = false;
+            if (!match) {
+                int top = sp == 0 ? -1 : kept(stack[sp-1]);
+                if (top != -1 && indexOf(ev, ek, top) == -1) return drop(top);
+                for(int j=0; j<ev.length; j++) if (ek[j] == E_KEPT && ev[j] >= 0) return drop(ev[j]);
+                for(int j=sp-1; j>=0; j--) if (kept(stack[j]) != -1) return drop(kept(stack[j]));
+                throw new Unsupported("object constructed out of order");
+            }
+            sp -= p.length;
+            if (mode[o] == M_STACK) {
+                if (firstKept(ev, ek) == -1) groupStart(o, true);
+                push(o);
+                if (!after(o, true)) return drop(nextKept(o));
+            }
+            if (kind(o) == JSSA.NODE_NEW) {
+                push(~o);
+                if (!after(~o, true)) return drop(nextKept(~o));
+            }
+        }
+        for(int j=sp-1; j>=0; j--) if (kept(stack[j]) != -1) return drop(kept(stack[j]));
+        if (sp > 0) throw new Unsupported("object constructed out of order");
+        return true;
+    }
+
+    private boolean drop(int e) {
+        mode[e] = M_LOCAL;
+        return false;
+    }
+
+    /** A kept value an entry of the stack is or was computed from, -1 if there isn't one */
+    private int kept(int e) {
+        if (e < 0) return -1;
+        if (mode[e] == M_STACK) return e;
+        if (mode[e] != M_INLINE) return -1;
+        for(int j=0; j<ssa.numOperands(e); j++) {
+            int k = kept(ssa.operand(e, j));
+            if (k != -1) return k;
+        }
+        return -1;
+    }
+
+    private static int indexOf(int[] ev, byte[] ek, int e) {
+        for(int j=0; j<ev.length; j++) if (ev[j] == e && ek[j] == E_KEPT) return j;
+        return -1;
+    }
+
+    private static int firstKept(int[] ev, byte[] ek) {
+        for(int j=0; j<ev.length; j++) if (ek[j] == E_KEPT) return j;
+        return -1;
+    }
+
+    /** The op kept value <i>d</i> (or ~(the New)) is kept for */
+    private int consumer(int d) { return d < 0 ? initOf[~d] : keptFor[d]; }
+
+    /** The kept value its user gets after <i>d</i> */
+    private int nextKept(int d) {
+        int c = consumer(d);
+        int[] ev = eventsOf(c);
+        for(int j=indexOf(ev, eventKinds[c], d)+1; j<ev.length; j++) if (eventKinds[c][j] == E_KEPT) return ev[j];
+        throw new Error("should never happen");
+    }
+
+    /** Whether what the user of kept value <i>d</i> computes between it and the next can be done right after it:
+        not when the object of a New is still to be constructed on top of it or it is a catch */
+    private boolean canFollow(int d) { return d < 0 || (kind(d) != JSSA.NODE_NEW && kind(d) != JSSA.NODE_CATCH); }
+
+    /** Pushes or computes (simulating or generating) what the user of kept value <i>d</i> does with it and the
+        values below it before the next kept value; false if the stack doesn't have those */
+    private boolean after(int d, boolean simulating) {
+        if (!canFollow(d)) return true;
+        int c = consumer(d);
+        int[] ev = eventsOf(c);
+        byte[] ek = eventKinds[c];
+        int j = indexOf(ev, ek, d);
+        if (j == -1) return true;
+        for(j++; j<ev.length && ek[j] != E_KEPT; j++) if (!event(ev[j], ek[j], simulating)) return false;
+        return true;
+    }
+
+    private boolean event(int e, byte k, boolean simulating) {
+        if (!simulating) {
+            if (k == E_PUSH) { value(e); return true; }
+            // computed from what is on the stack
+            prefixLen = ssa.numOperands(e);
+            prefix = new int[prefixLen];
+            for(int j=0; j<prefixLen; j++) prefix[j] = ssa.operand(e, j);
+            cursor = 0;
+            compute(e);
+            endOp();
+            return true;
+        }
+        if (k == E_COMPUTE) {
+            int n = ssa.numOperands(e);
+            if (sp < n) return false;
+            for(int j=0; j<n; j++) if (stack[sp-n+j] != ssa.operand(e, j)) return false;
+            sp -= n;
+        }
+        push(e);
+        return true;
+    }
+
+    /** What is pushed (simulating or generating) when kept value <i>d</i> is the first thing on the stack for an
+        op: for it and each kept value it is the first of, what their users push before them, outermost first */
+    private void groupStart(int d, boolean simulating) {
+        int n = 0;
+        int[] chain = new int[4];
+        for(int e = d; ; ) {
+            if (n == chain.length) { int[] a = new int[n * 2]; System.arraycopy(chain, 0, a, 0, n); chain = a; }
+            chain[n++] = e;
+            int c = keptFor[e];
+            if (mode[c] != M_STACK) break;
+            int f = firstKept(eventsOf(c), eventKinds[c]);
+            if (f == -1 || events[c][f] != e) break;
+            e = c;
+        }
+        for(int i=n-1; i>=0; i--) {
+            int c = keptFor[chain[i]];
+            int[] ev = eventsOf(c);
+            byte[] ek = eventKinds[c];
+            int j = indexOf(ev, ek, chain[i]), s = j;
+            if (j == -1) continue;
+            while(s > 0 && ek[s-1] != E_KEPT) s--;
+            // after a value that allows it, what comes between was done right after it
+            if (s > 0 && canFollow(ev[s-1])) continue;
+            for(int k=s; k<j; k++) event(ev[k], ek[k], simulating);
+        }
+    }
+
+    // what an op finds on the stack: the events of pushing its operands, in order, up to the last kept value
+    // among them; values pushed (which can be pushed at any time), kept values (~(the New) for the object of a
+    // constructor call) and expressions computed from what is on the stack. Those before the first kept value
+    // are pushed before what it is computed from; those after a kept value right after it (see canFollow).
+    private static final byte E_PUSH = 0, E_KEPT = 1, E_COMPUTE = 2;
+    private final int[][] events;
+    private final byte[][] eventKinds;
+    /** the values those leave on the stack, which the op takes from it */
+    private final int[][] prefixIds;
+    private int[] scratch = new int[8];
+    private byte[] scratchKinds = new byte[8];
+    private int scratchLen;
+
+    private int[] eventsOf(int o) {
+        if (events[o] == null) computeEvents(o);
+        return events[o];
+    }
+
+    private void computeEvents(int o) {
+        scratchLen = 0;
+        switch(kind(o)) {
+            case JSSA.NODE_DEF: case JSSA.NODE_GOTO: break;
+            case JSSA.NODE_IF: {
+                int[] pushed = new int[2];
+                condition(ssa.operand(o, 0), false, pushed);
+                for(int j=0; j<2 && pushed[j] != -1; j++) if (!walk(pushed[j])) break;
+                break;
+            }
+            default:
+                for(int j=0; j<ssa.numOperands(o); j++) {
+                    int e = ssa.operand(o, j);
+                    if (j == 0 && initOf[e] == o) { addScratch(~e, E_KEPT); continue; }
+                    if (!walk(e)) break;
+                }
+        }
+        int len = scratchLen;
+        while(len > 0 && scratchKinds[len-1] != E_KEPT) len--;
+        int[] ev = new int[len];
+        byte[] ek = new byte[len];
+        System.arraycopy(scratch, 0, ev, 0, len);
+        System.arraycopy(scratchKinds, 0, ek, 0, len);
+        int n = usable(ev, ek, opBlock[o]);
+        if (n < len) {
+            int[] a = new int[n]; System.arraycopy(ev, 0, a, 0, n); ev = a;
+            byte[] k = new byte[n]; System.arraycopy(ek, 0, k, 0, n); ek = k;
+        }
+        // what they leave on the stack
+        int[] p = new int[n];
+        int sp = 0;
+        for(int j=0; j<n; j++) {
+            if (ek[j] == E_COMPUTE) sp -= ssa.numOperands(ev[j]);
+            p[sp++] = ev[j];
+        }
+        int[] a = new int[sp];
+        System.arraycopy(p, 0, a, 0, sp);
+        events[o] = ev;
+        eventKinds[o] = ek;
+        prefixIds[o] = a;
+    }
+
+    /** How many of events <i>ev</i> of an op of block <i>b</i> can be had: everything pushed has to have its value by
+        the time it is pushed */
+    private int usable(int[] ev, byte[] ek, int b) {
+        int prev = -1;
+        for(int j=0; j<ev.length; j++) {
+            if (ek[j] != E_KEPT) continue;
+            if (prev != -1 && canFollow(ev[prev])) {
+                int at = (ev[prev] < 0 ? opIndex[~ev[prev]] : opIndex[ev[prev]]) + 1;
+                for(int i=prev+1; i<j; i++) if (ek[i] == E_PUSH && !available(ev[i], at, b)) return prev+1;
+            } else {
+                int at = pushPoint(ev[j]);
+                for(int i=prev+1; i<j; i++) {
+                    if (ek[i] == E_COMPUTE && prev != -1) return prev+1;
+                    if (ek[i] == E_PUSH && (at == -1 || !available(ev[i], at, b))) return prev+1;
+                }
+            }
+            prev = j;
+        }
+        return ev.length;
+    }
+
+    private boolean walk(int e) {
+        if (mode[e] == M_STACK) { addScratch(e, E_KEPT); return true; }
+        if (movable(e)) { addScratch(e, E_PUSH); return true; }
+        if (mode[e] != M_INLINE) return false;
+        for(int j=0; j<ssa.numOperands(e); j++) if (!walk(ssa.operand(e, j))) return false;
+        addScratch(e, E_COMPUTE);
+        return true;
+    }
+
+    private void addScratch(int e, byte k) {
+        if (scratchLen == scratch.length) {
+            int[] a = new int[scratchLen * 2]; System.arraycopy(scratch, 0, a, 0, scratchLen); scratch = a;
+            byte[] ka = new byte[scratchLen * 2]; System.arraycopy(scratchKinds, 0, ka, 0, scratchLen); scratchKinds = ka;
+        }
+        scratch[scratchLen] = e;
+        scratchKinds[scratchLen++] = k;
+    }
+
+    /** Whether the value of <i>e</i> can be pushed ahead of time: it is a constant, in a register or an expression
+        of those */
+    private boolean movable(int e) {
+        switch(mode[e]) {
+            case M_CONST: case M_LOCAL: case M_COMPUTED: return true;
+            case M_INLINE:
+                for(int j=0; j<ssa.numOperands(e); j++) if (!movable(ssa.operand(e, j))) return false;
+                return true;
+        }
+        return false;
+    }
+
+    /** The index in the ops of its block of the op before which what goes below kept value <i>e</i> is pushed, -1
+        if nothing can go below it (a catch is there when the block is entered) */
+    private int pushPoint(int e) {
+        if (e < 0) return opIndex[~e];
+        if (kind(e) == JSSA.NODE_CATCH) return -1;
+        int[] ev = eventsOf(e);
+        int f = firstKept(ev, eventKinds[e]);
+        return f == -1 ? opIndex[e] : pushPoint(ev[f]);
+    }
+
+    /** Whether movable value <i>e</i> has its value before op <i>at</i> of block <i>b</i> */
+    private boolean available(int e, int at, int b) {
+        switch(mode[e]) {
+            case M_CONST: return true;
+            case M_COMPUTED: return place[e] != b;
+            case M_INLINE:
+                for(int j=0; j<ssa.numOperands(e); j++) if (!available(ssa.operand(e, j), at, b)) return false;
+                return true;
+            case M_LOCAL:
+                switch(kind(e)) {
+                    case JSSA.NODE_PHI: case JSSA.NODE_ARGUMENT: case JSSA.NODE_CATCH: return true;
+                    case JSSA.NODE_NEW: return opBlock[e] != b || opIndex[initOf[e]] < at;
+                }
+                return opBlock[e] != b || opIndex[e] < at;
+        }
+        return false;
+    }
+
+    // Generation //////////////////////////////////////////////////////////////////////////////
+
+    private void emit(byte op, Object arg, int iarg) {
+        if (size == code.length) {
+            byte[] c = new byte[size * 2]; System.arraycopy(code, 0, c, 0, size); code = c;
+            Object[] a = new Object[size * 2]; System.arraycopy(args, 0, a, 0, size); args = a;
+            int[] ia = new int[size * 2]; System.arraycopy(iargs, 0, ia, 0, size); iargs = ia;
+        }
+        code[size] = op;
+        args[size] = arg;
+        iargs[size] = iarg;
+        size++;
+    }
+    private void emit(byte op) { emit(op, null, 0); }
+    private void emit(byte op, Object arg) { emit(op, arg, 0); }
+    private void emit(byte op, int iarg) { emit(op, null, iarg); }
+
+    private static boolean isLocalOp(byte op) { return (op >= ILOAD && op <= ALOAD) || (op >= ISTORE && op <= ASTORE); }
+    private static boolean isStore(byte op) { return op >= ISTORE && op <= ASTORE; }
+
+    /** The type of the register for a value of type <i>t</i> (its kind, and Object for references) */
+    private static Type registerType(Type t) {
+        if (t == null || t == Type.VOID) return null;
+        if (t == Type.NULL || t.isRef()) return Type.OBJECT;
+        return JSSA.kind(t);
+    }
+
+    /** 0 to 4 for int, long, float, double and references, the order the typed instructions come in */
+    private static int typeIndex(Type t) {
+        if (t == Type.INT) return 0;
+        if (t == Type.LONG) return 1;
+        if (t == Type.FLOAT) return 2;
+        if (t == Type.DOUBLE) return 3;
+        if (t == Type.OBJECT) return 4;
+        throw new Unsupported("type " + t);
+    }
+
+    private int newVreg(Type t, int slot) {
+        if (numVregs == vregType.length) {
+            Type[] a = new Type[numVregs * 2]; System.arraycopy(vregType, 0, a, 0, numVregs); vregType = a;
+            int[] s = new int[numVregs * 2]; System.arraycopy(fixedSlot, 0, s, 0, numVregs); fixedSlot = s;
+        }
+        vregType[numVregs] = t;
+        fixedSlot[numVregs] = slot;
+        return numVregs++;
+    }
+
+    private int vreg(int id) {
+        if (vreg[id] != -1) return vreg[id];
+        Type t = registerType(ssa.typeOf(id));
+        if (t == null) throw new Unsupported("no type for " + id);
+        int slot = -1;
+        if (kind(id) == JSSA.NODE_ARGUMENT) {
+            slot = ssa.aux[id];
+            if (slot < 0) throw new Unsupported("argument");
+        }
+        return vreg[id] = newVreg(t, slot);
+    }
+
+    private void load(int r) { emit((byte)(ILOAD + typeIndex(vregType[r])), r); }
+    private void store(int r) { emit((byte)(ISTORE + typeIndex(vregType[r])), r); }
+
+    private int width(int id) { Type t = ssa.typeOf(id); return t == Type.LONG || t == Type.DOUBLE ? 2 : 1; }
+
+    private void generate() {
+        // the Phis of the first block get the values they have on entry before it
+        if (phis[0].length > 0) copies(-1, 0);
+        for(int b=0; b<numBlocks; b++) {
+            if (!reachable(b)) continue;
+            int next = b+1;
+            while(next < numBlocks && !reachable(next)) next++;
+            block(b, next < numBlocks ? next : -1);
+            // the copies of the edges go in the first place nothing falls into, near where they are used
+            if (size > 0 && !Frames.fallsThrough(code[size-1])) edgeBlocks();
+        }
+        edgeBlocks();
+    }
+
+    /** the edges whose blocks of copies have been generated */
+    private int edgesDone;
+
+    private void edgeBlocks() {
+        curBlock = -1;
+        for(; edgesDone<numLabels; edgesDone++) {
+            int l = edgesDone;
+            labelPos[l] = size;
+            copies(edgeFrom[l-numBlocks], edgeTo[l-numBlocks]);
+            emit(GOTO, edgeTo[l-numBlocks]);
+        }
+    }
+
+    private void block(int b, int next) {
+        curBlock = b;
+        labelPos[b] = size;
+        int c = catchOf[b];
+        if (c != -1 || ssa.isHandler(b)) {
+            if (c == -1 || mode[c] == M_NONE) emit(POP);
+            else if (mode[c] == M_LOCAL) store(vreg(c));
+        }
+        // the values the Phis of the handlers covering b have when it is entered
+        for(int j=0; j<cfg.numExnSuccessors(b); j++) {
+            int h = cfg.exnSuccessor(b, j);
+            if (phis[h].length == 0 || !needsEntryStores(b, h)) continue;
+            for(int i=0; i<phis[h].length; i++) {
+                int w = phis[h][i], in = ssa.operand(w, handlerInput(w, h, b));
+                if (in == w) continue;
+                copyValue(w, in);
+                store(vreg(w));
+            }
+        }
+        rangeStart[b] = size;
+
+        int end = ssa.endOp[b];
+        int term = end > ssa.firstOp[b] ? ssa.ops[end-1] : -1;
+        if (term != -1 && !isTerminator(kind(term))) term = -1;
+        if (term != -1) end--;
+        for(int i=ssa.firstOp[b]; i<end; i++) op(ssa.ops[i]);
+        // the values computed in b whose uses all come later
+        for(int id = firstComputed[b]; id != -1; id = nextComputed[id])
+            if (!done[id]) { compute(id); store(vreg(id)); done[id] = true; }
+
+        int fall = b+1;
+        switch(term == -1 ? -1 : kind(term)) {
+            case JSSA.NODE_RETURN: case JSSA.NODE_THROW:
+                op(term);
+                break;
+            case JSSA.NODE_GOTO: {
+                int s = cfg.blockOf(ssa.aux[ssa.operand(term, 0)]);
+                copies(b, s);
+                if (s != next) emit(GOTO, s);
+                break;
+            }
+            case JSSA.NODE_IF: {
+                int s = cfg.blockOf(ssa.aux[ssa.operand(term, 1)]);
+                startOp(term);
+                int[] pushed = new int[2];
+                byte op = condition(ssa.operand(term, 0), false, pushed);
+                for(int j=0; j<2 && pushed[j] != -1; j++) value(pushed[j]);
+                endOp();
+                emit(op, edge(b, s));
+                copies(b, fall);
+                if (fall != next) emit(GOTO, fall);
+                break;
+            }
+            case JSSA.NODE_SWITCH: {
+                MethodGen.Switch si = (MethodGen.Switch) ssa.data[term];
+                MethodGen.Switch ns;
+                if (si instanceof MethodGen.Switch.Table) {
+                    MethodGen.Switch.Table t = (MethodGen.Switch.Table) si;
+                    ns = new MethodGen.Switch.Table(t.lo, t.hi);
+                } else {
+                    MethodGen.Switch.Lookup l = (MethodGen.Switch.Lookup) si, nl = new MethodGen.Switch.Lookup(l.size());
+                    for(int j=0; j<l.size(); j++) nl.setVal(j, l.vals[j]);
+                    ns = nl;
+                }
+                for(int j=0; j<si.size(); j++) ns.setTarget(j, edge(b, cfg.blockOf(si.getTarget(j))));
+                ns.setDefaultTarget(edge(b, cfg.blockOf(si.getDefaultTarget())));
+                startOp(term);
+                value(ssa.operand(term, 0));
+                endOp();
+                emit(si instanceof MethodGen.Switch.Table ? TABLESWITCH : LOOKUPSWITCH, ns);
+                break;
+            }
+            default:
+                if (fall >= numBlocks) throw new Unsupported("falls off the end");
+                copies(b, fall);
+                if (fall != next) emit(GOTO, fall);
+        }
+        blockEnd[b] = size;
+    }
+
+    private static boolean isTerminator(byte k) {
+        return k == JSSA.NODE_GOTO || k == JSSA.NODE_IF || k == JSSA.NODE_SWITCH || k == JSSA.NODE_RETURN || k == JSSA.NODE_THROW;
+    }
+
+    /** The label to branch to for the edge from <i>p</i> to <i>s</i>, which p isn't the only way out of */
+    private int edge(int p, int s) {
+        if (!needsCopies(p, s)) return s;
+        // an edge with the same copies into s can share its block
+        int at = input(s, p);
+        for(int l=numBlocks; l<numLabels; l++) {
+            if (edgeTo[l-numBlocks] != s) continue;
+            int q = input(s, edgeFrom[l-numBlocks]);
+            boolean same = true;
+            for(int i=0; i<phis[s].length && same; i++) if (ssa.operand(phis[s][i], at) != ssa.operand(phis[s][i], q)) same = false;
+            if (same) return l;
+        }
+        if (numLabels == labelPos.length) { int[] a = new int[numLabels * 2]; System.arraycopy(labelPos, 0, a, 0, numLabels); labelPos = a; }
+        if (numLabels - numBlocks == edgeFrom.length) {
+            int[] a = new int[edgeFrom.length * 2]; System.arraycopy(edgeFrom, 0, a, 0, edgeFrom.length); edgeFrom = a;
+            a = new int[edgeTo.length * 2]; System.arraycopy(edgeTo, 0, a, 0, edgeTo.length); edgeTo = a;
+        }
+        edgeFrom[numLabels - numBlocks] = p;
+        edgeTo[numLabels - numBlocks] = s;
+        return numLabels++;
+    }
+
+    private boolean needsCopies(int p, int s) {
+        if (phis[s].length == 0) return false;
+        int at = input(s, p);
+        for(int i=0; i<phis[s].length; i++) if (ssa.operand(phis[s][i], at) != phis[s][i]) return true;
+        return false;
+    }
+
+    /** The copies into the Phis of <i>s</i> for the edge from <i>p</i> (-1 for the entry of the method). They are
+        done one at a time in an order where no Phi is stored to before the copies reading it; the ones left in a
+        cycle have all their values pushed before any is stored. */
+    private void copies(int p, int s) {
+        if (phis[s].length == 0) return;
+        int at = p == -1 ? 0 : input(s, p);
+        int n = 0;
+        int[] dst = new int[phis[s].length];
+        for(int i=0; i<phis[s].length; i++) if (ssa.operand(phis[s][i], at) != phis[s][i]) dst[n++] = phis[s][i];
+        for(boolean progress = true; progress; ) {
+            progress = false;
+            for(int i=0; i<n; i++) {
+                boolean read = false;
+                for(int j=0; j<n && !read; j++) if (j != i && reads(ssa.operand(dst[j], at), dst[i])) read = true;
+                if (read) continue;
+                copyValue(dst[i], ssa.operand(dst[i], at));
+                store(vreg(dst[i]));
+                n = remove(dst, n, i--);
+                progress = true;
+            }
+        }
+        for(int i=0; i<n; i++) copyValue(dst[i], ssa.operand(dst[i], at));
+        while(n > 0) store(vreg(dst[--n]));
+    }
+
+    private static int remove(int[] a, int n, int j) {
+        System.arraycopy(a, j+1, a, j, n-j-1);
+        return n-1;
+    }
+
+    /** Whether pushing the value of <i>e</i> loads the register of Phi <i>w</i> */
+    private boolean reads(int e, int w) {
+        if (e == w) return true;
+        if (mode[e] != M_INLINE) return false;
+        for(int j=0; j<ssa.numOperands(e); j++) if (reads(ssa.operand(e, j), w)) return true;
+        return false;
+    }
+
+    private void copyValue(int w, int in) {
+        if (kind(in) != JSSA.NODE_UNDEFINED) { value(in); return; }
+        switch(typeIndex(registerType(ssa.typeOf(w)))) {
+            case 0: emit(ICONST_0); break;
+            case 1: emit(LCONST_0); break;
+            case 2: emit(FCONST_0); break;
+            case 3: emit(DCONST_0); break;
+            default: emit(ACONST_NULL);
+        }
+    }
+
+    private void startOp(int o) {
+        eventsOf(o);
+        prefix = prefixIds[o];
+        prefixLen = prefix.length;
+        cursor = 0;
+    }
+
+    private void endOp() {
+        if (cursor != prefixLen) throw new Error("should never happen");
+        prefixLen = 0;
+    }
+
+    /** The code for op <i>o</i> (a Seq'd expression's value is kept as its mode says) */
+    private void op(int o) {
+        byte k = kind(o);
+        if (k == JSSA.NODE_DEF) {
+            // the value goes into the Phis of the handlers for the variable
+            int b = opBlock[o], v = ssa.aux[o], e = ssa.operand(o, 0);
+            for(int j=0; j<cfg.numExnSuccessors(b); j++) {
+                int h = cfg.exnSuccessor(b, j);
+                for(int i=0; i<phis[h].length; i++) {
+                    int w = phis[h][i];
+                    if (ssa.phiVar[ssa.aux[w]] != v || e == w) continue;
+                    value(e);
+                    store(vreg(w));
+                }
+            }
+            return;
+        }
+        if (mode[o] == M_STACK && firstKept(eventsOf(o), eventKinds[o]) == -1) groupStart(o, false);
+        startOp(o);
+        switch(k) {
+            case JSSA.NODE_PUT: {
+                Object f = ssa.data[o];
+                for(int j=0; j<ssa.numOperands(o); j++) value(ssa.operand(o, j));
+                emit(ssa.numOperands(o) == 1 ? PUTSTATIC : PUTFIELD, f);
+                break;
+            }
+            case JSSA.NODE_ARRAYPUT: {
+                int a = ssa.operand(o, 0), v = ssa.operand(o, 2);
+                value(a); value(ssa.operand(o, 1)); value(v);
+                Type t = ssa.types[o];
+                if (t == null) {
+                    Type at = ssa.typeOf(a);
+                    if (at != null && at.isArray()) t = at.asArray().getElementType();
+                    else if (registerType(ssa.typeOf(v)) != Type.INT) t = registerType(ssa.typeOf(v));
+                    else throw new Unsupported("array type");
+                }
+                emit(arrayOp(IASTORE, t));
+                break;
+            }
+            case JSSA.NODE_MONITORENTER: value(ssa.operand(o, 0)); emit(MONITORENTER); break;
+            case JSSA.NODE_MONITOREXIT: value(ssa.operand(o, 0)); emit(MONITOREXIT); break;
+            case JSSA.NODE_THROW: value(ssa.operand(o, 0)); emit(ATHROW); break;
+            case JSSA.NODE_RETURN:
+                if (ssa.numOperands(o) == 0) { emit(RETURN); break; }
+                value(ssa.operand(o, 0));
+                emit((byte)(IRETURN + typeIndex(registerType(ssa.method.getReturnType()))));
+                break;
+            default:
+                if (JSSA.isOp(k)) throw new Unsupported("op " + k);
+                // a Seq'd expression
+                compute(o);
+                if (k == JSSA.NODE_NEW) {
+                    if (uses[o] > 0) emit(DUP);
+                } else if (mode[o] == M_NONE) {
+                    Type t = ssa.typeOf(o);
+                    if (t != Type.VOID) emit(width(o) == 2 ? POP2 : POP);
+                } else if (mode[o] == M_LOCAL) {
+                    store(vreg(o));
+                }
+        }
+        endOp();
+        if (mode[o] == M_STACK) after(o, false);
+        if (k == JSSA.NODE_NEW) after(~o, false);
+        // the object a constructor was called on is left for its uses
+        if (k == JSSA.NODE_INVOKESPECIAL) {
+            int n = ssa.numOperands(o) > 0 ? ssa.operand(o, 0) : -1;
+            if (n != -1 && initOf[n] == o && mode[n] == M_LOCAL) store(vreg(n));
+        }
+    }
+
+    /** The code pushing the value of <i>id</i> */
+    private void value(int id) {
+        if (cursor < prefixLen && prefix[cursor] == id) { cursor++; return; }
+        switch(mode[id]) {
+            case M_CONST: constant(ssa.data[id]); return;
+            case M_INLINE: compute(id); return;
+            case M_COMPUTED:
+                if (place[id] == curBlock && !done[id]) {
+                    compute(id);
+                    emit(width(id) == 2 ? DUP2 : DUP);
+                    store(vreg(id));
+                    done[id] = true;
+                } else {
+                    load(vreg(id));
+                }
+                return;
+            case M_LOCAL: load(vreg(id)); return;
+            case M_STACK: throw new Error("should never happen");
+        }
+        throw new Unsupported("value of " + id);
+    }
+
+    private void constant(Object o) {
+        if (o == null) { emit(ACONST_NULL); return; }
+        if (o instanceof Character) o = Integer.valueOf(((Character)o).charValue());
+        else if (o instanceof Boolean) o = Integer.valueOf(((Boolean)o).booleanValue() ? 1 : 0);
+        else if (o instanceof Byte || o instanceof Short) o = Integer.valueOf(((Number)o).intValue());
+        if (o instanceof Float) {
+            int bits = Float.floatToIntBits(((Float)o).floatValue());
+            if (bits == Float.floatToIntBits(0f)) { emit(FCONST_0); return; }
+            if (bits == Float.floatToIntBits(1f)) { emit(FCONST_1); return; }
+            if (bits == Float.floatToIntBits(2f)) { emit(FCONST_2); return; }
+        } else if (o instanceof Double) {
+            long bits = Double.doubleToLongBits(((Double)o).doubleValue());
+            if (bits == Double.doubleToLongBits(0d)) { emit(DCONST_0); return; }
+            if (bits == Double.doubleToLongBits(1d)) { emit(DCONST_1); return; }
+        }
+        emit(LDC, o);
+    }
+
+    private static byte arrayOp(byte base, Type t) {
+        if (t == Type.INT) return base;
+        if (t == Type.LONG) return (byte)(base + 1);
+        if (t == Type.FLOAT) return (byte)(base + 2);
+        if (t == Type.DOUBLE) return (byte)(base + 3);
+        if (t == Type.BYTE || t == Type.BOOLEAN) return (byte)(base + 5);
+        if (t == Type.CHAR) return (byte)(base + 6);
+        if (t == Type.SHORT) return (byte)(base + 7);
+        return (byte)(base + 4);
+    }
+
+    /** Works out the branch for condition <i>c</i> (negated if <i>negate</i>), putting the values it compares in
+        <i>pushed</i> (-1 where there are fewer than two) */
+    private byte condition(int c, boolean negate, int[] pushed) {
+        while(kind(c) == JSSA.NODE_NOT && mode[c] == M_COND) { negate = !negate; c = ssa.operand(c, 0); }
+        pushed[0] = pushed[1] = -1;
+        byte k = kind(c);
+        if (mode[c] != M_COND || k == JSSA.NODE_NOT) {
+            pushed[0] = c;
+            return negate ? IFEQ : IFNE;
+        }
+        int a = ssa.operand(c, 0), b = ssa.operand(c, 1);
+        if (k == JSSA.NODE_EQ) {
+            if (isNull(a)) { int t = a; a = b; b = t; }
+            if (isNull(b)) { pushed[0] = a; return negate ? IFNONNULL : IFNULL; }
+            if (isZero(a)) { int t = a; a = b; b = t; }
+            boolean ref = isRef(a) || isRef(b);
+            pushed[0] = a;
+            if (!ref && isZero(b)) return negate ? IFNE : IFEQ;
+            pushed[1] = b;
+            if (ref) return negate ? IF_ACMPNE : IF_ACMPEQ;
+            return negate ? IF_ICMPNE : IF_ICMPEQ;
+        }
+        // GT, LT, GE and LE; the negation of each is the one at the other end (LE of GT, GE of LT)
+        int n = k - JSSA.NODE_GT;
+        if (negate) n = 3 - n;
+        byte[] zero = { IFGT, IFLT, IFGE, IFLE };
+        byte[] two = { IF_ICMPGT, IF_ICMPLT, IF_ICMPGE, IF_ICMPLE };
+        pushed[0] = a;
+        if (isZero(b)) return zero[n];
+        pushed[1] = b;
+        return two[n];
+    }
+
+    private boolean isNull(int id) { return kind(id) == JSSA.NODE_CONSTANT && ssa.data[id] == null; }
+    private boolean isZero(int id) {
+        if (kind(id) != JSSA.NODE_CONSTANT) return false;
+        Object o = ssa.data[id];
+        return o instanceof Integer && ((Integer)o).intValue() == 0;
+    }
+    private boolean isRef(int id) { Type t = ssa.typeOf(id); return t != null && (t == Type.NULL || t.isRef()); }
+
+    /** The code computing expression <i>id</i> from its operands */
+    private void compute(int id) {
+        byte k = kind(id);
+        int n = ssa.numOperands(id);
+        switch(k) {
+            case JSSA.NODE_NEG:
+                value(ssa.operand(id, 0));
+                emit((byte)(INEG + typeIndex(registerType(ssa.typeOf(id)))));
+                return;
+            case JSSA.NODE_ADD: case JSSA.NODE_SUB: case JSSA.NODE_MUL: case JSSA.NODE_DIV: case JSSA.NODE_REM:
+            case JSSA.NODE_AND: case JSSA.NODE_OR: case JSSA.NODE_XOR: {
+                value(ssa.operand(id, 0)); value(ssa.operand(id, 1));
+                int t = typeIndex(registerType(ssa.typeOf(id)));
+                byte[] base = { IADD, ISUB, IMUL, IREM, IDIV, IAND, IOR, IXOR };
+                int j = k <= JSSA.NODE_REM ? k - JSSA.NODE_ADD : 5 + k - JSSA.NODE_AND;
+                if (j >= 5 && t > 1) throw new Unsupported("logic on " + ssa.typeOf(id));
+                emit((byte)(base[j] + t));
+                return;
+            }
+            case JSSA.NODE_SHL: case JSSA.NODE_SHR: case JSSA.NODE_USHR: {
+                value(ssa.operand(id, 0)); value(ssa.operand(id, 1));
+                int t = typeIndex(registerType(ssa.typeOf(ssa.operand(id, 0))));
+                byte base = k == JSSA.NODE_SHL ? ISHL : k == JSSA.NODE_SHR ? ISHR : IUSHR;
+                emit((byte)(base + t));
+                return;
+            }
+            case JSSA.NODE_CMP: {
+                value(ssa.operand(id, 0)); value(ssa.operand(id, 1));
+                Type t = registerType(ssa.typeOf(ssa.operand(id, 0)));
+                boolean g = ssa.aux[id] > 0;
+                if (t == Type.LONG) emit(LCMP);
+                else if (t == Type.FLOAT) emit(g ? FCMPG : FCMPL);
+                else if (t == Type.DOUBLE) emit(g ? DCMPG : DCMPL);
+                else throw new Unsupported("cmp");
+                return;
+            }
+            case JSSA.NODE_CAST: value(ssa.operand(id, 0)); convert(ssa.operand(id, 0), ssa.types[id]); return;
+            case JSSA.NODE_INSTANCEOF: value(ssa.operand(id, 0)); emit(INSTANCEOF, ssa.data[id]); return;
+            case JSSA.NODE_NEW: emit(NEW, ssa.types[id]); return;
+            case JSSA.NODE_NEWARRAY: {
+                for(int j=0; j<n; j++) value(ssa.operand(id, j));
+                Type.Array t = (Type.Array) ssa.types[id];
+                if (n > 1) emit(MULTIANEWARRAY, new MethodGen.MultiANewArray(t, n));
+                else if (t.getElementType().isRef()) emit(ANEWARRAY, t.getElementType());
+                else emit(NEWARRAY, t.getElementType());
+                return;
+            }
+            case JSSA.NODE_GET:
+                if (n > 0) value(ssa.operand(id, 0));
+                emit(n > 0 ? GETFIELD : GETSTATIC, ssa.data[id]);
+                return;
+            case JSSA.NODE_ARRAYGET:
+                value(ssa.operand(id, 0)); value(ssa.operand(id, 1));
+                emit(arrayOp(IALOAD, ssa.types[id]));
+                return;
+            case JSSA.NODE_ARRAYLENGTH: value(ssa.operand(id, 0)); emit(ARRAYLENGTH); return;
+            case JSSA.NODE_INVOKESTATIC: case JSSA.NODE_INVOKEVIRTUAL: case JSSA.NODE_INVOKESPECIAL:
+            case JSSA.NODE_INVOKEINTERFACE: {
+                for(int j=0; j<n; j++) {
+                    int e = ssa.operand(id, j);
+                    if (j == 0 && initOf[e] == id) {
+                        if (cursor >= prefixLen || prefix[cursor] != ~e) throw new Error("should never happen");
+                        cursor++;
+                    } else {
+                        value(e);
+                    }
+                }
+                byte op = k == JSSA.NODE_INVOKESTATIC ? INVOKESTATIC : k == JSSA.NODE_INVOKEVIRTUAL ? INVOKEVIRTUAL :
+                    k == JSSA.NODE_INVOKESPECIAL ? INVOKESPECIAL : INVOKEINTERFACE;
+                emit(op, ssa.data[id]);
+                return;
+            }
+        }
+        throw new Unsupported("expression " + k);
+    }
+
+    /** The conversion of the value of <i>e</i> (already pushed) to <i>t</i>, if it needs one */
+    private void convert(int e, Type t) {
+        Type et = ssa.typeOf(e);
+        if (t.isRef()) {
+            if (et != t && et != Type.NULL) emit(CHECKCAST, t);
+            return;
+        }
+        Type from = registerType(et), to = registerType(t);
+        if (from == null || from == Type.OBJECT) throw new Unsupported("cast from " + et);
+        if (from != to) {
+            int f = typeIndex(from), d = typeIndex(to);
+            emit((byte)(I2L + f*3 + (d < f ? d : d - 1)));
+        }
+        if (to != Type.INT || t == Type.INT || t == Type.BOOLEAN) return;
+        if (from == Type.INT && fits(narrowest(e), t)) return;
+        emit(t == Type.BYTE ? I2B : t == Type.CHAR ? I2C : I2S);
+    }
+
+    /** The narrowest int type the value of <i>e</i> is sure to fit */
+    private Type narrowest(int e) {
+        switch(kind(e)) {
+            case JSSA.NODE_CAST: case JSSA.NODE_ARRAYGET: case JSSA.NODE_GET: return ssa.typeOf(e);
+            case JSSA.NODE_CONSTANT: {
+                Object o = ssa.data[e];
+                if (o instanceof Boolean) return Type.BOOLEAN;
+                if (o instanceof Character) return Type.CHAR;
+                if (!(o instanceof Number)) return Type.INT;
+                int v = ((Number)o).intValue();
+                if (v == 0 || v == 1) return Type.BOOLEAN;
+                if (v == (byte) v) return Type.BYTE;
+                if (v == (char) v) return Type.CHAR;
+                if (v == (short) v) return Type.SHORT;
+                return Type.INT;
+            }
+        }
+        return Type.INT;
+    }
+
+    private static boolean fits(Type s, Type t) {
+        if (s == t || s == Type.BOOLEAN) return true;
+        return t == Type.SHORT && s == Type.BYTE;
+    }
+
+    // Allocation //////////////////////////////////////////////////////////////////////////////
+
+    // the exception ranges of the generated code: start, end (exclusive), handler label and type
+    private int[] exnStart = new int[8], exnEnd = new int[8], exnHandler = new int[8];
+    private Type.Class[] exnType = new Type.Class[8];
+    private int numExns;
+
+    private void addRange(int start, int end, int handler, Type.Class type) {
+        if (numExns > 0 && exnEnd[numExns-1] == start && exnHandler[numExns-1] == handler && exnType[numExns-1] == type) {
+            exnEnd[numExns-1] = end;
+            return;
+        }
+        if (numExns == exnStart.length) {
+            int[] a = new int[numExns * 2]; System.arraycopy(exnStart, 0, a, 0, numExns); exnStart = a;
+            a = new int[numExns * 2]; System.arraycopy(exnEnd, 0, a, 0, numExns); exnEnd = a;
+            a = new int[numExns * 2]; System.arraycopy(exnHandler, 0, a, 0, numExns); exnHandler = a;
+            Type.Class[] t = new Type.Class[numExns * 2]; System.arraycopy(exnType, 0, t, 0, numExns); exnType = t;
+        }
+        exnStart[numExns] = start;
+        exnEnd[numExns] = end;
+        exnHandler[numExns] = handler;
+        exnType[numExns] = type;
+        numExns++;
+    }
+
+    /** The exception table of the generated code: each entry of the original covers the code of the blocks it
+        covered, less the stores entering them, in the same order so the same handler is found first */
+    private void exceptionRanges() {
+        for(int i=0; i<ssa.exnTable.size(); i++) {
+            MethodGen.ExnTableEnt e = (MethodGen.ExnTableEnt) ssa.exnTable.elementAt(i);
+            int h = cfg.blockOf(e.handler);
+            if (!reachable(h)) continue;
+            for(int b = cfg.blockOf(e.start); b < numBlocks && cfg.blockStart(b) < e.end; b++)
+                if (reachable(b) && rangeStart[b] < blockEnd[b]) addRange(rangeStart[b], blockEnd[b], h, e.type);
+        }
+    }
+
+    private int target(int label) { return labelPos[label]; }
+
+    /** Whether something branches to each instruction */
+    private boolean[] labels() {
+        boolean[] label = new boolean[size + 1];
+        for(int l=0; l<numLabels; l++) if (l >= numBlocks || reachable(l)) label[labelPos[l]] = true;
+        return label;
+    }
+
+    /** Removes the instructions marked <i>gone</i>; what pointed at one points at the instruction after it */
+    private void compact(boolean[] gone) {
+        int[] at = new int[size + 1];
+        int n = 0;
+        for(int i=0; i<size; i++) {
+            at[i] = n;
+            if (gone[i]) continue;
+            code[n] = code[i]; args[n] = args[i]; iargs[n] = iargs[i];
+            n++;
+        }
+        at[size] = n;
+        for(int l=0; l<numLabels; l++) labelPos[l] = at[labelPos[l]];
+        for(int i=0; i<numExns; i++) { exnStart[i] = at[exnStart[i]]; exnEnd[i] = at[exnEnd[i]]; }
+        size = n;
+    }
+
+    /** Removes a store of a register followed by a load of it, when those are the only store and the only load */
+    private void removeStoreLoads() {
+        int[] stores = new int[numVregs], loads = new int[numVregs];
+        for(int i=0; i<size; i++) if (isLocalOp(code[i])) (isStore(code[i]) ? stores : loads)[iargs[i]]++;
+        boolean[] label = labels(), gone = new boolean[size];
+        boolean any = false;
+        for(int i=0; i+1<size; i++) {
+            int r = iargs[i];
+            if (!isStore(code[i]) || code[i+1] != code[i] - (ISTORE - ILOAD) || iargs[i+1] != r || label[i+1]) continue;
+            if (stores[r] != 1 || loads[r] != 1 || fixedSlot[r] != -1) continue;
+            gone[i] = gone[i+1] = any = true;
+            i++;
+        }
+        if (any) compact(gone);
+    }
+
+    /** Removes the copies of a slot to itself the allocation left and makes the additions of a constant to an int
+        local IINCs */
+    private void removeCopies() {
+        boolean[] label = labels(), gone = new boolean[size];
+        boolean any = false;
+        for(int i=0; i+1<size; i++) {
+            byte op = code[i];
+            if (op < ILOAD || op > ALOAD) continue;
+            if (code[i+1] == op + (ISTORE - ILOAD) && iargs[i+1] == iargs[i] && !label[i+1]) {
+                gone[i] = gone[i+1] = any = true;
+                i++;
+                continue;
+            }
+            if (op != ILOAD || i+3 >= size || code[i+3] != ISTORE || iargs[i+3] != iargs[i]) continue;
+            if (label[i+1] || label[i+2] || label[i+3] || code[i+1] != LDC || !(args[i+1] instanceof Integer)) continue;
+            if (code[i+2] != IADD && code[i+2] != ISUB) continue;
+            int c = ((Integer)args[i+1]).intValue();
+            if (code[i+2] == ISUB) c = -c;
+            if (c < -32768 || c > 32767) continue;
+            code[i] = IINC;
+            args[i] = new MethodGen.Pair(iargs[i], c);
+            gone[i+1] = gone[i+2] = gone[i+3] = any = true;
+            i += 3;
+        }
+        if (any) compact(gone);
+    }
+
+    /** Gives the registers slots; returns the number of slots used */
+    private int allocate() {
+        int n = size;
+        // the basic blocks of the generated code
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = leader[n] = true;
+        for(int l=0; l<numLabels; l++) if (l >= numBlocks || reachable(l)) leader[labelPos[l]] = true;
+        for(int i=0; i<n; i++)
+            if (MethodGen.OP_BRANCH(code[i]) || code[i] == TABLESWITCH || code[i] == LOOKUPSWITCH || !Frames.fallsThrough(code[i]))
+                leader[i+1] = true;
+        for(int i=0; i<numExns; i++) leader[exnStart[i]] = leader[exnEnd[i]] = true;
+        int numBBs = 0;
+        for(int i=0; i<n; i++) if (leader[i]) numBBs++;
+        int[] bbStart = new int[numBBs + 1], bbOf = new int[n];
+        for(int i=0, bb=-1; i<n; i++) {
+            if (leader[i]) bbStart[++bb] = i;
+            bbOf[i] = bb;
+        }
+        bbStart[numBBs] = n;
+
+        int[][] succ = new int[numBBs][];
+        for(int bb=0; bb<numBBs; bb++) {
+            int last = bbStart[bb+1] - 1;
+            byte op = code[last];
+            if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+                MethodGen.Switch si = (MethodGen.Switch) args[last];
+                succ[bb] = new int[si.size() + 1];
+                for(int j=0; j<si.size(); j++) succ[bb][j] = bbOf[target(si.getTarget(j))];
+                succ[bb][si.size()] = bbOf[target(si.getDefaultTarget())];
+            } else if (MethodGen.OP_BRANCH(op)) {
+                int t = bbOf[target(iargs[last])];
+                succ[bb] = op == GOTO || bb+1 == numBBs ? new int[] { t } : new int[] { t, bb+1 };
+            } else {
+                succ[bb] = Frames.fallsThrough(op) && bb+1 < numBBs ? new int[] { bb+1 } : new int[0];
+            }
+        }
+        int[][] handlers = new int[numBBs][];
+        int[] numHandlers = new int[numBBs];
+        for(int i=0; i<numExns; i++)
+            for(int bb=bbOf[exnStart[i]]; bb<numBBs && bbStart[bb]<exnEnd[i]; bb++) numHandlers[bb]++;
+        for(int bb=0; bb<numBBs; bb++) { handlers[bb] = new int[numHandlers[bb]]; numHandlers[bb] = 0; }
+        for(int i=0; i<numExns; i++)
+            for(int bb=bbOf[exnStart[i]]; bb<numBBs && bbStart[bb]<exnEnd[i]; bb++)
+                handlers[bb][numHandlers[bb]++] = bbOf[target(exnHandler[i])];
+
+        // liveness of the registers
+        BitSet[] gen = new BitSet[numBBs], kill = new BitSet[numBBs], in = new BitSet[numBBs], out = new BitSet[numBBs];
+        for(int bb=0; bb<numBBs; bb++) {
+            gen[bb] = new BitSet(); kill[bb] = new BitSet(); in[bb] = new BitSet(); out[bb] = new BitSet();
+            for(int i=bbStart[bb+1]-1; i>=bbStart[bb]; i--) {
+                if (!isLocalOp(code[i])) continue;
+                if (isStore(code[i])) { kill[bb].set(iargs[i]); gen[bb].clear(iargs[i]); }
+                else gen[bb].set(iargs[i]);
+            }
+        }
+        for(boolean changed = true; changed; ) {
+            changed = false;
+            for(int bb=numBBs-1; bb>=0; bb--) {
+                BitSet o = new BitSet();
+                for(int j=0; j<succ[bb].length; j++) o.or(in[succ[bb][j]]);
+                BitSet x = (BitSet) o.clone();
+                x.andNot(kill[bb]);
+                x.or(gen[bb]);
+                for(int j=0; j<handlers[bb].length; j++) x.or(in[handlers[bb][j]]);
+                if (!x.equals(in[bb]) || !o.equals(out[bb])) { in[bb] = x; out[bb] = o; changed = true; }
+            }
+        }
+
+        // one interval per register, from the first to the last instruction it is live at
+        int[] from = new int[numVregs], to = new int[numVregs];
+        Arrays.fill(from, Integer.MAX_VALUE);
+        Arrays.fill(to, -1);
+        for(int i=0; i<n; i++) if (isLocalOp(code[i])) extend(from, to, iargs[i], i, i);
+        for(int bb=0; bb<numBBs; bb++) {
+            int s = bbStart[bb], e = bbStart[bb+1] - 1;
+            for(int r = in[bb].nextSetBit(0); r >= 0; r = in[bb].nextSetBit(r+1)) extend(from, to, r, s, s);
+            for(int r = out[bb].nextSetBit(0); r >= 0; r = out[bb].nextSetBit(r+1)) extend(from, to, r, e, e);
+            for(int j=0; j<handlers[bb].length; j++) {
+                BitSet h = in[handlers[bb][j]];
+                for(int r = h.nextSetBit(0); r >= 0; r = h.nextSetBit(r+1)) extend(from, to, r, s, e);
+            }
+        }
+
+        // the registers copied to each other, which are best given the same slot so the copy goes away
+        int[] partner = new int[8], nextPartner = new int[8], firstPartner = new int[numVregs];
+        int numPartners = 0;
+        Arrays.fill(firstPartner, -1);
+        for(int i=0; i<n; i++) {
+            if (code[i] < ILOAD || code[i] > ALOAD) continue;
+            int j = i+1;
+            if (code[i] == ILOAD && i+3 < n && code[i+1] == LDC && (code[i+2] == IADD || code[i+2] == ISUB)) j = i+3;
+            if (j >= n || code[j] != code[i] + (ISTORE - ILOAD) || iargs[j] == iargs[i]) continue;
+            if (numPartners + 2 > partner.length) {
+                int[] a = new int[partner.length * 2]; System.arraycopy(partner, 0, a, 0, numPartners); partner = a;
+                a = new int[partner.length]; System.arraycopy(nextPartner, 0, a, 0, numPartners); nextPartner = a;
+            }
+            for(int k=0; k<2; k++) {
+                int a = iargs[k == 0 ? i : j], b = iargs[k == 0 ? j : i];
+                partner[numPartners] = b;
+                nextPartner[numPartners] = firstPartner[a];
+                firstPartner[a] = numPartners++;
+            }
+        }
+
+        // linear scan: the arguments first, where they arrive, then the rest by where they start
+        int[] slot = new int[numVregs];
+        Arrays.fill(slot, -1);
+        int[] busyUntil = new int[16];
+        Arrays.fill(busyUntil, -1);
+        int numSlots = ssa.isStatic() ? 0 : 1;
+        for(int j=0; j<ssa.method.getNumArgs(); j++) numSlots += Frames.width(ssa.method.getArgType(j));
+        Integer[] order = new Integer[numVregs];
+        int numOrder = 0;
+        for(int r=0; r<numVregs; r++) {
+            if (to[r] == -1) continue;
+            if (fixedSlot[r] == -1) { order[numOrder++] = Integer.valueOf(r); continue; }
+            from[r] = 0;
+            slot[r] = fixedSlot[r];
+            busyUntil = occupy(busyUntil, slot[r], width(vregType[r]), to[r]);
+        }
+        final int[] start = from;
+        Arrays.sort(order, 0, numOrder, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) { return start[a.intValue()] - start[b.intValue()]; }
+        });
+        for(int j=0; j<numOrder; j++) {
+            int r = order[j].intValue(), w = width(vregType[r]);
+            int s = -1;
+            for(int k = firstPartner[r]; k != -1 && s == -1; k = nextPartner[k]) {
+                int q = partner[k];
+                if (slot[q] != -1 && free(busyUntil, slot[q], w, from[r])) s = slot[q];
+            }
+            if (s == -1) for(s = 0; !free(busyUntil, s, w, from[r]); s++) { }
+            slot[r] = s;
+            busyUntil = occupy(busyUntil, s, w, to[r]);
+            numSlots = Math.max(numSlots, s + w);
+        }
+        for(int i=0; i<n; i++) if (isLocalOp(code[i])) iargs[i] = slot[iargs[i]];
+        return numSlots;
+    }
+
+    private static int width(Type t) { return t == Type.LONG || t == Type.DOUBLE ? 2 : 1; }
+
+    private static boolean free(int[] busyUntil, int s, int w, int from) {
+        for(int i=s; i<s+w; i++) if (i < busyUntil.length && busyUntil[i] >= from) return false;
+        return true;
+    }
+
+    private static void extend(int[] from, int[] to, int r, int a, int b) {
+        if (a < from[r]) from[r] = a;
+        if (b > to[r]) to[r] = b;
+    }
+
+    private static int[] occupy(int[] busyUntil, int s, int w, int until) {
+        if (s + w > busyUntil.length) {
+            int[] a = new int[Math.max(busyUntil.length * 2, s + w + 1)];
+            Arrays.fill(a, -1);
+            System.arraycopy(busyUntil, 0, a, 0, busyUntil.length);
+            busyUntil = a;
+        }
+        for(int i=0; i<w; i++) busyUntil[s+i] = until;
+        return busyUntil;
+    }
+
+    /** Replaces the code of the method with the generated code */
+    private void install(int numSlots) {
+        ssa.removeRange(0, ssa.size());
+        ssa.exnTable.setSize(0);
+        for(int i=0; i<size; i++) {
+            byte op = code[i];
+            if (isLocalOp(op) || MethodGen.OP_BRANCH(op)) {
+                ssa.add(op, MethodGen.OP_BRANCH(op) ? target(iargs[i]) : iargs[i]);
+            } else if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+                MethodGen.Switch si = (MethodGen.Switch) args[i];
+                for(int j=0; j<si.size(); j++) si.setTarget(j, target(si.getTarget(j)));
+                si.setDefaultTarget(target(si.getDefaultTarget()));
+                ssa.add(op, si);
+            } else if (args[i] != null) {
+                ssa.add(op, args[i]);
+            } else {
+                ssa.add(op);
+            }
+        }
+        for(int i=0; i<numExns; i++)
+            if (exnStart[i] < exnEnd[i]) ssa.addExceptionHandler(exnStart[i], exnEnd[i], target(exnHandler[i]), exnType[i]);
+        ssa.setMaxLocals(numSlots);
+    }
+}
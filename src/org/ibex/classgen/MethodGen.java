@@ -1,6 +1,7 @@
 package org.ibex.classgen;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /** A class representing a method in a generated classfile
@@ -11,49 +12,129 @@ public class MethodGen extends Type.Class.Method.Body {
     private static final int NO_CODE = -1;
 
     public final Type.Class.Method method;
-    private final ClassFile.AttrGen codeAttrs;
-    private final Vector<ExnTableEnt> exnTable = new Vector<ExnTableEnt>();
+    private ClassFile.AttrGen codeAttrs;
+    final Vector<ExnTableEnt> exnTable = new Vector<ExnTableEnt>();
     private final Hashtable<Type.Class,Type.Class> thrownExceptions = new Hashtable<Type.Class,Type.Class>();
     
-    int maxStack = 16;
+    int maxStack;
     int maxLocals;
     
     private int size;
     private int capacity;
     private byte[] op;
+    // Scalar operands (locals, push constants, array types and resolved branch targets) live in iarg, which never
+    // allocates. arg only holds the ones that have to be objects: cp refs, switches, PhantomTargets, Pair, Wide, etc.
     private Object[] arg;
+    private int[] iarg;
     private ConstantPool.Ent[] cparg;
+    private ControlFlowGraph cfg;
+    
+    // The Code attribute of a method that was read, and the pool it was read with. The code is only parsed when
+    // somebody looks at it, and until it is changed it is written out by copying these bytes (see CodeCopy).
+    private byte[] rawCode;
+    private ConstantPool rawCp;
+    private boolean unparsed;
 
-    public void insertBlank(int idx) {
-        for(int i=0;i<size();i++) {
+    // Editing //////////////////////////////////////////////////////////////////////////////
+    
+    /** Inserts a NOP before instruction <i>idx</i>
+        @see #insertRange(int, int) */
+    public void insertBlank(int idx) { insertRange(idx, 1); }
+    
+    /** Inserts <i>count</i> NOPs before instruction <i>idx</i>, to be overwritten with set(). Branches, switch targets
+        and exception handlers that pointed at an instruction still point at it afterwards, so a jump to <i>idx</i>
+        skips the new code. An exception range covers the new code only if <i>idx</i> is strictly inside it.
+        @see #insertRanges(int[], int[]) */
+    public void insertRange(int idx, int count) { insertRanges(new int[]{ idx }, new int[]{ count }); }
+    
+    /** Inserts <i>counts[k]</i> NOPs before instruction <i>at[k]</i> for every k. This relocates everything in a
+        single pass over the method, so it should be used instead of a series of insertRange() calls when there are
+        many insertions.
+        @param at The insertion points, in non-decreasing order (size() appends)
+        @exception IllegalArgumentException if the insertion points are out of order or out of range */
+    public void insertRanges(int[] at, int[] counts) {
+        code();
+        if (at.length != counts.length) throw new IllegalArgumentException("at.length != counts.length");
+        int total = 0;
+        for(int k=0;k<at.length;k++) {
+            if (at[k] < 0 || at[k] > size || (k > 0 && at[k] < at[k-1]) || counts[k] < 0)
+                throw new IllegalArgumentException("bad insertion point " + at[k] + "/" + size);
+            total += counts[k];
+        }
+        if (total == 0) return;
+        edit();
+        grow(size + total);
+        int[] map = new int[size+1];
+        for(int i=0, k=0, shift=0;i<=size;i++) {
+            while(k < at.length && at[k] == i) shift += counts[k++];
+            map[i] = i + shift;
+        }
+        relocate(map, true);
+        for(int i=size-1;i>=0;i--) {
+            int j = map[i];
+            if (j == i) break;
+            op[j] = op[i];
+            arg[j] = arg[i];
+            iarg[j] = iarg[i];
+        }
+        for(int i=0, j=0;i<=size;j = map[i++]+1)
+            for(;j<map[i];j++) { op[j] = NOP; arg[j] = null; iarg[j] = 0; }
+        size += total;
+    }
+    
+    /** Removes the <i>count</i> instructions starting at <i>idx</i>. Branches, switch targets and exception handlers
+        that pointed into the removed code point at the instruction after it, exception ranges shrink (and are dropped
+        if they become empty)
+        @exception IllegalArgumentException if the range is out of bounds */
+    public void removeRange(int idx, int count) {
+        code();
+        if (idx < 0 || count < 0 || idx + count > size) throw new IllegalArgumentException("bad range " + idx + "+" + count);
+        if (count == 0) return;
+        edit();
+        int[] map = new int[size+1];
+        for(int i=0;i<=size;i++) map[i] = i < idx ? i : i < idx + count ? idx : i - count;
+        relocate(map, false);
+        System.arraycopy(op, idx+count, op, idx, size-idx-count);
+        System.arraycopy(arg, idx+count, arg, idx, size-idx-count);
+        System.arraycopy(iarg, idx+count, iarg, idx, size-idx-count);
+        for(int i=size-count;i<size;i++) arg[i] = null;
+        size -= count;
+    }
+    
+    /** Rewrites every branch target, switch target and exception table entry with <i>map</i>, which takes each old
+        instruction index (and size()) to its new one. PhantomTargets are left alone. */
+    private void relocate(int[] map, boolean inserting) {
+        for(int i=0;i<size;i++) {
             switch(op[i]) {
                 case TABLESWITCH:
                 case LOOKUPSWITCH: {
                     Switch si = (Switch) arg[i];
-                    int pos = si.getDefaultTarget();
-                    if (pos >= idx) si.setDefaultTarget(pos+1);
-                    for(int j=0;j<si.size();j++) {
-                        pos = si.getTarget(j);
-                        if (pos >= idx) si.setTarget(j, pos+1);
-                    }
+                    for(int j=0;j<si.size();j++) si.targets[j] = relocate(map, si.targets[j]);
+                    si.defaultTarget = relocate(map, si.defaultTarget);
                     break;
                 }
                 default:
-                    if (OP_BRANCH(op[i])) {
-                        int pos = ((Integer)arg[i]).intValue();
-                        if (pos >= idx) arg[i] = N(pos+1);
-                    }
+                    if (OP_BRANCH(op[i]) && arg[i] == null && iarg[i] >= 0 && iarg[i] <= size) iarg[i] = map[iarg[i]];
                     break;
             }
         }
-        size++;
-        for(int i=size; i>idx; i--) {
-            op[i] = op[i-1];
-            arg[i] = arg[i-1];
-            cparg = null;
+        for(int i=0;i<exnTable.size();) {
+            ExnTableEnt e = (ExnTableEnt) exnTable.elementAt(i);
+            // when inserting, code added right before end isn't inside the range
+            int start = map[e.start], end = inserting && e.end > e.start ? map[e.end-1]+1 : map[e.end];
+            if (start >= end) { exnTable.removeElementAt(i); continue; }
+            exnTable.setElementAt(new ExnTableEnt(start, end, map[e.handler], e.type), i++);
         }
+        cparg = null;
+        cfg = null;
     }
-
+    
+    private static Object relocate(int[] map, Object target) {
+        if (!(target instanceof Integer)) return target;
+        int t = ((Integer)target).intValue();
+        return t >= 0 && t < map.length ? N(map[t]) : target;
+    }
+    
    
     // Constructors //////////////////////////////////////////////////////////////////////////////
 
@@ -62,7 +143,8 @@ public class MethodGen extends Type.Class.Method.Body {
         this.method = method;
         codeAttrs = new ClassFile.AttrGen();
         if (!isConcrete()) size = capacity = -1;
-        maxLocals = Math.max(method.getNumArgs() + (flags&STATIC)==0 ? 1 : 0, 4);
+        maxLocals = (flags&STATIC) == 0 ? 1 : 0;
+        for(int i=0;i<method.getNumArgs();i++) maxLocals += Frames.width(method.getArgType(i));
     }
 
     MethodGen(Type.Class c, DataInput in, ConstantPool cp) throws IOException {
@@ -75,26 +157,16 @@ public class MethodGen extends Type.Class.Method.Body {
         m.super(flags, new ClassFile.AttrGen(in,cp));
         this.method = m;
         
+        codeAttrs = new ClassFile.AttrGen();
         if (isConcrete())  {
             byte[] codeAttr = (byte[]) attrs.get("Code");
             if (codeAttr == null) throw new ClassFile.ClassReadExn("code attr expected");
-            DataInputStream ci = new DataInputStream(new ByteArrayInputStream(codeAttr));
-            maxStack = ci.readUnsignedShort();
-            maxLocals = ci.readUnsignedShort();
-            int codeLen = ci.readInt();
-            int[] bytecodeMap = parseCode(ci,codeLen,cp);
-            int numExns = ci.readUnsignedShort();
-            while(numExns-- > 0)
-                exnTable.addElement(new ExnTableEnt(ci,cp,bytecodeMap));
-            codeAttrs = new ClassFile.AttrGen(ci,cp);
-            // FEATURE: Support these
-            // NOTE: Until we can support them properly we HAVE to delete them,
-            //       they'll be incorrect after we rewrite the constant pool, etc
-            codeAttrs.remove("LineNumberTable");
-            codeAttrs.remove("LocalVariableTable");
-            
-        } else {
-            codeAttrs = new ClassFile.AttrGen();
+            if (codeAttr.length < 8) throw new ClassFile.ClassReadExn("truncated code attr");
+            maxStack = ConstantPool.readU2(codeAttr, 0);
+            maxLocals = ConstantPool.readU2(codeAttr, 2);
+            rawCode = codeAttr;
+            rawCp = cp;
+            unparsed = true;
         }
 
         if (attrs.contains("Exceptions")) {
@@ -107,7 +179,53 @@ public class MethodGen extends Type.Class.Method.Body {
         }
     }
 
+    /** Whether this method was read and hasn't been changed since */
+    boolean unchanged() { return !attrs.modified && (rawCode != null || (!isConcrete() && size == 0)); }
+    
     // Parsing //////////////////////////////////////////////////////////////////////////////
+    
+    // Every public method that looks at the code calls code() first, every one that changes it calls edit()
+    private void code() { if (unparsed) parse(); }
+    private void edit() {
+        if (unparsed) parse();
+        rawCode = null;
+        rawCp = null;
+        cfg = null;
+    }
+    
+    /** Parses the Code attribute the method was read with
+        @exception ClassFile.Exn if it is invalid (this isn't checked until the code is first needed) */
+    private void parse() {
+        byte[] codeAttr = rawCode;
+        ConstantPool cp = rawCp;
+        unparsed = false;
+        try {
+            DataInputStream ci = new DataInputStream(new ByteArrayInputStream(codeAttr, 4, codeAttr.length - 4));
+            int codeLen = ci.readInt();
+            int[] bytecodeMap = parseCode(ci,codeLen,cp);
+            int numExns = ci.readUnsignedShort();
+            while(numExns-- > 0)
+                exnTable.addElement(new ExnTableEnt(ci,cp,bytecodeMap));
+            codeAttrs = new ClassFile.AttrGen(ci,cp);
+            // FEATURE: Support these
+            // NOTE: Until we can support them properly we HAVE to delete them,
+            //       they'll be incorrect after we rewrite the constant pool, etc
+            // (copied code keeps them, see CodeCopy)
+            codeAttrs.remove("LineNumberTable");
+            codeAttrs.remove("LocalVariableTable");
+            codeAttrs.remove("LocalVariableTypeTable");
+        } catch(IOException e) {
+            throw new ClassFile.Exn("invalid code in " + method + ": " + e.getMessage());
+        } catch(ClassFile.Exn e) {
+            throw e;
+        } catch(RuntimeException e) {
+            // like ClassFile.read() does for everything else that can't be read
+            throw new ClassFile.Exn("invalid code in " + method + ": " + e);
+        }
+        // filling in op/arg went through add(), which forgets the original
+        rawCode = codeAttr;
+        rawCp = cp;
+    }
         
     final int[] parseCode(DataInputStream in, int codeLen, ConstantPool cp) throws IOException {
         int[] map = new int[codeLen];
@@ -231,7 +349,8 @@ public class MethodGen extends Type.Class.Method.Body {
                         else if (argLength == 2) n = unsigned ? in.readUnsignedShort() : in.readShort();
                         else throw new Error("should never happen");
                         if ((opdata&OP_BRANCH_FLAG)!=0) n += mypc;
-                        arg = N(n);
+                        add(op,n);
+                        continue;
                     }
                     break;
             }
@@ -260,9 +379,9 @@ public class MethodGen extends Type.Class.Method.Body {
                 }
                 default:
                     if (OP_BRANCH(op[i])) {
-                        int pos = map[((Integer)arg[i]).intValue()];
+                        int pos = iarg[i] >= 0 && iarg[i] < map.length ? map[iarg[i]] : -1;
                         if (pos < 0)  throw new ClassFile.ClassReadExn("branch points to invalid bytecode");
-                        arg[i] = N(pos);
+                        iarg[i] = pos;
                     }
                     break;
             }
@@ -299,11 +418,11 @@ public class MethodGen extends Type.Class.Method.Body {
             this.type = type;
         }
         void finish(ConstantPool cp) { if (type != null) cp.add(type); }
-        void dump(DataOutput o, int[] pc, int endPC, ConstantPool cp) throws IOException {
-            o.writeShort(pc[start]);
-            o.writeShort(end==pc.length ? endPC : pc[end]);
-            o.writeShort(pc[handler]);
-            o.writeShort(type == null ? 0 : cp.getIndex(type));
+        void dump(ByteBuffer o, int[] pc, int endPC, ConstantPool cp) {
+            o.putShort((short)pc[start]);
+            o.putShort((short)(end==pc.length ? endPC : pc[end]));
+            o.putShort((short)pc[handler]);
+            o.putShort((short)(type == null ? 0 : cp.getIndex(type)));
         }
     }
     
@@ -314,6 +433,7 @@ public class MethodGen extends Type.Class.Method.Body {
         @param type The type of exception that is to be handled (MUST inherit from Throwable)
     */
     public final void addExceptionHandler(int start, int end, int handler, Type.Class type) {
+        edit();
         exnTable.addElement(new ExnTableEnt(start, end, handler, type));
     }
     
@@ -322,7 +442,10 @@ public class MethodGen extends Type.Class.Method.Body {
         only. A method can throw exceptions not declared to be thrown
         @param type The type of exception that can be thrown 
     */
-    public final void addThrow(Type.Class type) { thrownExceptions.put(type, type); }
+    public final void addThrow(Type.Class type) {
+        // the Exceptions attribute is rebuilt from thrownExceptions, so the method has changed
+        if (thrownExceptions.put(type, type) == null) attrs.modified = true;
+    }
     
     private final void grow() { if (size == capacity) grow(size+1); }
     private final void grow(int newCap) {
@@ -338,22 +461,36 @@ public class MethodGen extends Type.Class.Method.Body {
         if (capacity != 0) System.arraycopy(arg, 0, arg2, 0, size);
         arg = arg2;
         
+        int[] iarg2 = new int[newCap];
+        if (capacity != 0) System.arraycopy(iarg, 0, iarg2, 0, size);
+        iarg = iarg2;
+        
         capacity = newCap;
     }
 
     // Accessors //////////////////////////////////////////////////////////////////////////////
     
     public int getFlags() { return flags; }
-    public Hashtable getThrownExceptions() { return thrownExceptions; }
+    /** Returns a copy of the exceptions this method declares; use addThrow() to add one */
+    public Hashtable getThrownExceptions() { return (Hashtable)thrownExceptions.clone(); }
 
     /** Returns the size (in instructions) of this method 
         @return The size of the method (in instructions)
     */
-    public final int size() { return size; }
+    public final int size() { code(); return size; }
+    
+    /** Returns the control flow graph of the code. It is cached until the code changes through this MethodGen.
+        @exception IllegalStateException if the method has no code or a branch target is unresolved or invalid */
+    public ControlFlowGraph getControlFlowGraph() {
+        code();
+        if (cfg == null) cfg = new ControlFlowGraph(this);
+        return cfg;
+    }
     
     // These two are optimized for speed, they don't call set() below
     /** Add a bytecode (with no argument) to the method */
     public final int add(byte op) {
+        edit();
         int s = size;
         if (s == capacity) grow();
         this.op[s] = op;
@@ -362,31 +499,31 @@ public class MethodGen extends Type.Class.Method.Body {
     }
 
     /** Set the bytecode at position <i>pos</i> to <i>op</i> */
-    public final void set(int pos, byte op) { this.op[pos] = op; }
+    public final void set(int pos, byte op) { edit(); this.op[pos] = op; }
         
     /** Adds a bytecode, <i>op</i>, with argument <i>arg</i> to the method 
         @return The position of the new bytecode
         */
-    public final int add(byte op, Object arg) { if (capacity == size) grow(); set(size, op, arg); return size++; }
+    public final int add(byte op, Object arg) { edit(); if (capacity == size) grow(); set(size, op, arg); return size++; }
 
     /** Adds a bytecode with a boolean argument - equivalent to add(op, arg?1:0);
         @return The position of the new bytecode
         @see #add(byte, int)
     */
-    public final int add(byte op, boolean arg) { if (capacity == size) grow(); set(size, op, arg); return size++; }
+    public final int add(byte op, boolean arg) { edit(); if (capacity == size) grow(); set(size, op, arg); return size++; }
 
     /** Adds a bytecode with an integer argument. This is equivalent
-     * to add(op, new Integer(arg)), but optimized to prevent the
-     * allocation when possible
+     * to add(op, new Integer(arg)), but doesn't allocate anything
+     * unless <i>op</i> is LDC and <i>arg</i> needs a constant pool entry
         @return The position of the new bytecode
         @see #add(byte, Object)
     */
-    public final int add(byte op, int arg) { if (capacity == size) grow(); set(size, op, arg); return size++; }
+    public final int add(byte op, int arg) { edit(); if (capacity == size) grow(); set(size, op, arg); return size++; }
     
     /** Gets the bytecode at position <i>pos</i>
         @exception ArrayIndexOutOfBoundException if pos < 0 || pos >= size()
     */
-    public final byte get(int pos) { return op[pos]; }
+    public final byte get(int pos) { code(); return op[pos]; }
     
     /** Gets the bytecode at position <i>pos</i>. NOTE: This isn't necessarily the same object that was set with add or set.
         Arguments for instructions which access the constant pool (LDC, INVOKEVIRTUAL, etc) are converted to a more efficient
@@ -394,18 +531,43 @@ public class MethodGen extends Type.Class.Method.Body {
         is no way to retrieve the original object 
         @exception ArrayIndexOutOfBoundException if pos < 0 || pos >= size()
     */    
-    public final Object getArg(int pos) { return arg[pos]; }
+    public final Object getArg(int pos) {
+        Object arg = peekArg(pos);
+        // switches, IINC pairs and MULTIANEWARRAY args can be changed in place, so handing one out is an edit
+        if (arg instanceof Switch || arg instanceof Pair || arg instanceof MultiANewArray) edit();
+        return arg;
+    }
+
+    /** Like getArg() but for callers in this package that only read the argument, so the method stays unchanged */
+    final Object peekArg(int pos) {
+        code();
+        Object arg = this.arg[pos];
+        return arg == null && OP_INTARG(op[pos]) ? N(iarg[pos]) : arg;
+    }
+    
+    /** Gets the integer argument (local variable, push constant, array type or branch target) of the bytecode at
+        position <i>pos</i> without boxing it. For a branch to a PhantomTarget this is the PhantomTarget's target.
+        @exception ArrayIndexOutOfBoundException if pos < 0 || pos >= size()
+        @exception ClassCastException if the bytecode at <i>pos</i> doesn't take an integer argument
+    */
+    public final int getIntArg(int pos) {
+        code();
+        Object arg = this.arg[pos];
+        if (arg == null) return iarg[pos];
+        if (arg instanceof PhantomTarget) return ((PhantomTarget)arg).getTarget();
+        return ((Integer)arg).intValue();
+    }
     
     /** Sets the argument for <i>pos</i> to <i>arg</i>. This is
      * equivalent to set(pos, op, new Integer(arg)), but optimized to
      * prevent the allocation when possible.
         @exception ArrayIndexOutOfBoundException if pos < 0 || pos >= size()
         @see #setArg(int, Object) */
-    public final void setArg(int pos, int arg) { set(pos, op[pos], N(arg)); }
+    public final void setArg(int pos, int arg) { code(); set(pos, op[pos], arg); }
 
     /** Sets the argument for <i>pos</i> to <i>arg</i>.
         @exception ArrayIndexOutOfBoundException if pos < 0 || pos >= size() */
-    public final void setArg(int pos, Object arg) { set(pos, op[pos], arg); }
+    public final void setArg(int pos, Object arg) { code(); set(pos, op[pos], arg); }
     
     /** Sets the bytecode and argument  at <i>pos</i> to <i>op</i> and <i>arg</i> respectivly. 
         This is equivalent to set(pos, op, arg?1:0) 
@@ -419,7 +581,9 @@ public class MethodGen extends Type.Class.Method.Body {
         @exception ArrayIndexOutOfBoundException if pos < 0 || pos >= size()
     */
     public final void set(int pos, byte op, int n) {
+        edit();
         Object arg = null;
+        int iarg = 0;
         OUTER: switch(op) {
             case LDC:
                 switch(n) {
@@ -431,8 +595,8 @@ public class MethodGen extends Type.Class.Method.Body {
                     case 4:  op = ICONST_4;  break OUTER;
                     case 5:  op = ICONST_5;  break OUTER;
                 }
-                if (n >= -128 && n <= 127) { op = BIPUSH; arg = N(n); } 
-                else if (n >= -32768 && n <= 32767) { op = SIPUSH; arg = N(n); }
+                if (n >= -128 && n <= 127) { op = BIPUSH; iarg = n; } 
+                else if (n >= -32768 && n <= 32767) { op = SIPUSH; iarg = n; }
                 else { arg = N(n); }
                 break;
             case ILOAD: case ISTORE: case LLOAD: case LSTORE: case FLOAD:
@@ -454,21 +618,25 @@ public class MethodGen extends Type.Class.Method.Body {
                     }
                     op = (byte)((base&0xff) + n);
                 } else {
-                    arg = N(n);
+                    iarg = n;
                 }
                 break;
             default:
-                set(pos, op, N(n));
-                return;
+                if (!OP_INTARG(op)) { set(pos, op, N(n)); return; }
+                if (!OP_VALID(op)) throw new IllegalArgumentException("unknown bytecode");
+                iarg = n;
+                break;
         }            
         this.op[pos] = op;
         this.arg[pos] = arg;
+        this.iarg[pos] = iarg;
     }
     
     /** Sets the bytecode and argument  at <i>pos</i> to <i>op</i> and <i>arg</i> respectivly.
         @exception ArrayIndexOutOfBoundException if pos < 0 || pos >= size()
         */
     public final void set(int pos, byte op, Object arg) {
+        edit();
         switch(op) {
             case ILOAD: case ISTORE: case LLOAD: case LSTORE: case FLOAD:
             case FSTORE: case DLOAD: case DSTORE: case ALOAD: case ASTORE:
@@ -492,24 +660,602 @@ public class MethodGen extends Type.Class.Method.Body {
                     op = LDC2_W;
                 }
                 break;
+            case NEWARRAY:
+                if (arg instanceof Type.Primitive) { set(pos, op, ((Type.Primitive)arg).toArraySpec()); return; }
+                break;
         }
+        if (arg instanceof Integer && OP_INTARG(op)) { set(pos, op, ((Integer)arg).intValue()); return; }
         if ((OP_DATA[op&0xff]&OP_VALID_FLAG) == 0) throw new IllegalArgumentException("unknown bytecode");
         this.op[pos] = op;
         this.arg[pos] = arg;
     }
     
     /** Sets the maximum number of locals in the function to
-        <i>maxLocals</i>. NOTE: This defaults to 0 and is
-        automatically increased as necessary when *LOAD/*STORE
-        bytecodes are added. You do not need to call this function in
-        most cases */
-    public void setMaxLocals(int maxLocals) { this.maxLocals = maxLocals; }
+        <i>maxLocals</i>. NOTE: The exact number is computed from the
+        code when the class is written, so you do not need to call
+        this function */
+    public void setMaxLocals(int maxLocals) { edit(); this.maxLocals = maxLocals; }
 
     /** Sets the maxinum size of th stack for this function to
-     * <i>maxStack</i>. This defaults to 16< */
-    public void setMaxStack(int maxStack) { this.maxStack = maxStack; }
+     * <i>maxStack</i>. NOTE: The exact size is computed from the code
+     * when the class is written, so you do not need to call this function */
+    public void setMaxStack(int maxStack) { edit(); this.maxStack = maxStack; }
     
 
+    // Switches //////////////////////////////////////////////////////////////////////////////
+    
+    // Cost model for addSwitch(). Space is in 4 byte words of switch data, time is in comparisons per dispatch.
+    // Like javac, a comparison is worth 3 words. A LOOKUPSWITCH is a binary search, a TABLESWITCH an indexed load
+    // (plus the range check), and a node of a compare tree is a DUP, a push and an IF_ICMPLT.
+    private static final int TIME_WEIGHT = 3;
+    private static final int TABLE_SPACE = 4, TABLE_TIME = 3;
+    private static final int LOOKUP_SPACE = 3;
+    private static final int NODE_SPACE = 2, NODE_TIME = 1;
+    
+    private static long tableCost(int lo, int hi) { return TABLE_SPACE + ((long)hi - lo + 1) + TIME_WEIGHT * TABLE_TIME; }
+    private static long lookupCost(int n) { return LOOKUP_SPACE + 2L*n + TIME_WEIGHT * log2(n+1); }
+    private static int log2(int n) { return 32 - Integer.numberOfLeadingZeros(n - 1); }
+    
+    /** Adds a switch on the int on top of the stack that jumps to <i>targets[i]</i> if it is <i>keys[i]</i> and to
+        <i>defaultTarget</i> otherwise. The targets are instruction numbers (Integers) or PhantomTargets. Depending on
+        how dense the keys are this becomes a TABLESWITCH, a LOOKUPSWITCH or, if the keys come in dense clusters far
+        apart from each other, a tree of comparisons choosing between one switch per cluster.
+        @param keys The keys, in any order
+        @return The position of the first instruction added
+        @exception IllegalArgumentException if there are duplicate keys */
+    public final int addSwitch(int[] keys, Object[] targets, Object defaultTarget) {
+        if (keys.length != targets.length) throw new IllegalArgumentException("keys.length != targets.length");
+        edit();
+        int start = size;
+        int n = keys.length;
+        if (n == 0) {
+            add(POP);
+            add(GOTO, defaultTarget);
+            return start;
+        }
+        
+        long[] sorted = new long[n];
+        for(int i=0;i<n;i++) sorted[i] = ((long)keys[i] << 32) | i;
+        Arrays.sort(sorted);
+        int[] k = new int[n];
+        Object[] t = new Object[n];
+        for(int i=0;i<n;i++) {
+            k[i] = (int)(sorted[i] >> 32);
+            t[i] = targets[(int)sorted[i]];
+            if (i > 0 && k[i] == k[i-1]) throw new IllegalArgumentException("duplicate switch key " + k[i]);
+        }
+        
+        // Split the keys wherever the gap costs more than starting a new table would
+        int[] clusters = new int[n+1];
+        int numClusters = 0;
+        for(int i=0;i<n;i++)
+            if (i == 0 || (long)k[i] - k[i-1] - 1 > TABLE_SPACE + NODE_SPACE + TIME_WEIGHT * NODE_TIME)
+                clusters[numClusters++] = i;
+        clusters[numClusters] = n;
+        
+        // Adjacent clusters that are best as LOOKUPSWITCHes are better off as one
+        int[] merged = new int[numClusters+1];
+        int numMerged = 0;
+        boolean prevLookup = false;
+        for(int c=0;c<numClusters;c++) {
+            int lo = clusters[c], hi = clusters[c+1];
+            boolean lookup = lookupCost(hi - lo) < tableCost(k[lo], k[hi-1]);
+            if (!(lookup && prevLookup)) merged[numMerged++] = lo;
+            prevLookup = lookup;
+        }
+        merged[numMerged] = n;
+        
+        long hybridSpace = 0;
+        int hybridTime = 0;
+        for(int c=0;c<numMerged;c++) {
+            int lo = merged[c], hi = merged[c+1];
+            boolean lookup = lookupCost(hi - lo) < tableCost(k[lo], k[hi-1]);
+            hybridSpace += (lookup ? LOOKUP_SPACE + 2L*(hi - lo) : TABLE_SPACE + ((long)k[hi-1] - k[lo] + 1)) + NODE_SPACE;
+            hybridTime = Math.max(hybridTime, lookup ? log2(hi - lo + 1) : TABLE_TIME);
+        }
+        long hybridCost = hybridSpace - NODE_SPACE + TIME_WEIGHT * (hybridTime + NODE_TIME * log2(numMerged));
+        long tableCost = tableCost(k[0], k[n-1]);
+        long lookupCost = lookupCost(n);
+        
+        if (numMerged > 1 && hybridCost < tableCost && hybridCost < lookupCost) addSwitchTree(k, t, defaultTarget, merged, 0, numMerged);
+        else addSwitch(k, t, defaultTarget, 0, n, tableCost <= lookupCost);
+        return start;
+    }
+    
+    /** Adds a compare tree choosing between the switches for clusters <i>lo</i> to <i>hi</i> (exclusive) */
+    private void addSwitchTree(int[] k, Object[] t, Object defaultTarget, int[] clusters, int lo, int hi) {
+        if (hi - lo == 1) {
+            int from = clusters[lo], to = clusters[lo+1];
+            addSwitch(k, t, defaultTarget, from, to, tableCost(k[from], k[to-1]) <= lookupCost(to - from));
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        add(DUP);
+        add(LDC, k[clusters[mid]]);
+        int branch = add(IF_ICMPLT, 0);
+        addSwitchTree(k, t, defaultTarget, clusters, mid, hi);
+        setArg(branch, size);
+        addSwitchTree(k, t, defaultTarget, clusters, lo, mid);
+    }
+    
+    /** Adds a single TABLESWITCH or LOOKUPSWITCH for the (sorted) keys <i>from</i> to <i>to</i> (exclusive) */
+    private void addSwitch(int[] k, Object[] t, Object defaultTarget, int from, int to, boolean table) {
+        Switch si;
+        if (table) {
+            Switch.Table ts = new Switch.Table(k[from], k[to-1]);
+            for(int i=0;i<ts.size();i++) ts.setTarget(i, defaultTarget);
+            for(int i=from;i<to;i++) ts.setTargetForVal(k[i], t[i]);
+            si = ts;
+        } else {
+            Switch.Lookup ls = new Switch.Lookup(to - from);
+            for(int i=from;i<to;i++) {
+                ls.setVal(i - from, k[i]);
+                ls.setTarget(i - from, t[i]);
+            }
+            si = ls;
+        }
+        si.setDefaultTarget(defaultTarget);
+        add(table ? TABLESWITCH : LOOKUPSWITCH, si);
+    }
+    
+    // Optimization //////////////////////////////////////////////////////////////////////////////
+    
+    /** Runs a peephole optimizer over the code. It removes unreachable code, threads jumps to jumps, drops jumps to
+        the next instruction, folds int arithmetic on constants, turns ILOAD x; (push c); IADD; ISTORE x into
+        IINC x c and removes stores to a local that is immediately loaded and then dead. This should be called
+        after the code is complete (every PhantomTarget must be set) and before the class is written.
+        @param cx The context used to merge reference types when finding dead locals (see Frames), may be null
+        @exception IllegalStateException if a branch target is unresolved or invalid */
+    public void optimize(Context cx) {
+        code();
+        if (size <= 0) return;
+        edit();
+        resolveTargets();
+        for(int round=0;round<8;round++) {
+            boolean changed = removeUnreachable();
+            boolean[] targeted = targeted();
+            changed |= threadJumps(targeted);
+            changed |= foldConstants(targeted);
+            changed |= makeIincs(targeted);
+            changed |= removeDeadStores(targeted, cx);
+            if (!changed) break;
+        }
+        removeNops();
+        cfg = null;
+    }
+    
+    /** Same as optimize(null) */
+    public void optimize() { optimize(null); }
+    
+    /** Replaces PhantomTargets with the instruction numbers they point at, so the code can be renumbered */
+    private void resolveTargets() {
+        for(int i=0;i<size;i++) {
+            if (op[i] == TABLESWITCH || op[i] == LOOKUPSWITCH) {
+                Switch si = (Switch) arg[i];
+                for(int j=0;j<si.targets.length;j++) si.targets[j] = resolveTarget(si.targets[j]);
+                si.defaultTarget = resolveTarget(si.defaultTarget);
+            } else if (OP_BRANCH(op[i])) {
+                iarg[i] = target(i);
+                arg[i] = null;
+            }
+        }
+    }
+    
+    /** Returns whether each instruction is something other than the previous one can jump to */
+    private boolean[] targeted() {
+        boolean[] targeted = new boolean[size+1];
+        for(int i=0;i<size;i++) {
+            if (op[i] == TABLESWITCH || op[i] == LOOKUPSWITCH) {
+                Switch si = (Switch) arg[i];
+                for(int j=0;j<si.size();j++) targeted[si.getTarget(j)] = true;
+                targeted[si.getDefaultTarget()] = true;
+            } else if (OP_BRANCH(op[i])) {
+                targeted[iarg[i]] = true;
+                if (op[i] == JSR || op[i] == JSR_W) targeted[i+1] = true; // where RET goes
+            }
+        }
+        for(int i=0;i<exnTable.size();i++) targeted[((ExnTableEnt)exnTable.elementAt(i)).handler] = true;
+        return targeted;
+    }
+    
+    /** Returns the first non-NOP instruction after <i>i</i>, or -1 if there isn't one or control can enter
+        anywhere between them except from <i>i</i> */
+    private int next(int i, boolean[] targeted) {
+        for(i++;i<size;i++) {
+            if (targeted[i]) return -1;
+            if (op[i] != NOP) return i;
+        }
+        return -1;
+    }
+    
+    private boolean removeUnreachable() {
+        boolean[] reached = new boolean[size];
+        int[] work = new int[size];
+        int numWork = 0;
+        reached[0] = true;
+        work[numWork++] = 0;
+        for(boolean more = true; more; ) {
+            while(numWork > 0) {
+                int i = work[--numWork];
+                byte op = this.op[i];
+                int[] succ;
+                if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+                    Switch si = (Switch) arg[i];
+                    succ = new int[si.size() + 1];
+                    for(int j=0;j<si.size();j++) succ[j] = si.getTarget(j);
+                    succ[si.size()] = si.getDefaultTarget();
+                } else if (OP_BRANCH(op)) {
+                    succ = new int[]{ iarg[i], i+1 };
+                    if (!Frames.fallsThrough(op) && op != JSR && op != JSR_W) succ = new int[]{ iarg[i] };
+                } else {
+                    succ = Frames.fallsThrough(op) ? new int[]{ i+1 } : new int[0];
+                }
+                for(int j=0;j<succ.length;j++) {
+                    int t = succ[j];
+                    if (t >= size || reached[t]) continue;
+                    reached[t] = true;
+                    work[numWork++] = t;
+                }
+            }
+            // a handler is reachable if anything it covers is
+            more = false;
+            for(int j=0;j<exnTable.size();j++) {
+                ExnTableEnt e = (ExnTableEnt) exnTable.elementAt(j);
+                if (reached[e.handler]) continue;
+                for(int i=e.start;i<e.end;i++) if (reached[i]) { reached[e.handler] = more = true; work[numWork++] = e.handler; break; }
+            }
+        }
+        boolean changed = false;
+        for(int i=0;i<size;i++) {
+            if (reached[i] || op[i] == NOP) continue;
+            op[i] = NOP;
+            arg[i] = null;
+            changed = true;
+        }
+        return changed;
+    }
+    
+    /** Returns the instruction a jump to <i>t</i> ends up at after following any GOTOs (and NOPs) from it */
+    private int threadTarget(int t) {
+        for(int steps=0;steps<size && t < size;steps++) {
+            if (op[t] == NOP) t++;
+            else if (op[t] == GOTO || op[t] == GOTO_W) t = iarg[t];
+            else break;
+        }
+        return t;
+    }
+    
+    private boolean threadJumps(boolean[] targeted) {
+        boolean changed = false;
+        for(int i=0;i<size;i++) {
+            byte op = this.op[i];
+            if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+                Switch si = (Switch) arg[i];
+                for(int j=0;j<si.size();j++) {
+                    int t = threadTarget(si.getTarget(j));
+                    if (t != si.getTarget(j) && t < size) { si.setTarget(j, t); changed = true; }
+                }
+                int t = threadTarget(si.getDefaultTarget());
+                if (t != si.getDefaultTarget() && t < size) { si.setDefaultTarget(t); changed = true; }
+                continue;
+            }
+            if (!OP_BRANCH(op)) continue;
+            int t = threadTarget(iarg[i]);
+            if (t != iarg[i] && t < size) { iarg[i] = t; changed = true; }
+            if (op == JSR || op == JSR_W) continue;
+            // a jump to the next instruction
+            int j = i+1;
+            while(j < size && this.op[j] == NOP) j++;
+            if (j != iarg[i]) continue;
+            if (op == GOTO || op == GOTO_W) this.op[i] = NOP;
+            else if (op == IFNULL || op == IFNONNULL || (op >= IFEQ && op <= IFLE)) this.op[i] = POP;
+            else this.op[i] = POP2;
+            changed = true;
+        }
+        return changed;
+    }
+    
+    /** Returns the value pushed by instruction <i>i</i> if it pushes an int constant */
+    private Integer intConst(int i) {
+        byte op = this.op[i];
+        if (op >= ICONST_M1 && op <= ICONST_5) return N(op - ICONST_0);
+        if (op == BIPUSH || op == SIPUSH) return N(iarg[i]);
+        if ((op == LDC || op == LDC_W) && arg[i] instanceof Integer) return (Integer) arg[i];
+        return null;
+    }
+    
+    private boolean foldConstants(boolean[] targeted) {
+        boolean changed = false;
+        for(int i=0;i<size;i++) {
+            Integer a = intConst(i);
+            if (a == null) continue;
+            int j = next(i, targeted);
+            if (j == -1) continue;
+            int x = a.intValue();
+            switch(op[j]) {
+                case INEG: set(i, LDC, -x); break;
+                case I2B: set(i, LDC, (byte)x); break;
+                case I2C: set(i, LDC, (char)x); break;
+                case I2S: set(i, LDC, (short)x); break;
+                default: {
+                    Integer b = intConst(j);
+                    int k = b == null ? -1 : next(j, targeted);
+                    if (k == -1) continue;
+                    int y = b.intValue();
+                    switch(op[k]) {
+                        case IADD: x += y; break;
+                        case ISUB: x -= y; break;
+                        case IMUL: x *= y; break;
+                        case IDIV: if (y == 0) continue; x /= y; break;
+                        case IREM: if (y == 0) continue; x %= y; break;
+                        case IAND: x &= y; break;
+                        case IOR: x |= y; break;
+                        case IXOR: x ^= y; break;
+                        case ISHL: x <<= y; break;
+                        case ISHR: x >>= y; break;
+                        case IUSHR: x >>>= y; break;
+                        default: continue;
+                    }
+                    set(i, LDC, x);
+                    op[j] = NOP;
+                    arg[j] = null;
+                    j = k;
+                }
+            }
+            op[j] = NOP;
+            i--; // the result may fold with what follows it
+            changed = true;
+        }
+        return changed;
+    }
+    
+    /** Returns the local ILOAD or ISTORE instruction <i>i</i> accesses, or -1 if it isn't one */
+    private int intLocal(int i, byte load) {
+        byte op = this.op[i];
+        if (op == load) return iarg[i];
+        byte base = load == ILOAD ? ILOAD_0 : ISTORE_0;
+        return op >= base && op <= base + 3 ? op - base : -1;
+    }
+    
+    private boolean makeIincs(boolean[] targeted) {
+        boolean changed = false;
+        for(int i=0;i<size;i++) {
+            int x = intLocal(i, ILOAD);
+            if (x == -1) continue;
+            int j = next(i, targeted), k = j == -1 ? -1 : next(j, targeted), l = k == -1 ? -1 : next(k, targeted);
+            if (l == -1 || intLocal(l, ISTORE) != x || (op[k] != IADD && op[k] != ISUB)) continue;
+            Integer c = intConst(j);
+            if (c == null) continue;
+            int n = op[k] == IADD ? c.intValue() : -c.intValue();
+            if (n < -32768 || n > 32767) continue;
+            set(i, IINC, new Pair(x, n));
+            op[j] = op[k] = op[l] = NOP;
+            arg[j] = null;
+            changed = true;
+        }
+        return changed;
+    }
+    
+    private boolean removeDeadStores(boolean[] targeted, Context cx) {
+        Frames f;
+        try {
+            f = new Frames(this, cx);
+        } catch(IllegalStateException e) {
+            return false;
+        }
+        long[][] live = null;
+        boolean changed = false;
+        for(int i=0;i<size;i++) {
+            byte op = this.op[i];
+            if (op < ISTORE || op > ASTORE_3 || (op > ASTORE && op < ISTORE_0) || f.locals[i] == null) continue;
+            int j = next(i, targeted);
+            if (j == -1) continue;
+            int slot = Frames.localSlot(op, peekArg(i));
+            if (Frames.localSlot(this.op[j], peekArg(j)) != slot || Frames.localType(this.op[j], peekArg(j)) != Frames.localType(op, peekArg(i))) continue;
+            byte loadOp = this.op[j];
+            if (loadOp < ILOAD || loadOp > ALOAD_3 || (loadOp > ALOAD && loadOp < ILOAD_0)) continue;
+            int k = j+1;
+            if (k < size) {
+                if (live == null) live = f.liveness();
+                boolean wide = Frames.isWide(Frames.localType(op, peekArg(i)));
+                if (isLive(live[k], slot) || (wide && isLive(live[k], slot+1))) continue;
+            }
+            this.op[i] = this.op[j] = NOP;
+            arg[i] = arg[j] = null;
+            changed = true;
+        }
+        return changed;
+    }
+    
+    /** Removes every NOP, pointing whatever pointed at one at the instruction after it */
+    private void removeNops() {
+        int[] map = new int[size+1];
+        int n = 0;
+        for(int i=0;i<size;i++) { map[i] = n; if (op[i] != NOP) n++; }
+        map[size] = n;
+        if (n == size) return;
+        relocate(map, false);
+        for(int i=0;i<size;i++) {
+            if (op[i] == NOP) continue;
+            op[map[i]] = op[i];
+            arg[map[i]] = arg[i];
+            iarg[map[i]] = iarg[i];
+        }
+        for(int i=n;i<size;i++) arg[i] = null;
+        size = n;
+    }
+    
+    // Splitting //////////////////////////////////////////////////////////////////////////////
+    
+    /** HotSpot never JIT compiles methods with more bytecode than this (see -XX:-DontCompileHugeMethods) */
+    public static final int HUGE_METHOD_LIMIT = 8000;
+    
+    /** Returns an upper bound on the number of bytes instruction <i>i</i> will take up in the Code attribute */
+    private int maxLength(int i) {
+        byte op = this.op[i];
+        switch(op) {
+            case NOP: return EMIT_NOPS ? 1 : 0;
+            case GOTO: case JSR: case GOTO_W: case JSR_W: return 5;
+            case TABLESWITCH: case LOOKUPSWITCH: return 1 + 3 + ((Switch)arg[i]).length();
+            case WIDE: case IINC: return 6;
+            case LDC: return 3;
+            case ILOAD: case ISTORE: case LLOAD: case LSTORE: case FLOAD:
+            case FSTORE: case DLOAD: case DSTORE: case ALOAD: case ASTORE: case RET:
+                return 4;
+            default: return OP_BRANCH(op) ? 8 : 1 + (OP_DATA[op&0xff] & OP_ARG_LENGTH_MASK);
+        }
+    }
+    
+    /** Returns an upper bound on the size of this method's bytecode */
+    int maxCodeSize() {
+        code();
+        int n = 0;
+        for(int i=0;i<size;i++) n += maxLength(i);
+        return n;
+    }
+    
+    /** Splits this method, if its bytecode could be larger than <i>budget</i> bytes, into a chain of private static
+        helpers in <i>cf</i>. Each piece does as much of the work as fits in the budget and then returns the result
+        of calling the next. Splits are only made where the operand stack is empty, no branch or exception handler
+        crosses the split and the type of every live local is known. Live locals are passed to the helper in the
+        same slots they occupy here, so the moved code doesn't need to be renumbered. A constructor or class
+        initializer is never split before an assignment to one of the class's final fields, since only the
+        initializer itself may assign them (enforced from class file version 53).
+        @param cx The context used to merge reference types (see Frames), may be null
+        @return The number of helper methods that were added to <i>cf</i>
+    */
+    int split(ClassFile cf, int budget, Context cx) {
+        String base = method.isConstructor() ? "init" : method.isClassInitializer() ? "clinit" : method.name;
+        int n = 0;
+        for(MethodGen mg = this; mg.maxCodeSize() > budget && (mg = mg.splitOnce(cf, budget, cx, base)) != null; ) n++;
+        return n;
+    }
+    
+    private MethodGen splitOnce(ClassFile cf, int budget, Context cx, String base) {
+        Frames f;
+        int[] crossing = new int[size+1];
+        try {
+            f = new Frames(this, cx);
+            // crossing[c] != 0 if a branch or exception handler would span a split made before instruction c
+            for(int i=0;i<size;i++) {
+                int[] targets = f.targets(i);
+                for(int j=0;j<targets.length;j++) {
+                    int t = targets[j];
+                    if (t > i) { crossing[i+1]++; crossing[t]--; }
+                    else { crossing[t+1]++; crossing[i+1]--; }
+                }
+            }
+        } catch(IllegalStateException e) {
+            return null; // jsr/ret or code we can't make sense of
+        }
+        for(int i=0;i<exnTable.size();i++) {
+            ExnTableEnt e = (ExnTableEnt) exnTable.elementAt(i);
+            crossing[Math.min(e.start, e.handler)+1]++;
+            crossing[Math.max(e.end-1, e.handler)+1]--;
+        }
+        for(int i=1;i<=size;i++) crossing[i] += crossing[i-1];
+        int first = 1;
+        if (method.isConstructor() || method.isClassInitializer())
+            for(int i=0;i<size;i++) if (assignsFinal(cf, op[i], arg[i])) first = i+1;
+        
+        long[][] live = f.liveness();
+        int best = -1, bestSlots = 0;
+        for(int c=1, bytes=maxLength(0); c<size && bytes <= budget; bytes += maxLength(c++)) {
+            if (c < first || crossing[c] != 0 || f.locals[c] == null || f.stack[c].length != 0) continue;
+            int slots = passedSlots(f, c, live[c]);
+            if (slots < 0 || bytes + slots*4 + 3 + 1 > budget) continue;
+            best = c;
+            bestSlots = slots;
+        }
+        if (best == -1) return null;
+        return splitAt(cf, best, f, live[best], bestSlots, base);
+    }
+    
+    /** Whether the bytecode <i>op</i> with argument <i>arg</i> assigns one of the final fields of <i>cf</i> */
+    private static boolean assignsFinal(ClassFile cf, byte op, Object arg) {
+        if (op != PUTFIELD && op != PUTSTATIC) return false;
+        Type.Class.Field.Body[] fields = cf.fields();
+        for(int i=0;i<fields.length;i++) if (fields[i].isFinal() && fields[i].getField().equals(arg)) return true;
+        return false;
+    }
+    
+    private static boolean isLive(long[] live, int slot) { return (live[slot >>> 6] & (1L << slot)) != 0; }
+    
+    /** Returns the number of local slots that have to be passed to a helper for a split before instruction <i>c</i>,
+        or -1 if a split can't be made there */
+    private static int passedSlots(Frames f, int c, long[] live) {
+        int[] l = f.locals[c];
+        int n = 0;
+        for(int j=0;j<l.length;j++) {
+            int tag = Frames.tag(l[j]);
+            if (tag == Frames.UNINITIALIZED || tag == Frames.UNINITIALIZED_THIS) return -1;
+            if (!isLive(live, j)) continue;
+            if (tag == Frames.TOP && j > 0 && Frames.isWide(l[j-1]) && isLive(live, j-1)) continue;
+            if (!f.isExact(l[j]) || tag == Frames.NULL) return -1;
+            n = j + (Frames.isWide(l[j]) ? 2 : 1);
+        }
+        return n > 255 ? -1 : n;
+    }
+    
+    private MethodGen splitAt(ClassFile cf, int c, Frames f, long[] live, int slots, String base) {
+        Vector<Type> params = new Vector<Type>();
+        for(int j=0;j<slots;) {
+            Type t = isLive(live, j) ? f.type(f.locals[c][j]) : Type.INT;
+            params.addElement(t);
+            j += Frames.width(t);
+        }
+        Type[] args = new Type[params.size()];
+        params.copyInto(args);
+        Type.Class.Method m = method.getDeclaringClass().method(cf.uniqueMethodName(base + "$split"), method.returnType, args);
+        MethodGen h = cf.addMethod(m, PRIVATE|STATIC|(flags&STRICT));
+        
+        h.grow(size - c);
+        for(int i=c;i<size;i++) {
+            byte op = this.op[i];
+            Object arg = this.arg[i];
+            int iarg = this.iarg[i];
+            if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+                Switch si = (Switch) arg;
+                for(int j=0;j<si.size();j++) si.setTarget(j, target(si.targets[j]) - c);
+                si.setDefaultTarget(target(si.defaultTarget) - c);
+            } else if (OP_BRANCH(op)) {
+                iarg = target(i) - c;
+                arg = null;
+            }
+            h.op[i-c] = op;
+            h.arg[i-c] = arg;
+            h.iarg[i-c] = iarg;
+            this.arg[i] = null;
+        }
+        h.size = size - c;
+        for(int i=0;i<exnTable.size();) {
+            ExnTableEnt e = (ExnTableEnt) exnTable.elementAt(i);
+            if (e.start < c) { i++; continue; }
+            h.exnTable.addElement(h.new ExnTableEnt(e.start - c, e.end - c, e.handler - c, e.type));
+            exnTable.removeElementAt(i);
+        }
+        h.maxStack = maxStack;
+        h.maxLocals = Math.max(maxLocals, f.maxLocals);
+        h.thrownExceptions.putAll(thrownExceptions);
+        
+        size = c;
+        cparg = null;
+        cfg = null;
+        for(int i=0, j=0;i<args.length;j += Frames.width(args[i++])) {
+            if (!isLive(live, j)) { add(ICONST_0); continue; }
+            Type t = args[i];
+            add(t == Type.LONG ? LLOAD : t == Type.FLOAT ? FLOAD : t == Type.DOUBLE ? DLOAD : t.isRef() ? ALOAD : ILOAD, j);
+        }
+        add(INVOKESTATIC, m);
+        Type rt = method.returnType;
+        add(rt == Type.VOID ? RETURN : rt == Type.LONG ? LRETURN : rt == Type.FLOAT ? FRETURN : rt == Type.DOUBLE ? DRETURN
+            : rt.isRef() ? ARETURN : IRETURN);
+        maxStack = Math.max(maxStack, Math.max(slots, Frames.width(rt)));
+        // the old one describes code that isn't here anymore
+        codeAttrs.remove("StackMapTable");
+        return h;
+    }
+    
     // Bytecode-Specific inner classes ////////////////////////////////////////////////////////////////////////////////
 
     public static abstract class Switch {
@@ -576,6 +1322,197 @@ public class MethodGen extends Type.Class.Method.Body {
     }
 
 
+    // Copying //////////////////////////////////////////////////////////////////////////////
+    
+    /** The Code attribute of a method that hasn't changed since it was read: the original bytes with every constant
+        pool index in them (in the bytecode, the exception table, the StackMapTable and the LocalVariable(Type)Tables)
+        rewritten for the new pool */
+    private static final class CodeCopy implements ClassFile.Attr {
+        private final byte[] code;
+        private final int n;
+        private final int[] at; // where each index is, ~offset for the one byte index of an LDC
+        private final ConstantPool.Ent[] ents;
+        
+        CodeCopy(byte[] code, int n, int[] at, ConstantPool.Ent[] ents) {
+            this.code = code;
+            this.n = n;
+            this.at = at;
+            this.ents = ents;
+        }
+        public int length(ConstantPool cp) { return code.length; }
+        public void dump(ByteBuffer o, ConstantPool cp) {
+            int base = o.position();
+            o.put(code);
+            for(int i=0;i<n;i++) {
+                int v = cp.getIndex(ents[i]);
+                if (at[i] >= 0) { o.putShort(base + at[i], (short)v); continue; }
+                if (v >= 256) throw new ClassFile.Exn("ldc operand out of range");
+                o.put(base + ~at[i], (byte)v);
+            }
+        }
+    }
+    
+    /** Finds every constant pool index in the Code attribute the method was read with and adds what they refer to
+        to <i>cp</i>
+        @return The copy, or null if the code can't be copied (it is invalid, has an attribute that isn't understood
+                or needs a StackMapTable it doesn't have), in which case it has to be parsed and rebuilt */
+    private CodeCopy copyCode(ConstantPool cp, boolean stackMaps) {
+        byte[] b = rawCode;
+        int[] at = new int[16];
+        int n = 0;
+        boolean frames = false; // whether the type checker needs frames for this code
+        boolean hasFrames = false;
+        int start = 8, end;
+        try {
+            int codeLen = ConstantPool.readInt(b, 4);
+            if (codeLen <= 0 || codeLen > b.length - start - 2) return null;
+            end = start + codeLen;
+            int p = start;
+            while(p < end) {
+                byte op = b[p];
+                int opdata = OP_DATA[op&0xff];
+                if ((opdata&OP_VALID_FLAG) == 0) return null;
+                int argLength = opdata & OP_ARG_LENGTH_MASK;
+                int next;
+                switch(op) {
+                    case TABLESWITCH:
+                    case LOOKUPSWITCH: {
+                        int q = start + ((p - start + 4) & ~3);
+                        if (q + 12 > end) return null;
+                        long count = op == TABLESWITCH
+                            ? (long)ConstantPool.readInt(b, q+8) - ConstantPool.readInt(b, q+4) + 1
+                            : ConstantPool.readInt(b, q+4);
+                        if (count < 0 || count > (end - q) / 4) return null;
+                        next = q + (op == TABLESWITCH ? 12 + (int)count*4 : 8 + (int)count*8);
+                        frames = true;
+                        break;
+                    }
+                    case WIDE:
+                        if (p + 1 >= end) return null;
+                        switch(b[p+1]) {
+                            case ILOAD: case LLOAD: case FLOAD: case DLOAD: case ALOAD:
+                            case ISTORE: case LSTORE: case FSTORE: case DSTORE: case ASTORE: case RET:
+                                next = p + 4; break;
+                            case IINC: next = p + 6; break;
+                            default: return null;
+                        }
+                        break;
+                    default:
+                        if (argLength == 7) return null;
+                        next = p + 1 + argLength;
+                        if ((opdata&OP_CPENT_FLAG) != 0) {
+                            if (n + 1 > at.length) at = expand(at);
+                            at[n++] = op == LDC ? ~(p+1) : p+1;
+                        }
+                        if ((opdata&OP_BRANCH_FLAG) != 0) frames = true;
+                        // anything after one of these is only reachable by a jump
+                        if (next < end && (op == ATHROW || (op >= IRETURN && op <= RETURN))) frames = true;
+                        break;
+                }
+                p = next;
+            }
+            if (p != end) return null;
+            
+            int numExns = ConstantPool.readU2(b, p);
+            p += 2;
+            if (numExns > 0) frames = true;
+            for(int i=0;i<numExns;i++, p += 8) {
+                if (p + 8 > b.length) return null;
+                if (ConstantPool.readU2(b, p+6) == 0) continue;
+                if (n + 1 > at.length) at = expand(at);
+                at[n++] = p+6;
+            }
+            
+            int numAttrs = ConstantPool.readU2(b, p);
+            p += 2;
+            for(int i=0;i<numAttrs;i++) {
+                if (n + 1 > at.length) at = expand(at);
+                String name = rawCp.getUtf8KeyByIndex(ConstantPool.readU2(b, p));
+                at[n++] = p;
+                int length = ConstantPool.readInt(b, p+2);
+                p += 6;
+                if (length < 0 || length > b.length - p) return null;
+                int attrEnd = p + length;
+                if (name.equals("StackMapTable")) {
+                    hasFrames = true;
+                    int count = ConstantPool.readU2(b, p);
+                    p += 2;
+                    for(int j=0;j<count;j++) {
+                        int type = b[p++] & 0xff;
+                        int types;
+                        if (type < 64) types = 0;
+                        else if (type < 128) types = 1;
+                        else if (type < 247) return null;
+                        else {
+                            p += 2;
+                            types = type == 247 ? 1 : type < 252 ? 0 : type - 251;
+                        }
+                        if (type == 255) {
+                            // locals, then the stack
+                            for(int k=0;k<2;k++) {
+                                int m = ConstantPool.readU2(b, p);
+                                p += 2;
+                                for(;m > 0;m--) {
+                                    if (n + 1 > at.length) at = expand(at);
+                                    p = verificationType(b, p, at, n);
+                                    if (p < 0) { p = ~p; n++; }
+                                }
+                            }
+                            continue;
+                        }
+                        for(;types > 0;types--) {
+                            if (n + 1 > at.length) at = expand(at);
+                            p = verificationType(b, p, at, n);
+                            if (p < 0) { p = ~p; n++; }
+                        }
+                    }
+                } else if (name.equals("LocalVariableTable") || name.equals("LocalVariableTypeTable")) {
+                    int count = ConstantPool.readU2(b, p);
+                    p += 2;
+                    for(int j=0;j<count;j++, p += 10) {
+                        if (n + 2 > at.length) at = expand(at);
+                        at[n++] = p+4;
+                        at[n++] = p+6;
+                    }
+                } else if (name.equals("LineNumberTable")) {
+                    p = attrEnd;
+                } else {
+                    return null;
+                }
+                if (p != attrEnd) return null;
+            }
+            if (p != b.length) return null;
+            if (stackMaps && frames && !hasFrames) return null;
+            
+            Object[] keys = new Object[n];
+            for(int i=0;i<n;i++) keys[i] = rawCp.getKeyByIndex(at[i] >= 0 ? ConstantPool.readU2(b, at[i]) : b[~at[i]] & 0xff);
+            ConstantPool.Ent[] ents = new ConstantPool.Ent[n];
+            for(int i=0;i<n;i++) ents[i] = at[i] >= 0 ? cp.add(keys[i]) : cp.addNarrow(keys[i]);
+            return new CodeCopy(b, n, at, ents);
+        } catch(RuntimeException e) {
+            // out of bounds or not a valid cp entry; parsing it will say what's wrong
+            return null;
+        }
+    }
+    
+    /** Skips the verification_type_info at <i>p</i>, storing the position of its index in at[n] if it has one
+        @return The position after it, or ~ that if it has an index */
+    private static int verificationType(byte[] b, int p, int[] at, int n) {
+        switch(b[p]) {
+            case 7: at[n] = p+1; return ~(p+3); // Object
+            case 8: return p+3; // Uninitialized
+            default:
+                if (b[p] < 0 || b[p] > 8) throw new IllegalArgumentException("invalid verification type");
+                return p+1;
+        }
+    }
+    
+    private static int[] expand(int[] a) {
+        int[] a2 = new int[a.length*2];
+        System.arraycopy(a, 0, a2, 0, a.length);
+        return a2;
+    }
+    
     // Emitting Bits //////////////////////////////////////////////////////////////////////////////
    
     private Object resolveTarget(Object arg) {
@@ -587,29 +1524,58 @@ public class MethodGen extends Type.Class.Method.Body {
         } else {
             target = ((Integer)arg).intValue();
         }
+        checkTarget(target);
+        return arg;
+    }
+    
+    private int checkTarget(int target) {
         if (target < 0 || target >= size)
             throw new IllegalStateException("invalid target address " + target + "/" + size);
-        return arg;
+        return target;
     }
     
+    /** Returns the instruction a branch argument (an Integer or a resolved PhantomTarget) points to */
+    int target(Object arg) { return ((Integer)resolveTarget(arg)).intValue(); }
+    
+    /** Returns the instruction the branch at <i>pos</i> points to */
+    int target(int pos) { return arg[pos] == null ? checkTarget(iarg[pos]) : target(arg[pos]); }
+    
     /** Computes the final bytecode for this method. 
         @exception IllegalStateException if the data for a method is in an inconsistent state (required arguments missing, etc)
         @exception Exn if the byteocode could not be generated for any other reason (constant pool full, etc)
     */
-    void finish(ConstantPool cp) {
+    void finish(ConstantPool cp) { finish(cp, false, null); }
+    
+    /** @param stackMaps Whether to compute a StackMapTable for the code
+        @param cx The context used to find the common superclass of merged reference types in the StackMapTable (may be null)
+        @see #finish(ConstantPool) */
+    void finish(ConstantPool cp, boolean stackMaps, Context cx) {
         cp.addUtf8(method.name);
         cp.addUtf8(method.getTypeDescriptor());
         
         for(Enumeration e = thrownExceptions.keys();e.hasMoreElements();)
             cp.add(e.nextElement());
         
-        if (size == NO_CODE) return;
+        // These are encoded in place when the class is written
+        if (thrownExceptions.size() > 0) attrs.put("Exceptions", exceptionsAttr);
+        if (size == NO_CODE) { attrs.finish(cp); return; }
+        CodeCopy copy = rawCode == null ? null : copyCode(cp, stackMaps);
+        if (copy != null) {
+            attrs.put("Code", copy);
+            attrs.finish(cp);
+            return;
+        }
+        code();
+        if ((flags & (NATIVE|ABSTRACT))==0) attrs.put("Code", codeAttr);
+        pc = null;
+        far = null;
+        maxStack = Frames.maxStack(this);
+        maxLocals = Frames.maxLocals(this);
+        if (stackMaps) computeStackMap(cp, cx);
+        
         for(int i=0;i<exnTable.size();i++)
             ((ExnTableEnt)exnTable.elementAt(i)).finish(cp);
         
-        // We'll set these correctly later
-        if ((flags & (NATIVE|ABSTRACT))==0) attrs.put("Code","");
-        if (thrownExceptions.size() > 0) attrs.put("Exceptions","");
         attrs.finish(cp);
         codeAttrs.finish(cp);
         
@@ -634,7 +1600,7 @@ public class MethodGen extends Type.Class.Method.Body {
                     cparg[i] = cp.add(arg[i]);
                     break;
                 case INVOKEINTERFACE:
-                    cparg[i] = cp.add(new ConstantPool.InterfaceMethodKey((Type.Class.Method)arg[i]));
+                    cparg[i] = cp.addMember(CONSTANT_INTERFACEMETHODREF, (Type.Class.Method)arg[i]);
                     break;
                 case MULTIANEWARRAY:
                     cparg[i] = cp.add(((MultiANewArray)arg[i]).type);
@@ -643,78 +1609,151 @@ public class MethodGen extends Type.Class.Method.Body {
         }
     }
 
-    private void generateCode(ConstantPool cp) {
+    // Set by layoutCode() once the constant pool is sealed, used by the Code and StackMapTable attributes
+    int[] pc;
+    // Conditional branches that are written as the opposite branch over a GOTO_W (null if there aren't any)
+    boolean[] far;
+    private int codeSize;
+    
+    private final ClassFile.Attr codeAttr = new ClassFile.Attr() {
+        public int length(ConstantPool cp) {
+            if (pc == null) layoutCode(cp);
+            return 2 + 2 + 4 + codeSize + 2 + exnTable.size()*8 + codeAttrs.length(cp);
+        }
+        public void dump(ByteBuffer o, ConstantPool cp) { dumpCode(o, cp); }
+    };
+    
+    private final ClassFile.Attr exceptionsAttr = new ClassFile.Attr() {
+        public int length(ConstantPool cp) { return 2 + thrownExceptions.size()*2; }
+        public void dump(ByteBuffer o, ConstantPool cp) {
+            o.putShort((short)thrownExceptions.size());
+            for(Enumeration e = thrownExceptions.keys();e.hasMoreElements();)
+                o.putShort((short)cp.getIndex(thrownExceptions.get(e.nextElement())));
+        }
+    };
+    
+    /** Replaces the StackMapTable with one computed from the code. If the code can't be analyzed (it uses JSR/RET,
+        for instance) there won't be one and the JVM will have to fall back to the old verifier. */
+    private void computeStackMap(ConstantPool cp, Context cx) {
+        codeAttrs.remove("StackMapTable");
+        Frames f;
         try {
-            _generateCode(cp);
-        } catch(IOException e) {
-            throw new Error("should never happen");
+            f = new Frames(this, cx);
+        } catch(IllegalStateException e) {
+            return;
         }
+        removeDeadCode(f);
+        
+        // Frames are needed at branch targets, exception handlers and after unconditional jumps. A NOP takes
+        // up no space, so a frame needed at one goes on the instruction after it. The instruction after a
+        // conditional branch only needs one if layoutCode() makes the branch far (it then becomes a branch target).
+        final byte REQUIRED = 1, IF_FAR = 2;
+        byte[] needed = new byte[size];
+        for(int i=0;i<size;i++) {
+            if (f.locals[i] == null) continue;
+            int[] targets = f.targets(i);
+            for(int j=0;j<targets.length;j++) needed[targets[j]] = REQUIRED;
+            if (!Frames.fallsThrough(op[i]) && i+1 < size) needed[i+1] = REQUIRED;
+            else if (OP_BRANCH(op[i]) && op[i] != JSR && op[i] != JSR_W && i+1 < size && needed[i+1] == 0) needed[i+1] = IF_FAR;
+        }
+        for(int i=0;i<exnTable.size();i++) needed[((ExnTableEnt)exnTable.elementAt(i)).handler] = REQUIRED;
+        int[] insns = new int[size];
+        boolean[] optional = new boolean[size];
+        int n = 0;
+        for(int i=0;i<size;i++) {
+            if (needed[i] == 0) continue;
+            byte kind = needed[i];
+            if (!EMIT_NOPS) while(i+1 < size && op[i] == NOP) if (needed[++i] == REQUIRED) kind = REQUIRED;
+            if (op[i] == NOP && !EMIT_NOPS) break;
+            if (needed[i] == REQUIRED) kind = REQUIRED;
+            optional[n] = kind == IF_FAR;
+            insns[n++] = i;
+        }
+        int[] insns2 = new int[n];
+        System.arraycopy(insns, 0, insns2, 0, n);
+        boolean[] optional2 = new boolean[n];
+        System.arraycopy(optional, 0, optional2, 0, n);
+        
+        if (n > 0) codeAttrs.put("StackMapTable", f.stackMapTable(insns2, optional2, cp));
+        maxLocals = max(maxLocals, f.maxLocals);
+        maxStack = max(maxStack, f.maxStack);
     }
     
-    private void _generateCode(ConstantPool cp) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutput o = new DataOutputStream(baos);
+    /** Replaces unreachable code with NOPs followed by an ATHROW (which the verifier can check without knowing
+        anything about the locals) and takes it out of the exception table */
+    private void removeDeadCode(Frames f) {
+        boolean[] dead = null;
+        for(int i=0;i<size;i++) {
+            if (f.locals[i] != null) continue;
+            if (dead == null) dead = new boolean[size];
+            dead[i] = true;
+        }
+        if (dead == null) return;
+        maxStack = max(maxStack, 1);
+        cfg = null;
+        for(int i=0;i<size;i++) {
+            if (!dead[i]) continue;
+            f.markDead(i);
+            op[i] = i+1 == size || !dead[i+1] ? ATHROW : NOP;
+            arg[i] = null;
+        }
+        for(int i=0;i<exnTable.size();) {
+            ExnTableEnt e = (ExnTableEnt) exnTable.elementAt(i);
+            exnTable.removeElementAt(i);
+            for(int start=e.start, end;start<e.end;start=end) {
+                while(start < e.end && dead[start]) start++;
+                for(end=start;end<e.end && !dead[end];end++);
+                if (start < end) exnTable.insertElementAt(new ExnTableEnt(start, end, e.handler, e.type), i++);
+            }
+        }
+    }
     
-        int[] pc = new int[size];
-        int[] maxpc = pc;
-        int p, i;
+    /** Computes the final pc of every instruction (and widens instructions as necessary). Every branch starts out in
+        its short form and the ones that can't reach their targets are lengthened until nothing changes. Since
+        branches only ever grow this always terminates. A conditional branch that can't reach its target is written
+        as the opposite branch over a GOTO_W (see far). */
+    private void layoutCode(ConstantPool cp) {
+        int p = 0, i;
         
-        // Pass1 - Calculate maximum pc of each bytecode, widen some insns, resolve any unresolved jumps, etc
-        for(i=0, p=0;i<size;i++) {
+        // Pass1 - Resolve any unresolved jumps and widen everything but branches as necessary
+        for(i=0;i<size;i++) {
             byte op = this.op[i];
-            int opdata = OP_DATA[op&0xff];
-            int j;
-            maxpc[i] = p;
             
-            if ((opdata & OP_BRANCH_FLAG)!= 0) { 
+            if (OP_BRANCH(op)) { 
                 try { 
-                    arg[i] = resolveTarget(arg[i]);
+                    iarg[i] = target(i);
+                    arg[i] = null;
                 } catch(RuntimeException e) {
                     System.err.println("WARNING: Error resolving target for " + Integer.toHexString(op&0xff));
                     throw e;
                 }
+                if (op == GOTO_W) this.op[i] = GOTO;
+                else if (op == JSR_W) this.op[i] = JSR;
+                continue;
             }
             
             switch(op) {
-                // Speical caculations
-                case GOTO:
-                case JSR: {
-                    int arg = ((Integer)this.arg[i]).intValue();
-                    if (arg < i && p - maxpc[arg] <= 32768) p += 3; 
-                    else p += 5;
-                    continue;
-                }
-                case NOP:
-                    if (EMIT_NOPS) p++;
-                    continue;
                 case LOOKUPSWITCH:
                 case TABLESWITCH: {
                     Switch si = (Switch) arg[i];
                     Object[] targets = si.targets;
-                    for(j=0;j<targets.length;j++) targets[j] = resolveTarget(targets[j]);
+                    for(int j=0;j<targets.length;j++) targets[j] = resolveTarget(targets[j]);
                     si.defaultTarget = resolveTarget(si.defaultTarget);
-                    p += 1 + 3 + si.length(); // opcode itself, padding, data
                     if (op == LOOKUPSWITCH) { // verify sanity of lookupswitch vals
                         int[] vals = ((Switch.Lookup)si).vals;
-                        for(j=1;j<vals.length;j++)
+                        for(int j=1;j<vals.length;j++)
                             if (vals[j] <= vals[j-1])
                                 throw new IllegalStateException("out of order/duplicate lookupswitch values");
                     }
-                    continue;
+                    break;
                 }
-                case WIDE:
-                    p += ((Wide)arg[i]).op == IINC ? 5 : 3;
-                    continue;
-                // May need widening
                 case ILOAD: case ISTORE: case LLOAD: case LSTORE: case FLOAD:
                 case FSTORE: case DLOAD: case DSTORE: case ALOAD: case ASTORE:
                 case RET: {
-                    int arg = ((Integer)this.arg[i]).intValue();
+                    int arg = iarg[i];
                     if (arg > 255) {
                         this.op[i] = WIDE;
                         this.arg[i] = new Wide(op, arg);
-                        p += 4;
-                        continue;
                     }
                     break;
                 }
@@ -723,81 +1762,92 @@ public class MethodGen extends Type.Class.Method.Body {
                     if (pair.i1 > 255 || pair.i2 < -128 || pair.i2 > 127) {
                         this.op[i] = WIDE;
                         this.arg[i] = new Wide(IINC, pair.i1, pair.i2);
-                        p += 6;
-                        continue;
                     }
                     break;
                 }
                 case LDC:
-                    j = cp.getIndex(cparg[i]);
-                    if (j >= 256) {
-                        this.op[i] = op = LDC_W;
-                        p += 3;
-                        continue;
-                    }
+                    if (cp.getIndex(cparg[i]) >= 256) this.op[i] = LDC_W;
                     break;
-                default:
             }
-            if ((j = (opdata&OP_ARG_LENGTH_MASK)) == 7) throw new Error("shouldn't be here " + Integer.toString(op&0xff,16));
-            p += 1 + j;
         }
         
-        // Pass2 - Widen instructions if they can possibly be too short
-        for(i=0;i<size;i++) {
-            switch(op[i]) {
-                case GOTO:
-                case JSR: {
-                    int arg = ((Integer)this.arg[i]).intValue();
-                    int diff = maxpc[arg] - maxpc[i];
-                    if (diff < -32768 || diff > 32767)
-                        op[i] = op[i] == GOTO ? GOTO_W : JSR_W;
-                    break;
-                }
+        // Pass2 - Lay out the code, lengthening the branches that don't fit, until nothing changes
+        int[] pc = new int[size];
+        boolean[] far = new boolean[size];
+        for(boolean changed = true; changed; ) {
+            for(i=0, p=0;i<size;i++) {
+                pc[i] = p;
+                p += length(i, p, far[i]);
+            }
+            if (p >= 65536) throw new ClassFile.Exn("method too large in size");
+            changed = false;
+            for(i=0;i<size;i++) {
+                if (far[i] || !OP_BRANCH(op[i])) continue;
+                int diff = pc[iarg[i]] - pc[i];
+                if (diff < -32768 || diff > 32767) far[i] = changed = true;
             }
         }
         
-        // Pass3 - Calculate actual pc
-        for(i=0, p=0;i<size;i++) {
-            byte op = this.op[i];
-            pc[i] = p;
-            switch(op) {
-                case NOP:
-                    if (EMIT_NOPS) p++;
-                    break;
-                case TABLESWITCH:
-                case LOOKUPSWITCH: {
-                    Switch si = (Switch) arg[i];
-                    p++; // opcode itself
-                    p = (p + 3) & ~3; // padding
-                    p += 4; // default
-                    if (op == TABLESWITCH) p += 4 + 4 + si.size() * 4; // lo, hi, targets
-                    else p += 4 + si.size() * 4 * 2; // count, key, val * targets
-                    break;
-                }
-                case WIDE:
-                    p += 2 + (((Wide)arg[i]).op == IINC ? 4 : 2);
-                    break;                
-                default: {
-                    int l = OP_DATA[op&0xff] & OP_ARG_LENGTH_MASK;
-                    if (l == 7) throw new Error("shouldn't be here");
-                    p += 1 + l;                    
-                }
+        // Pass3 - Unconditional branches have long forms of their own
+        boolean anyFar = false;
+        for(i=0;i<size;i++) {
+            if (!far[i]) continue;
+            if (op[i] == GOTO || op[i] == JSR) {
+                op[i] = op[i] == GOTO ? GOTO_W : JSR_W;
+                far[i] = false;
+            } else {
+                anyFar = true;
             }
         }
-        int codeSize = p;
-        
-        if (codeSize >= 65536) throw new ClassFile.Exn("method too large in size");
+        this.far = anyFar ? far : null;
+        this.pc = pc;
+        this.codeSize = p;
+    }
+    
+    /** The number of bytes instruction <i>i</i> takes up if it starts at <i>p</i> */
+    private int length(int i, int p, boolean far) {
+        byte op = this.op[i];
+        switch(op) {
+            case NOP:
+                return EMIT_NOPS ? 1 : 0;
+            case TABLESWITCH:
+            case LOOKUPSWITCH:
+                return 1 + (3 - (p & 3)) + ((Switch)arg[i]).length(); // opcode itself, padding, data
+            case WIDE:
+                return ((Wide)arg[i]).op == IINC ? 6 : 4;
+            default: {
+                if (far) return op == GOTO || op == JSR ? 5 : 8;
+                int l = OP_DATA[op&0xff] & OP_ARG_LENGTH_MASK;
+                if (l == 7) throw new Error("shouldn't be here " + Integer.toString(op&0xff,16));
+                return 1 + l;
+            }
+        }
+    }
+    
+    /** Writes the body of the Code attribute, layoutCode() must have been called first */
+    private void dumpCode(ByteBuffer o, ConstantPool cp) {
+        int[] pc = this.pc;
+        int p, i;
+        int start = o.position();
         
-        o.writeShort(maxStack);
-        o.writeShort(maxLocals);
-        o.writeInt(codeSize);
+        o.putShort((short)maxStack);
+        o.putShort((short)maxLocals);
+        o.putInt(codeSize);
         
         // Pass 4 - Actually write the bytecodes
         for(i=0;i<size;i++) {
             byte op = this.op[i];
             int opdata = OP_DATA[op&0xff];
             if (op == NOP && !EMIT_NOPS) continue;
-            o.writeByte(op);
+            if (far != null && far[i]) {
+                // if (!cond) skip the goto_w (3 + 5 bytes); goto_w target
+                o.put(negate(op));
+                o.putShort((short)8);
+                o.put(GOTO_W);
+                o.putInt(pc[iarg[i]] - pc[i] - 3);
+                continue;
+            }
+            o.put(op);
             int argLength = opdata & OP_ARG_LENGTH_MASK;
             
             if (argLength == 0) continue; // skip if no args
@@ -809,80 +1859,78 @@ public class MethodGen extends Type.Class.Method.Body {
                 case IINC: {
                     Pair pair = (Pair) arg;
                     if (pair.i1 > 255 || pair.i2 < -128 || pair.i2 > 127) throw new ClassFile.Exn("overflow of iinc arg"); 
-                    o.writeByte(pair.i1);
-                    o.writeByte(pair.i2);
+                    o.put((byte)pair.i1);
+                    o.put((byte)pair.i2);
                     break;
                 }
                 case TABLESWITCH:
                 case LOOKUPSWITCH: {
                     Switch si = (Switch) arg;
                     int mypc = pc[i];
-                    for(p = pc[i]+1;(p&3)!=0;p++) o.writeByte(0);
-                    o.writeInt(pc[si.getDefaultTarget()] - mypc);
+                    for(p = pc[i]+1;(p&3)!=0;p++) o.put((byte)0);
+                    o.putInt(pc[si.getDefaultTarget()] - mypc);
                     if (op == LOOKUPSWITCH) {
                         int[] vals = ((Switch.Lookup)si).vals;
-                        o.writeInt(si.size());
+                        o.putInt(si.size());
                         for(int j=0;j<si.size();j++) {
-                            o.writeInt(vals[j]);
-                            o.writeInt(pc[si.getTarget(j)] - mypc);
+                            o.putInt(vals[j]);
+                            o.putInt(pc[si.getTarget(j)] - mypc);
                         }
                     } else {
                         Switch.Table tsi = (Switch.Table) si;
-                        o.writeInt(tsi.lo);
-                        o.writeInt(tsi.hi);
-                        for(int j=0;j<tsi.size();j++) o.writeInt(pc[tsi.getTarget(j)] - mypc);
+                        o.putInt(tsi.lo);
+                        o.putInt(tsi.hi);
+                        for(int j=0;j<tsi.size();j++) o.putInt(pc[tsi.getTarget(j)] - mypc);
                     }
                     break;
                 }
                 case WIDE: {
                     Wide wide = (Wide) arg;
-                    o.writeByte(wide.op);
-                    o.writeShort(wide.varNum);
-                    if (wide.op == IINC) o.writeShort(wide.n);
+                    o.put(wide.op);
+                    o.putShort((short)wide.varNum);
+                    if (wide.op == IINC) o.putShort((short)wide.n);
                     break;
                 }
                 case MULTIANEWARRAY: {
-                    o.writeShort(cp.getIndex(cparg[i]));
+                    o.putShort((short)cp.getIndex(cparg[i]));
                     int v = ((MultiANewArray) arg).dims;
                     if (v >= 256) throw new ClassFile.Exn("overflow of dimensions in multianewarray");
-                    o.writeByte(v);
+                    o.put((byte)v);
                     break;
                 }
                 case INVOKEINTERFACE:
-                    o.writeShort(cp.getIndex(cparg[i]));
-                    o.writeByte(((Type.Class.Method)arg).argTypes.length + 1);
-                    o.writeByte(0);
+                    o.putShort((short)cp.getIndex(cparg[i]));
+                    o.put((byte)(((Type.Class.Method)arg).argTypes.length + 1));
+                    o.put((byte)0);
                     break;
                 default:
                     if ((opdata & OP_BRANCH_FLAG) != 0) {
-                        int v = pc[((Integer)arg).intValue()] - pc[i];
+                        int v = pc[iarg[i]] - pc[i];
                         if (argLength == 2) {
                             if (v < -32768 || v > 32767) throw new ClassFile.Exn("overflow of s2 offset");
-                            o.writeShort(v);
+                            o.putShort((short)v);
                         } else if (argLength == 4) {
-                            o.writeInt(v);
+                            o.putInt(v);
                         } else {
                             throw new Error("should never happen");
                         }
                     } else if ((opdata & OP_CPENT_FLAG) != 0) {
                         int v = cp.getIndex(cparg[i]);
-                        if (argLength == 1) o.writeByte(v);
-                        else if (argLength == 2) o.writeShort(v);
+                        if (argLength == 1) o.put((byte)v);
+                        else if (argLength == 2) o.putShort((short)v);
                         else throw new Error("should never happen");
                     } else if (argLength == 7) {
                         throw new Error("should never happen - variable length instruction not explicitly handled");
                     } else {
-                        int iarg  = (arg instanceof Type.Primitive)
-                            ? ((Type.Primitive)arg).toArraySpec()
-                            : ((Integer)arg).intValue();
+                        int iarg = this.iarg[i];
                         if (argLength == 1) {
                             if ((opdata & OP_UNSIGNED_FLAG) != 0 ? iarg >= 256 : (iarg < -128 || iarg >= 128))
                                 throw new ClassFile.Exn("overflow of s/u1 option");
-                            o.writeByte(iarg);
+                            o.put((byte)iarg);
                         } else if (argLength == 2) {
                             if ((opdata & OP_UNSIGNED_FLAG) != 0 ? iarg >= 65536 : (iarg < -32768 || iarg >= 32768))
                                 throw new ClassFile.Exn("overflow of s/u2 option");
-                            o.writeShort(iarg);
+                            o.putShort((short)iarg);
                         } else {
                             throw new Error("should never happen");
                         }
@@ -891,38 +1939,22 @@ public class MethodGen extends Type.Class.Method.Body {
             }
         }
 
-        //if (baos.size() - 8 != codeSize) throw new Error("we didn't output what we were supposed to");
+        if (o.position() - start - 8 != codeSize) throw new Error("we didn't output what we were supposed to");
         
-        o.writeShort(exnTable.size());
+        o.putShort((short)exnTable.size());
         for(i=0;i<exnTable.size();i++)
             ((ExnTableEnt)exnTable.elementAt(i)).dump(o, pc, codeSize, cp);
         
         codeAttrs.dump(o,cp);
-        baos.close();
-        
-        byte[] codeAttribute = baos.toByteArray();
-        attrs.put("Code", codeAttribute);        
-    }
-        
-    void generateExceptions(ConstantPool cp) throws IOException {
-        if (thrownExceptions.size() > 0) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream o = new DataOutputStream(baos);
-            o.writeShort(thrownExceptions.size());
-            for(Enumeration e = thrownExceptions.keys();e.hasMoreElements();)
-                o.writeShort(cp.getIndex(thrownExceptions.get(e.nextElement())));
-            baos.close();
-            attrs.put("Exceptions", baos.toByteArray());
-        }
     }
     
-    void dump(DataOutput o, ConstantPool cp) throws IOException {
-        if ((flags & (NATIVE|ABSTRACT))==0) generateCode(cp);
-        generateExceptions(cp);
-        
-        o.writeShort(flags);
-        o.writeShort(cp.getUtf8Index(method.name));
-        o.writeShort(cp.getUtf8Index(method.getTypeDescriptor()));
+    /** the number of bytes dump() will write; this lays out the code so it must be called first */
+    int length(ConstantPool cp) { return 6 + attrs.length(cp); }
+    
+    void dump(ByteBuffer o, ConstantPool cp) {
+        o.putShort((short)flags);
+        o.putShort((short)cp.getUtf8Index(method.name));
+        o.putShort((short)cp.getUtf8Index(method.getTypeDescriptor()));
         attrs.dump(o,cp);
     }
     
@@ -950,7 +1982,12 @@ public class MethodGen extends Type.Class.Method.Body {
     private static final boolean OP_VALID(byte op) { return (OP_DATA[op&0xff] & OP_VALID_FLAG) != 0; }
     private static final int OP_ARG_LENGTH(byte op) { return (OP_DATA[op&0xff]&OP_ARG_LENGTH_MASK); }
     private static final boolean OP_CPENT(byte op) { return (OP_DATA[op&0xff]&OP_CPENT_FLAG) != 0; }
-    private static final boolean OP_BRANCH(byte op) { return (OP_DATA[op&0xff]&OP_BRANCH_FLAG ) != 0; }
+    static final boolean OP_BRANCH(byte op) { return (OP_DATA[op&0xff]&OP_BRANCH_FLAG ) != 0; }
+    /** Whether <i>op</i>'s argument is a plain int (kept in iarg unless it is a PhantomTarget) */
+    static final boolean OP_INTARG(byte op) {
+        int l = OP_DATA[op&0xff]&OP_ARG_LENGTH_MASK;
+        return l != 0 && l != 7 && op != IINC && (OP_DATA[op&0xff]&OP_CPENT_FLAG) == 0;
+    }
     private static final boolean OP_UNSIGNED(byte op) { return (OP_DATA[op&0xff]&OP_UNSIGNED_FLAG ) != 0; }
     
     // Run perl -x src/org/ibex/classgen/CGConst.java to generate this
@@ -976,6 +2013,7 @@ public class MethodGen extends Type.Class.Method.Body {
     // Debugging //////////////////////////////////////////////////////////////////////////////
 
     public void debugBodyToString(StringBuffer sb) {
+        code();
         // This is intentionally a local variable so it can be removed by gcclass
         final String[] OP_NAMES = new String[]{
             "nop", "aconst_null", "iconst_m1", "iconst_0", "iconst_1", "iconst_2", 
@@ -1028,16 +2066,17 @@ public class MethodGen extends Type.Class.Method.Body {
             sb.append(i).append(": ");
             sb.append(OP_NAMES[op[i]&0xff]);
             String s = null;
-            if (arg[i] instanceof Type) s = ((Type)arg[i]).toString();
-            else if (arg[i] instanceof Type.Class.Member) s = ((Type.Class.Member)arg[i]).toString();
-            else if (arg[i] instanceof String) s = "\"" + arg[i] + "\"";
-            else if (arg[i] != null) s = arg[i].toString();
+            Object arg = peekArg(i);
+            if (arg instanceof Type) s = ((Type)arg).toString();
+            else if (arg instanceof Type.Class.Member) s = ((Type.Class.Member)arg).toString();
+            else if (arg instanceof String) s = "\"" + arg + "\"";
+            else if (arg != null) s = arg.toString();
             if (s != null) sb.append(" ").append(s);
             sb.append("\n");
         }
     }
 
-    // Unused //////////////////////////////////////////////////////////////////////////////
+    // Helpers //////////////////////////////////////////////////////////////////////////////
 
     /** Negates the IF* instruction, <i>op</i>  (IF_ICMPGT -> IF_ICMPLE, IFNE -> IFEQ,  etc)
         @exception IllegalArgumentException if <i>op</i> isn't an IF* instruction */
@@ -1057,6 +2096,8 @@ public class MethodGen extends Type.Class.Method.Body {
             case IF_ICMPLE: return IF_ICMPGT;
             case IF_ACMPEQ: return IF_ACMPNE;
             case IF_ACMPNE: return IF_ACMPEQ;
+            case IFNULL: return IFNONNULL;
+            case IFNONNULL: return IFNULL;
             
             default:
                 throw new IllegalArgumentException("Can't negate " + Integer.toHexString(op));
@@ -1,11 +1,14 @@
 package org.ibex.classgen;
 
 import java.util.StringTokenizer;
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.lang.ref.*;
 
 public abstract class Type implements CGConst {
 
-    private static Hashtable<String,Type> instances = new Hashtable<String,Type>();  // this has to appear at the top of the file
+    // class types that don't belong to a TypeSession; a type nothing refers to anymore is dropped
+    private static final ConcurrentHashMap<String,Interned> instances = new ConcurrentHashMap<String,Interned>();  // this has to appear at the top of the file
+    private static final ReferenceQueue<Type.Class> dropped = new ReferenceQueue<Type.Class>();
 
     // Public API //////////////////////////////////////////////////////////////////////////////
 
@@ -33,17 +36,58 @@ public abstract class Type implements CGConst {
     /** 
      *  A "descriptor" is the classfile-mangled text representation of a type (see JLS section 4.3)
      *  guarantee: there will only be one instance of Type for a given descriptor ==> equals() and == are interchangeable
+     *  (within a TypeSession, see there)
      */
-    public static Type fromDescriptor(String d) {
-        Type ret = (Type)instances.get(d);
-        if (ret != null) return ret;
-        if (d.startsWith("[")) return new Type.Array(Type.fromDescriptor(d.substring(1)));
-        return new Type.Class(d);
+    public static Type fromDescriptor(String d) { return d.length() == 0 ? NULL : fromDescriptor(d, 0, d.length()); }
+
+    /** Returns the type whose descriptor is the part of <i>s</i> from <i>start</i> to <i>end</i>; only the name of
+        a class type is copied out of <i>s</i> (and only when the type has to be looked up) */
+    static Type fromDescriptor(String s, int start, int end) {
+        int dims = 0;
+        while(start+dims < end && s.charAt(start+dims) == '[') dims++;
+        Type t = end - start - dims == 1 ? primitive(s.charAt(start+dims)) : null;
+        if (t == null) t = Type.Class.intern(s.substring(start+dims, end));
+        for(; dims > 0; dims--) t = t.makeArray();
+        return t;
+    }
+
+    private static Type primitive(char c) {
+        switch(c) {
+            case 'V': return VOID;
+            case 'I': return INT;
+            case 'J': return LONG;
+            case 'Z': return BOOLEAN;
+            case 'D': return DOUBLE;
+            case 'F': return FLOAT;
+            case 'B': return BYTE;
+            case 'C': return CHAR;
+            case 'S': return SHORT;
+            default: return null;
+        }
+    }
+
+    /** Returns the index just past the descriptor of the type starting at <i>p</i> in <i>s</i> */
+    private static int skipDescriptor(String s, int p) {
+        while(p < s.length() && s.charAt(p) == '[') p++;
+        if (p >= s.length()) throw new IllegalArgumentException("invalid type descriptor: " + s);
+        if (s.charAt(p) != 'L') return p+1;
+        p = s.indexOf(';', p);
+        if (p == -1) throw new IllegalArgumentException("invalid type descriptor: " + s);
+        return p+1;
     }
 
     public final String  getDescriptor() { return descriptor; }
 
-    public Type.Array  makeArray() { return (Type.Array)Type.fromDescriptor("["+descriptor); }
+    /** The array type of a type is created along with it (in the same TypeSession, if any) and kept by it, so this
+        doesn't need the intern tables */
+    public Type.Array  makeArray() {
+        Type.Array a = array;
+        if (a != null) return a;
+        synchronized(this) {
+            if (array == null) array = new Type.Array(this);
+            return array;
+        }
+    }
     public Type.Array  makeArray(int i) { return i==0 ? (Type.Array)this : makeArray().makeArray(i-1); }
 
     public Type.Ref    asRef()       { throw new RuntimeException("attempted to use "+this+" as a Type.Ref, which it is not"); }
@@ -54,14 +98,20 @@ public abstract class Type implements CGConst {
     public boolean     isClass()     { return false; }
     public boolean     isArray()     { return false; }
 
-    public static Type unify(Type t1, Type t2) {
+    public static Type unify(Type t1, Type t2) { return unify(t1, t2, null); }
+    /** Returns the type both <i>t1</i> and <i>t2</i> can be used as, or null if there is none (or it can't be
+        determined). Without a context two different reference types don't unify; with one they unify to their
+        most specific common superclass as the verifier sees it. */
+    public static Type unify(Type t1, Type t2, Context cx) {
         if(t1 == Type.NULL) return t2;
         if(t2 == Type.NULL) return t1;
         if((t1 == Type.INT && t2 == Type.BOOLEAN) || (t2 == Type.INT & t1 == Type.BOOLEAN)) return Type.BOOLEAN;
         if(t1 == t2) return t1;
-        // FIXME: This needs to do a lot more (subclasses, etc)
-        // it probably should be in Context.java
-        return null;
+        if(cx == null || !t1.isRef() || !t2.isRef()) return null;
+        if(t1.isClass() && t2.isClass()) return cx.getHierarchy().commonSuperclass(t1.asClass(), t2.asClass());
+        if(!t1.isArray() || !t2.isArray()) return Type.OBJECT;
+        Type e = unify(t1.asArray().getElementType(), t2.asArray().getElementType(), cx);
+        return e != null && e.isRef() ? e.asRef().makeArray() : Type.OBJECT;
     }
 
     public static Type fromArraySpec(int i) {
@@ -81,10 +131,13 @@ public abstract class Type implements CGConst {
     // Protected/Private //////////////////////////////////////////////////////////////////////////////
 
     protected final String descriptor;
+    private volatile Type.Array array;
     
-    protected Type(String descriptor) {
-        this.descriptor = descriptor;
-        instances.put(descriptor, this);
+    protected Type(String descriptor) { this.descriptor = descriptor; }
+
+    private static final class Interned extends WeakReference<Type.Class> {
+        final String descriptor;
+        Interned(Type.Class c) { super(c, dropped); descriptor = c.descriptor; }
     }
     
     public static class Null extends Type {
@@ -132,19 +185,29 @@ public abstract class Type implements CGConst {
         public boolean isClass() { return true; }
         public static Type.Class instance(String className) {
             return (Type.Class)Type.fromDescriptor("L"+className.replace('.', '/')+";"); }
-        public boolean extendsOrImplements(Type.Class c, Context cx) {
-            if (this==c) return true;
-            if (this==OBJECT) return false;
-            ClassFile cf = cx.resolve(getName());
-            if (cf==null) {
-                System.err.println("warning: could not resolve class " + getName());
-                return false;
+
+        /** Returns the class type for the descriptor <i>d</i>: the one in the calling thread's session if it has
+            one, otherwise the global one, creating it in the session (or globally, without a session) if need be */
+        static Type.Class intern(String d) {
+            TypeSession session = TypeSession.current();
+            Type.Class c = session == null ? null : session.get(d);
+            if (c != null) return c;
+            Interned r = instances.get(d);
+            c = r == null ? null : r.get();
+            if (c != null) return c;
+            if (session != null) return session.intern(d);
+            for(Object o; (o = dropped.poll()) != null; ) instances.remove(((Interned)o).descriptor, o);
+            c = new Type.Class(d);
+            Interned nr = new Interned(c);
+            for(;;) {
+                r = instances.putIfAbsent(d, nr);
+                if (r == null) return c;
+                Type.Class prev = r.get();
+                if (prev != null) return prev;
+                if (instances.replace(d, r, nr)) return c;
             }
-            if (cf.superType == c) return true;
-            for(int i=0; i<cf.interfaces.length; i++) if (cf.interfaces[i].extendsOrImplements(c,cx)) return true;
-            if (cf.superType == null) return false;
-            return cf.superType.extendsOrImplements(c, cx);
         }
+        public boolean extendsOrImplements(Type.Class c, Context cx) { return cx.getHierarchy().isSubtype(this, c); }
         String internalForm() { return descriptor.substring(1, descriptor.length()-1); }
         public String toString() { return internalForm().replace('/','.'); }
         public String getName() { return internalForm().replace('/','.'); }
@@ -174,35 +237,81 @@ public abstract class Type implements CGConst {
             }
         }
 
-        public Field field(String name, Type type) { return new Field(name, type); }
-        public Field field(String name, String descriptor) { return field(name,Type.fromDescriptor(descriptor)); }
+        // members are interned: these are the ones asked for so far by name, each a Member or a Member[] of several
+        private volatile ConcurrentHashMap<String,Object> members;
+
+        public Field field(String name, Type type) {
+            Member m = findMember(name, type.getDescriptor(), false);
+            return m != null ? (Field) m : (Field) addMember(new Field(name, type));
+        }
+        public Field field(String name, String descriptor) {
+            Member m = findMember(name, descriptor, false);
+            return m != null ? (Field) m : (Field) addMember(new Field(name, Type.fromDescriptor(descriptor)));
+        }
 
-        public Method method(String name, Type returnType, Type[] argTypes) { return new Method(name, returnType, argTypes); }
+        public Method method(String name, Type returnType, Type[] argTypes) {
+            String descriptor = methodTypeDescriptor(argTypes, returnType);
+            Member m = findMember(name, descriptor, true);
+            if (m != null) return (Method) m;
+            return (Method) addMember(new Method(name, returnType, (Type[]) argTypes.clone(), descriptor));
+        }
 
         /** see JVM Spec section 2.10.2 */
         public Method method(String name, String descriptor) {
-            // FEATURE: This parser is ugly but it works (and shouldn't be a problem) might want to clean it up though
-            String s = descriptor;
-            if(!s.startsWith("(")) throw new IllegalArgumentException("invalid method type descriptor");
-            int p = s.indexOf(')');
-            if(p == -1) throw new IllegalArgumentException("invalid method type descriptor");
-            String argsDesc = s.substring(1,p);
-            String retDesc = s.substring(p+1);
-            Type[] argsBuf = new Type[argsDesc.length()];
-            int i;
-            for(i=0,p=0;argsDesc.length() > 0;i++,p=0) {
-                while(p < argsDesc.length() && argsDesc.charAt(p) == '[') p++;
-                if(p == argsDesc.length())  throw new IllegalArgumentException("invalid method type descriptor");
-                if(argsDesc.charAt(p) == 'L') {
-                    p = argsDesc.indexOf(';');
-                    if(p == -1) throw new IllegalArgumentException("invalid method type descriptor");
+            Member m = findMember(name, descriptor, true);
+            if (m != null) return (Method) m;
+            if (!descriptor.startsWith("(")) throw new IllegalArgumentException("invalid method type descriptor");
+            // count the arguments first so that the only things allocated are the ones that are kept
+            int n = 0, p = 1;
+            for(; p < descriptor.length() && descriptor.charAt(p) != ')'; n++) p = skipDescriptor(descriptor, p);
+            if (p >= descriptor.length() || skipDescriptor(descriptor, p+1) != descriptor.length())
+                throw new IllegalArgumentException("invalid method type descriptor");
+            Type[] args = new Type[n];
+            for(int i=0, q=1; i<n; i++) {
+                int e = skipDescriptor(descriptor, q);
+                args[i] = Type.fromDescriptor(descriptor, q, e);
+                q = e;
+            }
+            Type ret = Type.fromDescriptor(descriptor, p+1, descriptor.length());
+            return (Method) addMember(new Method(name, ret, args, descriptor));
+        }
+
+        private Member findMember(String name, String descriptor, boolean method) {
+            ConcurrentHashMap<String,Object> members = this.members;
+            Object o = members == null ? null : members.get(name);
+            if (o instanceof Member) return isMember((Member)o, descriptor, method) ? (Member)o : null;
+            if (o != null) {
+                Member[] a = (Member[]) o;
+                for(int i=0;i<a.length;i++) if (isMember(a[i], descriptor, method)) return a[i];
+            }
+            return null;
+        }
+        private static boolean isMember(Member m, String descriptor, boolean method) {
+            return (m instanceof Method) == method && m.getTypeDescriptor().equals(descriptor);
+        }
+
+        /** Interns <i>m</i>, returns the member that was there first if another thread got there before */
+        private Member addMember(Member m) {
+            ConcurrentHashMap<String,Object> members = this.members;
+            if (members == null) synchronized(this) {
+                if (this.members == null) this.members = new ConcurrentHashMap<String,Object>();
+                members = this.members;
+            }
+            boolean method = m instanceof Method;
+            String descriptor = m.getTypeDescriptor();
+            for(;;) {
+                Object o = members.get(m.name);
+                if (o == null) {
+                    if (members.putIfAbsent(m.name, m) == null) return m;
+                    continue;
                 }
-                argsBuf[i] = Type.fromDescriptor(argsDesc.substring(0,p+1));
-                argsDesc = argsDesc.substring(p+1);
+                Member[] a = o instanceof Member ? new Member[] { (Member)o } : (Member[])o;
+                for(int i=0;i<a.length;i++) if (isMember(a[i], descriptor, method)) return a[i];
+                Member[] a2 = new Member[a.length+1];
+                System.arraycopy(a, 0, a2, 0, a.length);
+                a2[a.length] = m;
+                if (members.replace(m.name, o, a2)) return m;
             }
-            Type args[] = new Type[i];
-            System.arraycopy(argsBuf,0,args,0,i);
-            return method(name, Type.fromDescriptor(retDesc), args);
         }
 
         public abstract class Member {
@@ -218,7 +327,12 @@ public abstract class Type implements CGConst {
     
         public class Field extends Member {
             public final Type type;
-            private Field(String name, Type t) { super(name); this.type = t; }
+            private final int hash;
+            private Field(String name, Type t) {
+                super(name);
+                this.type = t;
+                hash = type.hashCode() ^ name.hashCode() ^ getDeclaringClass().hashCode();
+            }
             public String getTypeDescriptor() { return type.getDescriptor(); }
             public Type getType() { return type; }
             public String toString() { return getDeclaringClass().toString()+"."+name+"["+type.toString()+"]"; }
@@ -229,9 +343,7 @@ public abstract class Type implements CGConst {
                     if ((flags & ~VALID_FIELD_FLAGS) != 0) throw new IllegalArgumentException("invalid flags");
                 }
             }
-            public int hashCode() {
-                return type.hashCode() ^ name.hashCode() ^ getDeclaringClass().hashCode();
-            }
+            public int hashCode() { return hash; }
             public boolean equals(Object o_) {
                 if(o_ == this) return true;
                 if(!(o_ instanceof Field)) return false;
@@ -269,20 +381,19 @@ public abstract class Type implements CGConst {
                 }
                 return sb.toString();
             }
-            private Method(String name, Type returnType, Type[] argTypes) {
+            private final String descriptor;
+            private final int hash;
+            private Method(String name, Type returnType, Type[] argTypes, String descriptor) {
                 super(name);
                 this.argTypes = argTypes;
                 this.returnType = returnType;
+                this.descriptor = descriptor;
+                int h = returnType.hashCode() ^ name.hashCode() ^ getDeclaringClass().hashCode();
+                for(int i=0;i<argTypes.length;i++) h ^= argTypes[i].hashCode();
+                hash = h;
             }
             //public Method.Body getBody(Context cx) { }
-            public String getTypeDescriptor() {
-                StringBuffer sb = new StringBuffer(argTypes.length*4);
-                sb.append("(");
-                for(int i=0;i<argTypes.length;i++) sb.append(argTypes[i].getDescriptor());
-                sb.append(")");
-                sb.append(returnType.getDescriptor());
-                return sb.toString();
-            }
+            public String getTypeDescriptor() { return descriptor; }
             public abstract class Body extends HasAttributes {
                 public abstract java.util.Hashtable getThrownExceptions();
                 public abstract void debugBodyToString(StringBuffer sb);
@@ -313,11 +424,7 @@ public abstract class Type implements CGConst {
                     }
                 }
             }
-            public int hashCode() {
-                int h = returnType.hashCode() ^ name.hashCode() ^ getDeclaringClass().hashCode();
-                for(int i=0;i<argTypes.length;i++) h ^= argTypes[i].hashCode();
-                return h;
-            }
+            public int hashCode() { return hash; }
             public boolean equals(Object o_) {
                 if(o_ == this) return true;
                 if(!(o_ instanceof Method)) return false;
@@ -0,0 +1,54 @@
+package org.ibex.classgen;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A scope for class types. While a session is the current one of a thread, class types that thread asks for that
+    don't exist yet are created in the session instead of globally (along with their array types), and they're kept
+    until the session is closed, when they are all dropped at once. Types that already exist globally (like
+    Type.OBJECT) are shared by every session. A session keeps using the types it created even once the same ones
+    have been created globally.
+
+    The one-instance-per-descriptor guarantee of Type holds within a session: a type created in one session and the
+    same type created in another (or globally, after the first was) are different objects, so types shouldn't be
+    carried from one session to another. Threads don't inherit the session of the thread that starts them.
+    @see Type#fromDescriptor(String) */
+public final class TypeSession {
+    private static final ThreadLocal<TypeSession> current = new ThreadLocal<TypeSession>();
+
+    private final ConcurrentHashMap<String,Type.Class> types = new ConcurrentHashMap<String,Type.Class>();
+    private volatile boolean closed;
+
+    public TypeSession() { }
+
+    /** Returns the session of the calling thread, null if there is none */
+    public static TypeSession current() { return (TypeSession) current.get(); }
+
+    /** Makes <i>s</i> the session of the calling thread (null for none), returns the one it replaces so it can be
+        restored afterwards */
+    public static TypeSession setCurrent(TypeSession s) {
+        TypeSession prev = (TypeSession) current.get();
+        if (s == null) current.remove(); else current.set(s);
+        return prev;
+    }
+
+    /** The number of class types created in this session */
+    public int size() { return types.size(); }
+
+    /** Drops all the types of this session; no more can be created in it afterwards */
+    public void close() {
+        closed = true;
+        types.clear();
+    }
+
+    /** Returns the type created in this session for <i>d</i>, null if there isn't one */
+    Type.Class get(String d) { return (Type.Class) types.get(d); }
+
+    Type.Class intern(String d) {
+        Type.Class c = (Type.Class) types.get(d);
+        if (c != null) return c;
+        if (closed) throw new IllegalStateException("type session has been closed");
+        c = new Type.Class(d);
+        Type.Class prev = (Type.Class) types.putIfAbsent(d, c);
+        return prev == null ? c : prev;
+    }
+}
@@ -4,6 +4,7 @@ import java.util.*;
 import org.ibex.classgen.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 public class Arena implements CGConst {
@@ -54,28 +55,34 @@ public class Arena implements CGConst {
         System.out.println("**** " + c.getName() + " is a gladiator!");
 
         Type.Class             arena           = getArenaForGladiator(c);
+        // both get changed, so they have to stay put in the cache
+        cx.pin(c.getName());
+        cx.pin(arena.getName());
         Type.Class.Body        arenaBody       = arena.getBody(cx);
         MethodGen              arenaInitBody   = (MethodGen)getSoleConstructor(c);
         Type.Class.Method      arenaInit       = arenaInitBody.getMethod();
         Type.Class.Field       outerClassField = c.field("this$0", arena);
 
+        // The initialization code for all the slices is added to the start of the constructor with a single
+        // insertRange(), which is linear in the size of the constructor, instead of one insertBlank() per instruction
+        ClassFile cb = cx.resolve(c);
+        Type.Class.Field.Body[] fields = cb.fields();
+        int numSlices = 0;
+        for(int i=0; i<fields.length; i++) if (!fields[i].getField().getName().startsWith("this$")) numSlices++;
+        arenaInitBody.insertRange(0, 6 + 4*numSlices);
+        int pos = 0;
+
         Type.Class.Field            maxField = arena.field(getGladiatorName(c) + "$$max", Type.INT);
         /*arenaBody.addField(maxField, PRIVATE);*/
-        arenaInitBody.insertBlank(0);
-        arenaInitBody.insertBlank(0);
-        arenaInitBody.insertBlank(0);
-        arenaInitBody.set(0, ALOAD_1);
-        arenaInitBody.set(1, LDC, initialSize);
-        arenaInitBody.set(2, PUTFIELD, maxField);
+        arenaInitBody.set(pos++, ALOAD_1);
+        arenaInitBody.set(pos++, LDC, initialSize);
+        arenaInitBody.set(pos++, PUTFIELD, maxField);
 
         Type.Class.Field sizeField = arena.field(getGladiatorName(c) + "$$size", Type.INT);
         /*arenaBody.addField(sizeField, PRIVATE);*/
-        arenaInitBody.insertBlank(0);
-        arenaInitBody.insertBlank(0);
-        arenaInitBody.insertBlank(0);
-        arenaInitBody.set(0, ALOAD_1);
-        arenaInitBody.set(1, LDC, 0);
-        arenaInitBody.set(2, PUTFIELD, sizeField);
+        arenaInitBody.set(pos++, ALOAD_1);
+        arenaInitBody.set(pos++, LDC, 0);
+        arenaInitBody.set(pos++, PUTFIELD, sizeField);
 
         Type.Class.Method      incMethod = null; //c.method(getGladiatorName(c) + "$$inc()I");
         MethodGen              incBody   = cx.resolve(c.getName()).addMethod(incMethod, PUBLIC);
@@ -92,8 +99,6 @@ public class Arena implements CGConst {
 
         // Finally, iterate over the Gladiator's fields, updating the $$inc method and Arena's zero-arg constructor as we go
 
-        ClassFile cb = cx.resolve(c);
-        Type.Class.Field.Body[] fields = cb.fields();
         for(int i=0; i<fields.length; i++) {
             Type.Class.Field f = fields[i].getField();
             if (f.getName().startsWith("this$")) continue;
@@ -101,14 +106,10 @@ public class Arena implements CGConst {
             f = arena.field(getGladiatorName(c) + "$$" + f.getName(), t.makeArray());
             //arenaBody.addField(f, PUBLIC);
             
-            arenaInitBody.insertBlank(0);
-            arenaInitBody.insertBlank(0);
-            arenaInitBody.insertBlank(0);
-            arenaInitBody.insertBlank(0);
-            arenaInitBody.set(0, ALOAD_1);
-            arenaInitBody.set(1, LDC, initialSize);
-            arenaInitBody.set(2, (t instanceof Type.Ref) ? ANEWARRAY : NEWARRAY, t);
-            arenaInitBody.set(3, PUTFIELD, f);
+            arenaInitBody.set(pos++, ALOAD_1);
+            arenaInitBody.set(pos++, LDC, initialSize);
+            arenaInitBody.set(pos++, (t instanceof Type.Ref) ? ANEWARRAY : NEWARRAY, t);
+            arenaInitBody.set(pos++, PUTFIELD, f);
         }
 
         /*
@@ -452,43 +453,225 @@ public class Arena implements CGConst {
     }
 */
 
+    // Jar processing //////////////////////////////////////////////////////////////////////////////
+
     public static void main(String[] s) throws Exception { new Arena().process(s); }
+
+    /** Rewrites the jar <i>s[0]</i> in place. Reading is done by the calling thread, which hands each class to a
+        pool to be parsed; once every class is in the context (finding gladiators needs the whole hierarchy) the
+        classes are processed in parallel, then each entry is written and deflated by the pool and the results
+        are assembled in order into the new jar. Each stage keeps at most a few entries per thread in flight. */
     public void process(String[] s) throws Exception {
         File outf = new File(s[0] + "-");
         File inf = new File(s[0]);
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outf));
-        ZipInputStream zis = new ZipInputStream(new FileInputStream(inf));
-        for(;;) {
-            ZipEntry ze = zis.getNextEntry();
-            if (ze==null) break;
-            String name = ze.getName();
-            if (!name.endsWith(".class")) {
-                out.putNextEntry(ze);
-                byte b[] = new byte[1024];
-                for(;;) {
-                    int numread = zis.read(b, 0, b.length);
-                    if (numread==-1) break;
-                    out.write(b, 0, numread);
-                }
-                continue;
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // only the classes that get changed have to stay parsed until they are written
+        cx.setCacheLimit(Runtime.getRuntime().maxMemory() / 16);
+        try {
+            Vector<Entry> entries = read(inf, pool, threads*4);
+            for(int i=0; i<entries.size(); i++) await(entries.elementAt(i).task);
+            for(int i=0; i<entries.size(); i++) {
+                final String className = entries.elementAt(i).className;
+                if (className == null) continue;
+                entries.elementAt(i).task = pool.submit(new Callable<Object>() { public Object call() {
+                    System.out.println("processing " + className);
+                    processClassFile(cx.resolve(className));
+                    return null;
+                } });
             }
-            System.out.println("updating " + name.substring(0, name.length()-6).replace('$','.').replace('/','.'));
-            ClassFile cf = new ClassFile(new DataInputStream(zis));
-            cx.add(cf);
+            for(int i=0; i<entries.size(); i++) await(entries.elementAt(i).task);
+            write(entries, outf, pool, threads*4);
+            System.out.println("classes: " + cx.getCacheHits() + " hits, " + cx.getCacheMisses() + " misses, " +
+                               cx.getCacheEvictions() + " evictions");
+        } finally {
+            pool.shutdown();
         }
-        for(Iterator it = cx.enumerateClassFiles().iterator(); it.hasNext();) {
-            ClassFile cf = (ClassFile)it.next();
-            System.out.println("processing " + cf.getType());
-            processClassFile(cf);
+        outf.renameTo(inf);
+    }
+
+    private Vector<Entry> read(File f, ExecutorService pool, int window) throws IOException, InterruptedException {
+        final Semaphore inFlight = new Semaphore(window);
+        Vector<Entry> entries = new Vector<Entry>();
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            for(ZipEntry ze; (ze = zis.getNextEntry()) != null; ) {
+                final Entry e = new Entry(ze.getName(), ze.getTime());
+                entries.addElement(e);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(ze.getSize() > 0 ? (int)ze.getSize() : 4096);
+                for(int n; (n = zis.read(buf, 0, buf.length)) != -1; ) baos.write(buf, 0, n);
+                e.data = baos.toByteArray();
+                if (!e.name.endsWith(".class")) continue;
+                System.out.println("updating " + e.name.substring(0, e.name.length()-6).replace('$','.').replace('/','.'));
+                inFlight.acquire();
+                e.task = pool.submit(new Callable<Object>() { public Object call() throws IOException {
+                    try {
+                        ClassFile cf = ClassFile.read(e.data);
+                        cx.add(cf);
+                        e.className = cf.getType().getName();
+                        return null;
+                    } finally {
+                        inFlight.release();
+                    }
+                } });
+            }
+        } finally {
+            zis.close();
         }
-        for(Iterator it = cx.enumerateClassFiles().iterator(); it.hasNext();) {
-            ClassFile cf = (ClassFile)it.next();
-            System.out.println("dumping " + cf.getType());
-            out.putNextEntry(new ZipEntry(cf.getType().getName().replace('.', '/') + ".class"));
-            cf.dump(out);
+        return entries;
+    }
+
+    private void write(Vector<Entry> entries, File f, ExecutorService pool, int window) throws Exception {
+        JarWriter out = new JarWriter(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE));
+        try {
+            for(int i=0; i<window && i<entries.size(); i++) deflate(entries.elementAt(i), pool);
+            for(int i=0; i<entries.size(); i++) {
+                if (i + window < entries.size()) deflate(entries.elementAt(i + window), pool);
+                Entry e = entries.elementAt(i);
+                await(e.task);
+                out.add(e);
+            }
+        } finally {
+            out.close();
         }
-        out.close();
-        outf.renameTo(inf);
+    }
+
+    /** Starts writing <i>e</i>'s class (if it is one) and compressing the result */
+    private void deflate(final Entry e, ExecutorService pool) {
+        e.task = pool.submit(new Callable<Object>() { public Object call() throws IOException {
+            if (e.className != null) {
+                System.out.println("dumping " + e.className);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(e.data.length);
+                cx.resolve(e.className).dump(baos);
+                e.data = baos.toByteArray();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(e.data, 0, e.data.length);
+            e.crc = (int)crc.getValue();
+            e.size = e.data.length;
+            if (e.size == 0) return null;
+            Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                d.setInput(e.data);
+                d.finish();
+                // anything that doesn't get smaller is stored
+                byte[] buf = new byte[e.size];
+                int n = 0;
+                while(!d.finished() && n < buf.length) n += d.deflate(buf, n, buf.length - n);
+                if (!d.finished()) return null;
+                e.data = new byte[n];
+                System.arraycopy(buf, 0, e.data, 0, n);
+                e.method = ZipEntry.DEFLATED;
+            } finally {
+                d.end();
+            }
+            return null;
+        } });
+    }
+
+    private static void await(Future<?> f) throws Exception {
+        if (f == null) return;
+        try {
+            f.get();
+        } catch(ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof Exception) throw (Exception)t;
+            if (t instanceof Error) throw (Error)t;
+            throw e;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1<<16;
+
+    /** One entry of the jar, in the order it was read */
+    private static final class Entry {
+        final String name;
+        final int dosTime;
+        byte[] data;            // the contents, compressed once the deflate stage is done with them
+        String className;       // for classes, which are kept in the context between parsing and writing
+        Future<?> task;         // the stage that is working on this entry
+        int method = ZipEntry.STORED;
+        int crc;
+        int size;               // uncompressed
+        int compressedSize;
+        long offset;            // of the local header in the new jar
+
+        Entry(String name, long time) {
+            this.name = name;
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(time == -1 ? System.currentTimeMillis() : time);
+            int year = c.get(Calendar.YEAR);
+            this.dosTime = year < 1980 ? (1 << 21) :
+                ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16) |
+                (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+        }
+    }
+
+    /** Writes a zip file out of entries that have already been compressed, which ZipOutputStream can't do */
+    private static final class JarWriter {
+        private final OutputStream os;
+        private final Vector<Entry> written = new Vector<Entry>();
+        private long offset;
+
+        JarWriter(OutputStream os) { this.os = os; }
+
+        void add(Entry e) throws IOException {
+            byte[] name = e.name.getBytes("UTF-8");
+            e.offset = offset;
+            e.compressedSize = e.data.length;
+            u4(0x04034b50);
+            header(e, name);
+            os.write(name);
+            os.write(e.data);
+            offset += 30 + name.length + e.data.length;
+            e.data = null;
+            written.addElement(e);
+            if (offset > 0xffffffffL || written.size() > 0xffff) throw new IOException("jar too large (zip64 isn't supported)");
+        }
+
+        void close() throws IOException {
+            long start = offset;
+            for(int i=0; i<written.size(); i++) {
+                Entry e = written.elementAt(i);
+                byte[] name = e.name.getBytes("UTF-8");
+                u4(0x02014b50);
+                u2(20); // version made by
+                header(e, name);
+                u2(0); // comment length
+                u2(0); // disk number
+                u2(0); // internal attributes
+                u4(0); // external attributes
+                u4((int)e.offset);
+                os.write(name);
+                offset += 46 + name.length;
+            }
+            u4(0x06054b50);
+            u2(0); // this disk
+            u2(0); // disk with the central directory
+            u2(written.size());
+            u2(written.size());
+            u4((int)(offset - start));
+            u4((int)start);
+            u2(0); // comment length
+            os.close();
+        }
+
+        /** The part of the local and central headers they have in common */
+        private void header(Entry e, byte[] name) throws IOException {
+            u2(20); // version needed to extract
+            u2(0x800); // names are UTF-8
+            u2(e.method);
+            u4(e.dosTime);
+            u4(e.crc);
+            u4(e.compressedSize);
+            u4(e.size);
+            u2(name.length);
+            u2(0); // extra field length
+        }
+
+        private void u2(int i) throws IOException { os.write(i); os.write(i >> 8); }
+        private void u4(int i) throws IOException { u2(i); u2(i >> 16); }
     }
 
 }